@@ -0,0 +1,128 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.frontend.workflow;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.jjobs.JobSubmitter;
+import de.unijena.bioinf.ms.frontend.subtools.InstanceJob;
+import de.unijena.bioinf.projectspace.BenchmarkProjects;
+import de.unijena.bioinf.projectspace.Instance;
+import de.unijena.bioinf.projectspace.ProjectSpaceManager;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduling overhead of the instance buffers. The tool chain consists of synthetic {@link InstanceJob}s
+ * that burn a configurable amount of cpu ({@link Blackhole#consumeCPU}), with 0 tokens the score is pure overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InstanceBufferBenchmark {
+
+    public enum Buffer {SIMPLE, STAGED, EXTENDABLE}
+
+    @Param({"SIMPLE", "STAGED", "EXTENDABLE"})
+    public Buffer buffer;
+
+    @Param({"500"})
+    public int instances;
+
+    @Param({"4"})
+    public int chainLength;
+
+    @Param({"0", "10000"})
+    public long tokensPerJob;
+
+    private Path location;
+    private ProjectSpaceManager ps;
+    private List<Instance> loaded;
+    private List<InstanceJob.Factory<?>> tasks;
+    private int bufferSize;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        location = BenchmarkProjects.tempLocation("sirius-bench-buffer");
+        ps = BenchmarkProjects.create(location, instances, 0);
+        loaded = BenchmarkProjects.loadInstances(ps);
+        loaded.forEach(Instance::getExperiment); // benchmark scheduling not compound loading
+        bufferSize = 3 * SiriusJobs.getCPUThreads();
+
+        tasks = new ArrayList<>(chainLength);
+        for (int i = 0; i < chainLength; i++)
+            tasks.add(new InstanceJob.Factory<>(sub -> new SyntheticJob(sub, tokensPerJob), inst -> {
+            }));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ps.close();
+        BenchmarkProjects.delete(location);
+    }
+
+    @Benchmark
+    public void runToolChain() throws InterruptedException {
+        switch (buffer) {
+            case SIMPLE:
+                new SimpleInstanceBuffer(bufferSize, loaded.iterator(), tasks, null, SiriusJobs.getGlobalJobManager()).start(false);
+                break;
+            case STAGED:
+                new StagedInstanceBuffer(bufferSize, bufferSize, loaded.iterator(), tasks, null, SiriusJobs.getGlobalJobManager()).start(false);
+                break;
+            case EXTENDABLE:
+                new ExtendableInstanceBuffer(loaded.iterator(), ps.projectSpace(), new ArrayList<>(tasks), null).start();
+                break;
+        }
+    }
+
+    private static class SyntheticJob extends InstanceJob {
+        private final long tokens;
+
+        SyntheticJob(JobSubmitter submitter, long tokens) {
+            super(submitter, false);
+            this.tokens = tokens;
+        }
+
+        @Override
+        public boolean isAlreadyComputed(@NotNull Instance inst) {
+            return false;
+        }
+
+        @Override
+        protected void computeAndAnnotateResult(@NotNull Instance expRes) {
+            Blackhole.consumeCPU(tokens);
+        }
+
+        @Override
+        public String getToolName() {
+            return "synthetic";
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.CollisionEnergy;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic projects for the benchmarks. The data is deterministic so that runs are comparable.
+ */
+public class BenchmarkProjects {
+    private static final PrecursorIonType ION_TYPE = PrecursorIonType.getPrecursorIonType("[M+H]+");
+    private static final MolecularFormula[] LOSSES = {
+            MolecularFormula.parseOrThrow("H2O"), MolecularFormula.parseOrThrow("CO"),
+            MolecularFormula.parseOrThrow("CO2"), MolecularFormula.parseOrThrow("NH3")
+    };
+
+    private BenchmarkProjects() {
+    }
+
+    public static Path tempLocation(String prefix) throws IOException {
+        final Path dir = Files.createTempDirectory(prefix);
+        Files.delete(dir); // project space must not exist yet
+        return dir;
+    }
+
+    public static ProjectSpaceManager createEmpty(@NotNull Path location) throws IOException {
+        return new ProjectSpaceManager(new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).createNewProjectSpace(location), new InstanceFactory.Default(), null);
+    }
+
+    /**
+     * @param compounds           number of compounds to create
+     * @param formulasPerCompound number of formula results (with fragmentation tree) per compound
+     */
+    public static ProjectSpaceManager create(@NotNull Path location, int compounds, int formulasPerCompound) throws IOException {
+        final ProjectSpaceManager ps = createEmpty(location);
+        final Random r = new Random(42);
+        for (int i = 0; i < compounds; i++) {
+            final Instance inst = ps.newCompoundWithUniqueId(experiment(i, r));
+            for (int j = 0; j < formulasPerCompound; j++)
+                inst.newFormulaResultWithUniqueId(tree(i, j));
+            inst.clearFormulaResultsCache();
+            inst.clearCompoundCache();
+        }
+        return ps;
+    }
+
+    public static List<Instance> loadInstances(@NotNull ProjectSpaceManager ps) {
+        final List<Instance> instances = new ArrayList<>(ps.size());
+        ps.forEach(instances::add);
+        return instances;
+    }
+
+    public static void delete(@NotNull Path location) throws IOException {
+        if (Files.exists(location))
+            FileUtils.deleteRecursively(location);
+    }
+
+    static MutableMs2Experiment experiment(int idx, Random r) {
+        final MutableMs2Experiment exp = new MutableMs2Experiment();
+        exp.setName("compound_" + idx);
+        exp.setPrecursorIonType(ION_TYPE);
+        exp.setIonMass(150d + (idx % 700) + r.nextDouble());
+
+        final int peaks = 20 + r.nextInt(60);
+        final double[] masses = new double[peaks];
+        final double[] intensities = new double[peaks];
+        for (int k = 0; k < peaks; k++) {
+            masses[k] = 50d + (exp.getIonMass() - 50d) * k / peaks + r.nextDouble() * 0.01;
+            intensities[k] = r.nextDouble();
+        }
+        exp.getMs2Spectra().add(new MutableMs2Spectrum(new SimpleSpectrum(masses, intensities), exp.getIonMass(), CollisionEnergy.none(), 2));
+        return exp;
+    }
+
+    static FTree tree(int compoundIdx, int formulaIdx) {
+        final MolecularFormula root = MolecularFormula.parseOrThrow(
+                "C" + (8 + (compoundIdx % 20)) + "H" + (10 + formulaIdx) + "N" + (1 + formulaIdx % 3) + "O" + (2 + formulaIdx % 5));
+        final FTree tree = new FTree(root, ION_TYPE.getIonization());
+        tree.setAnnotation(PrecursorIonType.class, ION_TYPE);
+
+        Fragment parent = tree.getRoot();
+        for (MolecularFormula loss : LOSSES) {
+            final MolecularFormula child = parent.getFormula().subtract(loss);
+            if (!child.isAllPositiveOrZero() || child.isEmpty())
+                continue;
+            parent = tree.addFragment(parent, child, ION_TYPE.getIonization());
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.SScored;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.projectspace.sirius.FormulaResult;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Reading and writing of formula results of a generated project.
+ * Score = time to process all formula results of all compounds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormulaResultIOBenchmark {
+
+    @Param({"100"})
+    public int compounds;
+
+    @Param({"10", "50"})
+    public int formulasPerCompound;
+
+    private Path location;
+    private ProjectSpaceManager ps;
+    private List<Instance> instances;
+    private List<List<FormulaResult>> loadedResults;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        location = BenchmarkProjects.tempLocation("sirius-bench-fr");
+        ps = BenchmarkProjects.create(location, compounds, formulasPerCompound);
+        instances = BenchmarkProjects.loadInstances(ps);
+        loadedResults = instances.stream().map(i -> i.loadFormulaResults(FTree.class).stream()
+                .map(SScored::getCandidate).collect(Collectors.toList())).collect(Collectors.toList());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ps.close();
+        BenchmarkProjects.delete(location);
+    }
+
+    @Benchmark
+    public void loadFormulaResults(Blackhole bh) {
+        for (Instance inst : instances) {
+            inst.clearFormulaResultsCache();
+            bh.consume(inst.loadFormulaResults(FTree.class));
+        }
+    }
+
+    @Benchmark
+    public void loadFormulaResultsCached(Blackhole bh) {
+        for (Instance inst : instances)
+            bh.consume(inst.loadFormulaResults(FTree.class));
+    }
+
+    @Benchmark
+    public void updateFormulaResults() {
+        for (int i = 0; i < instances.size(); i++) {
+            final Instance inst = instances.get(i);
+            for (FormulaResult fr : loadedResults.get(i))
+                inst.updateFormulaResult(fr, FTree.class);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Import of a generated project into a new, empty project via {@link InstanceImporter#importProject}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ImportProjectBenchmark {
+
+    @Param({"200"})
+    public int compounds;
+
+    @Param({"10"})
+    public int formulasPerCompound;
+
+    private Path sourceLocation;
+    private ProjectSpaceManager source;
+
+    private Path targetLocation;
+    private ProjectSpaceManager target;
+
+    @Setup(Level.Trial)
+    public void setupSource() throws IOException {
+        sourceLocation = BenchmarkProjects.tempLocation("sirius-bench-import-src");
+        source = BenchmarkProjects.create(sourceLocation, compounds, formulasPerCompound);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownSource() throws IOException {
+        source.close();
+        BenchmarkProjects.delete(sourceLocation);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupTarget() throws IOException {
+        targetLocation = BenchmarkProjects.tempLocation("sirius-bench-import-target");
+        target = BenchmarkProjects.createEmpty(targetLocation);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownTarget() throws IOException {
+        target.close();
+        BenchmarkProjects.delete(targetLocation);
+    }
+
+    @Benchmark
+    public List<CompoundContainerId> importProject() throws IOException {
+        return InstanceImporter.importProject(source.projectSpace(), target, id -> true, false, false);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.projectspace.summaries.FormulaSummaryWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing the project-wide summaries via {@link ProjectSpaceManager#updateSummaries} with {@link SummaryIndex#THREADS_KEY} bounding the compounds in flight.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SummaryBenchmark {
+
+    @Param({"500"})
+    public int compounds;
+
+    @Param({"10"})
+    public int formulasPerCompound;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Path location;
+    private ProjectSpaceManager ps;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        location = BenchmarkProjects.tempLocation("sirius-bench-summary");
+        ps = BenchmarkProjects.create(location, compounds, formulasPerCompound);
+        PropertyManager.setProperty(SummaryIndex.THREADS_KEY, String.valueOf(threads));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ps.close();
+        BenchmarkProjects.delete(location);
+    }
+
+    @Benchmark
+    public void formulaSummary() throws IOException {
+        ps.updateSummaries(new FormulaSummaryWriter());
+    }
+
+    @Benchmark
+    public void defaultSummaries() throws IOException {
+        ps.updateSummaries(ProjectSpaceManager.defaultSummarizer());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.container;
+
+import de.unijena.bioinf.projectspace.BenchmarkProjects;
+import de.unijena.bioinf.projectspace.fingerid.FingerIdLocations;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write and read throughput of structure candidate lists in a {@link ContainerStore} with the different {@link BlockCodec}s.
+ * The raw and stored bytes of the written candidate lists are reported as secondary results ({@link StoredBytes}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockCodecBenchmark {
+
+    @Param({"NONE", "FAST", "ARCHIVE"})
+    public BlockCodec codec;
+
+    @Param({"1000"})
+    public int candidatesPerFile;
+
+    private Path location;
+    private ContainerStore store;
+    private byte[] candidates;
+    private String dir;
+    private int storedLength;
+    private int written = 0;
+
+    /**
+     * Bytes written by the {@link #write} benchmark per iteration, before and after encoding.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class StoredBytes {
+        public long rawBytes;
+        public long storedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rawBytes = 0;
+            storedBytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        location = BenchmarkProjects.tempLocation("sirius-bench-codec");
+        Files.createDirectories(location);
+        store = ContainerStore.create(location.resolve("project" + ProjectContainer.EXTENSION));
+        store.setCodec(codec);
+        dir = "/1_compound/" + FingerIdLocations.FINGERBLAST.relDir();
+        store.createDirectory("/1_compound");
+        store.createDirectory(dir);
+        candidates = candidateList(candidatesPerFile);
+        store.writeFile(dir + "/read.tsv", candidates, candidates.length);
+        // same decision as ContainerStore.writeFile, entries that do not shrink are stored raw
+        storedLength = codec == BlockCodec.NONE || !BlockCodec.isCompressible(dir + "/read.tsv", candidates.length)
+                ? candidates.length : Math.min(candidates.length, codec.encode(candidates, candidates.length).length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        BenchmarkProjects.delete(location);
+    }
+
+    @Benchmark
+    public void write(StoredBytes bytes) throws IOException {
+        store.writeFile(dir + "/" + (written++ % 100) + ".tsv", candidates, candidates.length);
+        bytes.rawBytes += candidates.length;
+        bytes.storedBytes += storedLength;
+    }
+
+    @Benchmark
+    public void read(Blackhole bh) throws IOException {
+        bh.consume(store.read(dir + "/read.tsv").get(candidates.length - 1));
+    }
+
+    // candidate lists are highly redundant (repeated formulas, links, similar smiles)
+    private static byte[] candidateList(int n) {
+        final Random r = new Random(42);
+        final StringBuilder b = new StringBuilder("inchikey2D\tinchi\tmolecularFormula\trank\tscore\tname\tsmiles\txlogp\tpubchemids\tlinks\tdbflags\n");
+        for (int i = 0; i < n; i++) {
+            b.append(Long.toString(r.nextLong() & Long.MAX_VALUE, 36).toUpperCase()).append('\t')
+                    .append("InChI=1S/C6H12O6/c7-1-2-3(8)4(9)5(10)6(11)12-2/h2-11H,1H2").append('\t')
+                    .append("C6H12O6").append('\t')
+                    .append(i + 1).append('\t')
+                    .append(-r.nextDouble() * 100).append('\t')
+                    .append("Candidate ").append(r.nextInt(10000)).append('\t')
+                    .append("OCC1OC(O)C(O)C(O)C1O").append('\t')
+                    .append(r.nextDouble() * 5).append('\t')
+                    .append(r.nextInt(1000000)).append(';').append(r.nextInt(1000000)).append('\t')
+                    .append("PubChem:(").append(r.nextInt(1000000)).append(")").append('\t')
+                    .append(r.nextInt(1 << 20)).append('\n');
+        }
+        return b.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
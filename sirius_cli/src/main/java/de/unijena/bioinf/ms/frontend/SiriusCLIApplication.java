@@ -24,10 +24,12 @@ import de.unijena.bioinf.ms.annotations.PrintCitations;
 import de.unijena.bioinf.ms.frontend.core.ApplicationCore;
 import de.unijena.bioinf.ms.frontend.subtools.CLIRootOptions;
 import de.unijena.bioinf.ms.frontend.subtools.config.DefaultParameterConfigLoader;
-import de.unijena.bioinf.ms.frontend.workflow.SimpleInstanceBuffer;
+import de.unijena.bioinf.ms.frontend.workflow.StagedInstanceBuffer;
+import de.unijena.bioinf.ms.frontend.workflow.ToolChainWorkflow;
 import de.unijena.bioinf.ms.frontend.workflow.WorkFlowSupplier;
 import de.unijena.bioinf.ms.frontend.workflow.WorkflowBuilder;
 import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.projectspace.CompletionIndex;
 import de.unijena.bioinf.projectspace.ProjectSpaceManagerFactory;
 import de.unijena.bioinf.webapi.ProxyManager;
 import org.jetbrains.annotations.NotNull;
@@ -52,7 +54,7 @@ public class SiriusCLIApplication {
             measureTime("Start Run method");
             run(args, () -> {
                 final DefaultParameterConfigLoader configOptionLoader = new DefaultParameterConfigLoader();
-                return new WorkflowBuilder<>(new CLIRootOptions<>(configOptionLoader, new ProjectSpaceManagerFactory.Default()), configOptionLoader, new SimpleInstanceBuffer.Factory());
+                return new WorkflowBuilder<>(new CLIRootOptions<>(configOptionLoader, new ProjectSpaceManagerFactory.Default()), configOptionLoader, new StagedInstanceBuffer.Factory());
             });
         } finally {
             System.exit(0);
@@ -89,6 +91,7 @@ public class SiriusCLIApplication {
     public static Runnable shutdownWebservice() {
         return () -> {
             try {
+                ApplicationCore.WEB_BATCHER.close();
                 ApplicationCore.WEB_API.shutdownJobWatcher();
                 ApplicationCore.DEFAULT_LOGGER.info("Try to delete leftover jobs on web server...");
                 ApplicationCore.WEB_API.deleteClientAndJobs();
@@ -110,6 +113,9 @@ public class SiriusCLIApplication {
             successfulParsed = RUN.parseArgs(args);
             measureTime("Parse args Done!");
             if (successfulParsed){
+                // the GUI and the REST service modify projects without maintaining the completion index
+                if (RUN.getFlow() instanceof ToolChainWorkflow)
+                    PropertyManager.setProperty(CompletionIndex.ENABLED_KEY, "true");
                 measureTime("Compute");
                 RUN.compute();
                 measureTime("Compute DONE!");
@@ -61,6 +61,7 @@ public abstract class ApplicationCore {
     public static final Path WORKSPACE;
     public static final SiriusFactory SIRIUS_PROVIDER = new SiriusCachedFactory();
     public static final WebAPI WEB_API;
+    public static final WebRequestBatcher WEB_BATCHER;
     @NotNull public static final BibtexManager BIBTEX;
 
     private static final boolean TIME = false;
@@ -296,6 +297,7 @@ public abstract class ApplicationCore {
             measureTime("DONE init bug reporting, START init WebAPI");
 
             WEB_API = new WebAPI();
+            WEB_BATCHER = new WebRequestBatcher(new WebRequestBatcher.WebAPITransport(WEB_API));
             DEFAULT_LOGGER.info("Web API initialized.");
             measureTime("DONE init  init WebAPI");
 
@@ -0,0 +1,261 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.frontend.core;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JobSubmitter;
+import de.unijena.bioinf.utils.NetUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Collects single requests from many threads and sends them as one bulk call.
+ * <p>
+ * A batch is sent if it reaches the maximum batch size or if the first request of the batch
+ * has been waiting for the given window. Batches are sent by a bounded number of {@link de.unijena.bioinf.jjobs.JJob.JobType#WEBSERVICE} jobs,
+ * which wait for the window themselves. Callers that block on their futures should use {@link #await}: it sends due
+ * batches in the waiting thread, so callers that occupy all web service threads cannot starve the sender jobs.
+ *
+ * @param <Q> request type
+ * @param <R> result type
+ */
+public class RequestBatcher<Q, R> implements Closeable {
+
+    @FunctionalInterface
+    public interface BatchCall<Q, R> {
+        /**
+         * @param batch requests to send
+         * @return one result per request in the same order as the requests
+         */
+        List<R> call(@NotNull List<Q> batch) throws Exception;
+    }
+
+    private static final class Batch<Q, R> {
+        private final List<Q> requests;
+        private final List<CompletableFuture<R>> futures;
+
+        private Batch(List<Q> requests, List<CompletableFuture<R>> futures) {
+            this.requests = requests;
+            this.futures = futures;
+        }
+    }
+
+    private final String name;
+    private final BatchCall<Q, R> batchCall;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final int maxSenders;
+    private final JobSubmitter jobSubmitter;
+
+    private List<Q> pendingRequests = new ArrayList<>();
+    private List<CompletableFuture<R>> pendingFutures = new ArrayList<>();
+    // arrival of the first pending request
+    private long pendingSince = 0;
+    // full batches that wait for a sender
+    private final Deque<Batch<Q, R>> readyBatches = new ArrayDeque<>();
+    private int senders = 0;
+    // senders that are started or wait for a batch
+    private int idleSenders = 0;
+    private boolean closed = false;
+
+    public RequestBatcher(@NotNull String name, @NotNull BatchCall<Q, R> batchCall, long windowMs, int maxBatchSize) {
+        this(name, batchCall, windowMs, maxBatchSize, 4);
+    }
+
+    public RequestBatcher(@NotNull String name, @NotNull BatchCall<Q, R> batchCall, long windowMs, int maxBatchSize, int maxSenders) {
+        this(name, batchCall, windowMs, maxBatchSize, maxSenders, SiriusJobs.getGlobalJobManager());
+    }
+
+    /**
+     * @param name           name used for logging
+     * @param batchCall      the call that sends a batch of requests
+     * @param windowMs       maximum time a request waits for other requests before the batch is sent
+     * @param maxBatchSize   maximum number of requests per batch, values < 1 mean no bound
+     * @param maxSenders     maximum number of batches that are sent concurrently by sender jobs, further batches are queued
+     * @param jobSubmitter   runs the sender jobs
+     */
+    public RequestBatcher(@NotNull String name, @NotNull BatchCall<Q, R> batchCall, long windowMs, int maxBatchSize, int maxSenders, @NotNull JobSubmitter jobSubmitter) {
+        this.name = name;
+        this.batchCall = batchCall;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMs));
+        this.maxBatchSize = maxBatchSize < 1 ? Integer.MAX_VALUE : maxBatchSize;
+        this.maxSenders = Math.max(1, maxSenders);
+        this.jobSubmitter = jobSubmitter;
+    }
+
+    /**
+     * @return future that is completed when the batch containing this request has been answered.
+     */
+    public CompletableFuture<R> submit(@NotNull Q request) {
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("Request batcher '" + name + "' is already closed."));
+                return future;
+            }
+            if (pendingRequests.isEmpty())
+                pendingSince = System.nanoTime();
+            pendingRequests.add(request);
+            pendingFutures.add(future);
+
+            if (pendingRequests.size() >= maxBatchSize || windowNanos == 0)
+                readyBatches.add(takePending());
+            dispatch();
+        }
+        return future;
+    }
+
+    /**
+     * Waits for the given future of this batcher and checks for interruption while waiting.
+     * Batches that are due are sent by the waiting thread.
+     */
+    public <T> T await(@NotNull Future<T> future, @NotNull NetUtils.InterruptionCheck interrupted) throws ExecutionException, InterruptedException {
+        final long pollMs = Math.max(1, Math.min(500, TimeUnit.NANOSECONDS.toMillis(windowNanos)));
+        while (true) {
+            interrupted.check();
+            if (future.isDone())
+                return future.get();
+            final Batch<Q, R> batch;
+            synchronized (this) {
+                batch = nextBatch(true);
+            }
+            if (batch != null) {
+                send(batch);
+                continue;
+            }
+            try {
+                return future.get(pollMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ignored) {
+                //check for interruption and due batches and wait again
+            }
+        }
+    }
+
+    // has to be called while holding the monitor
+    private Batch<Q, R> takePending() {
+        final Batch<Q, R> batch = new Batch<>(pendingRequests, pendingFutures);
+        pendingRequests = new ArrayList<>();
+        pendingFutures = new ArrayList<>();
+        return batch;
+    }
+
+    // has to be called while holding the monitor
+    private void dispatch() {
+        notifyAll();
+        final int batches = readyBatches.size() + (pendingRequests.isEmpty() ? 0 : 1);
+        if (idleSenders < batches && senders < maxSenders) {
+            senders++;
+            idleSenders++;
+            jobSubmitter.submitJob(new SenderJob());
+        }
+    }
+
+    /**
+     * Has to be called while holding the monitor.
+     *
+     * @param respectWindow if true, the pending requests are only taken if their window has expired.
+     * @return the next batch to send or null if there is none.
+     */
+    @Nullable
+    private Batch<Q, R> nextBatch(boolean respectWindow) {
+        if (!readyBatches.isEmpty())
+            return readyBatches.poll();
+        if (!pendingRequests.isEmpty() && (!respectWindow || closed || System.nanoTime() - pendingSince >= windowNanos))
+            return takePending();
+        return null;
+    }
+
+    private void send(Batch<Q, R> batch) {
+        try {
+            final List<R> results = batchCall.call(batch.requests);
+            if (results == null || results.size() != batch.requests.size())
+                throw new IllegalStateException("Batch call '" + name + "' returned " + (results == null ? "no" : results.size()) + " results for " + batch.requests.size() + " requests.");
+            for (int i = 0; i < batch.futures.size(); i++)
+                batch.futures.get(i).complete(results.get(i));
+        } catch (Throwable e) {
+            LoggerFactory.getLogger(getClass()).debug("Batch call '" + name + "' with " + batch.requests.size() + " requests failed.", e);
+            batch.futures.forEach(f -> f.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Sends all pending requests immediately and rejects new requests.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        if (!pendingRequests.isEmpty())
+            readyBatches.add(takePending());
+        dispatch();
+    }
+
+    /**
+     * Sends batches until there is nothing left to send. Waits for the window of pending requests itself.
+     * If interrupted, the pending requests are sent without waiting, so that no request is left behind.
+     */
+    private class SenderJob extends BasicJJob<Void> {
+        private SenderJob() {
+            super(JobType.WEBSERVICE);
+        }
+
+        @Override
+        protected Void compute() {
+            boolean interrupted = false;
+            while (true) {
+                final Batch<Q, R> batch;
+                synchronized (RequestBatcher.this) {
+                    Batch<Q, R> next;
+                    while ((next = nextBatch(!interrupted)) == null) {
+                        if (pendingRequests.isEmpty()) {
+                            idleSenders--;
+                            senders--;
+                            return null;
+                        }
+                        final long remaining = windowNanos - (System.nanoTime() - pendingSince);
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(RequestBatcher.this, Math.max(1, remaining));
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    idleSenders--;
+                    batch = next;
+                }
+
+                send(batch);
+
+                synchronized (RequestBatcher.this) {
+                    idleSenders++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.frontend.core;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
+import de.unijena.bioinf.canopus.CanopusResult;
+import de.unijena.bioinf.fingerid.CSIPredictor;
+import de.unijena.bioinf.fingerid.CanopusWebJJob;
+import de.unijena.bioinf.fingerid.predictor_types.PredictorType;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.utils.NetUtils;
+import de.unijena.bioinf.webapi.WebAPI;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Batching layer between the tool jobs and the {@link WebAPI}.
+ * <p>
+ * If the {@link Transport} sends a batch in one round trip, CANOPUS requests of all running instances are collected
+ * over a short window ("de.unijena.bioinf.sirius.webBatch.window" in ms) and are handed to the transport as one batch
+ * of at most "de.unijena.bioinf.sirius.webBatch.maxSize" requests. At most "de.unijena.bioinf.sirius.webBatch.senders"
+ * batches are sent concurrently. Otherwise, waiting for other instances would only add latency, so the requests of
+ * one instance are sent at once by the calling thread.
+ * Every request is answered on its own, a failing request does not fail its batch.
+ * Structure predictors are requested only once per {@link PredictorType}, concurrent requests share the same response.
+ * <p>
+ * The transport is pluggable, so tests can use an in-process stand-in instead of the web service.
+ */
+public class WebRequestBatcher implements Closeable {
+    public static final String WINDOW_KEY = "de.unijena.bioinf.sirius.webBatch.window";
+    public static final String MAX_SIZE_KEY = "de.unijena.bioinf.sirius.webBatch.maxSize";
+    public static final String SENDERS_KEY = "de.unijena.bioinf.sirius.webBatch.senders";
+
+    public interface Transport {
+        /**
+         * @return one future per request in the same order as the requests, completed with the result or the failure of its request.
+         * Throwing fails the whole batch.
+         */
+        List<CompletableFuture<CanopusResult>> computeCanopus(@NotNull List<CanopusRequest> batch) throws Exception;
+
+        /**
+         * @return true if a batch is sent in one round trip, so that collecting requests of several instances pays off.
+         */
+        default boolean isBulkTransport() {
+            return true;
+        }
+
+        CSIPredictor getStructurePredictor(@NotNull PredictorType type) throws Exception;
+    }
+
+    public static final class CanopusRequest {
+        public final MolecularFormula formula;
+        public final int charge;
+        public final ProbabilityFingerprint fingerprint;
+
+        public CanopusRequest(@NotNull MolecularFormula formula, int charge, @NotNull ProbabilityFingerprint fingerprint) {
+            this.formula = formula;
+            this.charge = charge;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private final Transport transport;
+    private final RequestBatcher<CanopusRequest, CompletableFuture<CanopusResult>> canopusBatcher;
+    private final Map<PredictorType, CompletableFuture<CSIPredictor>> predictors = new ConcurrentHashMap<>();
+
+    public WebRequestBatcher(@NotNull Transport transport) {
+        this(transport, PropertyManager.getInteger(WINDOW_KEY, null, 50), PropertyManager.getInteger(MAX_SIZE_KEY, null, 256),
+                PropertyManager.getInteger(SENDERS_KEY, null, 4));
+    }
+
+    public WebRequestBatcher(@NotNull Transport transport, long windowMs, int maxBatchSize, int maxSenders) {
+        this.transport = transport;
+        this.canopusBatcher = new RequestBatcher<>("canopus-batch", transport::computeCanopus, windowMs, maxBatchSize, maxSenders);
+    }
+
+    public CompletableFuture<CanopusResult> submitCanopus(@NotNull MolecularFormula formula, int charge, @NotNull ProbabilityFingerprint fingerprint) {
+        return submitCanopus(List.of(new CanopusRequest(formula, charge, fingerprint))).get(0);
+    }
+
+    /**
+     * @return one future per request in the same order as the requests
+     */
+    public List<CompletableFuture<CanopusResult>> submitCanopus(@NotNull List<CanopusRequest> requests) {
+        if (transport.isBulkTransport())
+            return requests.stream().map(r -> canopusBatcher.submit(r).thenCompose(f -> f)).collect(Collectors.toList());
+
+        try {
+            return transport.computeCanopus(requests);
+        } catch (Exception e) {
+            return requests.stream().map(r -> CompletableFuture.<CanopusResult>failedFuture(e)).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Waits for a result of {@link #submitCanopus} and checks for interruption while waiting.
+     * Batches that are due are sent by the waiting thread.
+     */
+    public CanopusResult awaitCanopus(@NotNull Future<CanopusResult> future, @NotNull NetUtils.InterruptionCheck interrupted) throws ExecutionException, InterruptedException {
+        return canopusBatcher.await(future, interrupted);
+    }
+
+    /**
+     * The predictor is loaded only once and then shared. If loading fails, the next call tries again.
+     */
+    public CSIPredictor getStructurePredictor(@NotNull PredictorType type, @NotNull NetUtils.InterruptionCheck interrupted) throws ExecutionException, InterruptedException {
+        final CompletableFuture<CSIPredictor> nu = new CompletableFuture<>();
+        final CompletableFuture<CSIPredictor> present = predictors.putIfAbsent(type, nu);
+        if (present != null)
+            return await(present, interrupted);
+
+        try {
+            nu.complete(transport.getStructurePredictor(type));
+        } catch (Throwable e) {
+            predictors.remove(type, nu);
+            nu.completeExceptionally(e);
+        }
+        return await(nu, interrupted);
+    }
+
+    /**
+     * Waits for the given future and checks for interruption while waiting.
+     */
+    public static <R> R await(@NotNull Future<R> future, @NotNull NetUtils.InterruptionCheck interrupted) throws ExecutionException, InterruptedException {
+        while (true) {
+            interrupted.check();
+            try {
+                return future.get(500, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ignored) {
+                //check for interruption and wait again
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        canopusBatcher.close();
+    }
+
+    /**
+     * Sends the requests via the {@link WebAPI}. The API has no bulk endpoint, so there is one web job per request.
+     * The jobs of a batch are submitted back to back and the server computes them concurrently. Each request is then
+     * completed with its own result or failure.
+     */
+    public static class WebAPITransport implements Transport {
+        private final WebAPI api;
+
+        public WebAPITransport(@NotNull WebAPI api) {
+            this.api = api;
+        }
+
+        @Override
+        public List<CompletableFuture<CanopusResult>> computeCanopus(@NotNull List<CanopusRequest> batch) throws Exception {
+            final NetUtils.InterruptionCheck interrupted = WebAPITransport::checkInterrupted;
+            final List<CompletableFuture<CanopusResult>> results = new ArrayList<>(batch.size());
+            final List<CanopusWebJJob> jobs = new ArrayList<>(batch.size());
+            for (CanopusRequest r : batch) {
+                final CompletableFuture<CanopusResult> result = new CompletableFuture<>();
+                results.add(result);
+                try {
+                    jobs.add(NetUtils.tryAndWait(() -> api.submitCanopusJob(r.formula, r.charge, r.fingerprint), interrupted));
+                } catch (Exception e) {
+                    if (e instanceof InterruptedException)
+                        throw e;
+                    jobs.add(null);
+                    result.completeExceptionally(e);
+                }
+            }
+
+            for (int i = 0; i < jobs.size(); i++) {
+                final CanopusWebJJob job = jobs.get(i);
+                if (job == null)
+                    continue;
+                try {
+                    results.get(i).complete(job.takeResult());
+                } catch (Throwable e) {
+                    results.get(i).completeExceptionally(e);
+                }
+            }
+            return results;
+        }
+
+        @Override
+        public boolean isBulkTransport() {
+            return false;
+        }
+
+        @Override
+        public CSIPredictor getStructurePredictor(@NotNull PredictorType type) throws Exception {
+            return NetUtils.tryAndWait(() -> (CSIPredictor) api.getStructurePredictor(type), WebAPITransport::checkInterrupted);
+        }
+
+        private static void checkInterrupted() throws InterruptedException {
+            if (Thread.currentThread().isInterrupted())
+                throw new InterruptedException("Web request was interrupted.");
+        }
+    }
+}
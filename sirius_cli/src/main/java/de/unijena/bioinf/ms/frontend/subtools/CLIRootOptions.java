@@ -23,8 +23,15 @@ import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.jjobs.JJob;
 import de.unijena.bioinf.ms.annotations.WriteSummaries;
 import de.unijena.bioinf.ms.frontend.subtools.config.DefaultParameterConfigLoader;
+import de.unijena.bioinf.ms.frontend.workflow.HeapAdmissionControl;
+import de.unijena.bioinf.ms.frontend.workflow.InstanceOrdering;
+import de.unijena.bioinf.ms.frontend.workflow.ShardedExecution;
+import de.unijena.bioinf.ms.frontend.workflow.WorkflowMetrics;
 import de.unijena.bioinf.ms.properties.PropertyManager;
 import de.unijena.bioinf.projectspace.*;
+import de.unijena.bioinf.projectspace.container.BlockCodec;
+import de.unijena.bioinf.projectspace.fingerid.FingerprintStore;
+import de.unijena.bioinf.projectspace.container.ProjectContainer;
 import de.unijena.bioinf.utils.NetUtils;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
@@ -34,6 +41,7 @@ import picocli.CommandLine.Option;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.ConsoleHandler;
@@ -100,6 +108,37 @@ public class CLIRootOptions<M extends ProjectSpaceManager> implements RootOption
 
     private int instanceBuffer = -1;
 
+    @Option(names = {"--heap-target", "--adaptive-compound-buffer"}, description = "Fraction of the maximum heap (0-1) SIRIUS tries to stay below by adapting the number of compounds that are computed in parallel. The memory needed by each compound is estimated from its spectra and precursor mass. The --compound-buffer is used as upper bound. Default (0): adaptive compound buffer is disabled.", order = 25)
+    public void setHeapTarget(double heapTarget) {
+        PropertyManager.setProperty(HeapAdmissionControl.HEAP_TARGET_KEY, String.valueOf(heapTarget));
+    }
+
+    @Option(names = "--compound-order", description = "Order in which compounds are computed. INPUT: order of the input. COST_DESCENDING: compounds with the highest estimated computation cost (precursor mass and number of peaks) first, reduces the time where only a few expensive compounds are left on many cores. Valid values: ${COMPLETION-CANDIDATES}. Default: INPUT", order = 28)
+    public void setInstanceOrdering(InstanceOrdering ordering) {
+        PropertyManager.setProperty(InstanceOrdering.ORDER_KEY, ordering.name());
+    }
+
+    @Option(names = "--metrics-out", description = "Directory to write workflow metrics to (per tool wall and cpu time, compound buffer waiting time, running compounds, computed and skipped tool runs). The metrics are written as JSON (metrics.json) and Prometheus text format (metrics.prom) periodically and at the end of the workflow.", order = 26)
+    public void setMetricsOut(Path metricsOut) {
+        PropertyManager.setProperty(WorkflowMetrics.OUT_KEY, metricsOut.toAbsolutePath().toString());
+    }
+
+    @Option(names = "--metrics-interval", description = "Interval in seconds in which the workflow metrics are written to --metrics-out. Default: 30", order = 27)
+    public void setMetricsInterval(int seconds) {
+        PropertyManager.setProperty(WorkflowMetrics.INTERVAL_KEY, String.valueOf(seconds));
+    }
+
+    @Option(names = "--shard", description = "Compute the project together with other SIRIUS processes that share the file system. Specified as 'i/n': this process is shard i of n (0 <= i < n). The processes claim compounds via lease files in the project. Shard 0 is the coordinator that waits for all other shards and executes ZODIAC, all following tools and the summaries. The input has to be imported into the project beforehand.", order = 29)
+    public void setShard(String shard) {
+        ShardedExecution.parseShard(shard);
+        PropertyManager.setProperty(ShardedExecution.SHARD_KEY, shard);
+    }
+
+    @Option(names = "--write-behind", description = "Buffer formula results of a compound in memory and write them in one pass when all tools are done with the compound (or heap usage is high). Reduces file system operations, e.g. on network storage. Results of compounds that are in progress are lost on a crash.", order = 31)
+    public void setWriteBehind(boolean writeBehind) {
+        PropertyManager.setProperty(ProjectSpaceManager.WRITE_BEHIND_KEY, String.valueOf(writeBehind));
+    }
+
     @Option(names = {"--workspace", "-w"}, description = "Specify sirius workspace location. This is the directory for storing Property files, logs, databases and caches.  This is NOT for the project-space that stores the results! Default is $USER_HOME/.sirius-<MINOR_VERSION>", order = 30, hidden = true)
     public Files workspace; //todo change in application core
 
@@ -131,6 +170,41 @@ public class CLIRootOptions<M extends ProjectSpaceManager> implements RootOption
         defaultConfigOptions.changeOption("WriteSummaries", !noSummaries);
     }
 
+    @Option(names = "--incremental-summaries", description = "Only re-read compounds that changed since the last summary and rebuild the project-space summaries from cached rows of all other compounds. Summaries that cannot be updated incrementally (mzTab-M) are only written without this option.", order = 299)
+    public void setIncrementalSummaries(boolean incremental) {
+        PropertyManager.setProperty(SummaryIndex.INCREMENTAL_KEY, String.valueOf(incremental));
+    }
+
+    @Option(names = "--container-codec", description = "Compression of structure candidate lists and fingerprints in single file projects (" + ProjectContainer.EXTENSION + "). FAST for projects that are still computed, ARCHIVE for smallest size. Existing files are not recompressed. Valid values: ${COMPLETION-CANDIDATES}. Default: NONE", order = 300)
+    public void setContainerCodec(BlockCodec codec) {
+        PropertyManager.setProperty(BlockCodec.CODEC_KEY, codec.name());
+    }
+
+    @Option(names = "--dedup-fingerprints", description = "Store the fingerprint of each structure candidate only once per project instead of once per compound. Older SIRIUS versions cannot read the candidate fingerprints of projects written with this option.", order = 301)
+    public void setDedupFingerprints(boolean dedup) {
+        PropertyManager.setProperty(FingerprintStore.DEDUP_KEY, String.valueOf(dedup));
+    }
+
+    @Option(names = "--durable-writes", description = "Flush the results of every finished compound to disk, so they survive a crash. Writes of concurrently finished compounds share one flush. Only supported for single file projects (" + ProjectContainer.EXTENSION + ").", order = 302)
+    public void setDurableWrites(boolean durable) {
+        PropertyManager.setProperty(ProjectSpaceManager.DURABLE_KEY, String.valueOf(durable));
+    }
+
+    @Option(names = "--import-threads", description = "Number of input files (e.g. .ms, .mgf, .mzML) that are parsed in parallel when importing. Default: 1", order = 303)
+    public void setImportThreads(int threads) {
+        PropertyManager.setProperty(MS2ExpInputIterator.THREADS_KEY, String.valueOf(threads));
+    }
+
+    @Option(names = "--import-unordered", description = "Import the compounds of files that are parsed in parallel in the order they are parsed instead of the input order. Faster, but the compound ids are not reproducible.", order = 304)
+    public void setImportUnordered(boolean unordered) {
+        PropertyManager.setProperty(MS2ExpInputIterator.ORDERED_KEY, String.valueOf(!unordered));
+    }
+
+    @Option(names = "--zip-random-access", description = "Open zip compressed projects (.sirius) without extracting them. Modifications are merged into a new zip file that replaces the project on close.", order = 305)
+    public void setZipRandomAccess(boolean randomAccess) {
+        PropertyManager.setProperty(ProjectContainer.RANDOM_ACCESS_ZIP_KEY, String.valueOf(randomAccess));
+    }
+
 
     @CommandLine.ArgGroup(exclusive = false, heading = "@|bold Specify OUTPUT Project-Space: %n|@", order = 200)
     private OutputOptions psOpts = new OutputOptions();
@@ -168,9 +242,9 @@ public class CLIRootOptions<M extends ProjectSpaceManager> implements RootOption
 
             final SiriusProjectSpace psTmp;
             if (Files.notExists(psOpts.outputProjectLocation)) {
-                psTmp = new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).createNewProjectSpace(psOpts.outputProjectLocation);
+                psTmp = ProjectContainer.createNewProjectSpace(new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()), psOpts.outputProjectLocation);
             } else {
-                psTmp = new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).openExistingProjectSpace(psOpts.outputProjectLocation);
+                psTmp = ProjectContainer.openExistingProjectSpace(new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()), psOpts.outputProjectLocation);
             }
 
             //check for formatter
@@ -196,10 +270,13 @@ public class CLIRootOptions<M extends ProjectSpaceManager> implements RootOption
             });
 
 
-            try {
-                space.checkAndFixDataFiles(NetUtils.checkThreadInterrupt(Thread.currentThread()));
-            } catch (TimeoutException | InterruptedException e) {
-                LoggerFactory.getLogger(getClass()).warn("Could not check Fingerprint version on Project creation. " + e.getMessage());
+            // in a sharded execution, the coordinator checks and fixes the data files before the other workers start
+            if (ShardedExecution.isCoordinatorConfigured()) {
+                try {
+                    space.checkAndFixDataFiles(NetUtils.checkThreadInterrupt(Thread.currentThread()));
+                } catch (TimeoutException | InterruptedException e) {
+                    LoggerFactory.getLogger(getClass()).warn("Could not check Fingerprint version on Project creation. " + e.getMessage());
+                }
             }
 
             return space;
@@ -237,6 +314,8 @@ public class CLIRootOptions<M extends ProjectSpaceManager> implements RootOption
                 M space = getProjectSpace();
                 InputFilesOptions input = getInput();
                 if (space != null) {
+                    if (ShardedExecution.isConfigured() && input != null && !isProjectItself(input, space))
+                        throw new CommandLine.PicocliException("Sharded execution does not support importing input. Please import the input into the project first and use the project as input and output.");
                     if (input != null)
                         SiriusJobs.getGlobalJobManager().submitJob(new InstanceImporter(space, (exp) -> exp.getIonMass() < maxMz, (c) -> c.getIonMass().map(m -> m < maxMz).orElse(true), false, getOutput().isUpdateFingerprints()).makeImportJJob(input)).awaitResult();
                     if (space.size() < 1)
@@ -248,6 +327,13 @@ public class CLIRootOptions<M extends ProjectSpaceManager> implements RootOption
         };
     }
 
+    private static boolean isProjectItself(@NotNull InputFilesOptions input, @NotNull ProjectSpaceManager space) {
+        if (input.csvInputs != null && !input.csvInputs.isEmpty())
+            return false;
+        return input.msInput == null || input.msInput.isEmpty() || (input.msInput.isSingleProject()
+                && input.msInput.projects.keySet().iterator().next().toAbsolutePath().equals(ProjectContainer.locationOf(space.projectSpace().getLocation()).toAbsolutePath()));
+    }
+
     @NotNull
     @Override
     public PostprocessingJob<Boolean> makeDefaultPostprocessingJob() {
@@ -257,7 +343,9 @@ public class CLIRootOptions<M extends ProjectSpaceManager> implements RootOption
                 M project = getProjectSpace();
                 try {
                     //use all experiments in workspace to create summaries
-                    if (defaultConfigOptions.config.createInstanceWithDefaults(WriteSummaries.class).value) {
+                    if (!ShardedExecution.isCoordinatorConfigured()) {
+                        LOG.info("Summaries are written by the coordinator (shard 0).");
+                    } else if (defaultConfigOptions.config.createInstanceWithDefaults(WriteSummaries.class).value) {
                         LOG.info("Writing summary files...");
                         project.updateSummaries(ProjectSpaceManager.defaultSummarizer());
                         LOG.info("Project-Space summaries successfully written!");
@@ -22,6 +22,7 @@ package de.unijena.bioinf.ms.frontend.subtools;
 import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.jjobs.JJob;
 import de.unijena.bioinf.jjobs.JobSubmitter;
+import de.unijena.bioinf.ms.frontend.workflow.WorkflowMetrics;
 import de.unijena.bioinf.projectspace.Instance;
 import org.jetbrains.annotations.NotNull;
 
@@ -51,25 +52,33 @@ public abstract class DataSetJob extends ToolChainJobImpl<Iterable<Instance>> im
 
     @Override
     protected Iterable<Instance> compute() throws Exception {
-        checkInputs();
-        //todo maybe make decidable if any or all match
-        final boolean hasResults = inputInstances.stream().anyMatch(this::isAlreadyComputed);
-        final boolean recompute = inputInstances.stream().anyMatch(this::isRecompute);
-
-        if (!hasResults || recompute) {
-            if (hasResults) {
-                updateProgress(0, 100, 2, "Invalidate existing Results and Recompute!");
-                inputInstances.forEach(this::invalidateResults);
+        final WorkflowMetrics.ToolTimer timer = WorkflowMetrics.startTimer();
+        WorkflowMetrics.Outcome outcome = WorkflowMetrics.Outcome.FAILED;
+        try {
+            checkInputs();
+            //todo maybe make decidable if any or all match
+            final boolean hasResults = inputInstances.stream().anyMatch(this::isAlreadyComputed);
+            final boolean recompute = inputInstances.stream().anyMatch(this::isRecompute);
+
+            if (!hasResults || recompute) {
+                if (hasResults) {
+                    updateProgress(0, 100, 2, "Invalidate existing Results and Recompute!");
+                    inputInstances.forEach(this::invalidateResults);
+                }
+                updateProgress(0, 100, 99, "Start computation...");
+                inputInstances.forEach(this::enableRecompute); // enable recompute so that following tools will recompute if results exist.
+                computeAndAnnotateResult(inputInstances);
+                updateProgress(0, 100, 99, "DONE!");
+                outcome = WorkflowMetrics.Outcome.COMPUTED;
+            } else {
+                updateProgress(0, 100, 99, "Skipping Job because results already Exist and recompute not requested.");
+                outcome = WorkflowMetrics.Outcome.SKIPPED;
             }
-            updateProgress(0, 100, 99, "Start computation...");
-            inputInstances.forEach(this::enableRecompute); // enable recompute so that following tools will recompute if results exist.
-            computeAndAnnotateResult(inputInstances);
-            updateProgress(0, 100, 99, "DONE!");
-        } else {
-            updateProgress(0, 100, 99, "Skipping Job because results already Exist and recompute not requested.");
-        }
 
-        return inputInstances;
+            return inputInstances;
+        } finally {
+            WorkflowMetrics.global().recordToolRun(getToolName(), timer, outcome);
+        }
     }
 
     protected void checkInputs() {
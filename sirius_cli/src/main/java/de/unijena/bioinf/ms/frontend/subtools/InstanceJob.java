@@ -23,6 +23,7 @@ import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.jjobs.JJob;
 import de.unijena.bioinf.jjobs.JobSubmitter;
 import de.unijena.bioinf.ms.annotations.DataAnnotation;
+import de.unijena.bioinf.ms.frontend.workflow.WorkflowMetrics;
 import de.unijena.bioinf.projectspace.Instance;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -62,26 +63,34 @@ public abstract class InstanceJob extends ToolChainJobImpl<Instance> implements
 
     @Override
     protected Instance compute() throws Exception {
-        checkForInterruption();
-        checkInput();
-        final boolean hasResults = isAlreadyComputed(input);
-        checkForInterruption();
-        if (!hasResults || isRecompute(input)) {
-            if (hasResults){
-                updateProgress(0, 100, 2, "Invalidate existing Results and Recompute!");
-                invalidateResults(input);
-            }
-            updateProgress(0, 100, 99, "Start computation...");
-            setRecompute(input,true); // enable recompute so that following tools will recompute if results exist.
+        final WorkflowMetrics.ToolTimer timer = WorkflowMetrics.startTimer();
+        WorkflowMetrics.Outcome outcome = WorkflowMetrics.Outcome.FAILED;
+        try {
             checkForInterruption();
-            computeAndAnnotateResult(input);
+            checkInput();
+            final boolean hasResults = isAlreadyComputed(input);
             checkForInterruption();
-            updateProgress(0, 100, 99, "DONE!");
-        } else {
-            updateProgress(0, 100, 99, "Skipping Job because results already Exist and recompute not requested.");
-        }
+            if (!hasResults || isRecompute(input)) {
+                if (hasResults) {
+                    updateProgress(0, 100, 2, "Invalidate existing Results and Recompute!");
+                    invalidateResults(input);
+                }
+                updateProgress(0, 100, 99, "Start computation...");
+                setRecompute(input, true); // enable recompute so that following tools will recompute if results exist.
+                checkForInterruption();
+                computeAndAnnotateResult(input);
+                checkForInterruption();
+                updateProgress(0, 100, 99, "DONE!");
+                outcome = WorkflowMetrics.Outcome.COMPUTED;
+            } else {
+                updateProgress(0, 100, 99, "Skipping Job because results already Exist and recompute not requested.");
+                outcome = WorkflowMetrics.Outcome.SKIPPED;
+            }
 
-        return input;
+            return input;
+        } finally {
+            WorkflowMetrics.global().recordToolRun(getToolName(), timer, outcome);
+        }
     }
 
     @Override
@@ -112,6 +121,10 @@ public abstract class InstanceJob extends ToolChainJobImpl<Instance> implements
         return null;
     }
 
+    /**
+     * Formula result components that are outdated after this job has run. Memory is managed by the
+     * {@link de.unijena.bioinf.projectspace.ResultCache}, so only derived components have to be listed here.
+     */
     protected Class<? extends DataAnnotation>[] formulaResultComponentsToClear() {
         return null;
     }
@@ -22,16 +22,17 @@ package de.unijena.bioinf.ms.frontend.subtools.canopus;
 import de.unijena.bioinf.ChemistryBase.algorithm.scoring.FormulaScore;
 import de.unijena.bioinf.ChemistryBase.algorithm.scoring.SScored;
 import de.unijena.bioinf.canopus.CanopusResult;
-import de.unijena.bioinf.fingerid.CanopusWebJJob;
 import de.unijena.bioinf.fingerid.FingerprintResult;
 import de.unijena.bioinf.fingerid.predictor_types.PredictorType;
 import de.unijena.bioinf.jjobs.JobSubmitter;
 import de.unijena.bioinf.ms.annotations.DataAnnotation;
 import de.unijena.bioinf.ms.frontend.core.ApplicationCore;
+import de.unijena.bioinf.ms.frontend.core.WebRequestBatcher;
 import de.unijena.bioinf.ms.frontend.subtools.InstanceJob;
 import de.unijena.bioinf.ms.frontend.utils.PicoUtils;
 import de.unijena.bioinf.ms.rest.model.canopus.CanopusData;
 import de.unijena.bioinf.projectspace.FormulaScoring;
+import de.unijena.bioinf.projectspace.CompletionIndex;
 import de.unijena.bioinf.projectspace.Instance;
 import de.unijena.bioinf.projectspace.canopus.CanopusDataProperty;
 import de.unijena.bioinf.projectspace.sirius.FormulaResult;
@@ -39,8 +40,7 @@ import de.unijena.bioinf.utils.NetUtils;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public class CanopusSubToolJob extends InstanceJob {
@@ -52,7 +52,8 @@ public class CanopusSubToolJob extends InstanceJob {
 
     @Override
     public boolean isAlreadyComputed(@NotNull Instance inst) {
-        return inst.loadCompoundContainer().hasResult() && inst.loadFormulaResults(CanopusResult.class).stream().anyMatch((it -> it.getCandidate().hasAnnotation(CanopusResult.class)));
+        return inst.getProjectSpaceManager().getCompletionIndex().isComputed(inst.getID(), CompletionIndex.Tool.CANOPUS,
+                () -> inst.loadCompoundContainer().hasResult() && inst.loadFormulaResults(CanopusResult.class).stream().anyMatch((it -> it.getCandidate().hasAnnotation(CanopusResult.class))));
     }
 
     @Override
@@ -86,30 +87,22 @@ public class CanopusSubToolJob extends InstanceJob {
 
         checkForInterruption();
 
-        // submit canopus jobs for Identification results that contain CSI:FingerID results
-        Map<FormulaResult, CanopusWebJJob> jobs = res.stream().collect(Collectors.toMap(r -> r, this::buildAndSubmitRemote));
+        // submit canopus requests for Identification results that contain CSI:FingerID results.
+        // requests of all running instances are batched before they are sent to the server, if the transport supports it
+        final List<CompletableFuture<CanopusResult>> jobs = ApplicationCore.WEB_BATCHER.submitCanopus(res.stream()
+                .map(ir -> new WebRequestBatcher.CanopusRequest(ir.getId().getMolecularFormula(), ir.getId().getIonType().getCharge(), ir.getAnnotationOrThrow(FingerprintResult.class).fingerprint))
+                .collect(Collectors.toList()));
 
         checkForInterruption();
 
-
-        jobs.forEach((k, v) -> k.setAnnotation(CanopusResult.class, v.takeResult()));
+        for (int i = 0; i < res.size(); i++)
+            res.get(i).setAnnotation(CanopusResult.class, ApplicationCore.WEB_BATCHER.awaitCanopus(jobs.get(i), this::checkForInterruption));
 
         // write canopus results
         for (FormulaResult r : res)
             inst.updateFormulaResult(r, CanopusResult.class);
     }
 
-    private CanopusWebJJob buildAndSubmitRemote(@NotNull final FormulaResult ir) {
-        try {
-            return NetUtils.tryAndWait(() -> ApplicationCore.WEB_API.submitCanopusJob(
-                    ir.getId().getMolecularFormula(), ir.getId().getIonType().getCharge(), ir.getAnnotationOrThrow(FingerprintResult.class).fingerprint
-                    ), this::checkForInterruption
-            );
-        } catch (TimeoutException | InterruptedException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     @Override
     protected Class<? extends DataAnnotation>[] formulaResultComponentsToClear() {
         return new Class[]{CanopusResult.class};
@@ -76,7 +76,6 @@ public class MgfExporterWorkflow implements Workflow {
                         LoggerFactory.getLogger(getClass()).warn("Invalid instance '" + inst.getID() + "'. Skipping this instance!", e);
                     } finally {
                         inst.clearCompoundCache();
-                        inst.clearFormulaResultsCache();
                     }
                 }
             }
@@ -94,7 +94,6 @@ public class FTreeExporterWorkflow implements Workflow {
                     LoggerFactory.getLogger(getClass()).warn("Invalid instance '" + inst.getID() + "'. Skipping this instance!", e);
                 } finally {
                     inst.clearCompoundCache();
-                    inst.clearFormulaResultsCache();
                 }
 
             }
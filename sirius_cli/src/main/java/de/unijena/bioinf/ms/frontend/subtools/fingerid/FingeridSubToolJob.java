@@ -42,6 +42,7 @@ import de.unijena.bioinf.ms.frontend.utils.PicoUtils;
 import de.unijena.bioinf.ms.properties.PropertyManager;
 import de.unijena.bioinf.ms.rest.model.fingerid.FingerIdData;
 import de.unijena.bioinf.projectspace.FormulaScoring;
+import de.unijena.bioinf.projectspace.CompletionIndex;
 import de.unijena.bioinf.projectspace.Instance;
 import de.unijena.bioinf.projectspace.fingerid.FingerIdDataProperty;
 import de.unijena.bioinf.projectspace.sirius.FormulaResult;
@@ -60,7 +61,8 @@ import java.util.stream.Collectors;
 public class FingeridSubToolJob extends InstanceJob {
 
     public static final boolean enableConfidence = PropertyManager.getBoolean("de.unijena.bioinf.fingerid.confidence", false);
-    public static final List<Class<? extends DataAnnotation>>  formulaResultComponentsToClear = new ArrayList<>(List.of(FTree.class, FBCandidates.class, FBCandidateFingerprints.class));
+    // components derived from the results of this tool that are stale after it has been run (e.g. GUI views)
+    public static final List<Class<? extends DataAnnotation>>  formulaResultComponentsToClear = new ArrayList<>();
 
     public FingeridSubToolJob(JobSubmitter submitter) {
         super(submitter);
@@ -69,7 +71,8 @@ public class FingeridSubToolJob extends InstanceJob {
 
     @Override
     public boolean isAlreadyComputed(@NotNull Instance inst) {
-        return inst.loadCompoundContainer().hasResult() && inst.loadFormulaResults(FingerprintResult.class, FBCandidates.class).stream().map(SScored::getCandidate).anyMatch(c -> c.hasAnnotation(FingerprintResult.class) && c.hasAnnotation(FBCandidates.class));
+        return inst.getProjectSpaceManager().getCompletionIndex().isComputed(inst.getID(), CompletionIndex.Tool.FINGERID,
+                () -> inst.loadCompoundContainer().hasResult() && inst.loadFormulaResults(FingerprintResult.class, FBCandidates.class).stream().map(SScored::getCandidate).anyMatch(c -> c.hasAnnotation(FingerprintResult.class) && c.hasAnnotation(FBCandidates.class)));
     }
 
     @Override
@@ -105,7 +108,8 @@ public class FingeridSubToolJob extends InstanceJob {
         //todo currently there is only csi -> change if there are multiple methods
         // we need to run multiple structure elucidation jobs and need  different prediction results then.
         EnumSet<PredictorType> predictors = type.toPredictors(inst.getExperiment().getPrecursorIonType().getCharge());
-        final @NotNull CSIPredictor csi = NetUtils.tryAndWait(() -> (CSIPredictor) ApplicationCore.WEB_API.getStructurePredictor(predictors.iterator().next()), this::checkForInterruption);
+        // predictors are shared between all instances, so they are fetched only once
+        final @NotNull CSIPredictor csi = ApplicationCore.WEB_BATCHER.getStructurePredictor(predictors.iterator().next(), this::checkForInterruption);
 
         final FingerIDJJob<?> job = new FingerIDJJob<>(csi, inst.getExperiment(),
                 formulaResults.stream().map(res -> new IdentificationResult<>(res.getCandidate().getAnnotationOrThrow(FTree.class), res.getScoreObject())).collect(Collectors.toList()),
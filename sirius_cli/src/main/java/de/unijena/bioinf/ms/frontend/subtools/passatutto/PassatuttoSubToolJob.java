@@ -23,12 +23,12 @@ import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
 import de.unijena.bioinf.GibbsSampling.ZodiacScore;
 import de.unijena.bioinf.jjobs.JobSubmitter;
-import de.unijena.bioinf.ms.annotations.DataAnnotation;
 import de.unijena.bioinf.ms.frontend.subtools.InstanceJob;
 import de.unijena.bioinf.ms.frontend.utils.PicoUtils;
 import de.unijena.bioinf.passatutto.Decoy;
 import de.unijena.bioinf.passatutto.Passatutto;
 import de.unijena.bioinf.projectspace.FormulaScoring;
+import de.unijena.bioinf.projectspace.CompletionIndex;
 import de.unijena.bioinf.projectspace.Instance;
 import de.unijena.bioinf.projectspace.sirius.FormulaResult;
 import de.unijena.bioinf.sirius.scores.SiriusScore;
@@ -44,7 +44,8 @@ public class PassatuttoSubToolJob extends InstanceJob {
     @Override
     public boolean isAlreadyComputed(@NotNull Instance inst) {
         // We do not have to invalidate results because there is no method that builds on top of Passatutto
-        return inst.loadCompoundContainer().hasResult() && inst.loadFormulaResults(Decoy.class).stream().anyMatch(it -> it.getCandidate().hasAnnotation(Decoy.class));
+        return inst.getProjectSpaceManager().getCompletionIndex().isComputed(inst.getID(), CompletionIndex.Tool.PASSATUTTO,
+                () -> inst.loadCompoundContainer().hasResult() && inst.loadFormulaResults(Decoy.class).stream().anyMatch(it -> it.getCandidate().hasAnnotation(Decoy.class)));
 //            logInfo("Skipping CSI:FingerID for Instance \"" + inst.getExperiment().getName() + "\" because results already exist.");
     }
 
@@ -78,11 +79,6 @@ public class PassatuttoSubToolJob extends InstanceJob {
         inst.updateFormulaResult(best, Decoy.class);
     }
 
-    @Override
-    protected Class<? extends DataAnnotation>[] formulaResultComponentsToClear() {
-        return new Class[]{Decoy.class};
-    }
-
     @Override
     public String getToolName() {
         return PicoUtils.getCommand(PassatuttoOptions.class).name();
@@ -168,6 +168,9 @@ public class ProjecSpaceOptions implements StandaloneTool<ProjectSpaceWorkflow>
     @CommandLine.Option(names = {"--move", "-m"}, description = "DANGERZONE: Move instead of copy data (where possible) when merging or splitting projects to save time. Be aware of the risk that you may end up with corrupted input or output data when the program crashes.")
     public boolean move = false;
 
+    @CommandLine.Option(names = {"--convert"}, description = "Convert the input project into the format given by the output location (*.siriusc = single file container, *.sirius/*.zip = compressed project, directory otherwise). No other operations are applied.")
+    public boolean convert = false;
+
     public ProjectSpaceWorkflow makeWorkflow(RootOptions<?,?,?> rootOptions, ParameterConfig config) {
         return new ProjectSpaceWorkflow(rootOptions, this, config);
     }
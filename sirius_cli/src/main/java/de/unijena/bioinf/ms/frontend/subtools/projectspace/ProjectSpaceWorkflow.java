@@ -31,6 +31,7 @@ import de.unijena.bioinf.ms.frontend.subtools.RootOptions;
 import de.unijena.bioinf.ms.frontend.workflow.Workflow;
 import de.unijena.bioinf.ms.properties.ParameterConfig;
 import de.unijena.bioinf.projectspace.*;
+import de.unijena.bioinf.projectspace.container.ProjectContainer;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.LoggerFactory;
 
@@ -58,6 +59,11 @@ public class ProjectSpaceWorkflow implements Workflow {
 
     @Override
     public void run() {
+        if (projecSpaceOptions.convert) {
+            convertProject();
+            return;
+        }
+
         final Predicate<CompoundContainerId> cidFilter = projecSpaceOptions.getCombinedCIDFilter();
         final Predicate<Ms2Experiment> expFilter = projecSpaceOptions.getCombinedMS2ExpFilter();
         final ProjecSpaceOptions.SplitProject splitOpts = projecSpaceOptions.splitOptions;
@@ -79,7 +85,7 @@ public class ProjectSpaceWorkflow implements Workflow {
                         move = true;
                     } else if (projectInput.msInput.projects.size() == 1) {
                         source = rootOptions.getSpaceManagerFactory().create(
-                                new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).openExistingProjectSpace(projectInput.msInput.projects.keySet().stream().findFirst().get()));
+                                ProjectContainer.openExistingProjectSpace(new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()), projectInput.msInput.projects.keySet().stream().findFirst().get()));
                     } else {
                         LoggerFactory.getLogger(getClass()).warn("No input project-space given! Nothing to do");
                         return;
@@ -126,7 +132,7 @@ public class ProjectSpaceWorkflow implements Workflow {
                         ProjectSpaceManager batchSpace = null;
                         try {
                             batchSpace = rootOptions.getSpaceManagerFactory().create(
-                                    new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).createNewProjectSpace(parent.resolve(name + "_" + i + ext)),
+                                    ProjectContainer.createNewProjectSpace(new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()), parent.resolve(name + "_" + i + ext)),
                                     source.nameFormatter);
 
                             LoggerFactory.getLogger(getClass()).info("Copying compounds '" + p.stream().map(CompoundContainerId::getDirectoryName).collect(Collectors.joining(",")) + "' to Batch '" + batchSpace.projectSpace().getLocation().toString());
@@ -145,7 +151,7 @@ public class ProjectSpaceWorkflow implements Workflow {
 
                     source.close();
                     if (move)
-                        FileUtils.deleteRecursively(source.projectSpace().getLocation());
+                        FileUtils.deleteRecursively(ProjectContainer.locationOf(source.projectSpace().getLocation()));
                 } catch (IOException | ExecutionException e) {
                     LoggerFactory.getLogger(getClass()).error("Error when filtering and splitting Project(s)!",e);
                 } finally {
@@ -158,7 +164,7 @@ public class ProjectSpaceWorkflow implements Workflow {
                     InputFilesOptions input = rootOptions.getInput();
 
                     // if the output project is also part of the input, we have to filter it also
-                    if (space.size() > 0 && input == null || input.msInput.projects.containsKey(space.projectSpace().getLocation())) {
+                    if (space.size() > 0 && input == null || input.msInput.projects.containsKey(ProjectContainer.locationOf(space.projectSpace().getLocation()))) {
                         space.projectSpace().filteredIterator(c -> !cidFilter.test(c)).forEachRemaining(id -> {
                             try {
                                 space.projectSpace().deleteCompound(id);
@@ -207,6 +213,20 @@ public class ProjectSpaceWorkflow implements Workflow {
         }
     }
 
+    private void convertProject() {
+        final InputFilesOptions input = rootOptions.getInput();
+        final Path target = rootOptions.getOutput().getOutputProjectLocation();
+        if (input == null || input.msInput == null || !input.msInput.isSingleProject() || target == null) {
+            LoggerFactory.getLogger(getClass()).error("Converting needs exactly one input project and an output location!");
+            return;
+        }
+        try {
+            ProjectContainer.convert(input.msInput.projects.keySet().iterator().next(), target);
+        } catch (IOException e) {
+            LoggerFactory.getLogger(getClass()).error("Error when converting Project!", e);
+        }
+    }
+
     private void filterOnInstanceLevel(ProjectSpaceManager outputProject, ProjecSpaceOptions projecSpaceOptions) {
         final Predicate<Instance> pred = projecSpaceOptions.getCombinedInstanceilter();
         if (pred == null)
@@ -95,6 +95,9 @@ public class SiriusOptions implements ToolChainOptions<SiriusSubToolJob, Instanc
         defaultConfigOptions.changeOption("Timeout.secondsPerInstance", value);
     }
 
+    @Option(names = "--compute-budget", description = {"Wall clock time budget in seconds for the formula identification of a single compound. If exceeded, the computation is canceled and repeated once with a cheaper fallback configuration (heuristic trees only, no element detection, fewer candidates). Such results are flagged as computed in degraded mode.", "0 for an infinite amount of time."}, defaultValue = "0")
+    public long computeBudget;
+
     @Option(names = "--no-recalibration", description = "Disable Recalibration of input Spectra")
     public void disableRecalibration(boolean disable) throws Exception {
         if (disable){
@@ -189,19 +192,30 @@ public class SiriusOptions implements ToolChainOptions<SiriusSubToolJob, Instanc
 
 
     // hidden parameters
+    private ElementDetection elementDetection = null;
+
     @CommandLine.ArgGroup(exclusive = true)
     private void setElementDetection(ElementDetection ed){
         ed.defaultConfigOptions = defaultConfigOptions;
+        elementDetection = ed;
+    }
+
+    /**
+     * The config has no value for an empty set of detectable elements, so disabling is applied to the
+     * FormulaSettings annotation of each compound by the {@link SiriusSubToolJob}.
+     */
+    public boolean isElementDetectionDisabled() {
+        return elementDetection != null && elementDetection.disabled;
     }
 
     private static class ElementDetection {
         private DefaultParameterConfigLoader defaultConfigOptions;
+        private boolean disabled = false;
 
         // some hidden parameters
         @Option(names = "--disable-element-detection", hidden = true)
-        public void disableElementDetection(boolean disable) throws Exception {
-            if (disable)
-                defaultConfigOptions.changeOption("FormulaSettings.detectable", " , ");
+        public void disableElementDetection(boolean disable) {
+            disabled = disable;
         }
 
         @Option(names = "--enable-silicon-detection", hidden = true)
@@ -21,15 +21,22 @@ package de.unijena.bioinf.ms.frontend.subtools.sirius;
 
 import de.unijena.bioinf.ChemistryBase.ms.DetectedAdducts;
 import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.model.FormulaSettings;
 import de.unijena.bioinf.ChemistryBase.ms.ft.model.Whiteset;
 import de.unijena.bioinf.ChemistryBase.ms.properties.FinalConfig;
 import de.unijena.bioinf.chemdb.annotations.FormulaSearchDB;
 import de.unijena.bioinf.fingerid.FormulaWhiteListJob;
+import de.unijena.bioinf.jjobs.JJob;
 import de.unijena.bioinf.jjobs.JobSubmitter;
+import de.unijena.bioinf.ms.annotations.Ms2ExperimentAnnotation;
 import de.unijena.bioinf.ms.frontend.core.ApplicationCore;
 import de.unijena.bioinf.ms.frontend.subtools.InstanceJob;
 import de.unijena.bioinf.ms.frontend.utils.PicoUtils;
+import de.unijena.bioinf.ms.properties.ParameterConfig;
+import de.unijena.bioinf.projectspace.CompletionIndex;
+import de.unijena.bioinf.projectspace.DegradedMode;
 import de.unijena.bioinf.projectspace.Instance;
+import de.unijena.bioinf.projectspace.sirius.CompoundContainer;
 import de.unijena.bioinf.projectspace.sirius.FormulaResultRankingScore;
 import de.unijena.bioinf.sirius.IdentificationResult;
 import de.unijena.bioinf.sirius.Sirius;
@@ -39,12 +46,24 @@ import org.jetbrains.annotations.NotNull;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class SiriusSubToolJob extends InstanceJob {
     //todo this is only a temporary solution. parameters should be annotated to the exp
     // we do not want to have the sub-tool management to be dependent on a cli parsing library
     protected final SiriusOptions cliOptions;
 
+    // fallback configuration if the compute budget is exceeded
+    private static final int DEGRADED_CANDIDATES = 5;
+    private static final String DEGRADED_DESCRIPTION = "heuristic trees only, no element detection, at most " + DEGRADED_CANDIDATES + " candidates";
+
+    // interval in which the budget wait checks for the cancellation of this job
+    private static final long BUDGET_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
     public SiriusSubToolJob(SiriusOptions cliOptions, JobSubmitter jobSubmitter) {
         super(jobSubmitter, false);
         this.cliOptions = cliOptions;
@@ -53,7 +72,8 @@ public class SiriusSubToolJob extends InstanceJob {
 
     @Override
     public boolean isAlreadyComputed(@NotNull Instance inst) {
-        return !inst.loadCompoundContainer().getResults().isEmpty();
+        return inst.getProjectSpaceManager().getCompletionIndex().isComputed(inst.getID(), CompletionIndex.Tool.SIRIUS,
+                () -> !inst.loadCompoundContainer().getResults().isEmpty());
     }
 
     @Override
@@ -83,11 +103,34 @@ public class SiriusSubToolJob extends InstanceJob {
                 wSet = cliOptions.formulaWhiteSet;
         }
         exp.setAnnotation(Whiteset.class, wSet);
+        applyElementDetection(exp);
 
         checkForInterruption();
 
-        final Sirius sirius = ApplicationCore.SIRIUS_PROVIDER.sirius(inst.loadCompoundContainer(FinalConfig.class).getAnnotationOrThrow(FinalConfig.class).config.getConfigValue("AlgorithmProfile"));
-        List<IdentificationResult<SiriusScore>> results = submitSubJob(sirius.makeIdentificationJob(exp)).awaitResult();
+        final ParameterConfig config = inst.loadCompoundContainer(FinalConfig.class).getAnnotationOrThrow(FinalConfig.class).config;
+        final Sirius sirius = ApplicationCore.SIRIUS_PROVIDER.sirius(config.getConfigValue("AlgorithmProfile"));
+        List<IdentificationResult<SiriusScore>> results;
+        boolean degraded = false;
+        if (cliOptions.computeBudget <= 0) {
+            results = submitSubJob(sirius.makeIdentificationJob(exp)).awaitResult();
+        } else {
+            try {
+                results = awaitWithinBudget(sirius.makeIdentificationJob(exp), cliOptions.computeBudget);
+            } catch (TimeoutException e) {
+                logWarn("Computation exceeded the budget of " + cliOptions.computeBudget + "s. Retrying in degraded mode (" + DEGRADED_DESCRIPTION + ").");
+                checkForInterruption();
+                exp.setAnnotationsFrom(makeDegradedConfig(config), Ms2ExperimentAnnotation.class);
+                exp.setAnnotation(FormulaSettings.class, exp.getAnnotationOrDefault(FormulaSettings.class).withoutAutoDetect());
+                try {
+                    results = awaitWithinBudget(sirius.makeIdentificationJob(exp), cliOptions.computeBudget);
+                } finally {
+                    // do not leak the fallback parameters to the following tools
+                    exp.setAnnotationsFrom(config, Ms2ExperimentAnnotation.class);
+                    applyElementDetection(exp);
+                }
+                degraded = true;
+            }
+        }
 
         checkForInterruption();
 
@@ -106,6 +149,88 @@ public class SiriusSubToolJob extends InstanceJob {
         //make possible adducts persistent without rewriting whole experiment
         inst.getID().setDetectedAdducts(exp.getAnnotationOrNull(DetectedAdducts.class));
         inst.updateCompoundID();
+
+        updateDegradedMode(inst, degraded);
+    }
+
+    /**
+     * Runs the given job and cancels it if it does not finish within the given time.
+     * The budget is awaited by this job itself, so no additional timer thread is needed.
+     *
+     * @throws TimeoutException if the job was canceled because it exceeded the budget
+     */
+    private <R> R awaitWithinBudget(@NotNull JJob<R> job, long budgetSeconds) throws ExecutionException, TimeoutException, InterruptedException {
+        // registered before submission, so that no state change is missed
+        final CountDownLatch finished = new CountDownLatch(1);
+        job.addPropertyChangeListener(evt -> {
+            if (isFinished(job))
+                finished.countDown();
+        });
+        submitSubJob(job);
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(budgetSeconds);
+        boolean exceeded = false;
+        try {
+            long remaining;
+            while (!isFinished(job) && (remaining = deadline - System.nanoTime()) > 0) {
+                finished.await(Math.min(remaining, BUDGET_CHECK_INTERVAL), TimeUnit.NANOSECONDS);
+                checkForInterruption();
+            }
+            if (!isFinished(job)) {
+                exceeded = true;
+                job.cancel();
+            }
+        } catch (InterruptedException e) {
+            job.cancel();
+            throw e;
+        }
+
+        try {
+            return job.awaitResult();
+        } catch (ExecutionException | CancellationException e) {
+            if (exceeded)
+                throw new TimeoutException("Computation exceeded the budget of " + budgetSeconds + "s.");
+            throw e;
+        }
+    }
+
+    private static boolean isFinished(@NotNull JJob<?> job) {
+        final JJob.JobState state = job.getState();
+        return state == JJob.JobState.DONE || state == JJob.JobState.FAILED || state == JJob.JobState.CANCELED;
+    }
+
+    /**
+     * Runtime layer on top of the compound config that makes the computation cheaper.
+     * Runtime layers are removed before the next analysis, so this is never persisted.
+     * Element detection is disabled on the {@link FormulaSettings} annotation, since the config has no value for an empty element set.
+     */
+    private static ParameterConfig makeDegradedConfig(@NotNull ParameterConfig config) {
+        final ParameterConfig degraded = config.newIndependentInstance("RUNTIME_CONFIG_DEGRADED", true);
+        degraded.changeConfig("UseHeuristic.mzToUseHeuristic", "0");
+        degraded.changeConfig("UseHeuristic.mzToUseHeuristicOnly", "0");
+        int candidates;
+        try {
+            candidates = Integer.parseInt(config.getConfigValue("NumberOfCandidates").trim());
+        } catch (RuntimeException e) {
+            candidates = DEGRADED_CANDIDATES;
+        }
+        degraded.changeConfig("NumberOfCandidates", String.valueOf(Math.min(candidates, DEGRADED_CANDIDATES)));
+        return degraded;
+    }
+
+    private void applyElementDetection(@NotNull Ms2Experiment exp) {
+        if (cliOptions.isElementDetectionDisabled())
+            exp.setAnnotation(FormulaSettings.class, exp.getAnnotationOrDefault(FormulaSettings.class).withoutAutoDetect());
+    }
+
+    private void updateDegradedMode(@NotNull Instance inst, boolean degraded) {
+        final CompoundContainer container = inst.loadCompoundContainer(DegradedMode.class);
+        final DegradedMode current = container.getAnnotation(DegradedMode.class).orElse(DegradedMode.NONE);
+        final DegradedMode updated = degraded ? current.with(getToolName(), DEGRADED_DESCRIPTION) : current.without(getToolName());
+        if (!updated.equals(current)) {
+            container.setAnnotation(DegradedMode.class, updated);
+            inst.updateCompound(container, DegradedMode.class);
+        }
     }
 
     @Override
@@ -61,6 +61,8 @@ class ExtendableInstanceBuffer extends BufferedJJobSubmitter<Instance> {
 
     @Override // this is handled in main thread
     protected void handleResults(JobContainer watcher) {
+        watcher.sourceInstance.flushFormulaResults();
+        watcher.sourceInstance.getProjectSpaceManager().commit();
        //todo done by the jobs itself
         /* try {
             projectSpace.writeExperiment(watcher.sourceInstance);
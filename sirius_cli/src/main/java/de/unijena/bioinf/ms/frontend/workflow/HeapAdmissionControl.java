@@ -0,0 +1,206 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.frontend.workflow;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+/**
+ * Adaptive admission control for {@link InstanceBuffer}s.
+ * <p>
+ * Watches the heap occupancy via the {@link MemoryMXBean} and adapts the number of concurrently
+ * admitted instances to stay below a configurable fraction of the maximum heap
+ * (additive increase if there is headroom, multiplicative decrease if the target is exceeded).
+ * Additionally, an instance is only admitted if its estimated footprint fits into the remaining headroom.
+ * At least one instance is always admitted to ensure progress.
+ * <p>
+ * The heap usage only drops after a garbage collection, so buffers that wait for admission register a
+ * {@link #addCollectionListener collection listener} instead of polling.
+ */
+public class HeapAdmissionControl {
+    public static final String HEAP_TARGET_KEY = "de.unijena.bioinf.sirius.instanceBuffer.heapTarget";
+
+    private static final long ADAPT_INTERVAL_MS = 500;
+    private static final long BASE_FOOTPRINT = 4L * 1024 * 1024;
+    private static final long BYTES_PER_MS2_PEAK = 64L * 1024;
+    private static final long BYTES_PER_MS1_PEAK = 1024;
+    // GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION, without depending on com.sun.management
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final List<MemoryPoolMXBean> heapPools;
+    private final double heapTarget;
+    private final int maxInstances;
+
+    private int limit;
+    private long lastAdapt = 0;
+
+    private final List<Runnable> collectionListeners = new CopyOnWriteArrayList<>();
+    private final NotificationListener gcListener = (notification, handback) -> {
+        if (GC_NOTIFICATION.equals(notification.getType()))
+            collected();
+    };
+
+    /**
+     * @param heapTarget   fraction of the maximum heap that should not be exceeded (0,1]
+     * @param maxInstances upper bound for the number of concurrently admitted instances, values < 1 mean no bound.
+     */
+    public HeapAdmissionControl(double heapTarget, int maxInstances) {
+        if (heapTarget <= 0 || heapTarget > 1)
+            throw new IllegalArgumentException("Heap target has to be in (0,1] but was: " + heapTarget);
+        this.heapTarget = heapTarget;
+        this.maxInstances = maxInstances < 1 ? Integer.MAX_VALUE : maxInstances;
+        this.limit = Math.min(this.maxInstances, SiriusJobs.getCPUThreads());
+        this.heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(p -> p.getType() == MemoryType.HEAP && p.isCollectionUsageThresholdSupported())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return admission control configured via {@link #HEAP_TARGET_KEY} or null if adaptive admission is disabled.
+     */
+    @Nullable
+    public static HeapAdmissionControl fromProperties(int maxInstances) {
+        final String target = PropertyManager.getProperty(HEAP_TARGET_KEY, null, "0");
+        try {
+            final double t = Double.parseDouble(target);
+            return t > 0 ? new HeapAdmissionControl(Math.min(1d, t), maxInstances) : null;
+        } catch (NumberFormatException e) {
+            LoggerFactory.getLogger(HeapAdmissionControl.class).warn("Illegal heap target '" + target + "'. Adaptive compound buffer disabled.");
+            return null;
+        }
+    }
+
+    /**
+     * Rough estimate of the memory needed to compute the given experiment. The fragmentation graph grows with the
+     * number of MS/MS peaks and the number of possible decompositions, which increases steeply with the mass.
+     */
+    public static long estimateFootprint(@NotNull Ms2Experiment exp) {
+        final long ms2Peaks = exp.getMs2Spectra().stream().mapToLong(s -> s.size()).sum();
+        final long ms1Peaks = exp.getMs1Spectra().stream().mapToLong(s -> s.size()).sum();
+        final double mass = Double.isNaN(exp.getIonMass()) ? 0d : exp.getIonMass();
+        final double massFactor = 1d + Math.pow(mass / 400d, 2);
+        return BASE_FOOTPRINT + ms1Peaks * BYTES_PER_MS1_PEAK + (long) (ms2Peaks * BYTES_PER_MS2_PEAK * massFactor);
+    }
+
+    /**
+     * @param running   number of instances that are currently running
+     * @param footprint estimated footprint of the instance that should be admitted
+     * @return true if the instance can be admitted
+     */
+    public synchronized boolean tryAdmit(int running, long footprint) {
+        adapt(running);
+        if (running == 0)
+            return true;
+        if (running >= limit)
+            return false;
+        return liveHeap() + footprint <= targetBytes();
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param listener called after every garbage collection, from a JMX notification thread.
+     */
+    public synchronized void addCollectionListener(@NotNull Runnable listener) {
+        if (collectionListeners.isEmpty())
+            gcEmitters().forEach(e -> e.addNotificationListener(gcListener, null, null));
+        collectionListeners.add(listener);
+    }
+
+    public synchronized void removeCollectionListener(@NotNull Runnable listener) {
+        if (!collectionListeners.remove(listener) || !collectionListeners.isEmpty())
+            return;
+        gcEmitters().forEach(e -> {
+            try {
+                e.removeNotificationListener(gcListener);
+            } catch (ListenerNotFoundException ignored) {
+                // not registered
+            }
+        });
+    }
+
+    void collected() {
+        collectionListeners.forEach(Runnable::run);
+    }
+
+    private static List<NotificationEmitter> gcEmitters() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .filter(b -> b instanceof NotificationEmitter).map(b -> (NotificationEmitter) b)
+                .collect(Collectors.toList());
+    }
+
+    private void adapt(int running) {
+        final long now = System.currentTimeMillis();
+        if (now - lastAdapt < ADAPT_INTERVAL_MS)
+            return;
+        lastAdapt = now;
+
+        final long live = liveHeap();
+        final long target = targetBytes();
+        if (live > target) {
+            final int nuLimit = Math.max(1, (int) (Math.min(limit, running) * 0.75));
+            if (nuLimit < limit)
+                LoggerFactory.getLogger(getClass()).debug("Heap usage above target (" + live + " > " + target + "). Reducing compound buffer to " + nuLimit);
+            limit = nuLimit;
+        } else if (live < 0.8 * target && running >= limit && limit < maxInstances) {
+            limit++;
+        }
+    }
+
+    private long targetBytes() {
+        long max = memory.getHeapMemoryUsage().getMax();
+        if (max < 0)
+            max = Runtime.getRuntime().maxMemory();
+        return (long) (max * heapTarget);
+    }
+
+    /**
+     * The current heap usage contains garbage that has not been collected yet. If it is above the target
+     * we use the usage after the last collection (if available) to not shrink the buffer due to garbage.
+     */
+    private long liveHeap() {
+        final long used = memory.getHeapMemoryUsage().getUsed();
+        if (used <= targetBytes() || heapPools.isEmpty())
+            return used;
+        final long afterGc = heapPools.stream().map(MemoryPoolMXBean::getCollectionUsage)
+                .filter(Objects::nonNull).mapToLong(MemoryUsage::getUsed).sum();
+        return afterGc > 0 ? Math.min(used, afterGc) : used;
+    }
+}
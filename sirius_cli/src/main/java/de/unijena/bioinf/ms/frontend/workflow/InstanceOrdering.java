@@ -0,0 +1,146 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.frontend.workflow;
+
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.projectspace.CompoundContainerId;
+import de.unijena.bioinf.projectspace.Instance;
+import de.unijena.bioinf.projectspace.ProjectSpaceManager;
+import de.unijena.bioinf.projectspace.SiriusProjectSpace;
+import de.unijena.bioinf.projectspace.sirius.SiriusLocations;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Defines the order in which instances are fed into the {@link InstanceBuffer}.
+ * <p>
+ * The tree computation cost grows steeply with the precursor mass and the number of peaks. If a few expensive
+ * compounds are submitted last, they dominate the runtime of the whole batch because all other cores are idle.
+ * {@link #COST_DESCENDING} submits the most expensive compounds first (longest job first).
+ * The cost is estimated from the {@link CompoundContainerId} (ion mass) and the size of the spectrum file,
+ * so no experiment has to be loaded for ordering.
+ */
+public enum InstanceOrdering {
+    /**
+     * Order of the input (no reordering)
+     */
+    INPUT,
+    /**
+     * Estimated computation cost descending
+     */
+    COST_DESCENDING;
+
+    public static final String ORDER_KEY = "de.unijena.bioinf.sirius.instanceBuffer.order";
+
+    // a peak line in the .ms file has roughly this size
+    private static final double BYTES_PER_PEAK = 24d;
+
+    public static InstanceOrdering fromProperties() {
+        final String value = PropertyManager.getProperty(ORDER_KEY, null, INPUT.name());
+        try {
+            return valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LoggerFactory.getLogger(InstanceOrdering.class).warn("Unknown instance order '" + value + "'. Using input order.");
+            return INPUT;
+        }
+    }
+
+    public Iterable<? extends Instance> apply(@NotNull Iterable<? extends Instance> instances) {
+        if (this == INPUT)
+            return instances;
+        if (instances instanceof ProjectSpaceManager)
+            return orderProject((ProjectSpaceManager) instances);
+
+        // already loaded instances (e.g. output of a dataset job), just sort them
+        final List<Instance> list = new ArrayList<>();
+        instances.forEach(list::add);
+        list.sort(Comparator.comparingDouble((Instance i) -> estimateCost(i.getID(), -1)).reversed());
+        return list;
+    }
+
+    private static Iterable<Instance> orderProject(@NotNull ProjectSpaceManager ps) {
+        final SiriusProjectSpace space = ps.projectSpace();
+        final Predicate<CompoundContainerId> filter = ps.getCompoundIdFilter();
+        final List<CompoundContainerId> ids = new ArrayList<>(ps.size());
+        final Iterator<CompoundContainerId> it = filter != null ? space.filteredIterator(filter) : space.iterator();
+        it.forEachRemaining(ids::add);
+
+        final List<IdWithCost> costs = new ArrayList<>(ids.size());
+        for (CompoundContainerId id : ids)
+            costs.add(new IdWithCost(id, estimateCost(id, spectrumFileSize(space, id))));
+        costs.sort(Comparator.comparingDouble((IdWithCost c) -> c.cost).reversed());
+        LoggerFactory.getLogger(InstanceOrdering.class).info("Ordered " + costs.size() + " compounds by estimated computation cost.");
+
+        return () -> new Iterator<>() {
+            private final Iterator<IdWithCost> idIt = costs.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return idIt.hasNext();
+            }
+
+            @Override
+            public Instance next() {
+                return ps.newInstanceFromCompound(idIt.next().id, Ms2Experiment.class);
+            }
+        };
+    }
+
+    /**
+     * Rough estimate of the tree computation cost. The number of candidate formulas grows roughly cubic with
+     * the mass and every candidate has to be scored against every peak.
+     *
+     * @param spectrumBytes size of the spectrum file, negative if unknown
+     */
+    static double estimateCost(@NotNull CompoundContainerId id, long spectrumBytes) {
+        final double mass = id.getIonMass().orElse(0d);
+        final double peaks = spectrumBytes > 0 ? spectrumBytes / BYTES_PER_PEAK : 1d;
+        return Math.pow(mass / 100d, 3) * (1d + peaks);
+    }
+
+    private static long spectrumFileSize(SiriusProjectSpace space, CompoundContainerId id) {
+        try {
+            final Path p = space.getRootPath().resolve(id.getDirectoryName()).resolve(SiriusLocations.MS2_EXP);
+            return Files.exists(p) ? Files.size(p) : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static final class IdWithCost {
+        private final CompoundContainerId id;
+        private final double cost;
+
+        private IdWithCost(CompoundContainerId id, double cost) {
+            this.id = id;
+            this.cost = cost;
+        }
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.frontend.workflow;
+
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.jjobs.JobSubmitter;
+import de.unijena.bioinf.ms.frontend.subtools.InstanceJob;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.projectspace.CompoundContainerId;
+import de.unijena.bioinf.projectspace.Instance;
+import de.unijena.bioinf.projectspace.ProjectSpaceManager;
+import de.unijena.bioinf.projectspace.SiriusProjectSpace;
+import de.unijena.bioinf.utils.NetUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Executes the instance level tool chain of ONE project space in several processes (JVMs or machines
+ * that share the file system). Every process is started with {@code --shard i/n} on the same project.
+ * <p>
+ * The processes claim compounds via lease files in {@value #SHARD_DIR}/{@value #LEASE_DIR} inside the project:
+ * A compound is claimed by atomically creating {@code <compound>.lock} and released by creating
+ * {@code <compound>.done}, or {@code <compound>.failed} if its instance job chain did not finish. Failed compounds
+ * are not claimed again in the same run. The lock contains its owner and a heartbeat counter that the owner
+ * increments periodically. A lease whose content has not changed for longer than the lease timeout (measured
+ * with the clock of the observing process, so clock skew between the machines does not matter) belongs to a
+ * crashed process and can be taken over by any other process.
+ * <p>
+ * Worker {@code 0} is the coordinator. It checks (and fixes) the data files of the project before the other
+ * workers start and publishes the result in {@value #SHARD_DIR}/{@value #DATA_COMPATIBILITY}, the other workers
+ * wait for it and do not write any data files. After its own compounds are computed the coordinator waits until
+ * all compounds of the project are done or failed (taking over stale leases) and then runs the remaining tool chain
+ * ({@link de.unijena.bioinf.ms.frontend.subtools.DataSetJob}s like ZODIAC and all following tools) as well as
+ * the summaries on the whole project. All other workers stop after the instance level tool chain that precedes
+ * the first {@link de.unijena.bioinf.ms.frontend.subtools.DataSetJob}.
+ */
+public class ShardedExecution implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ShardedExecution.class);
+
+    public static final String SHARD_KEY = "de.unijena.bioinf.sirius.shard";
+    public static final String LEASE_TIMEOUT_KEY = "de.unijena.bioinf.sirius.shard.leaseTimeout";
+    public static final String POLL_INTERVAL_KEY = "de.unijena.bioinf.sirius.shard.pollInterval";
+
+    public static final String SHARD_DIR = ".shards";
+    public static final String LEASE_DIR = "leases";
+    public static final String DATA_COMPATIBILITY = "data_compatibility";
+    private static final String LOCK_EXT = ".lock";
+    private static final String DONE_EXT = ".done";
+    private static final String FAILED_EXT = ".failed";
+
+    private final int index;
+    private final int numberOfShards;
+    private final long leaseTimeoutMillis;
+    private final long pollIntervalMillis;
+    private final Path shardDir;
+    private final Path leaseDir;
+    // identifies the leases of this process, also if a crashed worker with the same index is restarted
+    private final String owner;
+
+    // held lease -> heartbeat counter written into its lock
+    private final Map<String, Long> heldLeases = new ConcurrentHashMap<>();
+    // lock -> content of a foreign lease and the (local) time at which it has been seen first
+    private final Map<String, Observation> observedLeases = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService heartbeat;
+    private volatile boolean closed = false;
+    private volatile List<CompoundContainerId> compounds = List.of();
+
+    protected ShardedExecution(int index, int numberOfShards, long leaseTimeoutMillis, long pollIntervalMillis, @NotNull Path projectRoot) throws IOException {
+        this.index = index;
+        this.numberOfShards = numberOfShards;
+        this.leaseTimeoutMillis = leaseTimeoutMillis;
+        this.pollIntervalMillis = Math.max(100, pollIntervalMillis);
+        this.shardDir = projectRoot.resolve(SHARD_DIR);
+        this.leaseDir = shardDir.resolve(LEASE_DIR);
+        this.owner = index + "-" + UUID.randomUUID();
+        Files.createDirectories(leaseDir);
+
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "shard-lease-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        final long period = Math.max(10, leaseTimeoutMillis / 4);
+        heartbeat.scheduleAtFixedRate(this::renewLeases, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The coordinator publishes the data compatibility of the project (see
+     * {@link ProjectSpaceManager#checkAndFixDataFiles}), all other workers wait until it has been published.
+     *
+     * @return the sharded execution configured via {@link #SHARD_KEY} or null if sharding is not configured.
+     * @throws InterruptedException if a worker has been interrupted while waiting for the coordinator
+     */
+    @Nullable
+    public static ShardedExecution fromProperties(@NotNull ProjectSpaceManager ps) throws IOException, InterruptedException {
+        final String value = PropertyManager.getProperty(SHARD_KEY);
+        if (value == null || value.isBlank())
+            return null;
+        final int[] shard = parseShard(value);
+        final long timeout = TimeUnit.SECONDS.toMillis(PropertyManager.getInteger(LEASE_TIMEOUT_KEY, null, 600));
+        final long pollInterval = TimeUnit.SECONDS.toMillis(PropertyManager.getInteger(POLL_INTERVAL_KEY, null, 10));
+        final ShardedExecution sharding = new ShardedExecution(shard[0], shard[1], timeout, pollInterval, ps.projectSpace().getRootPath());
+        try {
+            if (sharding.isCoordinator()) {
+                boolean compatible;
+                try {
+                    compatible = ps.checkAndFixDataFiles(NetUtils.checkThreadInterrupt(Thread.currentThread()));
+                } catch (TimeoutException e) {
+                    LOG.warn("Could not check Fingerprint version of the project. Fingerprint related tools are skipped by all shards. " + e.getMessage());
+                    compatible = false;
+                }
+                sharding.publishDataCompatibility(compatible);
+            } else {
+                ps.useDataCompatibilityOf(sharding.awaitDataCompatibility());
+            }
+            return sharding;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            sharding.close();
+            throw e;
+        }
+    }
+
+    public static boolean isConfigured() {
+        final String value = PropertyManager.getProperty(SHARD_KEY);
+        return value != null && !value.isBlank();
+    }
+
+    public static boolean isCoordinatorConfigured() {
+        return !isConfigured() || parseShard(PropertyManager.getProperty(SHARD_KEY))[0] == 0;
+    }
+
+    /**
+     * @param value shard definition in the form {@code i/n}
+     * @return {index, numberOfShards}
+     */
+    public static int[] parseShard(@NotNull String value) {
+        final String[] parts = value.trim().split("/");
+        try {
+            if (parts.length == 2) {
+                final int i = Integer.parseInt(parts[0].trim());
+                final int n = Integer.parseInt(parts[1].trim());
+                if (n > 0 && i >= 0 && i < n)
+                    return new int[]{i, n};
+            }
+        } catch (NumberFormatException ignored) {
+            // handled below
+        }
+        throw new IllegalArgumentException("Illegal shard definition '" + value + "'. Expected 'i/n' with 0 <= i < n.");
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getNumberOfShards() {
+        return numberOfShards;
+    }
+
+    public boolean isCoordinator() {
+        return index == 0;
+    }
+
+    /**
+     * Publishes the data compatibility checked by the coordinator to the other workers.
+     */
+    void publishDataCompatibility(boolean compatible) throws IOException {
+        final Path file = shardDir.resolve(DATA_COMPATIBILITY);
+        final Path tmp = shardDir.resolve(DATA_COMPATIBILITY + ".tmp");
+        Files.writeString(tmp, String.valueOf(compatible), StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Waits until the coordinator has published the data compatibility of the project.
+     *
+     * @throws InterruptedException if this execution has been closed while waiting
+     */
+    boolean awaitDataCompatibility() throws InterruptedException, IOException {
+        final Path file = shardDir.resolve(DATA_COMPATIBILITY);
+        while (Files.notExists(file)) {
+            if (closed)
+                throw new InterruptedException("Sharded execution has been closed.");
+            LOG.info("Shard " + index + "/" + numberOfShards + ": waiting for the coordinator (shard 0) to check the data files of the project.");
+            Thread.sleep(pollIntervalMillis);
+        }
+        return Boolean.parseBoolean(Files.readString(file, StandardCharsets.UTF_8).trim());
+    }
+
+    /**
+     * Lazily claims the compounds of the given project that are neither done nor leased by a living worker.
+     * Every worker starts at a different offset to reduce contention.
+     */
+    public Iterable<Instance> claimingIterable(@NotNull ProjectSpaceManager ps) {
+        final SiriusProjectSpace space = ps.projectSpace();
+        final Predicate<CompoundContainerId> filter = ps.getCompoundIdFilter();
+        final List<CompoundContainerId> ids = new ArrayList<>(ps.size());
+        (filter != null ? space.filteredIterator(filter) : space.iterator()).forEachRemaining(ids::add);
+        Collections.rotate(ids, -(int) ((long) ids.size() * index / numberOfShards));
+        compounds = ids;
+        LOG.info("Shard " + index + "/" + numberOfShards + ": claiming from " + ids.size() + " compounds.");
+
+        return () -> new Iterator<>() {
+            private final Iterator<CompoundContainerId> it = ids.iterator();
+            private CompoundContainerId next = null;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && it.hasNext() && !closed) {
+                    final CompoundContainerId id = it.next();
+                    if (tryClaim(id.getDirectoryName()) == Claim.CLAIMED)
+                        next = id;
+                }
+                return next != null;
+            }
+
+            @Override
+            public Instance next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                final CompoundContainerId id = next;
+                next = null;
+                return ps.newInstanceFromCompound(id, Ms2Experiment.class);
+            }
+        };
+    }
+
+    /**
+     * Waits until all compounds of the last {@link #claimingIterable} are done or failed.
+     *
+     * @return true if all compounds are done or failed, false if there are compounds that can be claimed again
+     * because the worker holding the lease has crashed or has given the lease back.
+     * @throws InterruptedException if this execution has been closed while waiting
+     */
+    public boolean awaitCompletion() throws InterruptedException {
+        while (true) {
+            if (closed)
+                throw new InterruptedException("Sharded execution has been closed.");
+            int open = 0;
+            int failed = 0;
+            for (CompoundContainerId id : compounds) {
+                final String name = id.getDirectoryName();
+                if (Files.exists(leaseDir.resolve(name + DONE_EXT)))
+                    continue;
+                if (Files.exists(leaseDir.resolve(name + FAILED_EXT))) {
+                    failed++;
+                    continue;
+                }
+                final Path lock = leaseDir.resolve(name + LOCK_EXT);
+                if (Files.notExists(lock) || isStale(name, readLease(lock)))
+                    return false;
+                open++;
+            }
+            if (open == 0) {
+                if (failed > 0)
+                    LOG.warn("Shard " + index + "/" + numberOfShards + ": the instance jobs of " + failed + " compounds failed. They are not computed again in this run.");
+                return true;
+            }
+            LOG.info("Shard " + index + "/" + numberOfShards + ": waiting for " + open + " compounds computed by other workers.");
+            Thread.sleep(pollIntervalMillis);
+        }
+    }
+
+    enum Claim {CLAIMED, LEASED, DONE, FAILED}
+
+    Claim tryClaim(@NotNull String name) {
+        final Path lock = leaseDir.resolve(name + LOCK_EXT);
+        try {
+            Claim finished = finishedState(name);
+            if (finished != null)
+                return finished;
+            if (!createLock(lock)) {
+                final Lease lease = readLease(lock);
+                if (lease == null || !isStale(name, lease) || !stealLock(lock, lease)) {
+                    finished = finishedState(name);
+                    return finished != null ? finished : Claim.LEASED;
+                }
+            }
+            observedLeases.remove(name);
+            // the lease may have been released between our check and the creation of the lock.
+            finished = finishedState(name);
+            if (finished != null) {
+                Files.deleteIfExists(lock);
+                return finished;
+            }
+            heldLeases.put(name, 0L);
+            return Claim.CLAIMED;
+        } catch (IOException e) {
+            LOG.warn("Could not claim compound '" + name + "'. Leaving it to other workers. " + e.getMessage());
+            return Claim.LEASED;
+        }
+    }
+
+    @Nullable
+    private Claim finishedState(String name) {
+        if (Files.exists(leaseDir.resolve(name + DONE_EXT)))
+            return Claim.DONE;
+        if (Files.exists(leaseDir.resolve(name + FAILED_EXT)))
+            return Claim.FAILED;
+        return null;
+    }
+
+    private boolean createLock(Path lock) throws IOException {
+        try {
+            Files.write(lock, new Lease(owner, 0).toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A lease is stale if we have seen it unchanged for longer than the lease timeout. Only the clock of this
+     * process is used, the owner proves that it is alive by incrementing the heartbeat in the lock.
+     */
+    private boolean isStale(String name, @Nullable Lease lease) {
+        if (lease == null) {
+            observedLeases.remove(name);
+            return false; // a vanished lock will be claimable in the next round
+        }
+        final long now = System.nanoTime();
+        final Observation seen = observedLeases.compute(name, (k, o) -> o != null && o.lease.equals(lease) ? o : new Observation(lease, now));
+        return TimeUnit.NANOSECONDS.toMillis(now - seen.firstSeen) > leaseTimeoutMillis;
+    }
+
+    /**
+     * Owner and heartbeat of a lock, null if the lock does not exist (anymore).
+     */
+    @Nullable
+    private static Lease readLease(Path lock) {
+        try {
+            return Lease.parse(Files.readString(lock, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Moving the lock away is atomic, so only one worker can take over the lock file. Checking for staleness and
+     * moving is not, so another worker may have taken over the stale lease in between. Hence, the moved lock has to
+     * be the stale lease we have read, otherwise we back off and give the lease back to its new owner.
+     */
+    private boolean stealLock(Path lock, Lease staleLease) throws IOException {
+        final Path stale = lock.resolveSibling(lock.getFileName() + ".stale-" + index + "-" + System.nanoTime());
+        try {
+            Files.move(lock, stale, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (!staleLease.equals(readLease(stale))) {
+            try {
+                Files.move(stale, lock);
+            } catch (FileAlreadyExistsException e) {
+                // a third worker has created a lock in the meantime, the lease we have moved is lost.
+                LOG.warn("Lease '" + lock.getFileName() + "' has been taken over concurrently by several workers.");
+                Files.deleteIfExists(stale);
+            }
+            return false;
+        }
+        Files.deleteIfExists(stale);
+        return createLock(lock);
+    }
+
+    /**
+     * Content of a lock: owner and heartbeat counter, separated by a tab.
+     */
+    private static final class Lease {
+        private final String owner;
+        private final long heartbeat;
+
+        private Lease(String owner, long heartbeat) {
+            this.owner = owner;
+            this.heartbeat = heartbeat;
+        }
+
+        // a partially written lock is a different lease, so it is not mistaken for a stale one
+        private static Lease parse(String content) {
+            final int tab = content.indexOf('\t');
+            try {
+                if (tab >= 0)
+                    return new Lease(content.substring(0, tab), Long.parseLong(content.substring(tab + 1).trim()));
+            } catch (NumberFormatException ignored) {
+                // handled below
+            }
+            return new Lease(content, -1);
+        }
+
+        @Override
+        public String toString() {
+            return owner + "\t" + heartbeat;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Lease)) return false;
+            final Lease lease = (Lease) o;
+            return heartbeat == lease.heartbeat && owner.equals(lease.owner);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(owner, heartbeat);
+        }
+    }
+
+    private static final class Observation {
+        private final Lease lease;
+        private final long firstSeen;
+
+        private Observation(Lease lease, long firstSeen) {
+            this.lease = lease;
+            this.firstSeen = firstSeen;
+        }
+    }
+
+    /**
+     * Increments the heartbeat of all held leases. The lock is rewritten in place (never created), so a lease
+     * that has been taken over by another worker is not resurrected. Such a lease is dropped.
+     */
+    private void renewLeases() {
+        for (String name : heldLeases.keySet()) {
+            final Path lock = leaseDir.resolve(name + LOCK_EXT);
+            final Lease current = readLease(lock);
+            if (current == null || !current.owner.equals(owner)) {
+                if (heldLeases.remove(name) != null)
+                    LOG.warn("Lease of compound '" + name + "' has been taken over by another worker. It might be computed twice.");
+                continue;
+            }
+            final Long beat = heldLeases.computeIfPresent(name, (k, b) -> b + 1);
+            if (beat == null)
+                continue; // released concurrently
+            try {
+                Files.write(lock, new Lease(owner, beat).toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            } catch (IOException e) {
+                LOG.debug("Could not renew lease of compound '" + name + "'. " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Marks the lease of the given compound as done, it will not be claimed by any worker again.
+     */
+    public void release(@NotNull CompoundContainerId id) {
+        release(id.getDirectoryName());
+    }
+
+    void release(@NotNull String name) {
+        finishLease(name, DONE_EXT);
+    }
+
+    private void finishLease(@NotNull String name, String ext) {
+        if (heldLeases.remove(name) == null)
+            return;
+        try {
+            Files.write(leaseDir.resolve(name + ext), new byte[0], StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            Files.deleteIfExists(leaseDir.resolve(name + LOCK_EXT));
+        } catch (IOException e) {
+            LOG.warn("Could not release lease of compound '" + name + "'. It might be computed again by another worker. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Job factory that releases the lease of an instance. Has to be the last job of the claimed instance chain.
+     */
+    public InstanceJob.Factory<ReleaseLeaseJob> makeReleaseJobFactory() {
+        return new InstanceJob.Factory<>(sub -> new ReleaseLeaseJob(sub), inst -> {
+        });
+    }
+
+    /**
+     * To be called after the claimed instances have been processed. Leases that are still held belong to
+     * compounds whose instance job chain failed before it reached the release job. They are marked as failed,
+     * so that they are neither reported as done nor computed again by other workers in this run.
+     */
+    public void finish() {
+        for (String name : new ArrayList<>(heldLeases.keySet())) {
+            LOG.warn("Shard " + index + "/" + numberOfShards + ": instance jobs of compound '" + name + "' did not finish. Marking it as failed.");
+            finishLease(name, FAILED_EXT);
+        }
+    }
+
+    /**
+     * Removes all shard information from the project. Should only be called by the coordinator after all
+     * compounds are done.
+     */
+    public void cleanUp() {
+        try (Stream<Path> files = Files.walk(shardDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.deleteIfExists(p);
+                } catch (IOException e) {
+                    LOG.debug("Could not delete shard file '" + p + "'. " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Could not clean up shard directory '" + shardDir + "'. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the lease heartbeat and gives unfinished leases back, so that other workers can claim them
+     * immediately (e.g. if the workflow was canceled).
+     */
+    @Override
+    public void close() {
+        closed = true;
+        heartbeat.shutdownNow();
+        for (String name : heldLeases.keySet()) {
+            try {
+                Files.deleteIfExists(leaseDir.resolve(name + LOCK_EXT));
+            } catch (IOException e) {
+                LOG.warn("Could not give back lease of compound '" + name + "'. It can be claimed after the lease timeout. " + e.getMessage());
+            }
+        }
+        heldLeases.clear();
+    }
+
+    public class ReleaseLeaseJob extends InstanceJob {
+        public ReleaseLeaseJob(JobSubmitter submitter) {
+            super(submitter, false);
+        }
+
+        @Override
+        public boolean isAlreadyComputed(@NotNull Instance inst) {
+            return false;
+        }
+
+        @Override
+        protected void computeAndAnnotateResult(@NotNull Instance inst) {
+            // results have to be on disk before another worker can see the compound as done.
+            inst.flushFormulaResults();
+            inst.getProjectSpaceManager().commit();
+            release(inst.getID());
+        }
+
+        @Override
+        public String getToolName() {
+            return "shard-release";
+        }
+    }
+}
@@ -52,6 +52,8 @@ public class SimpleInstanceBuffer implements InstanceBuffer, JobSubmitter {
     final Condition isFull = lock.newCondition();
     private final int bufferSize;
     private final AtomicBoolean isCanceled = new AtomicBoolean(false);
+    @Nullable
+    private HeapAdmissionControl admissionControl = null;
 
     public SimpleInstanceBuffer(int bufferSize, @NotNull Iterator<? extends Instance> instances, @NotNull List<InstanceJob.Factory<?>> tasks, @Nullable DataSetJob.Factory<?> dependJobFactory, JobSubmitter jobSubmitter) {
         this.bufferSize = bufferSize < 1 ? Integer.MAX_VALUE : bufferSize;
@@ -61,6 +63,13 @@ public class SimpleInstanceBuffer implements InstanceBuffer, JobSubmitter {
         this.dependJob = dependJobFactory == null ? null : dependJobFactory.makeJob(this);
     }
 
+    /**
+     * @param admissionControl adapts the number of running instances to the heap usage. If null only the buffer size is used.
+     */
+    public void setAdmissionControl(@Nullable HeapAdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
     @Override
     public @Nullable DataSetJob getCollectorJob() {
         return dependJob;
@@ -68,10 +77,15 @@ public class SimpleInstanceBuffer implements InstanceBuffer, JobSubmitter {
 
     @Override
     public void start(final boolean invalidate) throws InterruptedException {
+        // waiting instances are signaled by finished instances and, for the heap, by garbage collections
+        final Runnable onCollection = this::signalAdmission;
+        if (admissionControl != null)
+            admissionControl.addCollectionListener(onCollection);
         try {
             while (instances.hasNext()) {
                 checkForCancellation();
 
+                final long waitStart = System.nanoTime();
                 lock.lock();
                 try {
                     //wait for free slot in buffer if it is full
@@ -84,6 +98,16 @@ public class SimpleInstanceBuffer implements InstanceBuffer, JobSubmitter {
                     checkForCancellation();
 
                     final Instance instance = instances.next();
+                    final long footprint = admissionControl != null ? HeapAdmissionControl.estimateFootprint(instance.getExperiment()) : 0;
+
+                    //wait until there is enough heap available to admit the instance
+                    if (admissionControl != null) {
+                        while (!admissionControl.tryAdmit(runningInstances.size(), footprint)) {
+                            isFull.await();
+                            checkForCancellation();
+                        }
+                    }
+
                     final InstanceJobCollectorJob collector = new InstanceJobCollectorJob(instance, invalidate);
                     JJob<Instance> jobToWaitOn = (DymmyExpResultJob) () -> instance;
                     for (InstanceJob.Factory<?> task : tasks) {
@@ -92,6 +116,8 @@ public class SimpleInstanceBuffer implements InstanceBuffer, JobSubmitter {
                         collector.addRequiredJob(jobToWaitOn);
                     }
                     runningInstances.add(submitJob(collector));
+                    WorkflowMetrics.global().recordBufferWait("instance", System.nanoTime() - waitStart);
+                    WorkflowMetrics.global().setRunningInstances(runningInstances.size());
 
                     checkForCancellation();
 
@@ -104,6 +130,9 @@ public class SimpleInstanceBuffer implements InstanceBuffer, JobSubmitter {
             }
         } catch (InterruptedException e) {
             LoggerFactory.getLogger(getClass()).info("Buffered Job Submission Canceled. Awaiting Cancellation of running Jobs...");
+        } finally {
+            if (admissionControl != null)
+                admissionControl.removeCollectionListener(onCollection);
         }
 
         // wait for the last submitted jobs
@@ -145,6 +174,15 @@ public class SimpleInstanceBuffer implements InstanceBuffer, JobSubmitter {
         }
     }
 
+    private void signalAdmission() {
+        lock.lock();
+        try {
+            isFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public <Job extends JJob<Result>, Result> Job submitJob(Job job) {
         return jobSubmitter.submitJob(job);
@@ -182,6 +220,7 @@ public class SimpleInstanceBuffer implements InstanceBuffer, JobSubmitter {
             lock.lock();
             try {
                 runningInstances.remove(this);
+                WorkflowMetrics.global().setRunningInstances(runningInstances.size());
                 isFull.signalAll();
             } finally {
                 lock.unlock();
@@ -213,11 +252,13 @@ public class SimpleInstanceBuffer implements InstanceBuffer, JobSubmitter {
 
         @Override
         protected CompoundContainerId compute() {
+            // all tools are done with this instance, persist buffered (write-behind) results.
+            instance.flushFormulaResults();
+            instance.getProjectSpaceManager().commit();
             //cleanup is not really needed for CLI but for everything on top that might keep instances alive.
-            if (invalidate) {//todo we should change our project space model so that spectra are independent from config stuff
-                instance.clearFormulaResultsCache();
+            //formula results are bounded by the project wide result cache.
+            if (invalidate) //todo we should change our project space model so that spectra are independent from config stuff
                 instance.clearCompoundCache();
-            }
 
             return instance.getID();
         }
@@ -231,7 +272,9 @@ public class SimpleInstanceBuffer implements InstanceBuffer, JobSubmitter {
     public static class Factory implements InstanceBufferFactory<SimpleInstanceBuffer> {
         @Override
         public SimpleInstanceBuffer create(int bufferSize, @NotNull Iterator<? extends Instance> instances, @NotNull List<InstanceJob.Factory<?>> tasks, @Nullable DataSetJob.Factory<?> dependJobFactory) {
-            return new SimpleInstanceBuffer(bufferSize, instances, tasks, dependJobFactory, SiriusJobs.getGlobalJobManager());
+            final SimpleInstanceBuffer buffer = new SimpleInstanceBuffer(bufferSize, instances, tasks, dependJobFactory, SiriusJobs.getGlobalJobManager());
+            buffer.setAdmissionControl(HeapAdmissionControl.fromProperties(bufferSize));
+            return buffer;
         }
     }
 }
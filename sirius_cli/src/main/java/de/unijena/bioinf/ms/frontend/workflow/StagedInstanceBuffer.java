@@ -0,0 +1,423 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.frontend.workflow;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.jjobs.BasicDependentJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bioinf.jjobs.JobSubmitter;
+import de.unijena.bioinf.ms.frontend.subtools.DataSetJob;
+import de.unijena.bioinf.ms.frontend.subtools.InstanceJob;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.projectspace.Instance;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link InstanceBuffer} that does not submit the whole tool chain of an instance at once.
+ * The stages of the chain are submitted one after another and each stage needs a free slot
+ * in the pool matching its job type. Jobs of type {@link JJob.JobType#WEBSERVICE} (e.g. CSI:FingerID, CANOPUS)
+ * use the web service pool, all other jobs use the cpu pool.
+ * <p>
+ * This way instances that are waiting for the web service do not block cpu slots and the cpus
+ * can be saturated with other instances while remote calls are outstanding.
+ * New instances are only admitted if there is a cpu slot that is not claimed by an already running instance
+ * and the number of running instances is below the total number of slots of both pools.
+ */
+public class StagedInstanceBuffer implements InstanceBuffer, JobSubmitter {
+    private final Iterator<? extends Instance> instances;
+    private final List<InstanceJob.Factory<?>> tasks;
+    private final DataSetJob dependJob;
+    protected final JobSubmitter jobSubmitter;
+
+    private final Set<InstanceRun> runningInstances = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    final Lock lock = new ReentrantLock();
+    final Condition stateChanged = lock.newCondition();
+    private final SlotPool cpuPool;
+    private final SlotPool webPool;
+    // bounds the instances in memory, including the ones that wait for a slot
+    private final int maxRunningInstances;
+    private final AtomicBoolean isCanceled = new AtomicBoolean(false);
+    @Nullable
+    private HeapAdmissionControl admissionControl = null;
+
+    public StagedInstanceBuffer(int cpuSlots, int webSlots, @NotNull Iterator<? extends Instance> instances, @NotNull List<InstanceJob.Factory<?>> tasks, @Nullable DataSetJob.Factory<?> dependJobFactory, JobSubmitter jobSubmitter) {
+        this.cpuPool = new SlotPool("cpu", cpuSlots);
+        this.webPool = new SlotPool("webservice", webSlots);
+        this.maxRunningInstances = (int) Math.min(Integer.MAX_VALUE, (long) cpuPool.size + webPool.size);
+        this.jobSubmitter = jobSubmitter;
+        this.instances = instances;
+        this.tasks = tasks;
+        this.dependJob = dependJobFactory == null ? null : dependJobFactory.makeJob(this);
+    }
+
+    /**
+     * @param admissionControl adapts the number of running instances to the heap usage. If null only the slot pools are used.
+     */
+    public void setAdmissionControl(@Nullable HeapAdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    @Override
+    public @Nullable DataSetJob getCollectorJob() {
+        return dependJob;
+    }
+
+    @Override
+    public void start(final boolean invalidate) throws InterruptedException {
+        // heap usage changes without any state change of the buffer, a garbage collection may admit a pending instance
+        final Runnable onCollection = this::signalStateChanged;
+        if (admissionControl != null)
+            admissionControl.addCollectionListener(onCollection);
+        lock.lock();
+        try {
+            // next instance that has been loaded but could not be admitted yet
+            InstanceRun pending = null;
+            while (true) {
+                checkForCancellation();
+                dispatch();
+
+                if (acceptsNewInstance() && (pending != null || instances.hasNext())) {
+                    if (pending == null)
+                        pending = new InstanceRun(instances.next(), invalidate);
+
+                    if (admissionControl == null || admissionControl.tryAdmit(runningInstances.size(), pending.footprint)) {
+                        final InstanceRun run = pending;
+                        pending = null;
+                        // add dependency if necessary, also instances that fail in an earlier stage are reported
+                        if (dependJob != null)
+                            dependJob.addRequiredJob(run.resultJob);
+                        runningInstances.add(run);
+                        WorkflowMetrics.global().recordBufferWait("instance", System.nanoTime() - run.created);
+                        WorkflowMetrics.global().setRunningInstances(runningInstances.size());
+                        if (run.prepareNextStage())
+                            enqueue(run);
+                        else
+                            finish(run); // empty tool chain
+                        continue;
+                    }
+                }
+
+                if (pending == null && !instances.hasNext() && runningInstances.isEmpty())
+                    break;
+
+                stateChanged.await();
+            }
+        } catch (InterruptedException e) {
+            LoggerFactory.getLogger(getClass()).info("Staged Job Submission Canceled. Awaiting Cancellation of running Jobs...");
+            // wait for the running stages to finish their cleanup
+            while (!runningInstances.isEmpty())
+                stateChanged.await();
+        } finally {
+            lock.unlock();
+            if (admissionControl != null)
+                admissionControl.removeCollectionListener(onCollection);
+        }
+    }
+
+    // has to be called while holding the lock
+    private boolean acceptsNewInstance() {
+        return runningInstances.size() < maxRunningInstances && cpuPool.acceptsNewInstance();
+    }
+
+    // has to be called while holding the lock
+    private void dispatch() {
+        dispatch(cpuPool);
+        dispatch(webPool);
+    }
+
+    private void dispatch(SlotPool pool) {
+        while (pool.hasFreeSlot() && !pool.waiting.isEmpty()) {
+            final InstanceRun run = pool.waiting.poll();
+            WorkflowMetrics.global().recordBufferWait(pool.name, System.nanoTime() - run.enqueued);
+            pool.used++;
+            run.heldPool = pool;
+            run.currentJob = run.nextJob;
+            run.nextJob = null;
+
+            submitJob(run.currentJob);
+            submitJob(new StageWatcherJob(run));
+        }
+    }
+
+    private void enqueue(InstanceRun run) {
+        run.enqueued = System.nanoTime();
+        poolFor(run.nextJob).waiting.add(run);
+    }
+
+    private SlotPool poolFor(JJob<?> job) {
+        return job.getType() == JJob.JobType.WEBSERVICE ? webPool : cpuPool;
+    }
+
+    private void onStageFinished(InstanceRun run) {
+        // persist buffered (write-behind) results of finished instances. I/O should not block the dispatching.
+        if (isCanceled.get() || run.currentJob.result() == null || run.isLastStage())
+            persist(run);
+
+        lock.lock();
+        try {
+            if (run.heldPool != null) {
+                run.heldPool.used--;
+                run.heldPool = null;
+            }
+
+            final JJob<Instance> finished = run.currentJob;
+            run.currentJob = null;
+
+            if (isCanceled.get() || finished.result() == null) {
+                run.failed = true;
+                finish(run);
+            } else {
+                run.lastJob = finished;
+                if (run.prepareNextStage())
+                    enqueue(run);
+                else
+                    finish(run);
+            }
+            stateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must not be called while holding the lock. Must not throw, the run would never be finished otherwise.
+    private void persist(InstanceRun run) {
+        try {
+            run.instance.flushFormulaResults();
+            run.instance.getProjectSpaceManager().commit();
+        } catch (RuntimeException e) {
+            LoggerFactory.getLogger(getClass()).error("Could not write results of instance '" + run.instance + "'.", e);
+        }
+    }
+
+    private void finish(InstanceRun run) {
+        runningInstances.remove(run);
+        WorkflowMetrics.global().setRunningInstances(runningInstances.size());
+        if (dependJob != null)
+            submitJob(run.resultJob);
+        //cleanup is not really needed for CLI but for everything on top that might keep instances alive.
+        //formula results are bounded by the project wide result cache.
+        if (run.invalidate)
+            run.instance.clearCompoundCache();
+    }
+
+    @Override
+    public void cancel() {
+        // instances that wait for a slot are removed immediately, running stages finish via their watcher.
+        final List<InstanceRun> queued = new ArrayList<>();
+        lock.lock();
+        try {
+            isCanceled.set(true);
+            queued.addAll(cpuPool.waiting);
+            queued.addAll(webPool.waiting);
+            cpuPool.waiting.clear();
+            webPool.waiting.clear();
+            runningInstances.stream().map(r -> r.currentJob).filter(Objects::nonNull).forEach(JJob::cancel);
+            if (dependJob != null)
+                dependJob.cancel();
+        } finally {
+            lock.unlock();
+        }
+
+        // queued instances still hold the buffered results of their finished stages.
+        // they stay running until persisted, so that start() does not return before.
+        for (InstanceRun run : queued)
+            persist(run);
+
+        lock.lock();
+        try {
+            for (InstanceRun run : queued) {
+                run.failed = true;
+                finish(run);
+            }
+            stateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalStateChanged() {
+        lock.lock();
+        try {
+            stateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <Job extends JJob<Result>, Result> Job submitJob(Job job) {
+        return jobSubmitter.submitJob(job);
+    }
+
+    protected void checkForCancellation() throws InterruptedException {
+        if (isCanceled.get())
+            throw new InterruptedException("Was cancelled by external Thread");
+    }
+
+    private class SlotPool {
+        private final String name;
+        private final int size;
+        private int used = 0;
+        private final Deque<InstanceRun> waiting = new ArrayDeque<>();
+
+        private SlotPool(String name, int size) {
+            this.name = name;
+            this.size = size < 1 ? Integer.MAX_VALUE : size;
+        }
+
+        boolean hasFreeSlot() {
+            return used < size;
+        }
+
+        // running instances that wait for a slot have priority over new ones
+        boolean acceptsNewInstance() {
+            return used + waiting.size() < size;
+        }
+    }
+
+    private class InstanceRun {
+        private final Instance instance;
+        private final boolean invalidate;
+        private final long footprint;
+        private final long created = System.nanoTime();
+        private long enqueued;
+        private int stage = 0;
+
+        private JJob<Instance> lastJob;
+        private InstanceJob nextJob = null;
+        private JJob<Instance> currentJob = null;
+        private SlotPool heldPool = null;
+        private boolean failed = false;
+        // reports the instance to the dependent DataSetJob when the run is finished
+        private final InstanceResultJob resultJob;
+
+        private InstanceRun(Instance instance, boolean invalidate) {
+            this.instance = instance;
+            this.invalidate = invalidate;
+            this.footprint = admissionControl != null ? HeapAdmissionControl.estimateFootprint(instance.getExperiment()) : 0;
+            this.lastJob = (DymmyExpResultJob) () -> instance;
+            this.resultJob = dependJob != null ? new InstanceResultJob(this) : null;
+        }
+
+        boolean prepareNextStage() {
+            if (stage >= tasks.size())
+                return false;
+            nextJob = tasks.get(stage++).createToolJob(lastJob);
+            return true;
+        }
+
+        boolean isLastStage() {
+            return stage >= tasks.size();
+        }
+    }
+
+    private class StageWatcherJob extends BasicDependentJJob<Instance> {
+        private final InstanceRun run;
+        private final JJob<Instance> stageJob;
+
+        public StageWatcherJob(InstanceRun run) {
+            super(JobType.SCHEDULER, ReqJobFailBehaviour.IGNORE); //we want to ignore failing because we do not want to multiply exceptions
+            this.run = run;
+            this.stageJob = run.currentJob;
+            addRequiredJob(stageJob);
+        }
+
+        @Override
+        protected Instance compute() {
+            return run.instance;
+        }
+
+        @Override
+        protected void cleanup() {
+            // this should always run because we ignore failing of required jobs
+            try {
+                stageJob.awaitResult();
+            } catch (ExecutionException e) {
+                if (stageJob.getState().equals(JJob.JobState.CANCELED)) {
+                    stageJob.logWarn("ToolChain Job canceled due to: " + e.getMessage());
+                } else if (stageJob.getState().equals(JJob.JobState.FAILED)) {
+                    stageJob.logError("ToolChain Job failed due to: " + e.getMessage());
+                    stageJob.logDebug("ToolChain Job failed: ", e);
+                } else {
+                    LoggerFactory.getLogger(getClass()).debug("ToolChain Job Exception with state '" + stageJob.getState() + ".", e);
+                }
+            } finally {
+                onStageFinished(run);
+            }
+            super.cleanup();
+        }
+    }
+
+    /**
+     * Result of a whole instance run for the {@link DataSetJob}: the instance if all stages were successful, null otherwise.
+     */
+    private class InstanceResultJob extends InstanceJob {
+        private final InstanceRun run;
+
+        private InstanceResultJob(InstanceRun run) {
+            super(StagedInstanceBuffer.this, false);
+            this.run = run;
+        }
+
+        @Override
+        protected Instance compute() {
+            return run.failed ? null : run.instance;
+        }
+
+        @Override
+        public boolean isAlreadyComputed(@NotNull Instance inst) {
+            return false;
+        }
+
+        @Override
+        protected void computeAndAnnotateResult(@NotNull Instance expRes) {
+        }
+
+        @Override
+        public String getToolName() {
+            return "instance-run";
+        }
+    }
+
+    /**
+     * Uses the given buffer size for the cpu pool. The web service pool can be configured via
+     * "de.unijena.bioinf.sirius.instanceBuffer.webservice" and has the same size as the cpu pool by default.
+     */
+    public static class Factory implements InstanceBufferFactory<StagedInstanceBuffer> {
+        @Override
+        public StagedInstanceBuffer create(int bufferSize, @NotNull Iterator<? extends Instance> instances, @NotNull List<InstanceJob.Factory<?>> tasks, @Nullable DataSetJob.Factory<?> dependJobFactory) {
+            final int webSlots = PropertyManager.getInteger("de.unijena.bioinf.sirius.instanceBuffer.webservice", null, bufferSize);
+            final StagedInstanceBuffer buffer = new StagedInstanceBuffer(bufferSize, webSlots, instances, tasks, dependJobFactory, SiriusJobs.getGlobalJobManager());
+            buffer.setAdmissionControl(HeapAdmissionControl.fromProperties(bufferSize));
+            return buffer;
+        }
+    }
+}
@@ -20,6 +20,7 @@
 package de.unijena.bioinf.ms.frontend.workflow;
 
 import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ms.annotations.RecomputeResults;
 import de.unijena.bioinf.ms.frontend.subtools.DataSetJob;
 import de.unijena.bioinf.ms.frontend.subtools.InstanceJob;
 import de.unijena.bioinf.ms.frontend.subtools.PostprocessingJob;
@@ -27,12 +28,15 @@ import de.unijena.bioinf.ms.frontend.subtools.PreprocessingJob;
 import de.unijena.bioinf.ms.frontend.subtools.config.AddConfigsJob;
 import de.unijena.bioinf.ms.properties.ParameterConfig;
 import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.projectspace.BulkInvalidation;
 import de.unijena.bioinf.projectspace.Instance;
+import de.unijena.bioinf.projectspace.ProjectSpaceManager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CancellationException;
@@ -50,6 +54,8 @@ public class ToolChainWorkflow implements Workflow {
 
     private final AtomicBoolean canceled = new AtomicBoolean(false);
     private InstanceBuffer submitter = null;
+    private ShardedExecution sharding = null;
+    private volatile BulkInvalidation bulkInvalidation = null;
 
     public ToolChainWorkflow(@NotNull PreprocessingJob<?> preprocessingJob, @Nullable PostprocessingJob<?> postprocessingJob, @NotNull ParameterConfig parameters, @NotNull List<Object> toolchain, InstanceBufferFactory<?> bufferFactory) {
         this.preprocessingJob = preprocessingJob;
@@ -64,6 +70,10 @@ public class ToolChainWorkflow implements Workflow {
         canceled.set(true);
         if (submitter != null)
             submitter.cancel();
+        if (sharding != null)
+            sharding.close();
+        if (bulkInvalidation != null)
+            bulkInvalidation.cancel();
     }
 
     protected void checkForCancellation() throws InterruptedException {
@@ -75,7 +85,7 @@ public class ToolChainWorkflow implements Workflow {
     //todo low io mode: if instance buffer is infinity we do never have to read instances from disk (write only)
     @Override
     public void run() {
-        try {
+        try (WorkflowMetrics.Reporter metricsReporter = WorkflowMetrics.startReporting()) {
             checkForCancellation();
 
             //todo the tool chain should not know anything about the project space. that should be outside this class.
@@ -83,16 +93,40 @@ public class ToolChainWorkflow implements Workflow {
 //            final ProjectSpaceManager project = (ProjectSpaceManager) ;
             // prepare input
             Iterable<? extends Instance> iteratorSource = SiriusJobs.getGlobalJobManager().submitJob(preprocessingJob).awaitResult();
+            if (iteratorSource instanceof ProjectSpaceManager) {
+                sharding = ShardedExecution.fromProperties((ProjectSpaceManager) iteratorSource);
+                // other processes write into the same project, so the index would not be up to date.
+                if (sharding != null) {
+                    ((ProjectSpaceManager) iteratorSource).getCompletionIndex().disable();
+                    ((ProjectSpaceManager) iteratorSource).getCompoundIdIndex().disable();
+                    ((ProjectSpaceManager) iteratorSource).getSummaryIndex().invalidateAll();
+                    ((ProjectSpaceManager) iteratorSource).getTopHitIndex().invalidateAll();
+                }
+            }
+            // invalidate all existing results in one pass, so that the instance jobs start from a clean project
+            if (sharding == null && iteratorSource instanceof ProjectSpaceManager && !toolchain.isEmpty()
+                    && toolchain.get(0) instanceof InstanceJob.Factory
+                    && parameters.createInstanceWithDefaults(RecomputeResults.class).value
+                    && PropertyManager.getBoolean(BulkInvalidation.ENABLED_KEY, null, true)) {
+                final InstanceJob first = ((InstanceJob.Factory<?>) toolchain.get(0)).makeJob(SiriusJobs.getGlobalJobManager());
+                bulkInvalidation = new BulkInvalidation((ProjectSpaceManager) iteratorSource, first::isAlreadyComputed, first::invalidateResults);
+                checkForCancellation(); // cancel() might have missed the job
+                SiriusJobs.getGlobalJobManager().submitJob(bulkInvalidation).awaitResult();
+                checkForCancellation();
+            }
             // build toolchain
             final List<InstanceJob.Factory<?>> instanceJobChain = new ArrayList<>(toolchain.size());
             //job factory for job that add config annotations to an instance
-            instanceJobChain.add(new InstanceJob.Factory<>(
+            final InstanceJob.Factory<AddConfigsJob> addConfigs = new InstanceJob.Factory<>(
                     (jj) -> new AddConfigsJob(parameters),
                     (inst) -> {
                     }
-            ));
+            );
+            instanceJobChain.add(addConfigs);
             // get buffer size
             final int bufferSize = PropertyManager.getInteger("de.unijena.bioinf.sirius.instanceBuffer", "de.unijena.bioinf.sirius.cpu.cores", 0);
+            // order in which the instances are submitted to the buffer
+            final InstanceOrdering ordering = InstanceOrdering.fromProperties();
 
             //other jobs
             for (Object o : toolchain) {
@@ -100,7 +134,15 @@ public class ToolChainWorkflow implements Workflow {
                 if (o instanceof InstanceJob.Factory) {
                     instanceJobChain.add((InstanceJob.Factory<?>) o);
                 } else if (o instanceof DataSetJob.Factory) {
-                    submitter = bufferFactory.create(bufferSize, iteratorSource.iterator(), instanceJobChain, ((DataSetJob.Factory<?>) o));
+                    // only the instance jobs before the first dataset job are distributed over the shards.
+                    if (sharding != null && iteratorSource instanceof ProjectSpaceManager) {
+                        runShardedStage((ProjectSpaceManager) iteratorSource, instanceJobChain, bufferSize);
+                        if (!sharding.isCoordinator())
+                            break;
+                        // the dataset job needs instance jobs as input, the instance chain has already been run by the shards.
+                        instanceJobChain.add(addConfigs);
+                    }
+                    submitter = bufferFactory.create(bufferSize, ordering.apply(iteratorSource).iterator(), instanceJobChain, ((DataSetJob.Factory<?>) o));
                     submitter.start();
                     checkForCancellation();
                     iteratorSource = submitter.submitJob(submitter.getCollectorJob()).awaitResult();
@@ -115,8 +157,12 @@ public class ToolChainWorkflow implements Workflow {
             // disk to not waste memory -> otherwise the whole buffer thing is useless.
             checkForCancellation();
             if (!instanceJobChain.isEmpty()) {
-                submitter = bufferFactory.create(bufferSize, iteratorSource.iterator(), instanceJobChain, null);
-                submitter.start(true);
+                if (sharding != null && iteratorSource instanceof ProjectSpaceManager) {
+                    runShardedStage((ProjectSpaceManager) iteratorSource, instanceJobChain, bufferSize);
+                } else {
+                    submitter = bufferFactory.create(bufferSize, ordering.apply(iteratorSource).iterator(), instanceJobChain, null);
+                    submitter.start(true);
+                }
             }
             LOG.info("Workflow has been finished!");
 
@@ -126,13 +172,40 @@ public class ToolChainWorkflow implements Workflow {
                 submitter.submitJob(postprocessingJob).awaitResult();
             }
 
-        } catch (ExecutionException | RuntimeException e) {
+        } catch (ExecutionException | IOException | RuntimeException e) {
             if (e.getCause() instanceof CancellationException || e.getCause() instanceof InterruptedException)
                 LOG.info("Workflow was canceled by: " + e.getMessage());
             else
                 LOG.error("Error When Executing ToolChain", e);
         } catch (InterruptedException e) {
             LOG.info("Workflow successfully canceled by interruption check!");
+        } finally {
+            if (sharding != null)
+                sharding.close();
+        }
+    }
+
+    /**
+     * Runs the given instance job chain on the compounds claimed by this shard. The coordinator repeats this
+     * until all compounds of the project are done, so that compounds of crashed workers are computed, too.
+     * Afterwards the chain is cleared.
+     */
+    private void runShardedStage(@NotNull ProjectSpaceManager project, @NotNull List<InstanceJob.Factory<?>> instanceJobChain, int bufferSize) throws InterruptedException {
+        instanceJobChain.add(sharding.makeReleaseJobFactory());
+        do {
+            checkForCancellation();
+            submitter = bufferFactory.create(bufferSize, sharding.claimingIterable(project).iterator(), instanceJobChain, null);
+            submitter.start(true);
+            checkForCancellation();
+            sharding.finish();
+        } while (sharding.isCoordinator() && !sharding.awaitCompletion());
+        instanceJobChain.clear();
+
+        if (sharding.isCoordinator()) {
+            LOG.info("All shards are done. Executing remaining tool chain on the whole project.");
+            sharding.cleanUp();
+        } else {
+            LOG.info("Shard " + sharding.getIndex() + "/" + sharding.getNumberOfShards() + " is done. The remaining tool chain and the summaries are executed by the coordinator (shard 0).");
         }
     }
 }
@@ -0,0 +1,310 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.frontend.workflow;
+
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects timing and throughput metrics of a {@link ToolChainWorkflow}:
+ * wall and cpu time of the tool jobs per tool, number of computed, skipped and failed tool runs,
+ * time instances wait for a slot in the {@link InstanceBuffer} and the number of running instances.
+ * <p>
+ * The metrics are written as JSON (metrics.json) and Prometheus text format (metrics.prom) to the directory
+ * specified by "de.unijena.bioinf.sirius.metrics.out" (see {@link #startReporting()}).
+ * <p>
+ * Note: cpu time is the time of the thread that executes the tool job. Sub jobs that are executed by other threads
+ * (e.g. the tanimoto jobs of CSI:FingerID) are not included.
+ */
+public class WorkflowMetrics {
+    public static final String OUT_KEY = "de.unijena.bioinf.sirius.metrics.out";
+    public static final String INTERVAL_KEY = "de.unijena.bioinf.sirius.metrics.interval";
+
+    private static final WorkflowMetrics GLOBAL = new WorkflowMetrics();
+
+    public static WorkflowMetrics global() {
+        return GLOBAL;
+    }
+
+    public enum Outcome {COMPUTED, SKIPPED, FAILED}
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800, 3600};
+
+    private final Map<String, ToolStats> tools = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> bufferWaits = new ConcurrentHashMap<>();
+    private final AtomicInteger runningInstances = new AtomicInteger(0);
+    private final AtomicInteger maxRunningInstances = new AtomicInteger(0);
+    private final long startTime = System.currentTimeMillis();
+
+    /**
+     * Measures wall and cpu time of the current thread from its creation.
+     */
+    public static final class ToolTimer {
+        private final long wallStart = System.nanoTime();
+        private final long cpuStart = currentThreadCpuTime();
+
+        private ToolTimer() {
+        }
+
+        private long wallNanos() {
+            return System.nanoTime() - wallStart;
+        }
+
+        private long cpuNanos() {
+            return cpuStart < 0 ? -1 : currentThreadCpuTime() - cpuStart;
+        }
+    }
+
+    public static ToolTimer startTimer() {
+        return new ToolTimer();
+    }
+
+    public void recordToolRun(@NotNull String tool, @NotNull ToolTimer timer, @NotNull Outcome outcome) {
+        final ToolStats stats = tools.computeIfAbsent(tool, k -> new ToolStats());
+        stats.outcomes[outcome.ordinal()].increment();
+        if (outcome == Outcome.SKIPPED)
+            return;
+        stats.wall.observe(timer.wallNanos());
+        final long cpu = timer.cpuNanos();
+        if (cpu >= 0)
+            stats.cpu.observe(cpu);
+    }
+
+    /**
+     * @param pool  name of the pool whose slot the instance waited for
+     * @param nanos waiting time in nanoseconds
+     */
+    public void recordBufferWait(@NotNull String pool, long nanos) {
+        bufferWaits.computeIfAbsent(pool, k -> new Histogram()).observe(nanos);
+    }
+
+    public void setRunningInstances(int running) {
+        runningInstances.set(running);
+        maxRunningInstances.accumulateAndGet(running, Math::max);
+    }
+
+    public String toJson() {
+        final StringBuilder b = new StringBuilder("{\n");
+        b.append("  \"uptimeSeconds\": ").append(fmt((System.currentTimeMillis() - startTime) / 1000d)).append(",\n");
+        b.append("  \"runningInstances\": ").append(runningInstances.get()).append(",\n");
+        b.append("  \"maxRunningInstances\": ").append(maxRunningInstances.get()).append(",\n");
+        b.append("  \"tools\": {");
+        String sep = "\n";
+        for (Map.Entry<String, ToolStats> e : new TreeMap<>(tools).entrySet()) {
+            final ToolStats s = e.getValue();
+            b.append(sep).append("    \"").append(escape(e.getKey())).append("\": {");
+            for (Outcome o : Outcome.values())
+                b.append("\"").append(o.name().toLowerCase()).append("\": ").append(s.outcomes[o.ordinal()].sum()).append(", ");
+            b.append("\"wallSeconds\": ").append(s.wall.toJson()).append(", ");
+            b.append("\"cpuSeconds\": ").append(s.cpu.toJson()).append("}");
+            sep = ",\n";
+        }
+        b.append("\n  },\n");
+        b.append("  \"bufferWaitSeconds\": {");
+        sep = "\n";
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(bufferWaits).entrySet()) {
+            b.append(sep).append("    \"").append(escape(e.getKey())).append("\": ").append(e.getValue().toJson());
+            sep = ",\n";
+        }
+        b.append("\n  }\n}\n");
+        return b.toString();
+    }
+
+    public String toPrometheus() {
+        final StringBuilder b = new StringBuilder();
+        final Map<String, ToolStats> sortedTools = new TreeMap<>(tools);
+
+        b.append("# HELP sirius_tool_runs_total Number of tool runs per tool and outcome.\n");
+        b.append("# TYPE sirius_tool_runs_total counter\n");
+        sortedTools.forEach((tool, s) -> {
+            for (Outcome o : Outcome.values())
+                b.append("sirius_tool_runs_total{tool=\"").append(escape(tool)).append("\",outcome=\"").append(o.name().toLowerCase())
+                        .append("\"} ").append(s.outcomes[o.ordinal()].sum()).append('\n');
+        });
+
+        b.append("# HELP sirius_tool_wall_seconds Wall clock time of computed tool runs.\n");
+        b.append("# TYPE sirius_tool_wall_seconds histogram\n");
+        sortedTools.forEach((tool, s) -> s.wall.appendPrometheus(b, "sirius_tool_wall_seconds", "tool=\"" + escape(tool) + "\""));
+
+        b.append("# HELP sirius_tool_cpu_seconds Cpu time of the thread executing computed tool runs.\n");
+        b.append("# TYPE sirius_tool_cpu_seconds histogram\n");
+        sortedTools.forEach((tool, s) -> s.cpu.appendPrometheus(b, "sirius_tool_cpu_seconds", "tool=\"" + escape(tool) + "\""));
+
+        b.append("# HELP sirius_buffer_wait_seconds Time instances waited for a slot in the instance buffer.\n");
+        b.append("# TYPE sirius_buffer_wait_seconds histogram\n");
+        new TreeMap<>(bufferWaits).forEach((pool, h) -> h.appendPrometheus(b, "sirius_buffer_wait_seconds", "pool=\"" + escape(pool) + "\""));
+
+        b.append("# HELP sirius_running_instances Number of instances that are currently computed.\n");
+        b.append("# TYPE sirius_running_instances gauge\n");
+        b.append("sirius_running_instances ").append(runningInstances.get()).append('\n');
+        b.append("# HELP sirius_running_instances_max Maximum number of instances that have been computed in parallel.\n");
+        b.append("# TYPE sirius_running_instances_max gauge\n");
+        b.append("sirius_running_instances_max ").append(maxRunningInstances.get()).append('\n');
+        return b.toString();
+    }
+
+    public synchronized void writeTo(@NotNull Path dir) throws IOException {
+        Files.createDirectories(dir);
+        write(dir.resolve("metrics.json"), toJson());
+        write(dir.resolve("metrics.prom"), toPrometheus());
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Starts writing the global metrics periodically ("de.unijena.bioinf.sirius.metrics.interval" in seconds)
+     * to the directory given by "de.unijena.bioinf.sirius.metrics.out". The metrics are written a last time on close.
+     *
+     * @return the running reporter or null if no output directory is specified
+     */
+    @Nullable
+    public static Reporter startReporting() {
+        final String out = PropertyManager.getProperty(OUT_KEY);
+        if (out == null || out.isBlank())
+            return null;
+        return new Reporter(Paths.get(out), Math.max(1, PropertyManager.getInteger(INTERVAL_KEY, null, 30)));
+    }
+
+    public static final class Reporter implements Closeable {
+        private final Path dir;
+        private final ScheduledExecutorService timer;
+
+        private Reporter(Path dir, int intervalSeconds) {
+            this.dir = dir;
+            this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "workflow-metrics");
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleAtFixedRate(() -> writeGlobal(dir), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void close() {
+            timer.shutdownNow();
+            writeGlobal(dir);
+        }
+    }
+
+    private static void writeGlobal(Path dir) {
+        try {
+            GLOBAL.writeTo(dir);
+        } catch (IOException e) {
+            LoggerFactory.getLogger(WorkflowMetrics.class).warn("Could not write workflow metrics to '" + dir + "'. " + e.getMessage());
+        }
+    }
+
+    private static long currentThreadCpuTime() {
+        try {
+            return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    private static String fmt(double d) {
+        return String.format(Locale.US, "%.6f", d);
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static final class ToolStats {
+        private final Histogram wall = new Histogram();
+        private final Histogram cpu = new Histogram();
+        private final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+
+        private ToolStats() {
+            for (int i = 0; i < outcomes.length; i++)
+                outcomes[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Histogram with fixed buckets in seconds, values are recorded in nanoseconds.
+     */
+    private static final class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+        private final LongAdder sumNanos = new LongAdder();
+        private final LongAdder count = new LongAdder();
+
+        void observe(long nanos) {
+            final double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < BUCKETS.length && seconds > BUCKETS[i])
+                i++;
+            counts.incrementAndGet(i);
+            sumNanos.add(nanos);
+            count.increment();
+        }
+
+        String toJson() {
+            final StringBuilder b = new StringBuilder("{\"count\": ").append(count.sum())
+                    .append(", \"sum\": ").append(fmt(sumNanos.sum() / 1e9)).append(", \"buckets\": {");
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += counts.get(i);
+                b.append('"').append(BUCKETS[i]).append("\": ").append(cumulative).append(", ");
+            }
+            cumulative += counts.get(BUCKETS.length);
+            return b.append("\"+Inf\": ").append(cumulative).append("}}").toString();
+        }
+
+        void appendPrometheus(StringBuilder b, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += counts.get(i);
+                b.append(name).append("_bucket{").append(labels).append(",le=\"").append(BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += counts.get(BUCKETS.length);
+            b.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+            b.append(name).append("_sum{").append(labels).append("} ").append(fmt(sumNanos.sum() / 1e9)).append('\n');
+            b.append(name).append("_count{").append(labels).append("} ").append(count.sum()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
+import de.unijena.bioinf.canopus.CanopusResult;
+import de.unijena.bioinf.fingerid.FingerprintResult;
+import de.unijena.bioinf.fingerid.blast.FBCandidateFingerprints;
+import de.unijena.bioinf.fingerid.blast.FBCandidates;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.BasicMasterJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bioinf.ms.annotations.DataAnnotation;
+import de.unijena.bioinf.projectspace.canopus.CanopusLocations;
+import de.unijena.bioinf.projectspace.fingerid.FingerIdLocations;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Invalidates the existing results of all compounds in one parallel pass before a recompute run is scheduled,
+ * instead of invalidating every instance when its job is executed.
+ * <p>
+ * Components that are stored in directories of their own (fingerprints, structure candidates, CANOPUS results)
+ * are removed by deleting these directories instead of deleting them file by file for every formula result.
+ * The {@link CompletionIndex} is rewritten once at the end of the pass. The compounds are invalidated by sub jobs
+ * on the global job manager. Canceling the job stops the pass after the compounds that are already submitted,
+ * their deletions are still applied to the index.
+ */
+public final class BulkInvalidation extends BasicMasterJJob<Integer> {
+    private static final Logger LOG = LoggerFactory.getLogger(BulkInvalidation.class);
+    public static final String ENABLED_KEY = "de.unijena.bioinf.sirius.project.bulkInvalidation";
+
+    private static final Map<Class<? extends DataAnnotation>, List<String>> COMPONENT_DIRECTORIES = Map.of(
+            FingerprintResult.class, List.of(FingerIdLocations.FINGERPRINTS.relDir()),
+            FBCandidates.class, List.of(FingerIdLocations.FINGERBLAST.relDir()),
+            FBCandidateFingerprints.class, List.of(FingerIdLocations.FINGERBLAST_FPs.relDir()),
+            CanopusResult.class, List.of(CanopusLocations.CANOPUS.relDir(), CanopusLocations.NPC.relDir())
+    );
+
+    private final ProjectSpaceManager space;
+    private final Predicate<Instance> isComputed;
+    private final Consumer<Instance> invalidator;
+    // compound directory -> deleted components, applied to the completion index at the end
+    private final Map<String, Set<Class<? extends DataAnnotation>>> deleted = new ConcurrentHashMap<>();
+
+    /**
+     * @param isComputed  true if the instance has results that have to be invalidated before they are recomputed
+     * @param invalidator invalidation of a single instance
+     */
+    public BulkInvalidation(@NotNull ProjectSpaceManager space, @NotNull Predicate<Instance> isComputed, @NotNull Consumer<Instance> invalidator) {
+        super(JobType.SCHEDULER);
+        this.space = space;
+        this.isComputed = isComputed;
+        this.invalidator = invalidator;
+    }
+
+    /**
+     * @return number of invalidated compounds
+     */
+    @Override
+    protected Integer compute() throws Exception {
+        space.setBulkInvalidation(this);
+        try {
+            return invalidate();
+        } finally {
+            space.setBulkInvalidation(null);
+            space.getCompletionIndex().deleted(deleted);
+        }
+    }
+
+    private int invalidate() throws InterruptedException {
+        final Predicate<CompoundContainerId> filter = space.getCompoundIdFilter();
+        final Iterator<CompoundContainerId> it = filter != null ? space.projectSpace().filteredIterator(filter) : space.projectSpace().iterator();
+        final int threads = SiriusJobs.getCPUThreads();
+        final int max = Math.max(1, space.size());
+        final AtomicInteger invalidated = new AtomicInteger(0);
+        final Deque<JJob<Boolean>> window = new ArrayDeque<>();
+        int submitted = 0, done = 0;
+        updateProgress(0, max, 0, "Invalidating existing results...");
+        try {
+            while (it.hasNext()) {
+                checkForInterruption();
+                final CompoundContainerId id = it.next();
+                window.add(submitSubJob(new BasicJJob<Boolean>(JobType.CPU) {
+                    @Override
+                    protected Boolean compute() {
+                        final Instance inst = space.newInstanceFromCompound(id);
+                        if (!isComputed.test(inst))
+                            return false;
+                        invalidator.accept(inst);
+                        invalidated.incrementAndGet();
+                        return true;
+                    }
+                }));
+                submitted++;
+                if (window.size() >= 2 * threads) {
+                    await(window.poll());
+                    updateProgress(0, max, Math.min(++done, max), "Invalidating existing results...");
+                }
+            }
+        } finally {
+            // submitted compounds have to be done before their deletions are applied to the index
+            while (!window.isEmpty())
+                await(window.poll());
+        }
+        updateProgress(0, max, max, "Invalidated results of " + invalidated.get() + " compounds.");
+        LOG.info("Invalidated results of " + invalidated.get() + " of " + submitted + " compounds on " + threads + " threads.");
+        return invalidated.get();
+    }
+
+    private static void await(JJob<?> job) {
+        try {
+            job.awaitResult();
+        } catch (ExecutionException e) {
+            // the job of this instance will try again
+            LOG.error("Could not invalidate results. " + e.getCause().getMessage(), e.getCause());
+        } catch (CancellationException e) {
+            // canceled together with the pass
+        }
+    }
+
+    /**
+     * Deletes the directories of the given components of a compound.
+     *
+     * @return components that are not stored in directories of their own and have to be deleted file by file
+     */
+    @SuppressWarnings("unchecked")
+    Class<? extends DataAnnotation>[] deleteDirectories(@NotNull CompoundContainerId id, @NotNull Class<? extends DataAnnotation>[] components) {
+        final Path compoundDir = space.projectSpace().getRootPath().resolve(id.getDirectoryName());
+        final List<Class<? extends DataAnnotation>> remaining = new ArrayList<>();
+        for (Class<? extends DataAnnotation> component : components) {
+            final List<String> dirs = COMPONENT_DIRECTORIES.get(component);
+            if (dirs == null) {
+                remaining.add(component);
+                continue;
+            }
+            try {
+                for (String dir : dirs) {
+                    final Path p = compoundDir.resolve(dir);
+                    if (Files.exists(p))
+                        FileUtils.deleteRecursively(p);
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not delete '" + component.getSimpleName() + "' results of '" + id.getDirectoryName() + "'. Deleting them file by file. " + e.getMessage());
+                remaining.add(component);
+            }
+        }
+        deleted.computeIfAbsent(id.getDirectoryName(), k -> ConcurrentHashMap.newKeySet()).addAll(Arrays.asList(components));
+        // no project space events are fired for deleted directories
+        space.getSummaryIndex().changed(id);
+        space.getTopHitIndex().invalidate(id);
+        return remaining.toArray(Class[]::new);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Persisted results of successful data compatibility checks ({@link ProjectSpaceManager#checkAndFixDataFiles}).
+ * <p>
+ * A result is valid as long as the checked data files of the project, the SIRIUS version and the result are not
+ * older than {@link #MAX_AGE_KEY} hours, so reopening a project does not contact the web service again.
+ * Incompatible results are never persisted.
+ * <p>
+ * Line format: property name, checksum of the data files and SIRIUS version, check time (millis)
+ */
+final class CompatibilityRecord {
+    static final String FILE_NAME = ".data_compatibility";
+    static final String MAX_AGE_KEY = "de.unijena.bioinf.sirius.project.compatibility.maxAgeHours";
+
+    private final Supplier<Path> root;
+    private Map<String, String[]> records = null;
+
+    CompatibilityRecord(@NotNull Supplier<Path> root) {
+        this.root = root;
+    }
+
+    synchronized boolean isCompatible(@NotNull String name, String... dataFiles) {
+        final String[] r = records().get(name);
+        if (r == null)
+            return false;
+        final long maxAge = TimeUnit.HOURS.toMillis(PropertyManager.getInteger(MAX_AGE_KEY, null, 24));
+        try {
+            return r[0].equals(checksum(dataFiles)) && System.currentTimeMillis() - Long.parseLong(r[1]) < maxAge;
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    synchronized void compatible(@NotNull String name, String... dataFiles) {
+        try {
+            records().put(name, new String[]{checksum(dataFiles), String.valueOf(System.currentTimeMillis())});
+            write();
+        } catch (IOException e) {
+            LoggerFactory.getLogger(getClass()).warn("Could not persist data compatibility of the project. Data will be checked again on next start. " + e.getMessage());
+        }
+    }
+
+    synchronized void invalidate(@NotNull String name) {
+        if (records().remove(name) != null) {
+            try {
+                write();
+            } catch (IOException e) {
+                LoggerFactory.getLogger(getClass()).warn("Could not invalidate persisted data compatibility. Deleting it.", e);
+                try {
+                    Files.deleteIfExists(file());
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private Path file() {
+        return root.get().resolve(FILE_NAME);
+    }
+
+    private String checksum(String... dataFiles) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(PropertyManager.getProperty("de.unijena.bioinf.siriusFrontend.version", null, "").getBytes(StandardCharsets.UTF_8));
+        for (String f : dataFiles) {
+            final Path p = root.get().resolve(f);
+            if (Files.exists(p))
+                crc.update(Files.readAllBytes(p));
+            crc.update(0);
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    private Map<String, String[]> records() {
+        if (records == null) {
+            records = new LinkedHashMap<>();
+            final Path file = file();
+            if (Files.isRegularFile(file)) {
+                try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = r.readLine()) != null) {
+                        final String[] cols = line.split("\t");
+                        if (cols.length == 3)
+                            records.put(cols[0], new String[]{cols[1], cols[2]});
+                    }
+                } catch (IOException e) {
+                    LoggerFactory.getLogger(getClass()).warn("Could not read persisted data compatibility. Data will be checked again.", e);
+                    records.clear();
+                }
+            }
+        }
+        return records;
+    }
+
+    private void write() throws IOException {
+        final Path file = file();
+        if (records.isEmpty()) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        final Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String[]> e : records.entrySet()) {
+                w.write(e.getKey() + "\t" + e.getValue()[0] + "\t" + e.getValue()[1]);
+                w.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
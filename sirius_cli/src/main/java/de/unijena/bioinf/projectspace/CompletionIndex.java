@@ -0,0 +1,376 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.GibbsSampling.ZodiacScore;
+import de.unijena.bioinf.canopus.CanopusResult;
+import de.unijena.bioinf.fingerid.FingerprintResult;
+import de.unijena.bioinf.fingerid.blast.FBCandidates;
+import de.unijena.bioinf.ms.annotations.DataAnnotation;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.passatutto.Decoy;
+import de.unijena.bioinf.projectspace.sirius.FormulaResult;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Compact, append-only index that stores for every compound which tools have already computed results.
+ * This allows the tool jobs to answer {@link de.unijena.bioinf.ms.frontend.subtools.ToolChainJob#isAlreadyComputed}
+ * without loading any formula result from disk.
+ * <p>
+ * Every compound has two bitsets (one bit per {@link Tool}): the bits that are known and the bits that are computed.
+ * Tools with unknown state (e.g. imported compounds or results written by other software) fall back to
+ * the disk based check, the result of this check is stored in the index.
+ * <p>
+ * Every change is appended as one line to the index file. The file is compacted on close.
+ * <p>
+ * The index is only maintained if {@link #ENABLED_KEY} is set, which is done for command line workflow runs.
+ * The GUI and the REST service modify projects without the index, so they never write it. An index file found
+ * in such a project is deleted on the first change, since it would be outdated afterwards.
+ */
+public class CompletionIndex {
+    public static final String INDEX_FILE_NAME = ".completion_index";
+    public static final String ENABLED_KEY = "de.unijena.bioinf.sirius.project.completionIndex";
+
+    public enum Tool {
+        SIRIUS(fr -> fr.hasAnnotation(FTree.class), FTree.class),
+        ZODIAC(fr -> fr.getAnnotation(FormulaScoring.class).map(s -> s.hasAnnotation(ZodiacScore.class)).orElse(false), FormulaScoring.class),
+        PASSATUTTO(fr -> fr.hasAnnotation(Decoy.class), Decoy.class),
+        FINGERID(fr -> fr.hasAnnotation(FingerprintResult.class) && fr.hasAnnotation(FBCandidates.class), FingerprintResult.class, FBCandidates.class),
+        CANOPUS(fr -> fr.hasAnnotation(CanopusResult.class), CanopusResult.class);
+
+        private final Predicate<FormulaResult> isComputed;
+        private final Set<Class<? extends DataAnnotation>> components;
+
+        @SafeVarargs
+        Tool(Predicate<FormulaResult> isComputed, Class<? extends DataAnnotation>... components) {
+            this.isComputed = isComputed;
+            this.components = Set.of(components);
+        }
+
+        private int bit() {
+            return 1 << ordinal();
+        }
+
+        private boolean isAffectedBy(Collection<Class<? extends DataAnnotation>> comps) {
+            return comps.contains(FTree.class) || comps.stream().anyMatch(components::contains);
+        }
+    }
+
+    private static final class Status {
+        int known = 0;
+        int computed = 0;
+        // incremented on every change, so that a disk check does not overwrite a change made while it was running
+        int version = 0;
+    }
+
+    private final Map<String, Status> states = new HashMap<>();
+    private Path indexFile;
+    private BufferedWriter writer = null;
+    private int records = 0;
+    private boolean enabled;
+    // an existing index file of a project that is modified without the index has to be deleted
+    private boolean indexFileDeleted = false;
+
+    CompletionIndex(@NotNull Path projectLocation) {
+        this(projectLocation, PropertyManager.getBoolean(ENABLED_KEY, null, false));
+    }
+
+    CompletionIndex(@NotNull Path projectLocation, boolean enabled) {
+        this.indexFile = projectLocation.resolve(INDEX_FILE_NAME);
+        this.enabled = enabled;
+        if (enabled) {
+            load();
+            openWriter();
+        }
+    }
+
+    /**
+     * @param id         compound to check
+     * @param tool       tool to check
+     * @param diskCheck  fallback that is used if the state is not known by the index
+     * @return true if the given tool has already computed results for the given compound
+     */
+    public boolean isComputed(@NotNull CompoundContainerId id, @NotNull Tool tool, @NotNull BooleanSupplier diskCheck) {
+        final boolean indexed;
+        int version = 0;
+        synchronized (this) {
+            indexed = enabled;
+            if (indexed) {
+                final Status s = states.computeIfAbsent(id.getDirectoryName(), k -> new Status());
+                if ((s.known & tool.bit()) != 0)
+                    return (s.computed & tool.bit()) != 0;
+                version = s.version;
+            }
+        }
+
+        // disk I/O must not block the other instances
+        final boolean computed = diskCheck.getAsBoolean();
+        if (indexed) {
+            synchronized (this) {
+                // results written or deleted during the disk check are already in the index and are more recent
+                final Status s = states.get(id.getDirectoryName());
+                if (enabled && s != null && s.version == version)
+                    set(id, tool, computed);
+            }
+        }
+        return computed;
+    }
+
+    synchronized void set(@NotNull CompoundContainerId id, @NotNull Tool tool, boolean computed) {
+        if (!enabled) {
+            deleteIndexFile();
+            return;
+        }
+        final Status s = states.computeIfAbsent(id.getDirectoryName(), k -> new Status());
+        final int known = s.known | tool.bit();
+        final int comp = computed ? s.computed | tool.bit() : s.computed & ~tool.bit();
+        if (known != s.known || comp != s.computed) {
+            s.known = known;
+            s.computed = comp;
+            s.version++;
+            append(id.getDirectoryName(), s);
+        }
+    }
+
+    synchronized void unset(@NotNull CompoundContainerId id, @NotNull Tool tool) {
+        if (!enabled) {
+            deleteIndexFile();
+            return;
+        }
+        final Status s = states.get(id.getDirectoryName());
+        if (s != null && (s.known & tool.bit()) != 0) {
+            s.known &= ~tool.bit();
+            s.computed &= ~tool.bit();
+            s.version++;
+            append(id.getDirectoryName(), s);
+        }
+    }
+
+    /**
+     * Updates the state of all tools whose components have been written.
+     * Since we only see one formula result here, a tool is either marked as computed or its state becomes unknown.
+     */
+    synchronized void updated(@NotNull FormulaResult result, @NotNull Collection<Class<? extends DataAnnotation>> components) {
+        final CompoundContainerId id = result.getId().getParentId();
+        for (Tool tool : Tool.values()) {
+            if (tool.isAffectedBy(components)) {
+                if (tool.isComputed.test(result))
+                    set(id, tool, true);
+                else
+                    unset(id, tool);
+            }
+        }
+    }
+
+    /**
+     * Marks the tools whose components have been deleted from ALL formula results of the given compound as not computed.
+     */
+    synchronized void deleted(@NotNull CompoundContainerId id, @NotNull Collection<Class<? extends DataAnnotation>> components) {
+        for (Tool tool : Tool.values())
+            if (tool.isAffectedBy(components))
+                set(id, tool, false);
+    }
+
+    /**
+     * Same as {@link #deleted(CompoundContainerId, Collection)} for many compounds (by directory name), but rewrites
+     * the index once instead of appending a record per compound.
+     */
+    synchronized void deleted(@NotNull Map<String, ? extends Collection<Class<? extends DataAnnotation>>> deletions) {
+        if (deletions.isEmpty())
+            return;
+        if (!enabled) {
+            deleteIndexFile();
+            return;
+        }
+        for (Map.Entry<String, ? extends Collection<Class<? extends DataAnnotation>>> e : deletions.entrySet()) {
+            final Status s = states.computeIfAbsent(e.getKey(), k -> new Status());
+            for (Tool tool : Tool.values()) {
+                if (tool.isAffectedBy(e.getValue())) {
+                    s.known |= tool.bit();
+                    s.computed &= ~tool.bit();
+                }
+            }
+            s.version++;
+        }
+        closeWriter();
+        compact();
+        openWriter();
+    }
+
+    synchronized void deletedAll(@NotNull CompoundContainerId id) {
+        for (Tool tool : Tool.values())
+            set(id, tool, false);
+    }
+
+    synchronized void invalidate(@NotNull CompoundContainerId id) {
+        if (!enabled) {
+            deleteIndexFile();
+            return;
+        }
+        // the entry is kept (unknown), so that running disk checks see the change
+        final Status s = states.get(id.getDirectoryName());
+        if (s != null) {
+            s.version++;
+            if (s.known != 0) {
+                s.known = 0;
+                s.computed = 0;
+                append(id.getDirectoryName(), s);
+            }
+        }
+    }
+
+    synchronized void relocate(@NotNull Path newProjectLocation) {
+        closeWriter();
+        indexFile = newProjectLocation.resolve(INDEX_FILE_NAME);
+        if (!enabled) {
+            indexFileDeleted = false; // the new location may contain a copy of the index file
+            return;
+        }
+        compact();
+        openWriter();
+    }
+
+    synchronized void close() {
+        closeWriter();
+        if (enabled && records > states.values().stream().filter(s -> s.known != 0).count())
+            compact();
+    }
+
+    private void append(String dirName, Status s) {
+        if (writer == null)
+            return;
+        try {
+            writer.write(dirName + "\t" + s.known + "\t" + s.computed);
+            writer.newLine();
+            writer.flush();
+            records++;
+        } catch (IOException e) {
+            LoggerFactory.getLogger(getClass()).warn("Could not write to completion index '" + indexFile + "'. Falling back to disk based checks. " + e.getMessage());
+            disable();
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(indexFile))
+            return;
+        try (BufferedReader r = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                final String[] cols = line.split("\t");
+                if (cols.length != 3)
+                    continue; //skip incomplete lines e.g. from a crash during writing
+                try {
+                    final Status s = new Status();
+                    s.known = Integer.parseInt(cols[1]);
+                    s.computed = Integer.parseInt(cols[2]);
+                    if (s.known == 0)
+                        states.remove(cols[0]);
+                    else
+                        states.put(cols[0], s);
+                    records++;
+                } catch (NumberFormatException e) {
+                    LoggerFactory.getLogger(getClass()).debug("Skipping malformed completion index line: " + line);
+                }
+            }
+        } catch (IOException e) {
+            LoggerFactory.getLogger(getClass()).warn("Could not read completion index '" + indexFile + "'. Index will be rebuilt. " + e.getMessage());
+            states.clear();
+        }
+    }
+
+    private void compact() {
+        final Path tmp = indexFile.resolveSibling(INDEX_FILE_NAME + ".tmp");
+        try {
+            int written = 0;
+            try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Status> e : states.entrySet()) {
+                    if (e.getValue().known == 0)
+                        continue;
+                    w.write(e.getKey() + "\t" + e.getValue().known + "\t" + e.getValue().computed);
+                    w.newLine();
+                    written++;
+                }
+            }
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+            records = written;
+        } catch (IOException e) {
+            LoggerFactory.getLogger(getClass()).warn("Could not compact completion index '" + indexFile + "'. " + e.getMessage());
+        }
+    }
+
+    private void openWriter() {
+        try {
+            writer = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException | UnsupportedOperationException e) {
+            LoggerFactory.getLogger(getClass()).warn("Could not open completion index '" + indexFile + "'. Falling back to disk based checks. " + e.getMessage());
+            disable();
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LoggerFactory.getLogger(getClass()).warn("Error when closing completion index. " + e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Disables the index for the lifetime of this instance and deletes the index file. All checks fall back to
+     * the disk. Needed if the project is modified by other processes (e.g. sharded execution), since the index
+     * would not see their changes.
+     */
+    public synchronized void disable() {
+        enabled = false;
+        closeWriter();
+        states.clear();
+        records = 0;
+        indexFileDeleted = false;
+        deleteIndexFile();
+    }
+
+    private void deleteIndexFile() {
+        if (indexFileDeleted)
+            return;
+        indexFileDeleted = true;
+        try {
+            Files.deleteIfExists(indexFile);
+        } catch (IOException ignored) {
+            // an outdated index must not survive, the next open would trust it otherwise.
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.projectspace.sirius.CompoundContainer;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Persisted index of the formula results of every compound, so that opening a project can create its
+ * {@link Instance}s without reading the compound directories.
+ * <p>
+ * The index consists of a snapshot ({@link #INDEX_FILE_NAME}) that is written on close and a journal
+ * ({@link #JOURNAL_FILE_NAME}) to which every change is appended as a checksummed record while the project is open.
+ * Loading reads both sequentially and ignores an incomplete last record. Compounds are only added to the index
+ * from completely loaded containers ({@link #put}). Created compounds are not indexed, since their results may be
+ * written by file copies (e.g. import) that do not fire events. Names, masses and RTs are part
+ * of the {@link CompoundContainerId}s, scores and confidences of the top hits are in the {@link TopHitIndex}.
+ */
+public class CompoundIdIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(CompoundIdIndex.class);
+
+    public static final String INDEX_FILE_NAME = ".compound_ids";
+    public static final String JOURNAL_FILE_NAME = ".compound_ids.journal";
+    private static final int MAGIC = 0x43494431; // CID1
+    private static final int VERSION = 1;
+
+    private static final byte PUT = 1, REMOVE = 2, ADD_RESULT = 3, REMOVE_RESULT = 4;
+
+    private final SiriusProjectSpace space;
+    // directory -> compound name and formula results (formula, ion type)
+    private Map<String, Entry> entries = null;
+    private DataOutputStream journal = null;
+    private boolean dirty = false;
+    private boolean enabled = true;
+
+    CompoundIdIndex(@NotNull SiriusProjectSpace space) {
+        this.space = space;
+        space.defineCompoundListener().onCreate().onDelete().thenDo(event -> remove(event.getAffectedID())).register();
+        space.defineFormulaResultListener().onCreate().thenDo(event -> append(ADD_RESULT, event.getAffectedID().getParentId().getDirectoryName(),
+                event.getAffectedID().getPrecursorFormula().toString(), event.getAffectedID().getIonType().toString())).register();
+        space.defineFormulaResultListener().onDelete().thenDo(event -> append(REMOVE_RESULT, event.getAffectedID().getParentId().getDirectoryName(),
+                event.getAffectedID().getPrecursorFormula().toString(), event.getAffectedID().getIonType().toString())).register();
+    }
+
+    /**
+     * @return container with the indexed formula results of the given compound (without any components) or
+     * empty if the compound is not indexed.
+     */
+    public synchronized Optional<CompoundContainer> container(@NotNull CompoundContainerId id) {
+        if (!enabled)
+            return Optional.empty();
+        final Entry e = entries().get(id.getDirectoryName());
+        if (e == null || !e.name.equals(id.getCompoundName()))
+            return Optional.empty();
+        try {
+            final CompoundContainer c = new CompoundContainer(id);
+            for (String[] r : e.results) {
+                final FormulaResultId fid = new FormulaResultId(id, MolecularFormula.parseOrThrow(r[0]), PrecursorIonType.getPrecursorIonType(r[1]));
+                c.getResults().put(fid.fileName(), fid);
+            }
+            return Optional.of(c);
+        } catch (RuntimeException ex) {
+            LOG.warn("Corrupted index entry of compound '" + id.getDirectoryName() + "'. Reading it from the project.", ex);
+            entries.remove(id.getDirectoryName());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Adds a container that has been read from the project (including all of its formula result ids).
+     */
+    public synchronized void put(@NotNull CompoundContainer container) {
+        if (!enabled)
+            return;
+        final String dir = container.getId().getDirectoryName();
+        entries();
+        append(PUT, dir, container.getId().getCompoundName(), "");
+        for (FormulaResultId fid : container.getResults().values())
+            append(ADD_RESULT, dir, fid.getPrecursorFormula().toString(), fid.getIonType().toString());
+    }
+
+    private synchronized void remove(CompoundContainerId id) {
+        append(REMOVE, id.getDirectoryName(), "", "");
+    }
+
+    private synchronized void append(byte op, String dir, String a, String b) {
+        if (!enabled)
+            return;
+        if (entries != null)
+            apply(entries, op, dir, a, b);
+        dirty = true;
+        try {
+            if (journal == null)
+                journal = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(journalFile(), StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeByte(op);
+                out.writeUTF(dir);
+                out.writeUTF(a);
+                out.writeUTF(b);
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            journal.writeInt(bytes.size());
+            bytes.writeTo(journal);
+            journal.writeInt((int) crc.getValue());
+            journal.flush();
+        } catch (IOException e) {
+            LOG.warn("Could not update compound index. Deleting it, compounds will be read from the project on next open.", e);
+            disable();
+        }
+    }
+
+    private static void apply(Map<String, Entry> entries, byte op, String dir, String a, String b) {
+        switch (op) {
+            case PUT:
+                entries.put(dir, new Entry(a));
+                break;
+            case REMOVE:
+                entries.remove(dir);
+                break;
+            case ADD_RESULT:
+                final Entry e = entries.get(dir);
+                if (e != null && e.results.stream().noneMatch(r -> r[0].equals(a) && r[1].equals(b)))
+                    e.results.add(new String[]{a, b});
+                break;
+            case REMOVE_RESULT:
+                final Entry r = entries.get(dir);
+                if (r != null)
+                    r.results.removeIf(x -> x[0].equals(a) && x[1].equals(b));
+                break;
+        }
+    }
+
+    private Path indexFile() {
+        return space.getRootPath().resolve(INDEX_FILE_NAME);
+    }
+
+    private Path journalFile() {
+        return space.getRootPath().resolve(JOURNAL_FILE_NAME);
+    }
+
+    private Map<String, Entry> entries() {
+        if (entries == null)
+            entries = load();
+        return entries;
+    }
+
+    private Map<String, Entry> load() {
+        final Map<String, Entry> loaded = new HashMap<>();
+        final Path index = indexFile();
+        if (Files.isRegularFile(index)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    LOG.info("Compound index has an unsupported version. Rebuilding it.");
+                    return loaded;
+                }
+                final int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    final String dir = in.readUTF();
+                    final Entry e = new Entry(in.readUTF());
+                    final int results = in.readInt();
+                    for (int j = 0; j < results; j++)
+                        e.results.add(new String[]{in.readUTF(), in.readUTF()});
+                    loaded.put(dir, e);
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not read compound index. Rebuilding it.", e);
+                loaded.clear();
+                return loaded;
+            }
+        }
+
+        final Path journal = journalFile();
+        if (Files.isRegularFile(journal)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)))) {
+                while (true) {
+                    final int length = in.readInt();
+                    if (length <= 0)
+                        break;
+                    final byte[] record = new byte[length];
+                    in.readFully(record);
+                    final CRC32 crc = new CRC32();
+                    crc.update(record);
+                    if (in.readInt() != (int) crc.getValue())
+                        break;
+                    try (DataInputStream r = new DataInputStream(new ByteArrayInputStream(record))) {
+                        apply(loaded, r.readByte(), r.readUTF(), r.readUTF(), r.readUTF());
+                    }
+                }
+            } catch (EOFException e) {
+                // incomplete last record, the change has not been completed
+            } catch (IOException e) {
+                LOG.warn("Could not read compound index journal. Rebuilding index.", e);
+                loaded.clear();
+            }
+            dirty = true;
+        }
+        return loaded;
+    }
+
+    /**
+     * Writes a new snapshot of all indexed compounds that still exist and clears the journal.
+     */
+    public synchronized void close() {
+        closeJournal();
+        if (!enabled || !dirty || entries == null && !Files.exists(journalFile()))
+            return;
+        final Map<String, Entry> current = entries();
+        final Set<String> existing = new HashSet<>(space.size());
+        space.iterator().forEachRemaining(id -> existing.add(id.getDirectoryName()));
+        current.keySet().retainAll(existing);
+
+        final Path file = indexFile();
+        final Path tmp = file.resolveSibling(INDEX_FILE_NAME + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(current.size());
+                for (Map.Entry<String, Entry> e : current.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeUTF(e.getValue().name);
+                    out.writeInt(e.getValue().results.size());
+                    for (String[] r : e.getValue().results) {
+                        out.writeUTF(r[0]);
+                        out.writeUTF(r[1]);
+                    }
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(journalFile());
+            dirty = false;
+        } catch (IOException e) {
+            LOG.warn("Could not write compound index. Compounds will be read from the project on next open.", e);
+            disable();
+        }
+    }
+
+    /**
+     * Called after the project has been moved, the journal is reopened at the new location.
+     */
+    public synchronized void relocate() {
+        closeJournal();
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close compound index journal.", e);
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Disables the index for the lifetime of this instance and deletes the snapshot and the journal. All compounds
+     * are read from the project. Needed if the project is modified by other processes (e.g. sharded execution),
+     * since they would share the journal and the first one to close would drop the records of the others.
+     */
+    public synchronized void disable() {
+        enabled = false;
+        closeJournal();
+        entries = new HashMap<>();
+        try {
+            Files.deleteIfExists(indexFile());
+            Files.deleteIfExists(journalFile());
+        } catch (IOException e) {
+            LOG.error("Could not delete compound index. It might be outdated.", e);
+        }
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final List<String[]> results = new ArrayList<>();
+
+        private Entry(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ms.annotations.DataAnnotation;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Compound level flag that marks results of tools that have been computed with a cheaper fallback configuration
+ * because the regular computation exceeded its time budget.
+ * Maps the tool name to a short description of the fallback configuration.
+ */
+public final class DegradedMode implements DataAnnotation {
+    public static final DegradedMode NONE = new DegradedMode(Map.of());
+
+    private final Map<String, String> tools;
+
+    DegradedMode(@NotNull Map<String, String> tools) {
+        this.tools = Collections.unmodifiableMap(new LinkedHashMap<>(tools));
+    }
+
+    public boolean isDegraded() {
+        return !tools.isEmpty();
+    }
+
+    public boolean isDegraded(@NotNull String toolName) {
+        return tools.containsKey(toolName);
+    }
+
+    public Optional<String> getFallback(@NotNull String toolName) {
+        return Optional.ofNullable(tools.get(toolName));
+    }
+
+    public Set<String> getTools() {
+        return tools.keySet();
+    }
+
+    Map<String, String> asMap() {
+        return tools;
+    }
+
+    public DegradedMode with(@NotNull String toolName, @NotNull String fallback) {
+        final Map<String, String> m = new LinkedHashMap<>(tools);
+        m.put(toolName, fallback);
+        return new DegradedMode(m);
+    }
+
+    public DegradedMode without(@NotNull String toolName) {
+        if (!isDegraded(toolName))
+            return this;
+        final Map<String, String> m = new LinkedHashMap<>(tools);
+        m.remove(toolName);
+        return m.isEmpty() ? NONE : new DegradedMode(m);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return tools.equals(((DegradedMode) o).tools);
+    }
+
+    @Override
+    public int hashCode() {
+        return tools.hashCode();
+    }
+}
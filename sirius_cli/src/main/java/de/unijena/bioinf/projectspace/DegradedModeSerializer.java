@@ -0,0 +1,67 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.projectspace.sirius.CompoundContainer;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+public class DegradedModeSerializer implements ComponentSerializer<CompoundContainerId, CompoundContainer, DegradedMode> {
+    public static final String DEGRADED_MODE = "degraded_mode.info";
+
+    @Override
+    public DegradedMode read(ProjectReader reader, CompoundContainerId id, CompoundContainer container) throws IOException {
+        if (!reader.exists(DEGRADED_MODE))
+            return null;
+        return reader.textFile(DEGRADED_MODE, r -> {
+            final Map<String, String> tools = new LinkedHashMap<>();
+            String line;
+            while ((line = r.readLine()) != null) {
+                final String[] cols = line.split("\t", 2);
+                if (!cols[0].isBlank())
+                    tools.put(cols[0], cols.length > 1 ? cols[1] : "");
+            }
+            return tools.isEmpty() ? DegradedMode.NONE : new DegradedMode(tools);
+        });
+    }
+
+    @Override
+    public void write(ProjectWriter writer, CompoundContainerId id, CompoundContainer container, Optional<DegradedMode> optDegraded) throws IOException {
+        if (optDegraded.map(DegradedMode::isDegraded).orElse(false)) {
+            writer.textFile(DEGRADED_MODE, w -> {
+                for (Map.Entry<String, String> e : optDegraded.get().asMap().entrySet()) {
+                    w.write(e.getKey() + "\t" + e.getValue());
+                    w.newLine();
+                }
+            });
+        } else {
+            delete(writer, id);
+        }
+    }
+
+    @Override
+    public void delete(ProjectWriter writer, CompoundContainerId id) throws IOException {
+        if (writer.exists(DEGRADED_MODE))
+            writer.delete(DEGRADED_MODE);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Copies (or moves) compound directories during a project import as IO jobs on the global job manager.
+ * At most {@link #IO_THREADS_KEY} transfers of one import are in flight, {@link #submit} blocks until a slot is free.
+ * <p>
+ * If enabled via {@link #HARD_LINKS_KEY} and source and target are on the same file store, files are hard linked
+ * instead of copied. Linked files share their content with the source project, so this is only safe if the
+ * source project is not modified anymore (e.g. intermediate projects of a merge). If linking fails the copier
+ * falls back to copying for the rest of the import.
+ */
+class ImportFileCopier {
+    public static final String IO_THREADS_KEY = "de.unijena.bioinf.sirius.project.import.ioThreads";
+    public static final String HARD_LINKS_KEY = "de.unijena.bioinf.sirius.project.import.hardLinks";
+
+    private final Semaphore inFlight;
+    private final boolean move;
+    private volatile boolean link;
+
+    ImportFileCopier(@NotNull Path sourceRoot, @NotNull Path targetRoot, boolean move) {
+        this(sourceRoot, targetRoot, move, PropertyManager.getInteger(IO_THREADS_KEY, null, 4), PropertyManager.getBoolean(HARD_LINKS_KEY, false));
+    }
+
+    ImportFileCopier(@NotNull Path sourceRoot, @NotNull Path targetRoot, boolean move, int threads, boolean hardLinks) {
+        this.move = move;
+        this.link = hardLinks && !move && sameFileStore(sourceRoot, targetRoot);
+        this.inFlight = new Semaphore(Math.max(1, threads));
+    }
+
+    private static boolean sameFileStore(Path sourceRoot, Path targetRoot) {
+        if (sourceRoot.getFileSystem() != FileSystems.getDefault() || targetRoot.getFileSystem() != FileSystems.getDefault())
+            return false;
+        try {
+            return Files.getFileStore(sourceRoot).equals(Files.getFileStore(targetRoot));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    boolean isLinking() {
+        return link;
+    }
+
+    BasicJJob<?> submit(@NotNull Runnable task) throws InterruptedException {
+        inFlight.acquire();
+        try {
+            return SiriusJobs.getGlobalJobManager().submitJob(new BasicJJob<Void>(JJob.JobType.IO) {
+                @Override
+                protected Void compute() {
+                    try {
+                        task.run();
+                    } finally {
+                        inFlight.release();
+                    }
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies, moves or links the given file or directory to the target location.
+     */
+    void transfer(@NotNull Path source, @NotNull Path target) throws IOException {
+        if (link && !move && tryLink(source, target))
+            return;
+        Files.createDirectories(target);
+        if (move)
+            FileUtils.moveFolder(source, target);
+        else
+            FileUtils.copyFolder(source, target);
+    }
+
+    private boolean tryLink(Path source, Path target) {
+        try {
+            if (Files.isDirectory(source)) {
+                Files.walkFileTree(source, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        Files.createLink(target.resolve(source.relativize(file).toString()), file);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } else {
+                Files.createDirectories(target.getParent());
+                Files.createLink(target, source);
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            if (link) {
+                link = false;
+                LoggerFactory.getLogger(ImportFileCopier.class).warn("Could not create hard links (" + e.getMessage() + "). Falling back to copying.");
+            }
+            return false;
+        }
+    }
+}
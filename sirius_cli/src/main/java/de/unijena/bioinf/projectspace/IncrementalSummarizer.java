@@ -0,0 +1,54 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * A {@link Summarizer} whose contribution to the project wide summary can be persisted per compound, so that
+ * {@link SummaryIndex} only has to re-read compounds that changed since the last summary.
+ * <p>
+ * Rows are opaque to the caller but must not contain line breaks.
+ * <p>
+ * {@link #addWriteCompoundSummary} and {@link #addCompoundRows} are called concurrently for different compounds,
+ * the project wide output must not depend on the call order.
+ */
+public interface IncrementalSummarizer extends Summarizer {
+
+    /**
+     * @return unique name of this summarizer type, used to store its rows
+     */
+    String getSummaryName();
+
+    /**
+     * @return rows collected by the last {@link #addWriteCompoundSummary} call of the current thread. Clears them.
+     */
+    List<String> takeCompoundRows();
+
+    /**
+     * Adds the persisted rows of an unchanged compound instead of calling {@link #addWriteCompoundSummary}.
+     * Either all rows are added or none.
+     *
+     * @throws IllegalArgumentException if the rows cannot be decoded (e.g. written by an older version)
+     */
+    void addCompoundRows(@NotNull CompoundContainerId id, List<String> rows);
+}
@@ -24,8 +24,12 @@ import de.unijena.bioinf.ChemistryBase.algorithm.scoring.SScored;
 import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
 import de.unijena.bioinf.ChemistryBase.ms.properties.FinalConfig;
+import de.unijena.bioinf.fingerid.blast.FBCandidateFingerprints;
+import de.unijena.bioinf.fingerid.blast.FBCandidates;
 import de.unijena.bioinf.ms.annotations.Annotated;
 import de.unijena.bioinf.ms.annotations.DataAnnotation;
+import de.unijena.bioinf.projectspace.fingerid.CandidatePageRequest;
+import de.unijena.bioinf.projectspace.fingerid.FBCandidatesPage;
 import de.unijena.bioinf.projectspace.sirius.CompoundContainer;
 import de.unijena.bioinf.projectspace.sirius.FormulaResult;
 import org.jetbrains.annotations.NotNull;
@@ -41,7 +45,8 @@ public class Instance {
 
     private CompoundContainer compoundCache;
 
-    protected Map<FormulaResultId, FormulaResult> formulaResultCache = new HashMap<>();
+    // write-behind: components that have been updated in the cache but not yet written to the project space
+    private final Map<FormulaResultId, Set<Class<? extends DataAnnotation>>> dirtyComponents = new HashMap<>();
 
     protected Instance(@NotNull CompoundContainer compoundContainer, @NotNull ProjectSpaceManager spaceManager) {
         this.compoundCache = compoundContainer;
@@ -65,6 +70,10 @@ public class Instance {
         return getProjectSpaceManager().projectSpace();
     }
 
+    private ResultCache resultCache() {
+        return spaceManager.getResultCache();
+    }
+
     public ProjectSpaceManager getProjectSpaceManager() {
         return spaceManager;
     }
@@ -102,22 +111,45 @@ public class Instance {
     @SafeVarargs
     public final synchronized Optional<FormulaResult> loadFormulaResult(FormulaResultId fid, Class<? extends DataAnnotation>... components) {
         try {
-            if (!formulaResultCache.containsKey(fid)) {
-                if (!compoundCache.contains(fid)) { // fid may have been deleted du to this thread waited for the lock
-                    LoggerFactory.getLogger(getClass()).debug("FID '" + fid + "' may have been deleted by another thread, or the cached project-space was bypassed.");
-                    return Optional.empty();
-                }
-                final FormulaResult fr = projectSpace().getFormulaResult(fid, components);
-                formulaResultCache.put(fid, fr);
-                return Optional.of(fr);
-            } else {
-                FormulaResult fr = formulaResultCache.get(fid);
-                final Class[] missing = Arrays.stream(components).filter(comp -> !fr.hasAnnotation(comp)).toArray(Class[]::new);
-                if (missing.length > 0)
-                    fr.setAnnotationsFrom(projectSpace().getFormulaResult(fid, missing));
+            if (!resultCache().contains(fid) && !compoundCache.contains(fid)) { // fid may have been deleted du to this thread waited for the lock
+                LoggerFactory.getLogger(getClass()).debug("FID '" + fid + "' may have been deleted by another thread, or the cached project-space was bypassed.");
+                return Optional.empty();
+            }
+            return Optional.of(loadCachedFormulaResult(fid, components));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Loads the given components from the {@link ResultCache} and everything that is not cached from the project space.
+     */
+    private FormulaResult loadCachedFormulaResult(FormulaResultId fid, Class<? extends DataAnnotation>[] components) throws IOException {
+        final FormulaResult cached = resultCache().get(fid, components);
+        if (cached == null)
+            return resultCache().put(projectSpace().getFormulaResult(fid, components), Arrays.asList(components));
+
+        final List<Class<? extends DataAnnotation>> missing = Arrays.stream(components).filter(comp -> !cached.hasAnnotation(comp)).distinct().collect(Collectors.toList());
+        if (!missing.isEmpty())
+            cached.setAnnotationsFrom(resultCache().put(projectSpace().getFormulaResult(fid, missing.toArray(Class[]::new)), missing));
+        return cached;
+    }
 
-                return Optional.of(fr);
+    /**
+     * Loads a page of the structure candidates of the given formula result. Pages are not cached, candidates that
+     * are already in the {@link ResultCache} (e.g. not yet written in write-behind mode) are paged in memory.
+     */
+    public final synchronized Optional<FBCandidatesPage> loadStructureCandidates(FormulaResultId fid, CandidatePageRequest request) {
+        try {
+            final FormulaResult cached = resultCache().peek(fid);
+            if (cached != null && cached.hasAnnotation(FBCandidates.class)
+                    && (!request.isWithFingerprints() || cached.hasAnnotation(FBCandidateFingerprints.class))) {
+                return Optional.of(request.apply(cached.getAnnotationOrThrow(FBCandidates.class).getResults(),
+                        cached.getAnnotation(FBCandidateFingerprints.class).map(FBCandidateFingerprints::getFingerprints).orElse(null)));
             }
+            if (!compoundCache.contains(fid))
+                return Optional.empty();
+            return FBCandidatesPage.read(projectSpace(), fid, request);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -154,33 +186,18 @@ public class Instance {
     @SafeVarargs
     public final synchronized List<? extends SScored<FormulaResult, ? extends FormulaScore>> loadFormulaResults(List<Class<? extends FormulaScore>> rankingScoreTypes, Class<? extends DataAnnotation>... components) {
         try {
-            if (!formulaResultCache.keySet().containsAll(compoundCache.getResults().values())) {
+            final Collection<FormulaResultId> ids = compoundCache.getResults().values();
+            if (!resultCache().containsAll(ids)) {
+                flushFormulaResults(); // cache is refreshed from the disk state
                 final List<? extends SScored<FormulaResult, ? extends FormulaScore>> returnList = projectSpace().getFormulaResultsOrderedBy(getID(), rankingScoreTypes, components);
-                formulaResultCache = returnList.stream().collect(Collectors.toMap(r -> r.getCandidate().getId(), SScored::getCandidate));
+                returnList.forEach(r -> resultCache().put(r.getCandidate(), Arrays.asList(components)));
                 return returnList;
             } else {
-                final Map<FormulaResultId, Class[]> toRefresh = new HashMap<>();
-                formulaResultCache.forEach((k, v) -> {
-                    Class[] missingComps = Arrays.stream(components).filter(c -> !v.hasAnnotation(c)).distinct().toArray(Class[]::new);
-                    if (missingComps.length > 0)
-                        toRefresh.put(k, missingComps);
-                });
-
-//                if (!toRefresh.isEmpty())
-//                    System.out.println("######## refreshing components of '" + toRefresh.keySet().toString() + "' #########");
-
-                //refresh annotations
-                toRefresh.forEach((k, v) -> {
-                    try {
-                        final FormulaResult fr = projectSpace().getFormulaResult(k, v);
-                        formulaResultCache.get(k).setAnnotationsFrom(fr);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                });
-
-                //return updated an sorted formula results
-                return FormulaScoring.rankBy(formulaResultCache.values(), rankingScoreTypes, true);
+                //load missing components and return updated an sorted formula results
+                final List<FormulaResult> results = new ArrayList<>(ids.size());
+                for (FormulaResultId id : ids)
+                    results.add(loadCachedFormulaResult(id, components));
+                return FormulaScoring.rankBy(results, rankingScoreTypes, true);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -201,19 +218,64 @@ public class Instance {
     @SafeVarargs
     public final synchronized void updateFormulaResult(FormulaResult result, Class<? extends DataAnnotation>... components) {
         try {
-            if (!formulaResultCache.containsKey(result.getId())) {
-                formulaResultCache.put(result.getId(), result);
+            if (!compoundCache.contains(result.getId()))
                 compoundCache.getResults().put(result.getId().fileName(), result.getId());
+            if (spaceManager.isWriteBehind()) // must not be evicted before written
+                resultCache().pin(result.getId(), Arrays.asList(components));
+            //refresh cache to actual object state
+            final FormulaResult rs = resultCache().put(result, Arrays.asList(components));
+            if (spaceManager.isWriteBehind()) {
+                dirtyComponents.computeIfAbsent(rs.getId(), k -> new LinkedHashSet<>()).addAll(Arrays.asList(components));
+                spaceManager.markDirty(this);
+                if (spaceManager.isWriteBehindMemoryPressure())
+                    flushFormulaResults();
+            } else {
+                projectSpace().updateFormulaResult(rs, components);
+                spaceManager.getCompletionIndex().updated(rs, Arrays.asList(components));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes all formula result components that have been buffered in write-behind mode to the project space
+     * (one write per formula result and component, no matter how often it has been updated). Afterwards, they
+     * can be evicted from the {@link ResultCache}. The writes are not committed, in durable mode the tool chain
+     * commits them when the instance is finished ({@link ProjectSpaceManager#commit()}).
+     *
+     * @see ProjectSpaceManager#isWriteBehind()
+     */
+    public synchronized void flushFormulaResults() {
+        if (dirtyComponents.isEmpty()) {
+            spaceManager.markClean(this);
+            return;
+        }
+        try {
+            final Iterator<Map.Entry<FormulaResultId, Set<Class<? extends DataAnnotation>>>> it = dirtyComponents.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<FormulaResultId, Set<Class<? extends DataAnnotation>>> e = it.next();
+                final Class[] comps = e.getValue().toArray(Class[]::new);
+                final FormulaResult rs = resultCache().peek(e.getKey());
+                if (rs != null && comps.length > 0) {
+                    projectSpace().updateFormulaResult(rs, comps);
+                    spaceManager.getCompletionIndex().updated(rs, e.getValue());
+                }
+                resultCache().unpin(e.getKey(), e.getValue());
+                it.remove();
             }
-            //refresh cache to actual object state?
-            final FormulaResult rs = formulaResultCache.get(result.getId());
-            updateAnnotations(rs, result, components);
-            projectSpace().updateFormulaResult(rs, components);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (dirtyComponents.isEmpty())
+                spaceManager.markClean(this);
         }
     }
 
+    public synchronized boolean hasUnflushedFormulaResults() {
+        return !dirtyComponents.isEmpty();
+    }
+
     public synchronized void updateExperiment() {
         updateCompound(compoundCache, Ms2Experiment.class);
     }
@@ -243,15 +305,25 @@ public class Instance {
             //update cache, load data from disc
             List<FormulaResultId> rid = List.copyOf(loadCompoundContainer().getResults().values());
             //remove components from cached formula results
-            formulaResultCache.forEach((k, v) -> List.of(components).forEach(v::removeAnnotation));
-            //remove components from ALL formula results on disc
-            rid.forEach(v -> {
-                try {
-                    projectSpace().deleteFromFormulaResult(v, components);
-                } catch (IOException e) {
-                    LoggerFactory.getLogger(getClass()).error("Error when deleting result '" + v + "' from '" + getID() + "'.");
-                }
+            dirtyComponents.values().forEach(v -> v.removeAll(List.of(components)));
+            rid.forEach(id -> {
+                resultCache().unpin(id, List.of(components));
+                resultCache().remove(id, List.of(components));
             });
+            //remove components from ALL formula results on disc, a bulk invalidation deletes whole component directories
+            final BulkInvalidation bulk = spaceManager.getBulkInvalidation();
+            final Class<? extends DataAnnotation>[] perFile = bulk != null ? bulk.deleteDirectories(getID(), components) : components;
+            if (perFile.length > 0) {
+                rid.forEach(v -> {
+                    try {
+                        projectSpace().deleteFromFormulaResult(v, perFile);
+                    } catch (IOException e) {
+                        LoggerFactory.getLogger(getClass()).error("Error when deleting result '" + v + "' from '" + getID() + "'.");
+                    }
+                });
+            }
+            if (bulk == null) // the bulk invalidation updates the completion index at once
+                spaceManager.getCompletionIndex().deleted(getID(), Arrays.asList(components));
         }
 
 
@@ -266,7 +338,8 @@ public class Instance {
         List<FormulaResultId> rid = List.copyOf(loadCompoundContainer().getResults().values());
 
         compoundCache.getResults().clear();
-        clearFormulaResultsCache();
+        dirtyComponents.clear();
+        rid.forEach(resultCache()::remove);
 
         rid.forEach(v -> {
             try {
@@ -275,6 +348,7 @@ public class Instance {
                 LoggerFactory.getLogger(getClass()).error("Error when deleting result '" + v + "' from '" + getID() + "'.");
             }
         });
+        spaceManager.getCompletionIndex().deletedAll(getID());
     }
 
     //remove from cache
@@ -292,8 +366,13 @@ public class Instance {
     }
 
 
+    /**
+     * Removes all formula results of this instance from the {@link ResultCache}. Not needed to limit memory usage
+     * (the cache is bounded), but to enforce reloading from the project space.
+     */
     public synchronized void clearFormulaResultsCache() {
-        formulaResultCache.clear();
+        flushFormulaResults();
+        compoundCache.getResults().values().forEach(resultCache()::remove);
     }
 
     @SafeVarargs
@@ -311,14 +390,15 @@ public class Instance {
 
     @SafeVarargs
     public final synchronized void clearFormulaResultCache(FormulaResultId id, Class<? extends DataAnnotation>... components) {
-        if (formulaResultCache.containsKey(id))
-            for (Class<? extends DataAnnotation> comp : components)
-                formulaResultCache.get(id).removeAnnotation(comp);
+        resultCache().remove(id, Arrays.asList(components)); // components that are not written yet are kept
     }
 
     public synchronized Optional<FormulaResult> newFormulaResultWithUniqueId(FTree tree) {
         Optional<FormulaResult> frOpt = projectSpace().newFormulaResultWithUniqueId(compoundCache, tree);
-        frOpt.ifPresent(fr -> formulaResultCache.put(fr.getId(), fr));
+        frOpt.ifPresent(fr -> {
+            resultCache().put(fr);
+            spaceManager.getCompletionIndex().set(getID(), CompletionIndex.Tool.SIRIUS, true);
+        });
         return frOpt;
     }
 
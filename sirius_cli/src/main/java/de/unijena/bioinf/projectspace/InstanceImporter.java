@@ -38,8 +38,10 @@ import de.unijena.bioinf.ms.rest.model.canopus.CanopusData;
 import de.unijena.bioinf.ms.rest.model.fingerid.FingerIdData;
 import de.unijena.bioinf.projectspace.canopus.CanopusDataProperty;
 import de.unijena.bioinf.projectspace.canopus.CanopusLocations;
+import de.unijena.bioinf.projectspace.container.ProjectContainer;
 import de.unijena.bioinf.projectspace.fingerid.FingerIdDataProperty;
 import de.unijena.bioinf.projectspace.fingerid.FingerIdLocations;
+import de.unijena.bioinf.projectspace.fingerid.FingerprintStore;
 import de.unijena.bioinf.projectspace.sirius.FormulaResult;
 import de.unijena.bioinf.projectspace.sirius.SiriusLocations;
 import de.unijena.bioinf.projectspace.summaries.SummaryLocations;
@@ -147,22 +149,22 @@ public class InstanceImporter {
             if (files == null || files.isEmpty())
                 return List.of();
 
-            final InstanceImportIteratorMS2Exp it = new MS2ExpInputIterator(files, expFilter, inputFiles.msInput.isIgnoreFormula(), inputFiles.msInput.isAllowMS1Only(), prog)
-                    .asInstanceIterator(importTarget, (c) -> cidFilter.test(c.getId()));
             final List<CompoundContainerId> ll = new ArrayList<>();
+            try (final MS2ExpInputIterator input = new MS2ExpInputIterator(files, expFilter, inputFiles.msInput.isIgnoreFormula(), inputFiles.msInput.isAllowMS1Only(), prog)) {
+                final InstanceImportIteratorMS2Exp it = input.asInstanceIterator(importTarget, (c) -> cidFilter.test(c.getId()));
 
-            if (prog.isDone())
-                prog.indeterminateProgress(); // just to show something in case only one small file
-            while (it.hasNext()) {
-                CompoundContainerId id = it.next().getID();
                 if (prog.isDone())
-                    prog.indeterminateProgress(id.getCompoundName());
-                else
-                    prog.progressMessage(id.getCompoundName());
-                ll.add(id);
+                    prog.indeterminateProgress(); // just to show something in case only one small file
+                while (it.hasNext()) {
+                    CompoundContainerId id = it.next().getID();
+                    if (prog.isDone())
+                        prog.indeterminateProgress(id.getCompoundName());
+                    else
+                        prog.progressMessage(id.getCompoundName());
+                    ll.add(id);
+                }
             }
 
-
             return ll;
         }
 
@@ -183,14 +185,17 @@ public class InstanceImporter {
         }
 
         public List<CompoundContainerId> importProject(@NotNull Path file) throws IOException {
-            if (file.toAbsolutePath().equals(importTarget.projectSpace().getLocation().toAbsolutePath())) {
+            if (file.toAbsolutePath().equals(ProjectContainer.locationOf(importTarget.projectSpace().getLocation()).toAbsolutePath())) {
                 LOG.warn("target location '" + importTarget.projectSpace().getLocation() + "' was also part of the INPUT and will be ignored!");
                 return List.of();
             }
 
             List<CompoundContainerId> l;
-            try (final SiriusProjectSpace ps = new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).openExistingProjectSpace(file)) {
+            final Path location = ProjectContainer.isContainer(file) ? ProjectContainer.openRoot(file, false) : file;
+            try (final SiriusProjectSpace ps = new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).openExistingProjectSpace(location)) {
                 l = InstanceImporter.importProject(ps, importTarget, cidFilter, move, updateFingerprintData, prog);
+            } finally {
+                ProjectContainer.closeFileSystem(location);
             }
             if (move)
                 FileUtils.deleteRecursively(file);
@@ -206,7 +211,7 @@ public class InstanceImporter {
     }
 
     // we do not exp level filter here since we want to prevent reading the spectrum file
-    // we do file system level copies where we can here
+    // we do file system level copies where we can here, in parallel as IO jobs on the global job manager (see ImportFileCopier)
     public static List<CompoundContainerId> importProject(
             @NotNull SiriusProjectSpace inputSpace, @NotNull ProjectSpaceManager importTarget,
             @NotNull Predicate<CompoundContainerId> cidFilter, boolean move, boolean updateFingerprintVersion, @Nullable JobProgressMerger prog) throws IOException {
@@ -226,6 +231,11 @@ public class InstanceImporter {
                             !p.getFileName().toString().equals(SummaryLocations.FORMULA_SUMMARY) &&
                             !p.getFileName().toString().equals(SummaryLocations.CANOPUS_SUMMARY) &&
                             !p.getFileName().toString().equals(SummaryLocations.MZTAB_SUMMARY) &&
+                            !p.getFileName().toString().equals(SummaryIndex.CHANGES_FILE_NAME) &&
+                            !p.getFileName().toString().equals(TopHitIndex.INDEX_FILE_NAME) &&
+                            !p.getFileName().toString().equals(CompatibilityRecord.FILE_NAME) &&
+                            !p.getFileName().toString().startsWith(CompoundIdIndex.INDEX_FILE_NAME) &&
+                            !p.getFileName().toString().startsWith(SummaryIndex.ROWS_FILE_PREFIX) &&
                             (resultsToSkip == null || DATA_FILES_TO_SKIP.test(p.getFileName().toString())) //skip data files if incompatible
             ).collect(Collectors.toList()));
 
@@ -239,53 +249,75 @@ public class InstanceImporter {
                 }
             }
 
+            if (resultsToSkip == null) { // stored candidate fingerprints are only valid for compatible data
+                try {
+                    FingerprintStore.importStore(inputSpace.getRootPath(), importTarget.projectSpace().getRootPath());
+                } catch (IOException e) {
+                    LOG.error("Could not Copy stored candidate fingerprints of `" + inputSpace.getLocation() + "` Structure candidates might be missing!", e);
+                }
+            }
+
 
             final Iterator<CompoundContainerId> psIter = inputSpace.filteredIterator(cidFilter);
-
+            final ImportFileCopier copier = new ImportFileCopier(inputSpace.getRootPath(), importTarget.projectSpace().getRootPath(), move);
+            if (copier.isLinking())
+                LOG.info("Source and target project are on the same file system. Importing '" + inputSpace.getLocation() + "' via hard links.");
 
             while (psIter.hasNext()) {
-                final CompoundContainerId sourceId = psIter.next();
-                // create compound
-                CompoundContainerId id = importTarget.projectSpace().newUniqueCompoundId(sourceId.getCompoundName(), (idx) -> importTarget.namingScheme.apply(idx, sourceId.getCompoundName())).orElseThrow();
-                id.setAllNonFinal(sourceId);
-                importTarget.projectSpace().updateCompoundContainerID(id);
-
-                final List<Path> files = FileUtils.listAndClose(inputSpace.getRootPath().resolve(sourceId.getDirectoryName()), l -> l
-                        .filter(p -> !p.getFileName().toString().equals(SiriusLocations.COMPOUND_INFO))
-                        .filter(it -> resultsToSkip == null || resultsToSkip.test(it.getFileName().toString()))
-                        .collect(Collectors.toList()));
-
-                for (Path s : files) {
-                    final Path t = importTarget.projectSpace().getRootPath().resolve(id.getDirectoryName()).resolve(s.getFileName().toString());
-                    try {
-                        Files.createDirectories(t);
-                        if (move)
-                            FileUtils.moveFolder(s, t);
-                        else
-                            FileUtils.copyFolder(s, t);
-                    } catch (IOException e) {
-                        LOG.error("Could not Copy instance `" + id.getDirectoryName() + "` to new location `" + t.toString() + "` Results might be missing!", e);
-                    }
+                // allocate ids of the next chunk in bulk, so that the workers only do file system operations
+                final List<CompoundContainerId> sourceIds = new ArrayList<>(IMPORT_CHUNK_SIZE);
+                final List<CompoundContainerId> targetIds = new ArrayList<>(IMPORT_CHUNK_SIZE);
+                while (psIter.hasNext() && sourceIds.size() < IMPORT_CHUNK_SIZE) {
+                    final CompoundContainerId sourceId = psIter.next();
+                    CompoundContainerId id = importTarget.projectSpace().newUniqueCompoundId(sourceId.getCompoundName(), (idx) -> importTarget.namingScheme.apply(idx, sourceId.getCompoundName())).orElseThrow();
+                    id.setAllNonFinal(sourceId);
+                    importTarget.projectSpace().updateCompoundContainerID(id);
+                    sourceIds.add(sourceId);
+                    targetIds.add(id);
                 }
-                if (resultsToSkip != null) {
-                    LoggerFactory.getLogger(InstanceImporter.class).info("Updating Compound score of '" + id.toString() + "' after deleting Fingerprint related results...");
-                    Instance inst = importTarget.newInstanceFromCompound(id);
-                    List<FormulaResult> l = inst.loadFormulaResults(FormulaScoring.class).stream().map(SScored::getCandidate)
-                            .filter(r -> r.getAnnotation(FormulaScoring.class).map(s -> (s.removeAnnotation(TopCSIScore.class) != null)
-                                    || (s.removeAnnotation(ConfidenceScore.class) != null)).orElse(false))
-                            .collect(Collectors.toList());
-
-                    l.forEach(r -> inst.updateFormulaResult(r, FormulaScoring.class));
-                    LoggerFactory.getLogger(InstanceImporter.class).info("Updating Compound score of '" + id.toString() + "' DONE!");
+
+                final List<BasicJJob<?>> transfers = new ArrayList<>(sourceIds.size());
+                try {
+                    for (int i = 0; i < sourceIds.size(); i++) {
+                        final CompoundContainerId sourceId = sourceIds.get(i);
+                        final CompoundContainerId id = targetIds.get(i);
+                        transfers.add(copier.submit(() -> transferCompound(inputSpace, importTarget, sourceId, id, resultsToSkip, copier)));
+                    }
+                } catch (InterruptedException e) {
+                    transfers.forEach(BasicJJob::cancel);
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Import of '" + inputSpace.getLocation() + "' has been interrupted.", e);
                 }
 
-                imported.add(id);
-                if (prog != null)
-                    prog.progressChanged(new JobProgressEvent(inputSpace.getRootPath(), 0, size, ++progress, id.toString()));
-                importTarget.projectSpace().fireCompoundCreated(id);
+                // finish compounds in input order
+                for (int i = 0; i < sourceIds.size(); i++) {
+                    final CompoundContainerId id = targetIds.get(i);
+                    try {
+                        transfers.get(i).awaitResult();
+                    } catch (ExecutionException e) {
+                        LOG.error("Could not Copy instance `" + id.getDirectoryName() + "` to new location. Results might be missing!", e.getCause());
+                    }
 
-                if (move)
-                    inputSpace.deleteCompound(sourceId);
+                    if (resultsToSkip != null) {
+                        LoggerFactory.getLogger(InstanceImporter.class).info("Updating Compound score of '" + id.toString() + "' after deleting Fingerprint related results...");
+                        Instance inst = importTarget.newInstanceFromCompound(id);
+                        List<FormulaResult> l = inst.loadFormulaResults(FormulaScoring.class).stream().map(SScored::getCandidate)
+                                .filter(r -> r.getAnnotation(FormulaScoring.class).map(s -> (s.removeAnnotation(TopCSIScore.class) != null)
+                                        || (s.removeAnnotation(ConfidenceScore.class) != null)).orElse(false))
+                                .collect(Collectors.toList());
+
+                        l.forEach(r -> inst.updateFormulaResult(r, FormulaScoring.class));
+                        LoggerFactory.getLogger(InstanceImporter.class).info("Updating Compound score of '" + id.toString() + "' DONE!");
+                    }
+
+                    imported.add(id);
+                    if (prog != null)
+                        prog.progressChanged(new JobProgressEvent(inputSpace.getRootPath(), 0, size, ++progress, id.toString()));
+                    importTarget.projectSpace().fireCompoundCreated(id);
+
+                    if (move)
+                        inputSpace.deleteCompound(sourceIds.get(i));
+                }
             }
         } else {
             LoggerFactory.getLogger(ProjectSpaceManager.class).warn(
@@ -302,6 +334,33 @@ public class InstanceImporter {
     }
 
 
+    // number of compounds whose ids are allocated at once before their files are transferred in parallel
+    private final static int IMPORT_CHUNK_SIZE = 256;
+
+    private static void transferCompound(@NotNull SiriusProjectSpace inputSpace, @NotNull ProjectSpaceManager importTarget,
+                                         @NotNull CompoundContainerId sourceId, @NotNull CompoundContainerId id,
+                                         @Nullable Predicate<String> resultsToSkip, @NotNull ImportFileCopier copier) {
+        final List<Path> files;
+        try {
+            files = FileUtils.listAndClose(inputSpace.getRootPath().resolve(sourceId.getDirectoryName()), l -> l
+                    .filter(p -> !p.getFileName().toString().equals(SiriusLocations.COMPOUND_INFO))
+                    .filter(it -> resultsToSkip == null || resultsToSkip.test(it.getFileName().toString()))
+                    .collect(Collectors.toList()));
+        } catch (IOException e) {
+            LOG.error("Could not list files of instance `" + sourceId.getDirectoryName() + "`. Results might be missing!", e);
+            return;
+        }
+
+        for (Path s : files) {
+            final Path t = importTarget.projectSpace().getRootPath().resolve(id.getDirectoryName()).resolve(s.getFileName().toString());
+            try {
+                copier.transfer(s, t);
+            } catch (IOException e) {
+                LOG.error("Could not Copy instance `" + id.getDirectoryName() + "` to new location `" + t.toString() + "` Results might be missing!", e);
+            }
+        }
+    }
+
     private final static Predicate<String> DATA_FILES_TO_SKIP = n -> !n.equals(FingerIdLocations.FINGERID_CLIENT_DATA) && !n.equals(FingerIdLocations.FINGERID_CLIENT_DATA_NEG)
             && !n.equals(CanopusLocations.CANOPUS_CLIENT_DATA) && !n.equals(CanopusLocations.CANOPUS_CLIENT_DATA_NEG);
 
@@ -322,7 +381,9 @@ public class InstanceImporter {
 
     public static Predicate<String> checkDataCompatibility(@NotNull Path toImportPath, @Nullable ProjectSpaceManager importTarget, NetUtils.InterruptionCheck interrupted) throws IOException {
         try {
-            if (FileUtils.isZipArchive(toImportPath))
+            if (ProjectContainer.isContainer(toImportPath))
+                toImportPath = ProjectContainer.openRoot(toImportPath, false);
+            else if (FileUtils.isZipArchive(toImportPath))
                 toImportPath = FileUtils.asZipFS(toImportPath, false);
             FingerIdData fdPos = checkAnReadData(toImportPath.resolve(FingerIdLocations.FINGERID_CLIENT_DATA), FingerIdData::read);
             FingerIdData fdNeg = checkAnReadData(toImportPath.resolve(FingerIdLocations.FINGERID_CLIENT_DATA_NEG), FingerIdData::read);
@@ -477,6 +538,13 @@ public class InstanceImporter {
                             try (SiriusProjectSpace ps = new ProjectSpaceIO(new ProjectSpaceConfiguration()).openExistingProjectSpace(g)) {
                                 inputFiles.projects.put(g, ps.size()); //todo estimate size
                             }
+                        } else if (ProjectContainer.isContainer(g)) {
+                            final Path root = ProjectContainer.openRoot(g, false);
+                            try (SiriusProjectSpace ps = new ProjectSpaceIO(new ProjectSpaceConfiguration()).openExistingProjectSpace(root)) {
+                                inputFiles.projects.put(g, ps.size());
+                            } finally {
+                                ProjectContainer.closeFileSystem(root);
+                            }
                         } else if (MsExperimentParser.isSupportedFileName(name)) {
                             inputFiles.msParserfiles.put(g, (int) Files.size(g));
                         } else {
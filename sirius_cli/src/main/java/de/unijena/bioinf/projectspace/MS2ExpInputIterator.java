@@ -20,36 +20,56 @@
 package de.unijena.bioinf.projectspace;
 
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
 import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
 import de.unijena.bioinf.ChemistryBase.ms.Spectrum;
 import de.unijena.bioinf.babelms.GenericParser;
 import de.unijena.bioinf.babelms.MsExperimentParser;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JJob;
 import de.unijena.bioinf.jjobs.JobProgressMerger;
 import de.unijena.bioinf.jjobs.ProgressInputStream;
+import de.unijena.bioinf.ms.properties.PropertyManager;
 import de.unijena.bioinf.sirius.Sirius;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.ArrayDeque;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
 import java.util.function.Predicate;
 
 /**
  * File based input Iterator that allows to iterate over the {@see de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment}s parsed from
  * multiple files (also different types) that are supported by the {@see de.unijena.bioinf.babelms.MsExperimentParser}.
+ * <p>
+ * With {@link #THREADS_KEY} &gt; 1 the files are parsed in parallel by IO jobs on the global job manager (one job per file,
+ * at most {@link #THREADS_KEY} at once). The parsed experiments are passed to the consuming thread via bounded queues,
+ * either in input order ({@link #ORDERED_KEY}) or in the order they have been parsed. Iterators must be closed
+ * (e.g. try-with-resources), since the jobs of an iteration that is not finished wait on the full queues until
+ * {@link #close()} is called.
  */
-public class MS2ExpInputIterator implements InstIterProvider {
+public class MS2ExpInputIterator implements InstIterProvider, AutoCloseable {
     private static final Logger LOG = LoggerFactory.getLogger(MS2ExpInputIterator.class);
+    public static final String THREADS_KEY = "de.unijena.bioinf.sirius.import.parserThreads";
+    public static final String ORDERED_KEY = "de.unijena.bioinf.sirius.import.ordered";
+    // experiments that are parsed ahead per file
+    private static final int QUEUE_SIZE = 64;
+    // marks the end of a file in the queues
+    private static final Ms2Experiment END = new MutableMs2Experiment();
+    // max time in ms between progress updates while waiting for the parsers
+    private static final long PROGRESS_INTERVAL = 200;
+
     private final ArrayDeque<Ms2Experiment> instances = new ArrayDeque<>();
     private final Iterator<Path> fileIter;
     private final Predicate<Ms2Experiment> filter;
-    private final MsExperimentParser parser = new MsExperimentParser();
+    private final BiFunction<Path, PropertyChangeListener, Iterator<Ms2Experiment>> parsers;
     private final boolean ignoreFormula;
     private final boolean allowMS1Only;
 
@@ -59,16 +79,57 @@ public class MS2ExpInputIterator implements InstIterProvider {
     Path currentFile;
     Iterator<Ms2Experiment> currentExperimentIterator;
 
+    // parallel parsing
+    private final boolean parallel;
+    @Nullable
+    private final BlockingQueue<Ms2Experiment> sharedQueue;
+    private final Deque<BlockingQueue<Ms2Experiment>> queues = new ArrayDeque<>();
+    private final List<BasicJJob<Void>> parserJobs = new ArrayList<>();
+    private final Queue<PropertyChangeEvent> progressEvents = new ConcurrentLinkedQueue<>();
+    private int openFiles = 0;
+    private volatile boolean closed = false;
+
     public MS2ExpInputIterator(Collection<Path> input, double maxMz, boolean ignoreFormula, boolean allowMS1Only) {
         this(input, (exp) -> exp.getIonMass() <= maxMz, ignoreFormula, allowMS1Only, null);
     }
 
     public MS2ExpInputIterator(Collection<Path> input, Predicate<Ms2Experiment> filter, boolean ignoreFormula, boolean allowMS1Only, @Nullable JobProgressMerger progress) {
+        this(input, filter, ignoreFormula, allowMS1Only, progress,
+                PropertyManager.getInteger(THREADS_KEY, null, 1), PropertyManager.getBoolean(ORDERED_KEY, null, true));
+    }
+
+    /**
+     * @param parserThreads number of files that are parsed in parallel, files are parsed on the calling thread if &lt;= 1
+     * @param ordered       return the experiments in input order instead of the order in which they have been parsed.
+     *                      The iterator has to be closed if parserThreads &gt; 1, see {@link #close()}.
+     */
+    public MS2ExpInputIterator(Collection<Path> input, Predicate<Ms2Experiment> filter, boolean ignoreFormula, boolean allowMS1Only, @Nullable JobProgressMerger progress, int parserThreads, boolean ordered) {
+        this(input, filter, ignoreFormula, allowMS1Only, progress, parserThreads, ordered, (file, listener) -> open(new MsExperimentParser(), file, listener));
+    }
+
+    /**
+     * @param parsers opens the experiment iterator of a file, reporting the read progress to the given listener (if not null).
+     *                Returns null if the file cannot be parsed.
+     */
+    MS2ExpInputIterator(Collection<Path> input, Predicate<Ms2Experiment> filter, boolean ignoreFormula, boolean allowMS1Only, @Nullable JobProgressMerger progress, int parserThreads, boolean ordered,
+                        BiFunction<Path, PropertyChangeListener, Iterator<Ms2Experiment>> parsers) {
         this.progress = progress;
-        this.fileIter = input.iterator();
         this.filter = filter;
         this.ignoreFormula = ignoreFormula;
         this.allowMS1Only = allowMS1Only;
+        this.parsers = parsers;
+        this.fileIter = input.iterator();
+
+        final int threads = Math.min(parserThreads, input.size());
+        this.parallel = threads > 1;
+        this.sharedQueue = parallel && !ordered ? new ArrayBlockingQueue<>(QUEUE_SIZE) : null;
+        if (parallel) {
+            if (sharedQueue != null)
+                queues.add(sharedQueue);
+            for (int i = 0; i < threads; i++)
+                submitNextFile();
+            LOG.info("Parsing " + input.size() + " input files with " + threads + " parallel jobs" + (ordered ? "." : " (unordered)."));
+        }
         currentExperimentIterator = fetchNext();
     }
 
@@ -83,74 +144,199 @@ public class MS2ExpInputIterator implements InstIterProvider {
         return instances.poll();
     }
 
+    /**
+     * Stops the parser jobs, if the iteration is not finished, and waits until they are done. Has to be called if the
+     * iteration is abandoned, otherwise the jobs keep waiting on the full queues.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        for (BasicJJob<Void> job : parserJobs) {
+            try {
+                job.awaitResult();
+            } catch (ExecutionException e) {
+                LOG.warn("Parser job of the import failed.", e.getCause());
+            }
+        }
+    }
+
     private Iterator<Ms2Experiment> fetchNext() {
-        start:
+        if (parallel) {
+            fetchNextParsed();
+            return null;
+        }
+
         while (true) {
             if (currentExperimentIterator == null || !currentExperimentIterator.hasNext()) {
                 if (fileIter.hasNext()) {
                     currentFile = fileIter.next();
-                    try {
-                        GenericParser<Ms2Experiment> p = parser.getParser(currentFile);
-                        if (p == null) {
-                            LOG.error("Unknown file format: '" + currentFile + "'");
-                        } else {
-                            if (progress == null) {
-                                currentExperimentIterator = p.parseFromPathIterator(currentFile);
-                            } else {
-                                ProgressInputStream s = new ProgressInputStream(currentFile);
-                                s.addPropertyChangeListener(progress);
-                                currentExperimentIterator = p.parseIterator(s, currentFile.toUri().toURL());
-                            }
-                        }
-                    } catch (IOException e) {
-                        LOG.error("Cannot parse file '" + currentFile + "':\n", e);
-                    }
+                    currentExperimentIterator = parsers.apply(currentFile, progress);
                 } else return null;
             } else {
-                try {
-                    MutableMs2Experiment experiment = Sirius.makeMutable(currentExperimentIterator.next());
-
-                    if (experiment.getPrecursorIonType() == null){
-                        LOG.warn("No ion or charge given for: " + experiment.getName() + " Try guessing charge from name.");
-                        final String name = (Optional.ofNullable(experiment.getName()).orElse("") +
-                                "_" +  Optional.ofNullable(experiment.getSourceString()).orElse("")).toLowerCase();
-
-                        if ((name.contains("negative") || name.contains("neg")) && (!name.contains("positive") && !name.contains("pos"))){
-                            LOG.info(experiment.getName() + ": Negative charge keyword found!");
-                            experiment.setPrecursorIonType(PrecursorIonType.unknownNegative());
-                        }else {
-                            LOG.info(experiment.getName() + ": Falling back to positive");
-                            experiment.setPrecursorIonType(PrecursorIonType.unknownPositive());
-                        }
-                    }
-
-                    if (experiment.getMs1Spectra().removeIf(Spectrum::isEmpty))
-                        LoggerFactory.getLogger(getClass()).warn("Removed at lease one empty MS1 spectrum from '" + experiment.getName() + "'.");
-                    if (experiment.getMs2Spectra().removeIf(Spectrum::isEmpty))
-                        LoggerFactory.getLogger(getClass()).warn("Removed at lease one empty MS/MS spectrum from '" + experiment.getName() + "'.");
-
-                    if (!allowMS1Only && experiment.getMs2Spectra().isEmpty()) {
-                        LOG.info("Skipping instance '" + experiment.getName() + "' because it does not contain any non Empty MS/MS.");
-                    } else if (!filter.test(experiment)) {
-                        LOG.info("Skipping instance '" + experiment.getName() + "' because it did not pass the filter setting.");
-                    } else if (experiment.getMolecularFormula() != null && experiment.getMolecularFormula().numberOf("D") > 0) {
-                        LOG.warn("Deuterium Formula found in: " + experiment.getName() + " Instance will be Ignored.");
-                    } else {
-
-
-                        if (experiment.getMs2Spectra().isEmpty()){
-
-                        }
-
-                        if (ignoreFormula)
-                            experiment.setMolecularFormula(null);
-                        instances.add(experiment);
-                        return currentExperimentIterator;
-                    }
-                } catch (Exception e) {
-                    LOG.error("Error while parsing compound! Skipping entry", e);
+                final MutableMs2Experiment experiment = prepare(currentExperimentIterator);
+                if (experiment != null) {
+                    instances.add(experiment);
+                    return currentExperimentIterator;
                 }
             }
         }
     }
+
+    //region parallel parsing
+    // the job manager starts the jobs in submission order, so the file that is consumed next is always being parsed
+    private void submitNextFile() {
+        if (closed || !fileIter.hasNext())
+            return;
+        final Path file = fileIter.next();
+        final BlockingQueue<Ms2Experiment> queue = sharedQueue != null ? sharedQueue : new ArrayBlockingQueue<>(QUEUE_SIZE);
+        if (sharedQueue == null)
+            queues.add(queue);
+        openFiles++;
+        parserJobs.add(SiriusJobs.getGlobalJobManager().submitJob(new BasicJJob<Void>(JJob.JobType.IO) {
+            @Override
+            protected Void compute() {
+                parseFile(file, queue);
+                return null;
+            }
+        }));
+    }
+
+    private void parseFile(Path file, BlockingQueue<Ms2Experiment> queue) {
+        try {
+            final Iterator<Ms2Experiment> it = parsers.apply(file, progress == null ? null : progressEvents::add);
+            while (it != null && it.hasNext()) {
+                final MutableMs2Experiment experiment = prepare(it);
+                if (experiment != null && !offer(queue, experiment))
+                    return; // closed, END is not needed anymore
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("Parsing of file '" + file + "' has been interrupted. Skipping remaining entries.");
+        } catch (Exception e) {
+            LOG.error("Error while parsing file '" + file + "'. Skipping remaining entries.", e);
+        } finally {
+            // the consumer waits for the end of every file, also if the parser failed with an Error
+            try {
+                offer(queue, END);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits until there is space in the queue, as long as the iterator is not closed.
+     *
+     * @return false if the iterator has been closed
+     */
+    private boolean offer(BlockingQueue<Ms2Experiment> queue, Ms2Experiment experiment) throws InterruptedException {
+        while (!closed) {
+            if (queue.offer(experiment, PROGRESS_INTERVAL, TimeUnit.MILLISECONDS))
+                return true;
+        }
+        return false;
+    }
+
+    private void fetchNextParsed() {
+        try {
+            while (openFiles > 0) {
+                final Ms2Experiment experiment = queues.getFirst().poll(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                forwardProgress();
+                if (experiment == null)
+                    continue;
+                if (experiment == END) {
+                    openFiles--;
+                    if (sharedQueue == null)
+                        queues.removeFirst();
+                    submitNextFile();
+                } else {
+                    instances.add(experiment);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("Import has been interrupted.");
+            Thread.currentThread().interrupt();
+        }
+        forwardProgress();
+        close();
+    }
+
+    // the progress merger is not thread safe, so the progress of the workers is reported by the consuming thread
+    private void forwardProgress() {
+        if (progress == null)
+            return;
+        PropertyChangeEvent evt;
+        while ((evt = progressEvents.poll()) != null)
+            progress.propertyChange(evt);
+    }
+    //endregion
+
+    @Nullable
+    private static Iterator<Ms2Experiment> open(MsExperimentParser parser, Path file, @Nullable PropertyChangeListener progress) {
+        try {
+            GenericParser<Ms2Experiment> p = parser.getParser(file);
+            if (p == null) {
+                LOG.error("Unknown file format: '" + file + "'");
+            } else {
+                if (progress == null) {
+                    return p.parseFromPathIterator(file);
+                } else {
+                    ProgressInputStream s = new ProgressInputStream(file);
+                    s.addPropertyChangeListener(progress);
+                    return p.parseIterator(s, file.toUri().toURL());
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Cannot parse file '" + file + "':\n", e);
+        }
+        return null;
+    }
+
+    /**
+     * Parses the next experiment of the given iterator and checks whether it should be imported.
+     *
+     * @return the experiment or null if it has been skipped
+     */
+    @Nullable
+    private MutableMs2Experiment prepare(Iterator<Ms2Experiment> experimentIterator) {
+        try {
+            MutableMs2Experiment experiment = Sirius.makeMutable(experimentIterator.next());
+
+            if (experiment.getPrecursorIonType() == null){
+                LOG.warn("No ion or charge given for: " + experiment.getName() + " Try guessing charge from name.");
+                final String name = (Optional.ofNullable(experiment.getName()).orElse("") +
+                        "_" +  Optional.ofNullable(experiment.getSourceString()).orElse("")).toLowerCase();
+
+                if ((name.contains("negative") || name.contains("neg")) && (!name.contains("positive") && !name.contains("pos"))){
+                    LOG.info(experiment.getName() + ": Negative charge keyword found!");
+                    experiment.setPrecursorIonType(PrecursorIonType.unknownNegative());
+                }else {
+                    LOG.info(experiment.getName() + ": Falling back to positive");
+                    experiment.setPrecursorIonType(PrecursorIonType.unknownPositive());
+                }
+            }
+
+            if (experiment.getMs1Spectra().removeIf(Spectrum::isEmpty))
+                LoggerFactory.getLogger(getClass()).warn("Removed at lease one empty MS1 spectrum from '" + experiment.getName() + "'.");
+            if (experiment.getMs2Spectra().removeIf(Spectrum::isEmpty))
+                LoggerFactory.getLogger(getClass()).warn("Removed at lease one empty MS/MS spectrum from '" + experiment.getName() + "'.");
+
+            if (!allowMS1Only && experiment.getMs2Spectra().isEmpty()) {
+                LOG.info("Skipping instance '" + experiment.getName() + "' because it does not contain any non Empty MS/MS.");
+            } else if (!filter.test(experiment)) {
+                LOG.info("Skipping instance '" + experiment.getName() + "' because it did not pass the filter setting.");
+            } else if (experiment.getMolecularFormula() != null && experiment.getMolecularFormula().numberOf("D") > 0) {
+                LOG.warn("Deuterium Formula found in: " + experiment.getName() + " Instance will be Ignored.");
+            } else {
+                if (ignoreFormula)
+                    experiment.setMolecularFormula(null);
+                return experiment;
+            }
+        } catch (Exception e) {
+            LOG.error("Error while parsing compound! Skipping entry", e);
+        }
+        return null;
+    }
 }
@@ -40,7 +40,9 @@ import de.unijena.bioinf.ms.rest.model.fingerid.FingerIdData;
 import de.unijena.bioinf.passatutto.Decoy;
 import de.unijena.bioinf.projectspace.canopus.CanopusDataProperty;
 import de.unijena.bioinf.projectspace.canopus.CanopusDataSerializer;
+import de.unijena.bioinf.projectspace.canopus.CanopusLocations;
 import de.unijena.bioinf.projectspace.canopus.CanopusSerializer;
+import de.unijena.bioinf.projectspace.container.ProjectContainer;
 import de.unijena.bioinf.projectspace.fingerid.*;
 import de.unijena.bioinf.projectspace.sirius.*;
 import de.unijena.bioinf.projectspace.summaries.CanopusSummaryWriter;
@@ -57,6 +59,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.BiFunction;
 import java.util.function.Function;
@@ -87,12 +93,14 @@ public class ProjectSpaceManager implements Iterable<Instance> {
         config.defineProjectSpaceProperty(FingerIdDataProperty.class, new FingerIdDataSerializer());
         config.registerComponent(FormulaResult.class, FingerprintResult.class, new FingerprintSerializer());
         config.registerComponent(FormulaResult.class, FBCandidates.class, new FBCandidatesSerializer());
-        config.registerComponent(FormulaResult.class, FBCandidateFingerprints.class, new FBCandidateFingerprintSerializer());
+        config.registerComponent(FormulaResult.class, FBCandidateFingerprints.class, new FBCandidateFingerprintStoreSerializer());
+        config.registerComponent(FormulaResult.class, FBCandidatesPage.class, new FBCandidatesPageSerializer());
         //canopus
         config.defineProjectSpaceProperty(CanopusDataProperty.class, new CanopusDataSerializer());
         config.registerComponent(FormulaResult.class, CanopusResult.class, new CanopusSerializer());
 
         config.registerComponent(CompoundContainer.class, LCMSPeakInformation.class, new LCMSPeakSerializer());
+        config.registerComponent(CompoundContainer.class, DegradedMode.class, new DegradedModeSerializer());
 
         return config;
     };
@@ -102,6 +110,22 @@ public class ProjectSpaceManager implements Iterable<Instance> {
     public final BiFunction<Integer, String, String> namingScheme;
     private Predicate<CompoundContainerId> compoundIdFilter;
     protected final InstanceFactory<?> instFac;
+    private final CompletionIndex completionIndex;
+    private final SummaryIndex summaryIndex;
+    private final TopHitIndex topHitIndex;
+    private final CompoundIdIndex compoundIdIndex;
+    private final ResultCache resultCache = new ResultCache();
+
+    public static final String WRITE_BEHIND_KEY = "de.unijena.bioinf.sirius.project.writeBehind";
+    public static final String WRITE_BEHIND_HEAP_LIMIT_KEY = "de.unijena.bioinf.sirius.project.writeBehind.heapLimit";
+    private final boolean writeBehind;
+    private final double writeBehindHeapLimit;
+    private final Set<Instance> dirtyInstances = ConcurrentHashMap.newKeySet();
+    @Nullable
+    private volatile BulkInvalidation bulkInvalidation = null;
+
+    public static final String DURABLE_KEY = "de.unijena.bioinf.sirius.project.durable";
+    private final boolean durable;
 
 
     public ProjectSpaceManager(@NotNull SiriusProjectSpace space, @NotNull InstanceFactory<?> factory, @Nullable Function<Ms2Experiment, String> formatter) {
@@ -116,12 +140,124 @@ public class ProjectSpaceManager implements Iterable<Instance> {
                 });
 
         this.namingScheme = (idx, name) -> idx + "_" + name;
+
+        this.completionIndex = new CompletionIndex(space.getLocation());
+        this.writeBehind = PropertyManager.getBoolean(WRITE_BEHIND_KEY, null, false);
+        this.writeBehindHeapLimit = Double.parseDouble(PropertyManager.getProperty(WRITE_BEHIND_HEAP_LIMIT_KEY, null, "0.8"));
+        this.durable = PropertyManager.getBoolean(DURABLE_KEY, null, false);
+        if (durable && ProjectContainer.locationOf(space.getRootPath()) == space.getRootPath())
+            LoggerFactory.getLogger(getClass()).warn("Durable writes are only supported for single file projects (" + ProjectContainer.EXTENSION + "). Writing without flushing to disk.");
+        space.defineCompoundListener().onDelete().thenDo(event -> completionIndex.invalidate(event.getAffectedID())).register();
+        space.defineFormulaResultListener().onDelete().thenDo(event -> completionIndex.invalidate(event.getAffectedID().getParentId())).register();
+        this.summaryIndex = new SummaryIndex(space);
+        this.topHitIndex = new TopHitIndex(space);
+        this.compoundIdIndex = new CompoundIdIndex(space);
+        this.compatibilityRecord = new CompatibilityRecord(space::getRootPath);
+        space.defineCompoundListener().onCreate().onUpdate().onDelete().thenDo(event -> summaryIndex.changed(event.getAffectedID())).register();
+        space.defineFormulaResultListener().onCreate().onUpdate().onDelete().thenDo(event -> summaryIndex.changed(event.getAffectedID().getParentId())).register();
+        space.addProjectSpaceListener(event -> {
+            if (event.equals(ProjectSpaceEvent.LOCATION_CHANGED)) {
+                completionIndex.relocate(space.getLocation());
+                summaryIndex.relocate();
+                compoundIdIndex.relocate();
+            }
+        });
     }
 
     public SiriusProjectSpace projectSpace() {
         return space;
     }
 
+    /**
+     * In write-behind mode formula result updates are only applied to the {@link Instance} cache and
+     * written in one pass when the instance is finished by the tool chain ({@link Instance#flushFormulaResults()}),
+     * when heap usage exceeds {@link #WRITE_BEHIND_HEAP_LIMIT_KEY} (fraction of max heap) or when the project is
+     * summarized or closed.
+     */
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    boolean isWriteBehindMemoryPressure() {
+        final Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory() > writeBehindHeapLimit * rt.maxMemory();
+    }
+
+    void markDirty(Instance instance) {
+        dirtyInstances.add(instance);
+    }
+
+    void markClean(Instance instance) {
+        dirtyInstances.remove(instance);
+    }
+
+    /**
+     * Writes the buffered formula results of all instances.
+     */
+    public void flushWriteBehind() {
+        for (Instance instance : List.copyOf(dirtyInstances))
+            instance.flushFormulaResults();
+    }
+
+    /**
+     * In durable mode ({@link #DURABLE_KEY}) all writes to the project so far are flushed to disk, so they survive
+     * a crash. Called when an instance has been finished, so the writes of concurrently finished instances share
+     * a single disk flush (group commit).
+     */
+    public void commit() {
+        if (!durable)
+            return;
+        try {
+            ProjectContainer.sync(space.getRootPath());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the bulk invalidation that is currently running or null
+     */
+    @Nullable
+    BulkInvalidation getBulkInvalidation() {
+        return bulkInvalidation;
+    }
+
+    void setBulkInvalidation(@Nullable BulkInvalidation bulkInvalidation) {
+        this.bulkInvalidation = bulkInvalidation;
+    }
+
+    /**
+     * @return Index that knows which tools have already computed results for which compound.
+     */
+    public CompletionIndex getCompletionIndex() {
+        return completionIndex;
+    }
+
+    /**
+     * @return Index that knows which compounds changed since the last summary, see {@link SummaryIndex#INCREMENTAL_KEY}.
+     */
+    public SummaryIndex getSummaryIndex() {
+        return summaryIndex;
+    }
+
+    /**
+     * @return Columnar index of the top hits of all compounds.
+     */
+    public TopHitIndex getTopHitIndex() {
+        return topHitIndex;
+    }
+
+    public CompoundIdIndex getCompoundIdIndex() {
+        return compoundIdIndex;
+    }
+
+    /**
+     * Formula results shared by all instances of this project, bounded by {@link ResultCache#HEAP_FRACTION_KEY}.
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
 
     @NotNull
     public Instance newCompoundWithUniqueId(Ms2Experiment inputExperiment) {
@@ -149,28 +285,39 @@ public class ProjectSpaceManager implements Iterable<Instance> {
         }
     }
 
+    /**
+     * Creates an instance from the {@link CompoundIdIndex} without reading the compound from the project. Compounds
+     * that are not indexed are read and added to the index.
+     */
+    public Instance newInstanceFromIndex(CompoundContainerId id) {
+        return compoundIdIndex.container(id).map(c -> (Instance) instFac.create(c, this)).orElseGet(() -> {
+            final Instance inst = newInstanceFromCompound(id);
+            compoundIdIndex.put(inst.loadCompoundContainer());
+            return inst;
+        });
+    }
+
     public <T extends ProjectSpaceProperty> Optional<T> getProjectSpaceProperty(Class<T> key) {
         return projectSpace().getProjectSpaceProperty(key);
     }
 
     public <T extends ProjectSpaceProperty> T setProjectSpaceProperty(Class<T> key, T value) {
+        final T old = projectSpace().setProjectSpaceProperty(key, value);
         if (PosNegFpProperty.class.isAssignableFrom(key))
-            synchronized (dataCompatibilityCache) {
-                dataCompatibilityCache.remove(key);
-                return projectSpace().setProjectSpaceProperty(key, value);
-            }
-        else
-            return projectSpace().setProjectSpaceProperty(key, value);
+            invalidateCompatibility(key);
+        return old;
     }
 
     public <T extends ProjectSpaceProperty> T deleteProjectSpaceProperty(Class<T> key) {
+        final T old = projectSpace().deleteProjectSpaceProperty(key);
         if (PosNegFpProperty.class.isAssignableFrom(key))
-            synchronized (dataCompatibilityCache) {
-                dataCompatibilityCache.remove(key);
-                return projectSpace().deleteProjectSpaceProperty(key);
-            }
-        else
-            return projectSpace().deleteProjectSpaceProperty(key);
+            invalidateCompatibility(key);
+        return old;
+    }
+
+    private void invalidateCompatibility(Class<? extends ProjectSpaceProperty> key) {
+        dataCompatibilityCache.remove(key);
+        compatibilityRecord.invalidate(key.getSimpleName());
     }
 
     @NotNull
@@ -222,11 +369,22 @@ public class ProjectSpaceManager implements Iterable<Instance> {
 
 
     public void updateSummaries(Summarizer... summarizers) throws IOException {
-        space.updateSummaries(summarizers);
+        flushWriteBehind();
+        summaryIndex.updateSummaries(PropertyManager.getBoolean(SummaryIndex.INCREMENTAL_KEY, null, false), summarizers);
     }
 
     public void close() throws IOException {
-        space.close();
+        flushWriteBehind();
+        completionIndex.close();
+        summaryIndex.close();
+        topHitIndex.close();
+        compoundIdIndex.close();
+        LoggerFactory.getLogger(getClass()).debug(resultCache.getStats().toString());
+        try {
+            space.close();
+        } finally {
+            ProjectContainer.closeFileSystem(space.getRootPath());
+        }
     }
 
     public static void writeIncompatibleLog() {
@@ -235,13 +393,29 @@ public class ProjectSpaceManager implements Iterable<Instance> {
                 " WARNING: This will delete all Fingerprint related results like CSI:FingerID and CANOPUS.");
     }
 
-    private final Map<Class<? extends PosNegFpProperty<?, ?>>, Boolean> dataCompatibilityCache = new HashMap<>();
+    // single flight: the first caller checks, all others wait for its result without holding a lock
+    private final ConcurrentHashMap<Class<? extends PosNegFpProperty<?, ?>>, CompletableFuture<Boolean>> dataCompatibilityCache = new ConcurrentHashMap<>();
+    private final CompatibilityRecord compatibilityRecord;
+    // result of a check that has been done by another process, see useDataCompatibilityOf
+    @Nullable
+    private volatile Boolean externalDataCompatibility = null;
+
+    /**
+     * Uses the result of a data compatibility check that has been done by another process working on the same
+     * project (the coordinator of a sharded execution), instead of checking and fixing the data files in this process.
+     * No data files and no {@link CompatibilityRecord} are written afterwards.
+     */
+    public void useDataCompatibilityOf(boolean compatible) {
+        externalDataCompatibility = compatible;
+    }
 
     /**
      * This checks whether the data files are compatible with them on the server. Since have had versions of the PS with
      * incomplete data files it also load missing files from the server but only if the existing one are compatible.
      * <p>
-     * Results are cached!
+     * Results are cached! Each property is checked by a single caller, concurrent callers wait for its result.
+     * Successful checks are persisted in the project ({@link CompatibilityRecord}) so that they are not repeated
+     * on the next start.
      *
      * @param interrupted  Tell the waiting job how it can check if it was interrupted
      * @return true if data files are  NOT incompatible with the Server version (compatible or not existent)
@@ -251,73 +425,141 @@ public class ProjectSpaceManager implements Iterable<Instance> {
     public boolean checkAndFixDataFiles(NetUtils.InterruptionCheck interrupted) throws TimeoutException, InterruptedException {
         if (PropertyManager.getBoolean("de.unijena.bioinf.sirius.project-check", null, false))
             return true;
+        final Boolean external = externalDataCompatibility;
+        if (external != null)
+            return external;
+
+        final boolean fd = checkCompatibility(FingerIdDataProperty.class, this::checkFingerIdData, interrupted,
+                FingerIdLocations.FINGERID_CLIENT_DATA, FingerIdLocations.FINGERID_CLIENT_DATA_NEG);
+        final boolean cd = checkCompatibility(CanopusDataProperty.class, this::checkCanopusData, interrupted,
+                CanopusLocations.CANOPUS_CLIENT_DATA, CanopusLocations.CANOPUS_CLIENT_DATA_NEG);
+        final boolean out = fd && cd;
+        if (!out) writeIncompatibleLog();
+        return out;
+    }
+
+    @FunctionalInterface
+    private interface CompatibilityCheck {
+        /**
+         * @return compatibility of the property or null if the project does not contain it
+         */
+        @Nullable Boolean check(NetUtils.InterruptionCheck interrupted) throws TimeoutException, InterruptedException;
+    }
+
+    private boolean checkCompatibility(Class<? extends PosNegFpProperty<?, ?>> key, CompatibilityCheck check,
+                                       NetUtils.InterruptionCheck interrupted, String... dataFiles) throws TimeoutException, InterruptedException {
+        while (true) {
+            final CompletableFuture<Boolean> created = new CompletableFuture<>();
+            final CompletableFuture<Boolean> running = dataCompatibilityCache.putIfAbsent(key, created);
+            if (running == null)
+                return runCompatibilityCheck(key, created, check, interrupted, dataFiles);
+
+            try {
+                return awaitCompatibility(running, interrupted);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof TimeoutException)
+                    throw (TimeoutException) e.getCause();
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                if (!(e.getCause() instanceof InterruptedException))
+                    throw new RuntimeException(e.getCause());
+                // the checking thread has been interrupted (e.g. canceled job), so we check ourselves
+            }
+        }
+    }
+
+    private boolean runCompatibilityCheck(Class<? extends PosNegFpProperty<?, ?>> key, CompletableFuture<Boolean> result, CompatibilityCheck check,
+                                          NetUtils.InterruptionCheck interrupted, String... dataFiles) throws TimeoutException, InterruptedException {
+        try {
+            if (compatibilityRecord.isCompatible(key.getSimpleName(), dataFiles)) {
+                result.complete(true);
+                return true;
+            }
+            final Boolean compatible = check.check(interrupted);
+            if (compatible == null) {
+                // nothing to check yet, the property may be added later
+                dataCompatibilityCache.remove(key, result);
+            } else if (compatible) {
+                compatibilityRecord.compatible(key.getSimpleName(), dataFiles);
+            }
+            final boolean out = compatible == null || compatible;
+            result.complete(out);
+            return out;
+        } catch (Exception e) {
+            dataCompatibilityCache.remove(key, result);
+            result.completeExceptionally(e);
+            LoggerFactory.getLogger(getClass()).warn("Could not retrieve FingerprintData from server! \n" + e.getMessage());
+            throw e;
+        }
+    }
 
-        synchronized (dataCompatibilityCache) {
+    private static boolean awaitCompatibility(CompletableFuture<Boolean> running, NetUtils.InterruptionCheck interrupted) throws ExecutionException, InterruptedException {
+        while (true) {
+            interrupted.check();
             try {
-                if (!dataCompatibilityCache.containsKey(FingerIdDataProperty.class)) {
-                    final FingerIdDataProperty fd = getProjectSpaceProperty(FingerIdDataProperty.class).orElse(null);
-                    if (fd != null) {
-                        dataCompatibilityCache.put(FingerIdDataProperty.class, true);
-                        final FingerIdData pos = NetUtils.tryAndWait(() -> ApplicationCore.WEB_API.getFingerIdData(PredictorType.CSI_FINGERID_POSITIVE), interrupted);
-                        final FingerIdData neg = NetUtils.tryAndWait(() -> ApplicationCore.WEB_API.getFingerIdData(PredictorType.CSI_FINGERID_NEGATIVE), interrupted);
-                        if (fd.getPositive() != null) {
-                            if (!fd.getPositive().compatible(pos)) {
-                                dataCompatibilityCache.put(FingerIdDataProperty.class, false);
-                            } else if (fd.getNegative() == null) {
-                                LoggerFactory.getLogger(InstanceImporter.class).warn("Negative FingerIdData missing in project. Try to repair by reloading from webservice.");
-                                setProjectSpaceProperty(FingerIdDataProperty.class,
-                                        new FingerIdDataProperty(fd.getPositive(), neg));
-                            }
-                        }
-
-                        if (fd.getNegative() != null) {
-                            if (!fd.getNegative().compatible(neg)) {
-                                dataCompatibilityCache.put(FingerIdDataProperty.class, false);
-                            } else if (fd.getPositive() == null) {
-                                LoggerFactory.getLogger(InstanceImporter.class).warn("Positive FingerIdData missing in project. Try to repair by reloading from webservice.");
-                                setProjectSpaceProperty(FingerIdDataProperty.class,
-                                        new FingerIdDataProperty(pos, fd.getNegative()));
-                            }
-                        }
-                    }
-                }
-
-                if (!dataCompatibilityCache.containsKey(CanopusDataProperty.class)) {
-                    final CanopusDataProperty cd = getProjectSpaceProperty(CanopusDataProperty.class).orElse(null);
-                    if (cd != null) {
-                        dataCompatibilityCache.put(CanopusDataProperty.class, true);
-                        final CanopusData pos = NetUtils.tryAndWait(() -> ApplicationCore.WEB_API.getCanopusdData(PredictorType.CSI_FINGERID_POSITIVE), interrupted);
-                        final CanopusData neg = NetUtils.tryAndWait(() -> ApplicationCore.WEB_API.getCanopusdData(PredictorType.CSI_FINGERID_NEGATIVE), interrupted);
-                        if (cd.getPositive() != null) {
-                            if (!cd.getPositive().compatible(pos)) {
-                                dataCompatibilityCache.put(CanopusDataProperty.class, false);
-                            } else if (cd.getNegative() == null) {
-                                LoggerFactory.getLogger(InstanceImporter.class).warn("Negative CanopusData missing in project. Try to repair by reloading from webservice.");
-                                setProjectSpaceProperty(CanopusDataProperty.class,
-                                        new CanopusDataProperty(cd.getPositive(), neg));
-                            }
-                        }
-
-                        if (cd.getNegative() != null) {
-                            if (!cd.getNegative().compatible(neg)) {
-                                dataCompatibilityCache.put(CanopusDataProperty.class, false);
-                            } else if (cd.getPositive() == null) {
-                                LoggerFactory.getLogger(InstanceImporter.class).warn("Positive CanopusData missing in project. Try to repair by reloading from webservice.");
-                                setProjectSpaceProperty(CanopusDataProperty.class,
-                                        new CanopusDataProperty(neg, cd.getNegative()));
-                            }
-                        }
-                    }
-                }
-                boolean out = dataCompatibilityCache.values().stream().reduce((a, b) -> a && b).orElse(true);
-                if (!out) writeIncompatibleLog();
-                return out;
-            } catch (Exception e) {
-                dataCompatibilityCache.clear();
-                LoggerFactory.getLogger(getClass()).warn("Could not retrieve FingerprintData from server! \n" + e.getMessage());
-                throw e;
+                return running.get(500, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ignored) {
+                // check for interruption of the waiting job
+            }
+        }
+    }
+
+    private Boolean checkFingerIdData(NetUtils.InterruptionCheck interrupted) throws TimeoutException, InterruptedException {
+        final FingerIdDataProperty fd = getProjectSpaceProperty(FingerIdDataProperty.class).orElse(null);
+        if (fd == null)
+            return null;
+        boolean compatible = true;
+        final FingerIdData pos = NetUtils.tryAndWait(() -> ApplicationCore.WEB_API.getFingerIdData(PredictorType.CSI_FINGERID_POSITIVE), interrupted);
+        final FingerIdData neg = NetUtils.tryAndWait(() -> ApplicationCore.WEB_API.getFingerIdData(PredictorType.CSI_FINGERID_NEGATIVE), interrupted);
+        if (fd.getPositive() != null) {
+            if (!fd.getPositive().compatible(pos)) {
+                compatible = false;
+            } else if (fd.getNegative() == null) {
+                LoggerFactory.getLogger(InstanceImporter.class).warn("Negative FingerIdData missing in project. Try to repair by reloading from webservice.");
+                projectSpace().setProjectSpaceProperty(FingerIdDataProperty.class,
+                        new FingerIdDataProperty(fd.getPositive(), neg));
+            }
+        }
+
+        if (fd.getNegative() != null) {
+            if (!fd.getNegative().compatible(neg)) {
+                compatible = false;
+            } else if (fd.getPositive() == null) {
+                LoggerFactory.getLogger(InstanceImporter.class).warn("Positive FingerIdData missing in project. Try to repair by reloading from webservice.");
+                projectSpace().setProjectSpaceProperty(FingerIdDataProperty.class,
+                        new FingerIdDataProperty(pos, fd.getNegative()));
+            }
+        }
+        return compatible;
+    }
+
+    private Boolean checkCanopusData(NetUtils.InterruptionCheck interrupted) throws TimeoutException, InterruptedException {
+        final CanopusDataProperty cd = getProjectSpaceProperty(CanopusDataProperty.class).orElse(null);
+        if (cd == null)
+            return null;
+        boolean compatible = true;
+        final CanopusData pos = NetUtils.tryAndWait(() -> ApplicationCore.WEB_API.getCanopusdData(PredictorType.CSI_FINGERID_POSITIVE), interrupted);
+        final CanopusData neg = NetUtils.tryAndWait(() -> ApplicationCore.WEB_API.getCanopusdData(PredictorType.CSI_FINGERID_NEGATIVE), interrupted);
+        if (cd.getPositive() != null) {
+            if (!cd.getPositive().compatible(pos)) {
+                compatible = false;
+            } else if (cd.getNegative() == null) {
+                LoggerFactory.getLogger(InstanceImporter.class).warn("Negative CanopusData missing in project. Try to repair by reloading from webservice.");
+                projectSpace().setProjectSpaceProperty(CanopusDataProperty.class,
+                        new CanopusDataProperty(cd.getPositive(), neg));
+            }
+        }
+
+        if (cd.getNegative() != null) {
+            if (!cd.getNegative().compatible(neg)) {
+                compatible = false;
+            } else if (cd.getPositive() == null) {
+                LoggerFactory.getLogger(InstanceImporter.class).warn("Positive CanopusData missing in project. Try to repair by reloading from webservice.");
+                projectSpace().setProjectSpaceProperty(CanopusDataProperty.class,
+                        new CanopusDataProperty(neg, cd.getNegative()));
             }
         }
+        return compatible;
     }
 
     //region static helper
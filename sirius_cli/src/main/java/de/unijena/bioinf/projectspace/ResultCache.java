@@ -0,0 +1,392 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.canopus.CanopusResult;
+import de.unijena.bioinf.fingerid.FingerprintResult;
+import de.unijena.bioinf.fingerid.blast.FBCandidateFingerprints;
+import de.unijena.bioinf.fingerid.blast.FBCandidates;
+import de.unijena.bioinf.ms.annotations.DataAnnotation;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.projectspace.sirius.FormulaResult;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Project wide cache of formula result components, shared by all {@link Instance}s of a {@link ProjectSpaceManager}.
+ * <p>
+ * Every component of a formula result is an own cache entry (formula result id + component class) with an
+ * estimated size in bytes. If the total size exceeds the limit, the least recently used entries are evicted.
+ * Components that are not yet written to the project space (write-behind, see {@link #pin}) are never evicted.
+ * <p>
+ * The cache is split into segments by formula result id. Every segment has its own lock, LRU order and an equal
+ * share of the size limit, so instances that run in parallel do not contend for one lock.
+ * <p>
+ * The cache only hands out copies of the cached formula results, so evicting a component never changes
+ * a formula result that is in use. The {@link FormulaScoring} is copied too, since the tools change scores in place.
+ * All other components are treated as immutable values.
+ */
+public class ResultCache {
+    public static final String HEAP_FRACTION_KEY = "de.unijena.bioinf.sirius.project.resultCache.heapFraction";
+
+    // size of an empty formula result (id, scores, maps)
+    private static final long BASE_WEIGHT = 512;
+    private static final int SEGMENTS = 16;
+
+    private final long maxWeight;
+    private final Segment[] segments;
+
+    public ResultCache() {
+        this((long) (Runtime.getRuntime().maxMemory()
+                * Double.parseDouble(PropertyManager.getProperty(HEAP_FRACTION_KEY, null, "0.25"))));
+    }
+
+    public ResultCache(long maxWeight) {
+        this(maxWeight, SEGMENTS);
+    }
+
+    ResultCache(long maxWeight, int segments) {
+        this.maxWeight = maxWeight;
+        this.segments = new Segment[Math.max(1, segments)];
+        final long segmentWeight = maxWeight / this.segments.length + (maxWeight % this.segments.length == 0 ? 0 : 1);
+        for (int i = 0; i < this.segments.length; i++)
+            this.segments[i] = new Segment(segmentWeight);
+    }
+
+    private Segment segment(@NotNull FormulaResultId id) {
+        final int h = id.hashCode();
+        return segments[((h ^ (h >>> 16)) & Integer.MAX_VALUE) % segments.length];
+    }
+
+    /**
+     * @return copy of the cached formula result containing the requested components that are cached or null if
+     * the formula result is not cached at all.
+     */
+    @SafeVarargs
+    @Nullable
+    public final FormulaResult get(@NotNull FormulaResultId id, Class<? extends DataAnnotation>... components) {
+        return segment(id).get(id, components);
+    }
+
+    /**
+     * Like {@link #get} but without access statistics and without affecting the eviction order.
+     */
+    @Nullable
+    public FormulaResult peek(@NotNull FormulaResultId id) {
+        return segment(id).peek(id);
+    }
+
+    public boolean contains(@NotNull FormulaResultId id) {
+        return segment(id).contains(id);
+    }
+
+    public boolean containsAll(@NotNull Collection<FormulaResultId> ids) {
+        for (FormulaResultId id : ids)
+            if (!contains(id))
+                return false;
+        return true;
+    }
+
+    /**
+     * Adds (or replaces) the given components of the formula result to the cache.
+     *
+     * @return copy of the cached formula result with all of its cached components
+     */
+    public FormulaResult put(@NotNull FormulaResult result, @NotNull Collection<Class<? extends DataAnnotation>> components) {
+        return segment(result.getId()).put(result, components);
+    }
+
+    /**
+     * Adds all components of the given formula result to the cache.
+     */
+    public FormulaResult put(@NotNull FormulaResult result) {
+        final List<Class<? extends DataAnnotation>> components = new ArrayList<>();
+        result.annotations().keySet().forEach(components::add);
+        return put(result, components);
+    }
+
+    /**
+     * Removes the given components from the cache, pinned components are kept.
+     */
+    public void remove(@NotNull FormulaResultId id, @NotNull Collection<Class<? extends DataAnnotation>> components) {
+        segment(id).remove(id, components);
+    }
+
+    /**
+     * Removes the formula result with all its components from the cache, including pinned components.
+     */
+    public void remove(@NotNull FormulaResultId id) {
+        segment(id).remove(id);
+    }
+
+    /**
+     * Prevents the given components from being evicted (e.g. because they are not yet written to disk).
+     */
+    public void pin(@NotNull FormulaResultId id, @NotNull Collection<Class<? extends DataAnnotation>> components) {
+        segment(id).pin(id, components);
+    }
+
+    public void unpin(@NotNull FormulaResultId id, @NotNull Collection<Class<? extends DataAnnotation>> components) {
+        segment(id).unpin(id, components);
+    }
+
+    public void clear() {
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+    public Stats getStats() {
+        long hits = 0, misses = 0, evictions = 0, weight = 0, results = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+                misses += segment.misses;
+                evictions += segment.evictions;
+                weight += segment.weight;
+                results += segment.results.size();
+            }
+        }
+        return new Stats(hits, misses, evictions, weight, maxWeight, results);
+    }
+
+    private static final class Segment {
+        private final long maxWeight;
+
+        private final Map<FormulaResultId, FormulaResult> results = new HashMap<>();
+        private final LinkedHashMap<Entry, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private final Map<FormulaResultId, Set<Class<? extends DataAnnotation>>> pinned = new HashMap<>();
+        private long weight = 0;
+
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+
+        private Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        @Nullable
+        synchronized FormulaResult get(@NotNull FormulaResultId id, Class<? extends DataAnnotation>[] components) {
+            final FormulaResult cached = results.get(id);
+            if (cached == null) {
+                misses += Math.max(1, components.length);
+                return null;
+            }
+            entries.get(new Entry(id, FormulaResult.class)); // access
+            for (Class<? extends DataAnnotation> comp : components) {
+                if (cached.hasAnnotation(comp)) {
+                    hits++;
+                    entries.get(new Entry(id, comp));
+                } else {
+                    misses++;
+                }
+            }
+            return copy(cached);
+        }
+
+        @Nullable
+        synchronized FormulaResult peek(@NotNull FormulaResultId id) {
+            final FormulaResult cached = results.get(id);
+            return cached == null ? null : copy(cached);
+        }
+
+        synchronized boolean contains(@NotNull FormulaResultId id) {
+            return results.containsKey(id);
+        }
+
+        synchronized FormulaResult put(@NotNull FormulaResult result, @NotNull Collection<Class<? extends DataAnnotation>> components) {
+            final FormulaResultId id = result.getId();
+            final FormulaResult cached = results.computeIfAbsent(id, k -> {
+                add(new Entry(k, FormulaResult.class), BASE_WEIGHT);
+                return new FormulaResult(k);
+            });
+            for (Class<? extends DataAnnotation> comp : components) {
+                result.getAnnotation(comp).ifPresent(value -> {
+                    setAnnotation(cached, comp, value instanceof FormulaScoring ? copy((FormulaScoring) value) : value);
+                    add(new Entry(id, comp), estimateWeight(value));
+                });
+            }
+            final FormulaResult copy = copy(cached);
+            evict();
+            return copy;
+        }
+
+        synchronized void remove(@NotNull FormulaResultId id, @NotNull Collection<Class<? extends DataAnnotation>> components) {
+            final FormulaResult cached = results.get(id);
+            if (cached == null)
+                return;
+            final Set<Class<? extends DataAnnotation>> pins = pinned.getOrDefault(id, Set.of());
+            for (Class<? extends DataAnnotation> comp : components) {
+                if (!pins.contains(comp)) {
+                    cached.removeAnnotation(comp);
+                    removeEntry(new Entry(id, comp));
+                }
+            }
+        }
+
+        synchronized void remove(@NotNull FormulaResultId id) {
+            final FormulaResult cached = results.remove(id);
+            pinned.remove(id);
+            if (cached == null)
+                return;
+            removeEntry(new Entry(id, FormulaResult.class));
+            cached.annotations().keySet().forEach(comp -> removeEntry(new Entry(id, comp)));
+        }
+
+        synchronized void pin(@NotNull FormulaResultId id, @NotNull Collection<Class<? extends DataAnnotation>> components) {
+            pinned.computeIfAbsent(id, k -> new HashSet<>()).addAll(components);
+        }
+
+        synchronized void unpin(@NotNull FormulaResultId id, @NotNull Collection<Class<? extends DataAnnotation>> components) {
+            final Set<Class<? extends DataAnnotation>> pins = pinned.get(id);
+            if (pins != null) {
+                pins.removeAll(components);
+                if (pins.isEmpty())
+                    pinned.remove(id);
+            }
+            evict();
+        }
+
+        synchronized void clear() {
+            results.keySet().removeIf(id -> !pinned.containsKey(id));
+            entries.keySet().removeIf(e -> !pinned.containsKey(e.id));
+            weight = entries.values().stream().mapToLong(Long::longValue).sum();
+        }
+
+        private void add(Entry entry, long entryWeight) {
+            final Long old = entries.put(entry, entryWeight);
+            weight += entryWeight - (old == null ? 0 : old);
+        }
+
+        private void removeEntry(Entry entry) {
+            final Long old = entries.remove(entry);
+            if (old != null)
+                weight -= old;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void evict() {
+            if (weight <= maxWeight)
+                return;
+            final Iterator<Map.Entry<Entry, Long>> it = entries.entrySet().iterator();
+            final List<FormulaResultId> emptied = new ArrayList<>();
+            while (weight > maxWeight && it.hasNext()) {
+                final Map.Entry<Entry, Long> e = it.next();
+                final Entry key = e.getKey();
+                final Set<Class<? extends DataAnnotation>> pins = pinned.get(key.id);
+                if (pins != null && (key.component == FormulaResult.class || pins.contains(key.component)))
+                    continue;
+                it.remove();
+                weight -= e.getValue();
+                evictions++;
+                if (key.component == FormulaResult.class)
+                    emptied.add(key.id);
+                else
+                    results.get(key.id).removeAnnotation((Class<? extends DataAnnotation>) key.component);
+            }
+            // the formula result itself has been evicted, so all its remaining components go too
+            emptied.forEach(this::remove);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends DataAnnotation> void setAnnotation(FormulaResult target, Class<T> comp, Object value) {
+        target.setAnnotation(comp, (T) value);
+    }
+
+    private static FormulaResult copy(FormulaResult cached) {
+        final FormulaResult copy = new FormulaResult(cached.getId());
+        copy.setAnnotationsFrom(cached);
+        cached.getAnnotation(FormulaScoring.class).ifPresent(scoring -> copy.setAnnotation(FormulaScoring.class, copy(scoring)));
+        return copy;
+    }
+
+    private static FormulaScoring copy(FormulaScoring scoring) {
+        final FormulaScoring copy = new FormulaScoring();
+        copy.setAnnotationsFrom(scoring);
+        return copy;
+    }
+
+    /**
+     * Rough estimate of the heap size of a formula result component in bytes.
+     */
+    static long estimateWeight(Object component) {
+        if (component instanceof FTree)
+            return 1024 + 1024L * ((FTree) component).numberOfVertices();
+        if (component instanceof FBCandidates)
+            return 256 + 512L * ((FBCandidates) component).getResults().size();
+        if (component instanceof FBCandidateFingerprints)
+            return 256 + 1024L * ((FBCandidateFingerprints) component).getFingerprints().size();
+        if (component instanceof FingerprintResult)
+            return 64 * 1024;
+        if (component instanceof CanopusResult)
+            return 32 * 1024;
+        return 1024;
+    }
+
+    public static final class Stats {
+        public final long hits, misses, evictions, weight, maxWeight, results;
+
+        private Stats(long hits, long misses, long evictions, long weight, long maxWeight, long results) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.weight = weight;
+            this.maxWeight = maxWeight;
+            this.results = results;
+        }
+
+        public double hitRate() {
+            return hits + misses == 0 ? 0d : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "Result cache: %d formula results, %.1f/%.1f MB, hit rate %.1f%% (%d hits, %d misses), %d evictions",
+                    results, weight / 1e6, maxWeight / 1e6, 100 * hitRate(), hits, misses, evictions);
+        }
+    }
+
+    private static final class Entry {
+        private final FormulaResultId id;
+        private final Class<?> component;
+
+        private Entry(FormulaResultId id, Class<?> component) {
+            this.id = id;
+            this.component = component;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Entry)) return false;
+            final Entry entry = (Entry) o;
+            return id.equals(entry.id) && component.equals(entry.component);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id.hashCode() + component.hashCode();
+        }
+    }
+}
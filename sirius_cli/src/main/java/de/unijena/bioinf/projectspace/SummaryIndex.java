@@ -0,0 +1,430 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.FormulaScore;
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.SScored;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.BasicMasterJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bioinf.ms.annotations.DataAnnotation;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.projectspace.sirius.CompoundContainer;
+import de.unijena.bioinf.projectspace.sirius.FormulaResult;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Incremental project summaries. Records which compounds changed since the last summary (append-only change log)
+ * and persists the project wide rows of every {@link IncrementalSummarizer} per compound. An incremental update
+ * only re-reads changed compounds (and compounds without persisted rows), the project wide tables are rebuilt from
+ * the persisted rows of all other compounds.
+ * <p>
+ * Summarizers that are not incremental (e.g. mzTab-M) would have to read the whole project, so they are skipped by
+ * incremental updates and only written by full summaries. Without cached rows ({@link #INCREMENTAL_KEY} not set)
+ * all compounds are re-read, but still in parallel, and changes are not journaled.
+ */
+public class SummaryIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(SummaryIndex.class);
+
+    public static final String INCREMENTAL_KEY = "de.unijena.bioinf.sirius.project.summaries.incremental";
+    public static final String CHANGES_FILE_NAME = ".summary_changes";
+    public static final String ROWS_FILE_PREFIX = ".summary_rows_";
+    public static final String THREADS_KEY = "de.unijena.bioinf.sirius.project.summaries.threads";
+
+    // marks all compounds as changed
+    private static final String ALL = "*";
+
+    private final SiriusProjectSpace space;
+    private final Set<String> changed = new HashSet<>();
+    private int invalidations = 0;
+    private boolean allChanged = false;
+    private BufferedWriter writer = null;
+    private boolean enabled = true;
+    // changes are only journaled in incremental mode
+    private final boolean journaled;
+
+    SummaryIndex(@NotNull SiriusProjectSpace space) {
+        this.space = space;
+        this.journaled = PropertyManager.getBoolean(INCREMENTAL_KEY, null, false);
+        if (journaled) {
+            load();
+            openWriter();
+        }
+    }
+
+    synchronized void changed(@NotNull CompoundContainerId id) {
+        if (changed.add(id.getDirectoryName()) && !allChanged)
+            append(id.getDirectoryName());
+    }
+
+    /**
+     * The next summary will re-read all compounds. Needed if the project is modified by other processes.
+     */
+    public synchronized void invalidateAll() {
+        invalidations++;
+        if (!allChanged) {
+            allChanged = true;
+            append(ALL);
+        }
+    }
+
+    synchronized void relocate() {
+        closeWriter();
+        if (!enabled || !journaled)
+            return;
+        rewriteChanges();
+        openWriter();
+    }
+
+    synchronized void close() {
+        closeWriter();
+    }
+
+    /**
+     * Writes the summaries. {@link IncrementalSummarizer}s are executed in parallel by jobs on the global job manager
+     * (at most 2 * {@link #THREADS_KEY} compounds in flight), all other summarizers are executed serially by the
+     * project space.
+     *
+     * @param useCachedRows only re-read compounds that changed since the last incremental summary
+     *                      and store the rows for the next incremental summary. Summarizers that are not
+     *                      incremental are skipped.
+     */
+    public void updateSummaries(boolean useCachedRows, @NotNull Summarizer... summarizers) throws IOException {
+        final List<IncrementalSummarizer> incremental = new ArrayList<>();
+        final List<Summarizer> full = new ArrayList<>();
+        for (Summarizer s : summarizers) {
+            if (s instanceof IncrementalSummarizer)
+                incremental.add((IncrementalSummarizer) s);
+            else
+                full.add(s);
+        }
+
+        if (!full.isEmpty()) {
+            if (useCachedRows)
+                LOG.info(full.stream().map(s -> s.getClass().getSimpleName()).collect(Collectors.joining(", ")) + " cannot be updated incrementally. Skipping, they are only written by full summaries.");
+            else
+                space.updateSummaries(full.toArray(Summarizer[]::new));
+        }
+        if (incremental.isEmpty())
+            return;
+
+        final Set<String> changedSnapshot;
+        final boolean all, persist;
+        final int invalidationsSnapshot;
+        synchronized (this) {
+            changedSnapshot = new HashSet<>(changed);
+            persist = useCachedRows && enabled && journaled;
+            all = allChanged || !persist;
+            invalidationsSnapshot = invalidations;
+        }
+
+        final Path root = space.getRootPath();
+        final List<Map<String, List<String>>> oldRows = new ArrayList<>(incremental.size());
+        final List<Map<String, List<String>>> newRows = new ArrayList<>(incremental.size());
+        for (IncrementalSummarizer s : incremental) {
+            oldRows.add(all ? Map.of() : readRows(rowsFile(root, s)));
+            newRows.add(new LinkedHashMap<>());
+        }
+
+        final int threads = Math.max(1, PropertyManager.getInteger(THREADS_KEY, null, SiriusJobs.getCPUThreads()));
+        final AtomicInteger reread = new AtomicInteger(0);
+        final BasicMasterJJob<Integer> job = new BasicMasterJJob<>(JJob.JobType.SCHEDULER) {
+            @Override
+            protected Integer compute() throws Exception {
+                // compounds are summarized concurrently but collected in project order, the window bounds the memory.
+                final Deque<JJob<CompoundRows>> window = new ArrayDeque<>();
+                int total = 0;
+                final Iterator<CompoundContainerId> it = space.iterator();
+                while (it.hasNext()) {
+                    checkForInterruption();
+                    final CompoundContainerId id = it.next();
+                    final List<Map<String, List<String>>> cached = changedSnapshot.contains(id.getDirectoryName()) ? null : oldRows;
+                    total++;
+                    window.add(submitSubJob(new BasicJJob<CompoundRows>(JobType.CPU) {
+                        @Override
+                        protected CompoundRows compute() throws Exception {
+                            return summarizeCompound(id, incremental, cached, reread);
+                        }
+                    }));
+                    if (window.size() >= 2 * threads)
+                        collect(window.poll(), newRows);
+                }
+                while (!window.isEmpty())
+                    collect(window.poll(), newRows);
+                return total;
+            }
+        };
+        final int total;
+        try {
+            total = SiriusJobs.getGlobalJobManager().submitJob(job).awaitResult();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Error when writing summaries.", e.getCause());
+        }
+
+        final ProjectWriter projectWriter = new FileBasedProjectSpaceWriter(root, space::getProjectSpaceProperty);
+        for (int i = 0; i < incremental.size(); i++) {
+            incremental.get(i).writeProjectSpaceSummary(projectWriter);
+            if (persist)
+                writeRows(rowsFile(root, incremental.get(i)), newRows.get(i));
+        }
+        LOG.info("Summary: re-read " + reread.get() + " of " + total + " compounds.");
+
+        if (!persist)
+            return;
+        synchronized (this) {
+            changed.removeAll(changedSnapshot);
+            if (invalidations == invalidationsSnapshot)
+                allChanged = false;
+            if (enabled) {
+                closeWriter();
+                rewriteChanges();
+                openWriter();
+            }
+        }
+    }
+
+    private CompoundRows summarizeCompound(CompoundContainerId id, List<IncrementalSummarizer> incremental, @Nullable List<Map<String, List<String>>> oldRows, AtomicInteger reread) throws IOException {
+        final String dir = id.getDirectoryName();
+        final List<List<String>> rows = new ArrayList<>(incremental.size());
+        final List<Integer> toRead = new ArrayList<>(incremental.size());
+        for (int i = 0; i < incremental.size(); i++) {
+            final List<String> cached = oldRows != null ? oldRows.get(i).get(dir) : null;
+            rows.add(cached);
+            if (cached != null) {
+                try {
+                    incremental.get(i).addCompoundRows(id, cached);
+                    continue;
+                } catch (IllegalArgumentException e) {
+                    LOG.debug("Could not restore summary rows of '" + dir + "'. Re-reading compound. " + e.getMessage());
+                }
+            }
+            toRead.add(i);
+        }
+
+        if (!toRead.isEmpty()) {
+            reread.incrementAndGet();
+            final Class<? extends DataAnnotation>[] components = toRead.stream()
+                    .flatMap(i -> incremental.get(i).requiredFormulaResultAnnotations().stream())
+                    .distinct().toArray(Class[]::new);
+            final CompoundContainer compound = space.getCompound(id);
+            final List<? extends SScored<FormulaResult, ? extends FormulaScore>> results =
+                    space.getFormulaResultsOrderedBy(id, id.getRankingScoreTypes(), components);
+            // writers are stateful (current directory), so every compound gets its own
+            final ProjectWriter projectWriter = new FileBasedProjectSpaceWriter(space.getRootPath(), space::getProjectSpaceProperty);
+            for (int i : toRead) {
+                final IncrementalSummarizer s = incremental.get(i);
+                s.addWriteCompoundSummary(projectWriter, compound, results);
+                rows.set(i, s.takeCompoundRows());
+            }
+        }
+        return new CompoundRows(dir, rows);
+    }
+
+    private static void collect(JJob<CompoundRows> job, List<Map<String, List<String>>> newRows) throws IOException {
+        try {
+            final CompoundRows rows = job.awaitResult();
+            for (int i = 0; i < newRows.size(); i++)
+                newRows.get(i).put(rows.dir, rows.rows.get(i));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Error when writing summaries.", e.getCause());
+        }
+    }
+
+    private static final class CompoundRows {
+        private final String dir;
+        private final List<List<String>> rows;
+
+        private CompoundRows(String dir, List<List<String>> rows) {
+            this.dir = dir;
+            this.rows = rows;
+        }
+    }
+
+    private static Path rowsFile(Path root, IncrementalSummarizer s) {
+        return root.resolve(ROWS_FILE_PREFIX + s.getSummaryName());
+    }
+
+    /**
+     * Format: one line per row "dir\trow", compounds without rows are stored as a single "dir" line.
+     */
+    private static Map<String, List<String>> readRows(Path file) {
+        final Map<String, List<String>> rows = new HashMap<>();
+        if (!Files.exists(file))
+            return rows;
+        try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                final int tab = line.indexOf('\t');
+                if (tab < 0)
+                    rows.computeIfAbsent(line, k -> new ArrayList<>());
+                else
+                    rows.computeIfAbsent(line.substring(0, tab), k -> new ArrayList<>()).add(line.substring(tab + 1));
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read summary rows '" + file + "'. Affected compounds will be re-read. " + e.getMessage());
+            rows.clear();
+        }
+        return rows;
+    }
+
+    private static void writeRows(Path file, Map<String, List<String>> rows) {
+        final Path tmp = file.resolveSibling(file.getFileName().toString() + ".tmp");
+        try {
+            try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, List<String>> e : rows.entrySet()) {
+                    if (e.getValue().isEmpty()) {
+                        w.write(e.getKey());
+                        w.newLine();
+                    }
+                    for (String row : e.getValue()) {
+                        w.write(e.getKey());
+                        w.write('\t');
+                        w.write(row);
+                        w.newLine();
+                    }
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOG.warn("Could not write summary rows '" + file + "'. The next summary will re-read all compounds. " + e.getMessage());
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+                // outdated rows are detected by the missing change log entries
+            }
+        }
+    }
+
+    private Path changesFile() {
+        return space.getRootPath().resolve(CHANGES_FILE_NAME);
+    }
+
+    private void load() {
+        final Path file = changesFile();
+        if (!Files.exists(file))
+            return;
+        try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.equals(ALL))
+                    allChanged = true;
+                else if (!line.isBlank())
+                    changed.add(line);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read summary change log '" + file + "'. Next summary will re-read all compounds. " + e.getMessage());
+            allChanged = true;
+        }
+    }
+
+    private void rewriteChanges() {
+        final Path file = changesFile();
+        try (BufferedWriter w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            if (allChanged) {
+                w.write(ALL);
+                w.newLine();
+            }
+            for (String dir : changed) {
+                w.write(dir);
+                w.newLine();
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            LOG.warn("Could not write summary change log '" + file + "'. Summaries will be written for all compounds. " + e.getMessage());
+            disable();
+        }
+    }
+
+    private void append(String line) {
+        if (!journaled) {
+            // rows of an earlier incremental summary do not know about this change
+            if (enabled)
+                disable();
+            return;
+        }
+        if (writer == null)
+            return;
+        try {
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            LOG.warn("Could not write summary change log. Summaries will be written for all compounds. " + e.getMessage());
+            disable();
+        }
+    }
+
+    private void openWriter() {
+        if (!enabled)
+            return;
+        try {
+            writer = Files.newBufferedWriter(changesFile(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException | UnsupportedOperationException e) {
+            LOG.warn("Could not open summary change log. Summaries will be written for all compounds. " + e.getMessage());
+            disable();
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LOG.warn("Error when closing summary change log. " + e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    // without a complete change log persisted rows cannot be trusted.
+    private void disable() {
+        enabled = false;
+        closeWriter();
+        try {
+            Files.deleteIfExists(changesFile());
+            try (var files = Files.list(space.getRootPath())) {
+                for (Path p : files.filter(p -> p.getFileName().toString().startsWith(ROWS_FILE_PREFIX)).collect(Collectors.toList()))
+                    Files.deleteIfExists(p);
+            }
+        } catch (IOException | UnsupportedOperationException ignored) {
+            // rows are not used anymore by this instance
+        }
+    }
+}
@@ -0,0 +1,533 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.FormulaScore;
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.SScored;
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
+import de.unijena.bioinf.ChemistryBase.chem.RetentionTime;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.GibbsSampling.ZodiacScore;
+import de.unijena.bioinf.canopus.CanopusResult;
+import de.unijena.bioinf.chemdb.CompoundCandidate;
+import de.unijena.bioinf.chemdb.PubmedLinks;
+import de.unijena.bioinf.fingerid.ConfidenceScore;
+import de.unijena.bioinf.projectspace.fingerid.CandidatePageRequest;
+import de.unijena.bioinf.projectspace.fingerid.FBCandidatesPage;
+import de.unijena.bioinf.projectspace.sirius.FormulaResult;
+import de.unijena.bioinf.sirius.FTreeMetricsHelper;
+import de.unijena.bioinf.sirius.scores.IsotopeScore;
+import de.unijena.bioinf.sirius.scores.SiriusScore;
+import de.unijena.bioinf.sirius.scores.TreeScore;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Columnar index of the top hit (top formula, top structure, scores, m/z, RT) of every compound, so that project
+ * wide listing, sorting and filtering does not have to open every compound directory.
+ * <p>
+ * Every field is a primitive column, strings (formulas, InChIKeys, ...) are dictionary encoded. The columns are
+ * read from {@link #INDEX_FILE_NAME} into heap arrays on open. Writes to the project mark the affected compound as
+ * stale, stale and unknown compounds are re-read by {@link #refresh()}. Compounds are read from the project without
+ * holding the index monitor, so listeners and {@link #peek(CompoundContainerId)} never wait for project I/O. The
+ * index file is deleted as soon as the first compound becomes stale, so an unclean shutdown causes a rebuild instead
+ * of outdated values.
+ */
+public class TopHitIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(TopHitIndex.class);
+
+    public static final String INDEX_FILE_NAME = ".top_hits";
+    private static final int MAGIC = 0x54485831; // THX1
+    private static final int VERSION = 1;
+
+    // missing values are NaN for doubles, -1 for ints and null for strings
+    public enum DoubleColumn {
+        ION_MASS, RT_SECONDS, SIRIUS_SCORE, ISOTOPE_SCORE, TREE_SCORE, ZODIAC_SCORE, EXPLAINED_INTENSITY,
+        MEDIAN_MASS_DEVIATION_PPM, MEDIAN_MASS_DEVIATION_ABS, CSI_SCORE, CONFIDENCE, XLOGP
+    }
+
+    public enum IntColumn {
+        COMPOUND_INDEX, EXPLAINED_PEAKS, EXPLAINABLE_PEAKS, PUBMED_IDS,
+        /**
+         * 1 if the top formula has structure candidates (possibly empty), -1 otherwise
+         */
+        STRUCTURE_CANDIDATES,
+        /**
+         * 1 if the top formula has a CANOPUS result, -1 otherwise
+         */
+        CANOPUS
+    }
+
+    public enum StringColumn {
+        DIRECTORY, FORMULA, ADDUCT, STRUCTURE_NAME, SMILES, INCHIKEY
+    }
+
+    private static final DoubleColumn[] DOUBLES = DoubleColumn.values();
+    private static final IntColumn[] INTS = IntColumn.values();
+    private static final StringColumn[] STRINGS = StringColumn.values();
+
+    private final SiriusProjectSpace space;
+
+    // row positions are stable for the lifetime of this instance, rows of deleted compounds are only dropped on disk.
+    private int size = 0;
+    private double[][] doubles = new double[DOUBLES.length][0];
+    private int[][] ints = new int[INTS.length][0];
+    private int[][] strings = new int[STRINGS.length][0];
+    private final List<String> dictionary = new ArrayList<>();
+    private final Map<String, Integer> dictionaryIds = new HashMap<>();
+
+    private final Map<String, Integer> rowsByDirectory = new HashMap<>();
+    // stale directories with the invalidation they were marked by, rows read before a later invalidation stay stale.
+    private final Map<String, Long> stale = new HashMap<>();
+    private long invalidations = 0;
+    private boolean persisted = false; // index file matches the non stale rows
+    private boolean dirty = false; // rows that are not in the index file
+
+    TopHitIndex(@NotNull SiriusProjectSpace space) {
+        this.space = space;
+        load();
+        space.defineCompoundListener().onCreate().onUpdate().thenDo(event -> invalidate(event.getAffectedID())).register();
+        space.defineCompoundListener().onDelete().thenDo(event -> delete(event.getAffectedID())).register();
+        space.defineFormulaResultListener().onCreate().onUpdate().onDelete().thenDo(event -> invalidate(event.getAffectedID().getParentId())).register();
+    }
+
+    /**
+     * Opens the index of a project space that is not managed by a {@link ProjectSpaceManager}.
+     */
+    public static TopHitIndex open(@NotNull SiriusProjectSpace space) {
+        return new TopHitIndex(space);
+    }
+
+    /**
+     * A view on one row. Values reflect the latest {@link #refresh()}.
+     */
+    public final class Row {
+        private final int row;
+
+        private Row(int row) {
+            this.row = row;
+        }
+
+        public double get(@NotNull DoubleColumn column) {
+            synchronized (TopHitIndex.this) {
+                return doubles[column.ordinal()][row];
+            }
+        }
+
+        public int get(@NotNull IntColumn column) {
+            synchronized (TopHitIndex.this) {
+                return ints[column.ordinal()][row];
+            }
+        }
+
+        @Nullable
+        public String get(@NotNull StringColumn column) {
+            synchronized (TopHitIndex.this) {
+                final int id = strings[column.ordinal()][row];
+                return id < 0 ? null : dictionary.get(id);
+            }
+        }
+
+        public boolean has(@NotNull IntColumn column) {
+            return get(column) >= 0;
+        }
+
+        public Optional<Double> opt(@NotNull DoubleColumn column) {
+            final double v = get(column);
+            return Double.isNaN(v) ? Optional.empty() : Optional.of(v);
+        }
+
+        public Optional<Deviation> getMedianMassDeviation() {
+            final double ppm = get(DoubleColumn.MEDIAN_MASS_DEVIATION_PPM);
+            return Double.isNaN(ppm) ? Optional.empty() : Optional.of(new Deviation(ppm, get(DoubleColumn.MEDIAN_MASS_DEVIATION_ABS)));
+        }
+    }
+
+    /**
+     * @return the row of the given compound, re-read from the project if it is stale or unknown.
+     */
+    public Optional<Row> get(@NotNull CompoundContainerId id) throws IOException {
+        final String dir = id.getDirectoryName();
+        if (!space.containsCompound(id))
+            return Optional.empty();
+        final Long invalidation;
+        synchronized (this) {
+            final Integer row = rowsByDirectory.get(dir);
+            if (row != null && !stale.containsKey(dir))
+                return Optional.of(new Row(row));
+            invalidation = stale.get(dir);
+        }
+        final RowValues values = read(id);
+        synchronized (this) {
+            return Optional.ofNullable(store(id, values, invalidation)).map(Row::new);
+        }
+    }
+
+    /**
+     * @return the row of the given compound if it is known and up to date. Never reads from the project.
+     */
+    public synchronized Optional<Row> peek(@NotNull CompoundContainerId id) {
+        final String dir = id.getDirectoryName();
+        if (stale.containsKey(dir))
+            return Optional.empty();
+        return Optional.ofNullable(rowsByDirectory.get(dir)).map(Row::new);
+    }
+
+    /**
+     * Re-reads stale and unknown compounds and persists the index if anything changed. The compounds are read
+     * outside the index monitor, the monitor is only held to copy the values of one compound into the columns.
+     *
+     * @return rows of all compounds of the project in compound index order.
+     */
+    public List<Row> refresh() throws IOException {
+        final List<Integer> rows = new ArrayList<>(space.size());
+        int read = 0;
+        final Iterator<CompoundContainerId> it = space.iterator();
+        while (it.hasNext()) {
+            final CompoundContainerId id = it.next();
+            final String dir = id.getDirectoryName();
+            final Long invalidation;
+            synchronized (this) {
+                final Integer row = rowsByDirectory.get(dir);
+                if (row != null && !stale.containsKey(dir)) {
+                    rows.add(row);
+                    continue;
+                }
+                invalidation = stale.get(dir);
+            }
+            final RowValues values = read(id);
+            synchronized (this) {
+                final Integer row = store(id, values, invalidation);
+                if (row != null)
+                    rows.add(row);
+            }
+            read++;
+        }
+
+        synchronized (this) {
+            final int[] compoundIndex = ints[IntColumn.COMPOUND_INDEX.ordinal()];
+            rows.sort(Comparator.comparingInt(r -> compoundIndex[r]));
+            if (dirty)
+                persist();
+        }
+        LOG.debug("Top hit index refreshed. Re-read " + read + " of " + rows.size() + " compounds.");
+        return rows.stream().map(Row::new).collect(Collectors.toList());
+    }
+
+    /**
+     * All rows will be re-read, e.g. because other processes write into the project.
+     */
+    public synchronized void invalidateAll() {
+        final long invalidation = ++invalidations;
+        rowsByDirectory.keySet().forEach(dir -> stale.put(dir, invalidation));
+        deletePersisted();
+        dirty = true;
+    }
+
+    public synchronized void close() {
+        if (dirty)
+            persist();
+    }
+
+    synchronized void invalidate(CompoundContainerId id) {
+        if (stale.put(id.getDirectoryName(), ++invalidations) == null)
+            deletePersisted();
+        dirty = true;
+    }
+
+    private synchronized void delete(CompoundContainerId id) {
+        if (rowsByDirectory.remove(id.getDirectoryName()) != null) {
+            stale.remove(id.getDirectoryName());
+            deletePersisted();
+            dirty = true;
+        }
+    }
+
+    /*
+     * Copies values read without the monitor into the columns. The compound stays stale if it was invalidated while
+     * it was read, values of compounds deleted in the meantime are dropped. Returns the row or null if deleted.
+     */
+    @Nullable
+    private Integer store(CompoundContainerId id, RowValues values, @Nullable Long invalidation) {
+        if (!space.containsCompound(id))
+            return null;
+        final String dir = id.getDirectoryName();
+        Integer row = rowsByDirectory.get(dir);
+        if (row == null) {
+            row = appendRow();
+            rowsByDirectory.put(dir, row);
+        }
+        for (int i = 0; i < DOUBLES.length; i++)
+            doubles[i][row] = values.doubles[i];
+        for (int i = 0; i < INTS.length; i++)
+            ints[i][row] = values.ints[i];
+        for (int i = 0; i < STRINGS.length; i++)
+            set(row, STRINGS[i], values.strings[i]);
+        if (Objects.equals(stale.get(dir), invalidation))
+            stale.remove(dir);
+        dirty = true;
+        return row;
+    }
+
+    //region reading compounds
+    // values of one compound, filled without holding the index monitor
+    private static final class RowValues {
+        private final double[] doubles = new double[DOUBLES.length];
+        private final int[] ints = new int[INTS.length];
+        private final String[] strings = new String[STRINGS.length];
+
+        private RowValues() {
+            Arrays.fill(doubles, Double.NaN);
+            Arrays.fill(ints, -1);
+        }
+
+        private void set(DoubleColumn column, double value) {
+            doubles[column.ordinal()] = value;
+        }
+
+        private void set(IntColumn column, int value) {
+            ints[column.ordinal()] = value;
+        }
+
+        private void set(StringColumn column, @Nullable String value) {
+            strings[column.ordinal()] = value;
+        }
+    }
+
+    private RowValues read(CompoundContainerId id) throws IOException {
+        final RowValues row = new RowValues();
+        row.set(StringColumn.DIRECTORY, id.getDirectoryName());
+        row.set(IntColumn.COMPOUND_INDEX, id.getCompoundIndex());
+        row.set(DoubleColumn.ION_MASS, id.getIonMass().orElse(Double.NaN));
+        row.set(DoubleColumn.RT_SECONDS, id.getRt().map(RetentionTime::getRetentionTimeInSeconds).orElse(Double.NaN));
+
+        final List<? extends SScored<FormulaResult, ? extends FormulaScore>> results =
+                space.getFormulaResultsOrderedBy(id, id.getRankingScoreTypes(), FormulaScoring.class);
+        if (results.isEmpty())
+            return row;
+
+        final FormulaResult topHit = results.get(0).getCandidate();
+        final FormulaResultId fid = topHit.getId();
+        row.set(StringColumn.FORMULA, fid.getMolecularFormula().toString());
+        row.set(StringColumn.ADDUCT, fid.getIonType().toString());
+        topHit.getAnnotation(FormulaScoring.class).ifPresent(scorings -> {
+            scorings.getAnnotation(SiriusScore.class).ifPresent(s -> row.set(DoubleColumn.SIRIUS_SCORE, s.score()));
+            scorings.getAnnotation(IsotopeScore.class).ifPresent(s -> row.set(DoubleColumn.ISOTOPE_SCORE, s.score()));
+            scorings.getAnnotation(TreeScore.class).ifPresent(s -> row.set(DoubleColumn.TREE_SCORE, s.score()));
+            scorings.getAnnotation(ZodiacScore.class).ifPresent(s -> row.set(DoubleColumn.ZODIAC_SCORE, s.score()));
+            scorings.getAnnotation(ConfidenceScore.class).ifPresent(s -> row.set(DoubleColumn.CONFIDENCE, s.score()));
+        });
+
+        final FormulaResult details = space.getFormulaResult(fid, FTree.class, CanopusResult.class);
+        details.getAnnotation(FTree.class).ifPresent(tree -> {
+            final FTreeMetricsHelper metrics = new FTreeMetricsHelper(tree);
+            row.set(IntColumn.EXPLAINED_PEAKS, metrics.getNumOfExplainedPeaks());
+            row.set(IntColumn.EXPLAINABLE_PEAKS, metrics.getNumberOfExplainablePeaks());
+            row.set(DoubleColumn.EXPLAINED_INTENSITY, metrics.getExplainedIntensityRatio());
+            row.set(DoubleColumn.MEDIAN_MASS_DEVIATION_PPM, metrics.getMedianMassDeviation().getPpm());
+            row.set(DoubleColumn.MEDIAN_MASS_DEVIATION_ABS, metrics.getMedianMassDeviation().getAbsolute());
+        });
+        if (details.hasAnnotation(CanopusResult.class))
+            row.set(IntColumn.CANOPUS, 1);
+
+        // only the top candidate is decoded
+        final Optional<FBCandidatesPage> candidates = FBCandidatesPage.read(space, fid, CandidatePageRequest.top(1));
+        if (candidates.isPresent()) {
+            row.set(IntColumn.STRUCTURE_CANDIDATES, 1);
+            if (!candidates.get().getResults().isEmpty()) {
+                final Scored<CompoundCandidate> can = candidates.get().getResults().get(0);
+                row.set(DoubleColumn.CSI_SCORE, can.getScore());
+                final String n = can.getCandidate().getName();
+                if (n != null && !n.isEmpty() && !n.equals("null"))
+                    row.set(StringColumn.STRUCTURE_NAME, n);
+                row.set(StringColumn.SMILES, can.getCandidate().getSmiles());
+                row.set(StringColumn.INCHIKEY, can.getCandidate().getInchiKey2D());
+                row.set(DoubleColumn.XLOGP, can.getCandidate().getXlogp());
+                final PubmedLinks pubMedIds = can.getCandidate().getPubmedIDs();
+                if (pubMedIds != null)
+                    row.set(IntColumn.PUBMED_IDS, pubMedIds.getNumberOfPubmedIDs());
+            }
+        }
+        return row;
+    }
+    //endregion
+
+    //region columns
+    private int appendRow() {
+        if (size == doubles[0].length) {
+            final int capacity = Math.max(16, size + (size >> 1));
+            for (int i = 0; i < DOUBLES.length; i++)
+                doubles[i] = Arrays.copyOf(doubles[i], capacity);
+            for (int i = 0; i < INTS.length; i++)
+                ints[i] = Arrays.copyOf(ints[i], capacity);
+            for (int i = 0; i < STRINGS.length; i++)
+                strings[i] = Arrays.copyOf(strings[i], capacity);
+        }
+        return size++;
+    }
+
+    private void set(int row, StringColumn column, @Nullable String value) {
+        strings[column.ordinal()][row] = value == null ? -1 : dictionaryIds.computeIfAbsent(value, v -> {
+            dictionary.add(v);
+            return dictionary.size() - 1;
+        });
+    }
+    //endregion
+
+    //region persistence
+    /*
+     * Format: MAGIC, VERSION, rows, #double columns, #int columns, #string columns, #dictionary entries,
+     * dictionary (length prefixed UTF-8), then every column with one value per row.
+     */
+    private Path indexFile() {
+        return space.getRootPath().resolve(INDEX_FILE_NAME);
+    }
+
+    private void load() {
+        final Path file = indexFile();
+        if (!Files.isRegularFile(file))
+            return;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            final MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+                throw new IOException("Unknown index format.");
+            final int rows = buf.getInt();
+            if (buf.getInt() != DOUBLES.length || buf.getInt() != INTS.length || buf.getInt() != STRINGS.length)
+                throw new IOException("Unknown index columns.");
+            final int dictSize = buf.getInt();
+            for (int i = 0; i < dictSize; i++) {
+                final byte[] bytes = new byte[buf.getInt()];
+                buf.get(bytes);
+                dictionary.add(new String(bytes, StandardCharsets.UTF_8));
+                dictionaryIds.put(dictionary.get(i), i);
+            }
+
+            doubles = new double[DOUBLES.length][rows];
+            ints = new int[INTS.length][rows];
+            strings = new int[STRINGS.length][rows];
+            for (double[] c : doubles) {
+                buf.asDoubleBuffer().get(c);
+                buf.position(buf.position() + rows * Double.BYTES);
+            }
+            readInts(buf, ints, rows);
+            readInts(buf, strings, rows);
+            size = rows;
+
+            final int dirColumn = StringColumn.DIRECTORY.ordinal();
+            for (int r = 0; r < rows; r++)
+                rowsByDirectory.put(dictionary.get(strings[dirColumn][r]), r);
+            persisted = true;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not read top hit index. Index will be rebuilt. " + e.getMessage());
+            size = 0;
+            doubles = new double[DOUBLES.length][0];
+            ints = new int[INTS.length][0];
+            strings = new int[STRINGS.length][0];
+            dictionary.clear();
+            dictionaryIds.clear();
+            rowsByDirectory.clear();
+        }
+    }
+
+    private static void readInts(ByteBuffer buf, int[][] columns, int rows) {
+        for (int[] c : columns) {
+            buf.asIntBuffer().get(c);
+            buf.position(buf.position() + rows * Integer.BYTES);
+        }
+    }
+
+    // non stale rows are written in compound order, the dictionary is compacted
+    private void persist() {
+        final List<Integer> live = new ArrayList<>(rowsByDirectory.size());
+        rowsByDirectory.forEach((dir, r) -> {
+            if (!stale.containsKey(dir))
+                live.add(r);
+        });
+        live.sort(Comparator.comparingInt(r -> ints[IntColumn.COMPOUND_INDEX.ordinal()][r]));
+        final Map<Integer, Integer> newIds = new HashMap<>();
+        final List<byte[]> newDictionary = new ArrayList<>();
+        long bytes = 7L * Integer.BYTES + (long) live.size() * (DOUBLES.length * Double.BYTES + (INTS.length + STRINGS.length) * Integer.BYTES);
+        for (int[] c : strings) {
+            for (int r : live) {
+                if (c[r] >= 0 && !newIds.containsKey(c[r])) {
+                    newIds.put(c[r], newDictionary.size());
+                    newDictionary.add(dictionary.get(c[r]).getBytes(StandardCharsets.UTF_8));
+                    bytes += Integer.BYTES + newDictionary.get(newDictionary.size() - 1).length;
+                }
+            }
+        }
+
+        final Path file = indexFile();
+        final Path tmp = file.resolveSibling(INDEX_FILE_NAME + ".tmp");
+        try {
+            final ByteBuffer buf = ByteBuffer.allocate(Math.toIntExact(bytes));
+            buf.putInt(MAGIC).putInt(VERSION).putInt(live.size())
+                    .putInt(DOUBLES.length).putInt(INTS.length).putInt(STRINGS.length).putInt(newDictionary.size());
+            for (byte[] b : newDictionary)
+                buf.putInt(b.length).put(b);
+            for (double[] c : doubles)
+                for (int r : live)
+                    buf.putDouble(c[r]);
+            for (int[] c : ints)
+                for (int r : live)
+                    buf.putInt(c[r]);
+            for (int[] c : strings)
+                for (int r : live)
+                    buf.putInt(c[r] < 0 ? -1 : newIds.get(c[r]));
+            buf.flip();
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buf.hasRemaining())
+                    ch.write(buf);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            persisted = true;
+            dirty = !stale.isEmpty();
+        } catch (IOException | UnsupportedOperationException | ArithmeticException e) {
+            LOG.debug("Could not persist top hit index. Index is kept in memory only. " + e.getMessage());
+        }
+    }
+
+    private void deletePersisted() {
+        if (!persisted)
+            return;
+        persisted = false;
+        try {
+            Files.deleteIfExists(indexFile());
+        } catch (IOException | UnsupportedOperationException e) {
+            LOG.warn("Could not delete outdated top hit index. " + e.getMessage());
+        }
+    }
+    //endregion
+}
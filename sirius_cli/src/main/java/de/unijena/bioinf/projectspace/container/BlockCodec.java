@@ -0,0 +1,165 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.container;
+
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.projectspace.fingerid.FingerIdLocations;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block compression of large container entries (structure candidates and their fingerprints).
+ * <p>
+ * Encoded layout: codec id (byte), raw length (long), blocks of compressed length (int), raw length (int), data.
+ * Blocks are compressed independently, so a block can be decoded without the data before it.
+ */
+public enum BlockCodec {
+    /**
+     * Entries are stored uncompressed
+     */
+    NONE(0, Deflater.NO_COMPRESSION),
+    /**
+     * Fast compression for projects that are still written, decompression is cheap for all codecs
+     */
+    FAST(1, Deflater.BEST_SPEED),
+    /**
+     * Strong compression for archived projects
+     */
+    ARCHIVE(2, Deflater.BEST_COMPRESSION);
+
+    public static final String CODEC_KEY = "de.unijena.bioinf.sirius.project.container.codec";
+
+    static final int BLOCK_SIZE = 1 << 16;
+    // smaller entries do not benefit from compression
+    static final int MIN_SIZE = 4096;
+
+    private final byte id;
+    private final int level;
+
+    BlockCodec(int id, int level) {
+        this.id = (byte) id;
+        this.level = level;
+    }
+
+    public static BlockCodec fromProperties() {
+        final String value = PropertyManager.getProperty(CODEC_KEY, null, NONE.name());
+        try {
+            return valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LoggerFactory.getLogger(BlockCodec.class).warn("Unknown container codec '" + value + "'. Storing uncompressed.");
+            return NONE;
+        }
+    }
+
+    /**
+     * @param path container path of the entry
+     * @return true if entries at this path are compressed (if a codec is set)
+     */
+    static boolean isCompressible(@NotNull String path, int length) {
+        if (length < MIN_SIZE)
+            return false;
+        final int end = path.lastIndexOf('/');
+        final int start = path.lastIndexOf('/', end - 1);
+        if (end <= 0)
+            return false;
+        final String dir = path.substring(start + 1, end);
+        return dir.equals(FingerIdLocations.FINGERBLAST.relDir()) || dir.equals(FingerIdLocations.FINGERBLAST_FPs.relDir());
+    }
+
+    byte[] encode(byte[] data, int length) {
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            final ByteBuffer out = ByteBuffer.allocate(1 + 8 + length + (length / BLOCK_SIZE + 1) * (8 + 64));
+            out.put(id).putLong(length);
+            final byte[] block = new byte[BLOCK_SIZE + BLOCK_SIZE / 16 + 64];
+            for (int off = 0; off < length; off += BLOCK_SIZE) {
+                final int raw = Math.min(BLOCK_SIZE, length - off);
+                deflater.reset();
+                deflater.setInput(data, off, raw);
+                deflater.finish();
+                int compressed = 0;
+                while (!deflater.finished())
+                    compressed += deflater.deflate(block, compressed, block.length - compressed);
+                out.putInt(compressed).putInt(raw).put(block, 0, compressed);
+            }
+            return Arrays.copyOf(out.array(), out.position());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param encoded encoded entry, its position is not changed
+     * @return decoded entry
+     */
+    static ByteBuffer decode(@NotNull ByteBuffer encoded) throws IOException {
+        final ByteBuffer in = encoded.duplicate();
+        final byte codec = in.get();
+        if (codec <= NONE.id || codec > ARCHIVE.id)
+            throw new IOException("Unknown container codec " + codec + ".");
+        final long length = in.getLong();
+        if (length < 0 || length > Integer.MAX_VALUE)
+            throw new IOException("Corrupted compressed container entry.");
+
+        final byte[] out = new byte[(int) length];
+        final Inflater inflater = new Inflater(true);
+        try {
+            int pos = 0;
+            byte[] block = new byte[0];
+            while (pos < length) {
+                final int compressed = in.getInt(), raw = in.getInt();
+                if (block.length < compressed)
+                    block = new byte[compressed];
+                in.get(block, 0, compressed);
+                inflater.reset();
+                inflater.setInput(block, 0, compressed);
+                int n = 0;
+                while (n < raw && !inflater.finished()) {
+                    final int r = inflater.inflate(out, pos + n, raw - n);
+                    if (r == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    n += r;
+                }
+                if (n != raw)
+                    throw new IOException("Corrupted compressed container entry.");
+                pos += raw;
+            }
+        } catch (DataFormatException | RuntimeException e) {
+            throw new IOException("Corrupted compressed container entry.", e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(out).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return raw length of an encoded entry
+     */
+    static long rawLength(@NotNull ByteBuffer encoded) {
+        return encoded.getLong(encoded.position() + 1);
+    }
+}
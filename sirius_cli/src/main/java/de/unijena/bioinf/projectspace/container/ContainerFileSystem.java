@@ -0,0 +1,150 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.container;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link FileSystem} view on a single file project container (see {@link ProjectContainer}).
+ * Closing the file system closes the container file as soon as no other file system of it is open.
+ */
+public final class ContainerFileSystem extends FileSystem {
+    private final ContainerFileSystemProvider provider;
+    private final EntryStore store;
+    private final ContainerPath root;
+    private volatile boolean open = true;
+
+    ContainerFileSystem(@NotNull ContainerFileSystemProvider provider, @NotNull EntryStore store) {
+        this.provider = provider;
+        this.store = store;
+        this.root = new ContainerPath(this, EntryStore.ROOT);
+    }
+
+    EntryStore store() {
+        return store;
+    }
+
+    EntryStore openStore() {
+        if (!open)
+            throw new ClosedFileSystemException();
+        return store;
+    }
+
+    /**
+     * @return location of the container file in the default file system
+     */
+    public Path getContainerFile() {
+        return store.getFile();
+    }
+
+    /**
+     * Forces all modifications written so far to disk, see {@link ProjectContainer#sync(Path)}.
+     */
+    public void sync() throws IOException {
+        openStore().sync();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    @Override
+    public FileSystemProvider provider() {
+        return provider;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (open) {
+            open = false;
+            provider.release(this);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return store.isReadOnly();
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return List.of(root);
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        try {
+            return List.of(Files.getFileStore(getContainerFile()));
+        } catch (IOException e) {
+            return List.of();
+        }
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Set.of("basic");
+    }
+
+    @NotNull
+    @Override
+    public Path getPath(@NotNull String first, @NotNull String... more) {
+        if (more.length == 0)
+            return new ContainerPath(this, first);
+        return new ContainerPath(this, first + "/" + String.join("/", more));
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher(syntaxAndPattern);
+        return path -> matcher.matches(Path.of(path.toString()));
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("Watching project containers is not supported.");
+    }
+
+    @Override
+    public String toString() {
+        return getContainerFile().toString();
+    }
+}
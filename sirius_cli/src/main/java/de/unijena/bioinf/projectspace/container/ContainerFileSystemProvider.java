@@ -0,0 +1,621 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.container;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.*;
+
+/**
+ * Provides {@link ContainerFileSystem}s. The storage of a container file is shared by all of its open file systems,
+ * so the same container can be opened by several users (e.g. project space and data compatibility check) at once.
+ * <p>
+ * Written files are buffered in memory and appended to the container when the channel is closed.
+ * Read channels operate directly on the memory mapped container.
+ * <p>
+ * Zip compressed projects are opened the same way (see {@link ZipStore}).
+ */
+public final class ContainerFileSystemProvider extends FileSystemProvider {
+    public static final String SCHEME = "sirius-container";
+    public static final ContainerFileSystemProvider INSTANCE = new ContainerFileSystemProvider();
+
+    private final Map<Path, EntryStore> stores = new HashMap<>();
+    private final Map<EntryStore, List<ContainerFileSystem>> views = new HashMap<>();
+
+    private ContainerFileSystemProvider() {
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    //region file system management
+    /**
+     * Opens the container at the given location. If the container is already opened, the returned file system
+     * shares the underlying storage with the other file systems of this container. The container file is closed
+     * when all of its file systems have been closed.
+     *
+     * @param create create a new empty container if there is none at the given location
+     */
+    public synchronized ContainerFileSystem acquire(@NotNull Path containerFile, boolean create, boolean readOnly) throws IOException {
+        final Path key = containerFile.toAbsolutePath().normalize();
+        EntryStore store = stores.get(key);
+        if (store == null) {
+            store = create && Files.notExists(key) ? ContainerStore.create(key) : open(key, readOnly);
+            stores.put(key, store);
+            if (!readOnly)
+                store.setCodec(BlockCodec.fromProperties());
+        } else if (store.isReadOnly() && !readOnly) {
+            throw new IOException("Project container '" + key + "' is already opened read only.");
+        }
+        final ContainerFileSystem fs = new ContainerFileSystem(this, store);
+        views.computeIfAbsent(store, k -> new ArrayList<>()).add(fs);
+        return fs;
+    }
+
+    private static EntryStore open(Path file, boolean readOnly) throws IOException {
+        return ZipStore.isZip(file) ? ZipStore.open(file, readOnly) : ContainerStore.open(file, readOnly);
+    }
+
+    synchronized void release(@NotNull ContainerFileSystem fs) throws IOException {
+        final EntryStore store = fs.store();
+        final List<ContainerFileSystem> open = views.get(store);
+        if (open == null || !open.remove(fs))
+            return;
+        if (open.isEmpty()) {
+            views.remove(store);
+            stores.remove(store.getFile());
+            store.close();
+        }
+    }
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        return newFileSystem(containerFile(uri), env);
+    }
+
+    @Override
+    public FileSystem newFileSystem(Path path, Map<String, ?> env) throws IOException {
+        return acquire(path, "true".equals(String.valueOf(env.get("create"))), "true".equals(String.valueOf(env.get("readOnly"))));
+    }
+
+    @Override
+    public synchronized FileSystem getFileSystem(URI uri) {
+        final EntryStore store = stores.get(containerFile(uri).toAbsolutePath().normalize());
+        if (store == null)
+            throw new FileSystemNotFoundException(uri.toString());
+        return views.get(store).get(0);
+    }
+
+    @NotNull
+    @Override
+    public Path getPath(@NotNull URI uri) {
+        final String ssp = uri.getSchemeSpecificPart();
+        final int sep = ssp.indexOf("!/");
+        return getFileSystem(uri).getPath(sep < 0 ? EntryStore.ROOT : ssp.substring(sep + 1));
+    }
+
+    private static Path containerFile(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme()))
+            throw new IllegalArgumentException("URI scheme is not '" + SCHEME + "'.");
+        final String ssp = uri.getSchemeSpecificPart();
+        final int sep = ssp.indexOf("!/");
+        return Path.of(URI.create(sep < 0 ? ssp : ssp.substring(0, sep)));
+    }
+    //endregion
+
+    //region file operations
+    private static ContainerPath cast(Path path) {
+        if (!(path instanceof ContainerPath))
+            throw new ProviderMismatchException();
+        return (ContainerPath) path;
+    }
+
+    private static EntryStore store(Path path) {
+        return cast(path).getFileSystem().openStore();
+    }
+
+    private static void checkParent(EntryStore store, ContainerPath path) throws NoSuchFileException {
+        final Path parent = path.toAbsolutePath().normalize().getParent();
+        if (parent != null && !store.isDirectory(((ContainerPath) parent).storePath()))
+            throw new NoSuchFileException(parent.toString());
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        final EntryStore store = store(path);
+        final String p = cast(path).storePath();
+
+        if (!options.contains(StandardOpenOption.WRITE) && !options.contains(StandardOpenOption.APPEND)) {
+            if (store.isDirectory(p))
+                throw new FileSystemException(p, null, "Is a directory");
+            return new ReadChannel(store.read(p));
+        }
+
+        if (store.isReadOnly())
+            throw new ReadOnlyFileSystemException();
+        if (store.isDirectory(p))
+            throw new FileSystemException(p, null, "Is a directory");
+        final boolean exists = store.isFile(p);
+        if (exists && options.contains(StandardOpenOption.CREATE_NEW))
+            throw new FileAlreadyExistsException(p);
+        if (!exists && !options.contains(StandardOpenOption.CREATE) && !options.contains(StandardOpenOption.CREATE_NEW))
+            throw new NoSuchFileException(p);
+        checkParent(store, cast(path));
+
+        final WriteChannel channel = new WriteChannel(store, p);
+        if (exists && !options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(store.read(p));
+            if (!options.contains(StandardOpenOption.APPEND))
+                channel.position(0);
+        }
+        return channel;
+    }
+
+    @Override
+    public InputStream newInputStream(Path path, OpenOption... options) throws IOException {
+        final ByteBuffer content = store(path).read(cast(path).storePath());
+        return new InputStream() {
+            @Override
+            public int read() {
+                return content.hasRemaining() ? content.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(@NotNull byte[] b, int off, int len) {
+                if (len == 0)
+                    return 0;
+                if (!content.hasRemaining())
+                    return -1;
+                final int n = Math.min(len, content.remaining());
+                content.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return content.remaining();
+            }
+        };
+    }
+
+    @Override
+    public OutputStream newOutputStream(Path path, OpenOption... options) throws IOException {
+        final Set<OpenOption> opts = new HashSet<>(Arrays.asList(options));
+        if (opts.isEmpty())
+            opts.addAll(List.of(StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+        opts.add(StandardOpenOption.WRITE);
+        return Channels.newOutputStream(newByteChannel(path, opts));
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        final List<String> names = store(dir).list(cast(dir).storePath());
+        final List<Path> children = new ArrayList<>(names.size());
+        for (String name : names) {
+            final Path child = dir.resolve(name);
+            if (filter == null || filter.accept(child))
+                children.add(child);
+        }
+        return new DirectoryStream<>() {
+            @Override
+            public Iterator<Path> iterator() {
+                return children.iterator();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+        final EntryStore store = store(dir);
+        final String p = cast(dir).storePath();
+        if (store.exists(p))
+            throw new FileAlreadyExistsException(p);
+        checkParent(store, cast(dir));
+        store.createDirectory(p);
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        final EntryStore store = store(path);
+        final String p = cast(path).storePath();
+        if (!store.exists(p))
+            throw new NoSuchFileException(p);
+        if (p.equals(EntryStore.ROOT))
+            throw new FileSystemException(p, null, "Root directory cannot be deleted.");
+        store.delete(p);
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        final EntryStore s = store(source), t = store(target);
+        final String sp = cast(source).storePath(), tp = cast(target).storePath();
+        if (!s.exists(sp))
+            throw new NoSuchFileException(sp);
+        if (s == t && sp.equals(tp))
+            return;
+        prepareTarget(t, cast(target), options);
+        if (s.isDirectory(sp)) {
+            t.createDirectory(tp);
+        } else {
+            final ByteBuffer content = s.read(sp);
+            final byte[] data = new byte[content.remaining()];
+            content.get(data);
+            t.writeFile(tp, data, data.length);
+        }
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        final EntryStore s = store(source), t = store(target);
+        final String sp = cast(source).storePath(), tp = cast(target).storePath();
+        if (s != t) {
+            copy(source, target, options);
+            delete(source);
+            return;
+        }
+        if (!s.exists(sp))
+            throw new NoSuchFileException(sp);
+        if (sp.equals(tp))
+            return;
+        if (tp.startsWith(sp + "/"))
+            throw new FileSystemException(sp, tp, "Cannot move a directory into itself.");
+        prepareTarget(t, cast(target), options);
+        s.move(sp, tp);
+    }
+
+    private static void prepareTarget(EntryStore store, ContainerPath target, CopyOption... options) throws IOException {
+        final String tp = target.storePath();
+        if (store.exists(tp)) {
+            if (!Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING))
+                throw new FileAlreadyExistsException(tp);
+            store.delete(tp);
+        }
+        checkParent(store, target);
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) {
+        return path.toAbsolutePath().normalize().equals(path2.toAbsolutePath().normalize());
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) throws IOException {
+        return Files.getFileStore(cast(path).getFileSystem().getContainerFile());
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        final EntryStore store = store(path);
+        final String p = cast(path).storePath();
+        if (!store.exists(p))
+            throw new NoSuchFileException(p);
+        for (AccessMode mode : modes)
+            if (mode == AccessMode.WRITE && store.isReadOnly())
+                throw new AccessDeniedException(p, null, "Project container is opened read only.");
+    }
+    //endregion
+
+    //region attributes
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        if (type != BasicFileAttributeView.class)
+            return null;
+        return (V) new BasicFileAttributeView() {
+            @Override
+            public String name() {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return ContainerFileSystemProvider.this.readAttributes(path, BasicFileAttributes.class);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) throws IOException {
+                if (lastModifiedTime != null)
+                    setAttribute(path, "lastModifiedTime", lastModifiedTime);
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+        if (type != BasicFileAttributes.class)
+            throw new UnsupportedOperationException("Only basic file attributes are supported.");
+        final EntryStore store = store(path);
+        final String p = cast(path).storePath();
+        if (!store.exists(p))
+            throw new NoSuchFileException(p);
+        return (A) new Attributes(store.isDirectory(p), store.size(p), FileTime.fromMillis(store.lastModified(p)));
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+        final String names = attributes.startsWith("basic:") ? attributes.substring(6) : attributes;
+        final BasicFileAttributes a = readAttributes(path, BasicFileAttributes.class);
+        final Map<String, Object> all = new LinkedHashMap<>();
+        all.put("lastModifiedTime", a.lastModifiedTime());
+        all.put("lastAccessTime", a.lastAccessTime());
+        all.put("creationTime", a.creationTime());
+        all.put("size", a.size());
+        all.put("isRegularFile", a.isRegularFile());
+        all.put("isDirectory", a.isDirectory());
+        all.put("isSymbolicLink", false);
+        all.put("isOther", false);
+        all.put("fileKey", null);
+        if (names.equals("*"))
+            return all;
+        final Map<String, Object> selected = new LinkedHashMap<>();
+        for (String name : names.split(","))
+            if (all.containsKey(name))
+                selected.put(name, all.get(name));
+        return selected;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException {
+        final String name = attribute.startsWith("basic:") ? attribute.substring(6) : attribute;
+        if (!name.equals("lastModifiedTime"))
+            throw new UnsupportedOperationException("Attribute '" + attribute + "' is not supported.");
+        final EntryStore store = store(path);
+        final String p = cast(path).storePath();
+        if (!store.exists(p))
+            throw new NoSuchFileException(p);
+        store.setLastModified(p, ((FileTime) value).toMillis());
+    }
+
+    private static final class Attributes implements BasicFileAttributes {
+        private final boolean directory;
+        private final long size;
+        private final FileTime time;
+
+        private Attributes(boolean directory, long size, FileTime time) {
+            this.directory = directory;
+            this.size = size;
+            this.time = time;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return time;
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return time;
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return time;
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return !directory;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public Object fileKey() {
+            return null;
+        }
+    }
+    //endregion
+
+    //region channels
+    private static final class ReadChannel implements SeekableByteChannel {
+        private final ByteBuffer content;
+        private boolean open = true;
+
+        private ReadChannel(ByteBuffer content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            ensureOpen();
+            if (!content.hasRemaining())
+                return -1;
+            final int n = Math.min(dst.remaining(), content.remaining());
+            final ByteBuffer slice = content.duplicate();
+            slice.limit(slice.position() + n);
+            dst.put(slice);
+            content.position(content.position() + n);
+            return n;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            ensureOpen();
+            return content.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            ensureOpen();
+            content.position((int) Math.min(newPosition, content.limit()));
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            return content.limit();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        private void ensureOpen() throws ClosedChannelException {
+            if (!open)
+                throw new ClosedChannelException();
+        }
+    }
+
+    private static final class WriteChannel implements SeekableByteChannel {
+        private final EntryStore store;
+        private final String path;
+        private byte[] buffer = new byte[8192];
+        private int size = 0;
+        private int position = 0;
+        private boolean open = true;
+
+        private WriteChannel(EntryStore store, String path) {
+            this.store = store;
+            this.path = path;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            ensureOpen();
+            if (position >= size)
+                return -1;
+            final int n = Math.min(dst.remaining(), size - position);
+            dst.put(buffer, position, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            ensureOpen();
+            final int n = src.remaining();
+            final int required = Math.addExact(position, n);
+            if (required > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+            if (position > size)
+                Arrays.fill(buffer, size, position, (byte) 0);
+            src.get(buffer, position, n);
+            position = required;
+            size = Math.max(size, position);
+            return n;
+        }
+
+        @Override
+        public long position() throws IOException {
+            ensureOpen();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            ensureOpen();
+            position = Math.toIntExact(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            return size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long newSize) throws IOException {
+            ensureOpen();
+            if (newSize < size)
+                size = (int) newSize;
+            position = Math.min(position, size);
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (open) {
+                open = false;
+                store.writeFile(path, buffer, size);
+            }
+        }
+
+        private void ensureOpen() throws ClosedChannelException {
+            if (!open)
+                throw new ClosedChannelException();
+        }
+    }
+    //endregion
+}
@@ -0,0 +1,274 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.container;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Path within a {@link ContainerFileSystem}. Names are separated by '/' and the root is "/".
+ */
+final class ContainerPath implements Path {
+    private final ContainerFileSystem fs;
+    private final String path;
+    private volatile String[] names;
+
+    ContainerPath(@NotNull ContainerFileSystem fs, @NotNull String path) {
+        this.fs = fs;
+        this.path = clean(path);
+    }
+
+    private static String clean(String path) {
+        final StringBuilder b = new StringBuilder(path.length());
+        char last = 0;
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i) == '\\' ? '/' : path.charAt(i);
+            if (c == '/' && last == '/')
+                continue;
+            b.append(c);
+            last = c;
+        }
+        if (b.length() > 1 && last == '/')
+            b.setLength(b.length() - 1);
+        return b.toString();
+    }
+
+    private String[] names() {
+        if (names == null) {
+            final String rel = isAbsolute() ? path.substring(1) : path;
+            names = rel.isEmpty() ? new String[0] : rel.split("/");
+        }
+        return names;
+    }
+
+    private ContainerPath of(String p) {
+        return new ContainerPath(fs, p);
+    }
+
+    /**
+     * @return normalized absolute path as used by the {@link ContainerStore}
+     */
+    String storePath() {
+        final String p = toAbsolutePath().normalize().toString();
+        return p.isEmpty() ? ContainerStore.ROOT : p;
+    }
+
+    @NotNull
+    @Override
+    public ContainerFileSystem getFileSystem() {
+        return fs;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return path.startsWith("/");
+    }
+
+    @Override
+    public Path getRoot() {
+        return isAbsolute() ? of("/") : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        final String[] n = names();
+        if (n.length == 0)
+            return path.isEmpty() ? this : null;
+        return of(n[n.length - 1]);
+    }
+
+    @Override
+    public Path getParent() {
+        final String[] n = names();
+        if (n.length == 0 || (n.length == 1 && !isAbsolute()))
+            return null;
+        return of((isAbsolute() ? "/" : "") + String.join("/", Arrays.copyOf(n, n.length - 1)));
+    }
+
+    @Override
+    public int getNameCount() {
+        return path.isEmpty() ? 1 : names().length;
+    }
+
+    @NotNull
+    @Override
+    public Path getName(int index) {
+        if (path.isEmpty() && index == 0)
+            return this;
+        final String[] n = names();
+        if (index < 0 || index >= n.length)
+            throw new IllegalArgumentException("Index out of bounds: " + index);
+        return of(n[index]);
+    }
+
+    @NotNull
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        final String[] n = names();
+        if (beginIndex < 0 || endIndex > n.length || beginIndex >= endIndex)
+            throw new IllegalArgumentException("Illegal subpath range: " + beginIndex + " - " + endIndex);
+        return of(String.join("/", Arrays.copyOfRange(n, beginIndex, endIndex)));
+    }
+
+    @Override
+    public boolean startsWith(@NotNull Path other) {
+        if (!(other instanceof ContainerPath) || ((ContainerPath) other).fs != fs)
+            return false;
+        final ContainerPath o = (ContainerPath) other;
+        if (o.isAbsolute() != isAbsolute())
+            return false;
+        final String[] n = names(), on = o.names();
+        if (on.length > n.length)
+            return false;
+        for (int i = 0; i < on.length; i++)
+            if (!n[i].equals(on[i]))
+                return false;
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(@NotNull Path other) {
+        if (!(other instanceof ContainerPath) || ((ContainerPath) other).fs != fs)
+            return false;
+        final ContainerPath o = (ContainerPath) other;
+        if (o.isAbsolute())
+            return equals(o);
+        final String[] n = names(), on = o.names();
+        if (on.length > n.length)
+            return false;
+        for (int i = 1; i <= on.length; i++)
+            if (!n[n.length - i].equals(on[on.length - i]))
+                return false;
+        return true;
+    }
+
+    @NotNull
+    @Override
+    public Path normalize() {
+        final List<String> stack = new ArrayList<>();
+        for (String name : names()) {
+            if (name.equals("."))
+                continue;
+            if (name.equals("..")) {
+                if (!stack.isEmpty() && !stack.get(stack.size() - 1).equals(".."))
+                    stack.remove(stack.size() - 1);
+                else if (!isAbsolute())
+                    stack.add(name);
+            } else {
+                stack.add(name);
+            }
+        }
+        return of((isAbsolute() ? "/" : "") + String.join("/", stack));
+    }
+
+    @NotNull
+    @Override
+    public Path resolve(@NotNull Path other) {
+        final String o = toContainerString(other);
+        if (o.startsWith("/"))
+            return of(o);
+        if (o.isEmpty())
+            return this;
+        if (path.isEmpty())
+            return of(o);
+        return of(path + "/" + o);
+    }
+
+    @NotNull
+    @Override
+    public Path relativize(@NotNull Path other) {
+        if (!(other instanceof ContainerPath) || ((ContainerPath) other).isAbsolute() != isAbsolute())
+            throw new IllegalArgumentException("'" + other + "' cannot be relativized against '" + this + "'.");
+        final String[] n = ((ContainerPath) normalize()).names(), on = ((ContainerPath) other.normalize()).names();
+        int common = 0;
+        while (common < n.length && common < on.length && n[common].equals(on[common]))
+            common++;
+        final List<String> rel = new ArrayList<>();
+        for (int i = common; i < n.length; i++)
+            rel.add("..");
+        rel.addAll(Arrays.asList(on).subList(common, on.length));
+        return of(String.join("/", rel));
+    }
+
+    private static String toContainerString(Path other) {
+        if (other instanceof ContainerPath)
+            return ((ContainerPath) other).path;
+        if (other.isAbsolute())
+            throw new ProviderMismatchException("Cannot resolve absolute path '" + other + "' of a different file system.");
+        final List<String> n = new ArrayList<>();
+        other.forEach(it -> n.add(it.toString()));
+        return String.join("/", n);
+    }
+
+    @NotNull
+    @Override
+    public URI toUri() {
+        return URI.create(ContainerFileSystemProvider.SCHEME + ":" + fs.getContainerFile().toUri() + "!" + toAbsolutePath().normalize());
+    }
+
+    @NotNull
+    @Override
+    public Path toAbsolutePath() {
+        return isAbsolute() ? this : of("/" + path);
+    }
+
+    @NotNull
+    @Override
+    public Path toRealPath(@NotNull LinkOption... options) throws IOException {
+        final ContainerPath real = (ContainerPath) toAbsolutePath().normalize();
+        fs.provider().checkAccess(real);
+        return real;
+    }
+
+    @NotNull
+    @Override
+    public WatchKey register(@NotNull WatchService watcher, @NotNull WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException("Watching project containers is not supported.");
+    }
+
+    @Override
+    public int compareTo(@NotNull Path other) {
+        return path.compareTo(((ContainerPath) other).path);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ContainerPath)) return false;
+        final ContainerPath that = (ContainerPath) o;
+        return fs == that.fs && path.equals(that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
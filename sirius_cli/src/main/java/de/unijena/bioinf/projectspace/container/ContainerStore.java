@@ -0,0 +1,758 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.container;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append only storage of a single file project container.
+ * <p>
+ * Every modification (file content, new directory, deletion, move) is appended as a checksummed record.
+ * On close an offset index of the live files followed by a fixed size trailer pointing to it is appended, so
+ * opening a cleanly closed container reads a single record. If the trailer is missing or broken (e.g. crash) the
+ * records are replayed from the beginning and the container is truncated after the last complete record.
+ * <p>
+ * File contents are read from memory mapped segments of the container, so reading does not copy the data
+ * unless it has been appended after the last (re)mapping.
+ * <p>
+ * Record layout: type (byte), time (long), path length (int), path (utf8), data length (long), data, crc32 (int)
+ * <p>
+ * Large structure candidate files can be stored compressed by a {@link BlockCodec}. A container is written as
+ * version 1 until the first compressed record is appended, so containers without compressed entries stay readable
+ * by older versions.
+ */
+final class ContainerStore extends EntryStore {
+    static final byte[] MAGIC = {'S', 'I', 'R', 'I', 'U', 'S', 'C', 0};
+    static final int VERSION = 2;
+    private static final int PLAIN_VERSION = 1;
+    static final int HEADER_SIZE = 16;
+
+    private static final byte FILE = 1, DIR = 2, DELETE = 3, MOVE = 4, INDEX = 5, TRAILER = 6, FILE_COMPRESSED = 7;
+    private static final int RECORD_OVERHEAD = 1 + 8 + 4 + 8 + 4;
+    private static final int TRAILER_SIZE = RECORD_OVERHEAD + 8;
+
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final long REMAP_THRESHOLD = 64L << 20;
+    private static final long MIN_COMPACTION_GARBAGE = 1L << 20;
+
+    private final Path file;
+    private final boolean readOnly;
+    private FileChannel channel;
+    private FileLock lock;
+    private int version = PLAIN_VERSION;
+    private volatile BlockCodec codec = BlockCodec.NONE;
+
+    private final TreeMap<String, Entry> files = new TreeMap<>();
+    private final TreeMap<String, Long> dirs = new TreeMap<>();
+    private long end;
+    private long garbage;
+    private boolean modified = false;
+
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private long mappedEnd = 0;
+
+    private final Object syncLock = new Object();
+    // end of the records that are known to be on disk and number of disk flushes by sync, guarded by syncLock
+    private long syncedEnd = 0;
+    private long syncFlushes = 0;
+
+    private ContainerStore(@NotNull Path file, boolean readOnly) {
+        this.file = file;
+        this.readOnly = readOnly;
+    }
+
+    static ContainerStore create(@NotNull Path file) throws IOException {
+        final ContainerStore store = new ContainerStore(file, false);
+        store.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        store.lock();
+        store.channel.write(header(PLAIN_VERSION), 0);
+        store.end = HEADER_SIZE;
+        store.dirs.put(ROOT, System.currentTimeMillis());
+        store.modified = true;
+        return store;
+    }
+
+    static ContainerStore open(@NotNull Path file, boolean readOnly) throws IOException {
+        final ContainerStore store = new ContainerStore(file, readOnly);
+        store.channel = readOnly ? FileChannel.open(file, StandardOpenOption.READ)
+                : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (!readOnly)
+                store.lock();
+            store.load();
+            store.remap();
+            return store;
+        } catch (IOException | RuntimeException e) {
+            store.closeChannel();
+            throw e;
+        }
+    }
+
+    static boolean hasMagic(@NotNull Path file) {
+        if (!Files.isRegularFile(file))
+            return false;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer buf = ByteBuffer.allocate(MAGIC.length);
+            while (buf.hasRemaining() && ch.read(buf) >= 0) ;
+            return Arrays.equals(buf.array(), MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static ByteBuffer header(int version) {
+        final ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE);
+        b.put(MAGIC).putInt(version).putInt(0).flip();
+        return b;
+    }
+
+    private void lock() throws IOException {
+        lock = channel.tryLock();
+        if (lock == null)
+            throw new IOException("Project container '" + file + "' is already opened for writing by another process.");
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @param codec codec for files written from now on, existing files are not recompressed
+     */
+    @Override
+    void setCodec(@NotNull BlockCodec codec) {
+        this.codec = codec;
+    }
+
+    //region lookup
+    synchronized boolean isOpen() {
+        return channel != null;
+    }
+
+    synchronized boolean isFile(String path) {
+        return files.containsKey(path);
+    }
+
+    synchronized boolean isDirectory(String path) {
+        return dirs.containsKey(path);
+    }
+
+    synchronized boolean exists(String path) {
+        return files.containsKey(path) || dirs.containsKey(path);
+    }
+
+    synchronized long size(String path) {
+        final Entry e = files.get(path);
+        return e != null ? e.size() : 0;
+    }
+
+    synchronized long lastModified(String path) {
+        final Entry e = files.get(path);
+        if (e != null)
+            return e.time;
+        final Long t = dirs.get(path);
+        return t != null ? t : 0;
+    }
+
+    synchronized void setLastModified(String path, long time) {
+        final Entry e = files.get(path);
+        if (e != null)
+            e.time = time;
+        else if (dirs.containsKey(path))
+            dirs.put(path, time);
+    }
+
+    synchronized List<String> list(String dir) throws IOException {
+        if (!dirs.containsKey(dir))
+            throw new NotDirectoryException(dir);
+        final String prefix = prefix(dir);
+        final List<String> children = new ArrayList<>();
+        collectChildren(dirs.tailMap(prefix, false).keySet(), prefix, children);
+        collectChildren(files.tailMap(prefix, false).keySet(), prefix, children);
+        return children;
+    }
+
+    private static void collectChildren(Set<String> sortedTail, String prefix, List<String> children) {
+        for (String p : sortedTail) {
+            if (!p.startsWith(prefix))
+                break;
+            final String rest = p.substring(prefix.length());
+            if (rest.indexOf('/') < 0)
+                children.add(rest);
+        }
+    }
+
+    /**
+     * @return all files below the given directory
+     */
+    synchronized List<String> filesBelow(String dir) {
+        final String prefix = prefix(dir);
+        final List<String> below = new ArrayList<>();
+        for (String p : files.tailMap(prefix, false).keySet()) {
+            if (!p.startsWith(prefix))
+                break;
+            below.add(p);
+        }
+        return below;
+    }
+
+    private boolean hasChildren(String dir) {
+        final String prefix = prefix(dir);
+        final String nf = files.ceilingKey(prefix), nd = dirs.higherKey(prefix);
+        return (nf != null && nf.startsWith(prefix)) || (nd != null && nd.startsWith(prefix));
+    }
+
+    ByteBuffer read(String path) throws IOException {
+        final Entry e;
+        final ByteBuffer stored;
+        synchronized (this) {
+            ensureOpen();
+            e = files.get(path);
+            if (e == null)
+                throw new NoSuchFileException(path);
+            stored = readStored(e);
+        }
+        // decompress outside the lock
+        return e.isCompressed() ? BlockCodec.decode(stored) : stored;
+    }
+
+    /**
+     * @return read only view on the data of the given entry as it is stored in the container
+     */
+    private ByteBuffer readStored(Entry e) throws IOException {
+        if (e.length == 0)
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        if (e.offset + e.length > mappedEnd && end - mappedEnd > REMAP_THRESHOLD)
+            remap();
+
+        final int seg = (int) (e.offset / SEGMENT_SIZE);
+        final long segStart = seg * SEGMENT_SIZE;
+        if (e.offset + e.length <= mappedEnd && (e.offset + e.length - 1) / SEGMENT_SIZE == seg) {
+            final ByteBuffer b = segments.get(seg).duplicate();
+            b.position((int) (e.offset - segStart)).limit((int) (e.offset - segStart + e.length));
+            return b.slice().asReadOnlyBuffer();
+        }
+        // not (completely) mapped yet or crossing a segment boundary
+        final ByteBuffer b = ByteBuffer.allocate(Math.toIntExact(e.length));
+        readFully(b, e.offset);
+        return b.flip().asReadOnlyBuffer();
+    }
+
+    private void remap() throws IOException {
+        final int full = (int) (mappedEnd / SEGMENT_SIZE);
+        while (segments.size() > full)
+            segments.remove(segments.size() - 1);
+        for (long pos = full * SEGMENT_SIZE; pos < end; pos += SEGMENT_SIZE)
+            segments.add(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(SEGMENT_SIZE, end - pos)));
+        mappedEnd = end;
+    }
+    //endregion
+
+    //region modifications
+    void writeFile(String path, byte[] content, int length) throws IOException {
+        final BlockCodec codec = this.codec;
+        if (codec != BlockCodec.NONE && BlockCodec.isCompressible(path, length)) {
+            // compress outside the lock, it is the expensive part
+            final byte[] encoded = codec.encode(content, length);
+            if (encoded.length < length) {
+                writeEntry(FILE_COMPRESSED, path, encoded, encoded.length, length);
+                return;
+            }
+        }
+        writeEntry(FILE, path, content, length, -1);
+    }
+
+    private synchronized void writeEntry(byte type, String path, byte[] data, int length, long rawLength) throws IOException {
+        checkWritable();
+        if (type == FILE_COMPRESSED)
+            upgradeVersion();
+        final long time = System.currentTimeMillis();
+        final long dataOffset = append(type, time, path, data, length);
+        final Entry old = files.put(path, new Entry(dataOffset, length, rawLength, time));
+        if (old != null)
+            garbage += RECORD_OVERHEAD + path.length() + old.length;
+    }
+
+    /**
+     * Marks the container as containing compressed records, so that older versions refuse to open it
+     * instead of discarding these records as corrupted.
+     */
+    private void upgradeVersion() throws IOException {
+        if (version >= VERSION)
+            return;
+        writeFully(ByteBuffer.allocate(4).putInt(VERSION).flip(), MAGIC.length);
+        version = VERSION;
+    }
+
+    synchronized void createDirectory(String path) throws IOException {
+        checkWritable();
+        final long time = System.currentTimeMillis();
+        append(DIR, time, path, null, 0);
+        dirs.put(path, time);
+    }
+
+    synchronized void delete(String path) throws IOException {
+        checkWritable();
+        if (dirs.containsKey(path) && hasChildren(path))
+            throw new DirectoryNotEmptyException(path);
+        append(DELETE, System.currentTimeMillis(), path, null, 0);
+        garbage += removeTree(path);
+    }
+
+    synchronized void move(String source, String target) throws IOException {
+        checkWritable();
+        append(MOVE, System.currentTimeMillis(), source, target.getBytes(StandardCharsets.UTF_8), -1);
+        garbage += removeTree(target);
+        moveTree(source, target);
+    }
+
+    /**
+     * Appends a record without changing the index.
+     *
+     * @return offset of the record data
+     */
+    private long append(byte type, long time, String path, @Nullable byte[] data, int length) throws IOException {
+        ensureOpen();
+        final byte[] p = path.getBytes(StandardCharsets.UTF_8);
+        final int dataLength = data == null ? 0 : length < 0 ? data.length : length;
+        final ByteBuffer head = ByteBuffer.allocate(1 + 8 + 4 + p.length + 8);
+        head.put(type).putLong(time).putInt(p.length).put(p).putLong(dataLength).flip();
+
+        final CRC32 crc = new CRC32();
+        crc.update(head.duplicate());
+        if (dataLength > 0)
+            crc.update(data, 0, dataLength);
+        final ByteBuffer tail = ByteBuffer.allocate(4);
+        tail.putInt((int) crc.getValue()).flip();
+
+        final long dataOffset = end + head.remaining();
+        long pos = end;
+        pos += writeFully(head, pos);
+        if (dataLength > 0)
+            pos += writeFully(ByteBuffer.wrap(data, 0, dataLength), pos);
+        pos += writeFully(tail, pos);
+        end = pos;
+        modified = true;
+        return dataOffset;
+    }
+
+    /**
+     * Group commit: whoever holds the sync lock forces all records appended up to then, so concurrent callers
+     * whose records have been covered by that force return without forcing again. Appending is not blocked
+     * while forcing. After a crash the container is replayed up to the last complete record.
+     */
+    void sync() throws IOException {
+        final long target;
+        synchronized (this) {
+            if (readOnly)
+                return;
+            ensureOpen();
+            target = end;
+        }
+        synchronized (syncLock) {
+            if (syncedEnd >= target)
+                return;
+            final FileChannel ch;
+            final long upTo;
+            synchronized (this) {
+                ensureOpen();
+                ch = channel;
+                upTo = end;
+            }
+            ch.force(false);
+            syncedEnd = upTo;
+            syncFlushes++;
+        }
+    }
+
+    long getSyncFlushes() {
+        synchronized (syncLock) {
+            return syncFlushes;
+        }
+    }
+
+    long getSyncedEnd() {
+        synchronized (syncLock) {
+            return syncedEnd;
+        }
+    }
+
+    private int writeFully(ByteBuffer b, long pos) throws IOException {
+        final int n = b.remaining();
+        while (b.hasRemaining())
+            pos += channel.write(b, pos);
+        return n;
+    }
+
+    private void readFully(ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            final int r = channel.read(b, pos);
+            if (r < 0)
+                throw new EOFException("Unexpected end of project container '" + file + "'.");
+            pos += r;
+        }
+    }
+
+    private long removeTree(String path) {
+        long freed = 0;
+        final Entry e = files.remove(path);
+        if (e != null)
+            freed += RECORD_OVERHEAD + path.length() + e.length;
+        dirs.remove(path);
+        final String prefix = prefix(path);
+        for (Iterator<Map.Entry<String, Entry>> it = files.tailMap(prefix, false).entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<String, Entry> c = it.next();
+            if (!c.getKey().startsWith(prefix))
+                break;
+            freed += RECORD_OVERHEAD + c.getKey().length() + c.getValue().length;
+            it.remove();
+        }
+        dirs.tailMap(prefix, false).keySet().removeIf(k -> k.startsWith(prefix));
+        return freed;
+    }
+
+    private void moveTree(String source, String target) {
+        final Entry e = files.remove(source);
+        if (e != null)
+            files.put(target, e);
+        final Long t = dirs.remove(source);
+        if (t != null) {
+            dirs.put(target, t);
+            final String sp = prefix(source), tp = prefix(target);
+            final Map<String, Entry> movedFiles = new HashMap<>();
+            for (Iterator<Map.Entry<String, Entry>> it = files.tailMap(sp, false).entrySet().iterator(); it.hasNext(); ) {
+                final Map.Entry<String, Entry> c = it.next();
+                if (!c.getKey().startsWith(sp))
+                    break;
+                movedFiles.put(tp + c.getKey().substring(sp.length()), c.getValue());
+                it.remove();
+            }
+            final Map<String, Long> movedDirs = new HashMap<>();
+            for (Iterator<Map.Entry<String, Long>> it = dirs.tailMap(sp, false).entrySet().iterator(); it.hasNext(); ) {
+                final Map.Entry<String, Long> c = it.next();
+                if (!c.getKey().startsWith(sp))
+                    break;
+                movedDirs.put(tp + c.getKey().substring(sp.length()), c.getValue());
+                it.remove();
+            }
+            files.putAll(movedFiles);
+            dirs.putAll(movedDirs);
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (readOnly)
+            throw new ReadOnlyFileSystemException();
+        ensureOpen();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (channel == null)
+            throw new ClosedFileSystemException();
+    }
+    //endregion
+
+    //region loading
+    private void load() throws IOException {
+        final long size = channel.size();
+        final ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+        if (size < HEADER_SIZE)
+            throw new IOException("'" + file + "' is not a SIRIUS project container.");
+        readFully(h, 0);
+        h.flip();
+        final byte[] magic = new byte[MAGIC.length];
+        h.get(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException("'" + file + "' is not a SIRIUS project container.");
+        version = h.getInt();
+        if (version > VERSION)
+            throw new IOException("Project container '" + file + "' has version " + version + " but only version <= " + VERSION + " is supported. Please update SIRIUS.");
+
+        if (!loadIndex(size))
+            replay(size);
+        dirs.putIfAbsent(ROOT, 0L);
+    }
+
+    private boolean loadIndex(long size) {
+        if (size < HEADER_SIZE + TRAILER_SIZE)
+            return false;
+        try {
+            final Record trailer = readRecord(size - TRAILER_SIZE, size);
+            if (trailer == null || trailer.type != TRAILER || trailer.next != size)
+                return false;
+            final long indexOffset = ByteBuffer.wrap(trailer.data).getLong();
+            final Record index = readRecord(indexOffset, size);
+            if (index == null || index.type != INDEX)
+                return false;
+
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.data))) {
+                garbage = in.readLong();
+                final int nFiles = in.readInt();
+                for (int i = 0; i < nFiles; i++) {
+                    final String path = in.readUTF();
+                    final long offset = in.readLong(), length = in.readLong(), time = in.readLong();
+                    files.put(path, new Entry(offset, length, version > PLAIN_VERSION ? in.readLong() : -1, time));
+                }
+                final int nDirs = in.readInt();
+                for (int i = 0; i < nDirs; i++)
+                    dirs.put(in.readUTF(), in.readLong());
+            }
+            // index and trailer become garbage as soon as something is appended.
+            garbage += size - indexOffset;
+            end = size;
+            return true;
+        } catch (IOException e) {
+            LoggerFactory.getLogger(getClass()).warn("Could not read index of project container '" + file + "'. Rebuilding index from records.", e);
+            files.clear();
+            dirs.clear();
+            garbage = 0;
+            return false;
+        }
+    }
+
+    private void replay(long size) throws IOException {
+        long pos = HEADER_SIZE;
+        while (pos < size) {
+            final Record r = readRecord(pos, size);
+            if (r == null)
+                break;
+            switch (r.type) {
+                case FILE:
+                case FILE_COMPRESSED:
+                    final long rawLength = r.type == FILE_COMPRESSED ? BlockCodec.rawLength(ByteBuffer.wrap(r.data)) : -1;
+                    final Entry old = files.put(r.path, new Entry(r.dataOffset, r.data.length, rawLength, r.time));
+                    if (old != null)
+                        garbage += RECORD_OVERHEAD + r.path.length() + old.length;
+                    break;
+                case DIR:
+                    dirs.put(r.path, r.time);
+                    break;
+                case DELETE:
+                    garbage += removeTree(r.path);
+                    break;
+                case MOVE:
+                    final String target = new String(r.data, StandardCharsets.UTF_8);
+                    garbage += removeTree(target);
+                    moveTree(r.path, target);
+                    break;
+                default: // index and trailer of earlier sessions
+                    garbage += r.next - pos;
+            }
+            pos = r.next;
+        }
+        end = pos;
+
+        if (pos < size) {
+            LoggerFactory.getLogger(getClass()).warn("Project container '" + file + "' was not closed properly. "
+                    + (size - pos) + " bytes of incomplete data at the end will be discarded.");
+            if (!readOnly)
+                channel.truncate(pos);
+        }
+        modified = !readOnly;
+    }
+
+    /**
+     * @return the record at the given position or null if it is incomplete or corrupted.
+     */
+    @Nullable
+    private Record readRecord(long pos, long size) throws IOException {
+        if (pos + RECORD_OVERHEAD > size)
+            return null;
+        final ByteBuffer fixed = ByteBuffer.allocate(1 + 8 + 4);
+        readFully(fixed, pos);
+        fixed.flip();
+        final Record r = new Record();
+        r.type = fixed.get();
+        r.time = fixed.getLong();
+        final int pathLength = fixed.getInt();
+        if (r.type < FILE || r.type > FILE_COMPRESSED || pathLength < 0 || pos + RECORD_OVERHEAD + pathLength > size)
+            return null;
+
+        final ByteBuffer pathAndLength = ByteBuffer.allocate(pathLength + 8);
+        readFully(pathAndLength, pos + fixed.limit());
+        pathAndLength.flip();
+        final long dataLength = pathAndLength.getLong(pathLength);
+        r.dataOffset = pos + fixed.limit() + pathAndLength.limit();
+        if (dataLength < 0 || dataLength > Integer.MAX_VALUE || r.dataOffset + dataLength + 4 > size)
+            return null;
+
+        final ByteBuffer data = ByteBuffer.allocate((int) dataLength);
+        readFully(data, r.dataOffset);
+        final ByteBuffer crcBuf = ByteBuffer.allocate(4);
+        readFully(crcBuf, r.dataOffset + dataLength);
+
+        final CRC32 crc = new CRC32();
+        crc.update(fixed.flip());
+        crc.update(pathAndLength.duplicate());
+        crc.update(data.array());
+        if ((int) crc.getValue() != crcBuf.flip().getInt())
+            return null;
+
+        r.path = new String(pathAndLength.array(), 0, pathLength, StandardCharsets.UTF_8);
+        r.data = data.array();
+        r.next = r.dataOffset + dataLength + 4;
+        return r;
+    }
+    //endregion
+
+    //region closing
+    /**
+     * @return true if more than half of the container (and at least 1 MiB) is occupied by outdated records.
+     */
+    synchronized boolean needsCompaction() {
+        return garbage > MIN_COMPACTION_GARBAGE && garbage > end / 2;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null)
+            return;
+        try {
+            if (!readOnly && modified) {
+                if (needsCompaction()) {
+                    compact();
+                    return;
+                }
+                writeIndex();
+                channel.force(false);
+            }
+        } finally {
+            closeChannel();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(garbage);
+            out.writeInt(files.size());
+            for (Map.Entry<String, Entry> e : files.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().offset);
+                out.writeLong(e.getValue().length);
+                out.writeLong(e.getValue().time);
+                if (version > PLAIN_VERSION)
+                    out.writeLong(e.getValue().rawLength);
+            }
+            out.writeInt(dirs.size());
+            for (Map.Entry<String, Long> e : dirs.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue());
+            }
+        }
+        final long indexOffset = end;
+        append(INDEX, System.currentTimeMillis(), "", bytes.toByteArray(), -1);
+        append(TRAILER, System.currentTimeMillis(), "", ByteBuffer.allocate(8).putLong(indexOffset).array(), -1);
+    }
+
+    /**
+     * Rewrites the live entries into a new container and replaces this one with it.
+     */
+    private void compact() throws IOException {
+        final Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        Files.delete(tmp);
+        try (ContainerStore target = create(tmp)) {
+            target.dirs.clear();
+            for (Map.Entry<String, Long> d : dirs.entrySet()) {
+                target.append(DIR, d.getValue(), d.getKey(), null, 0);
+                target.dirs.put(d.getKey(), d.getValue());
+            }
+            for (Map.Entry<String, Entry> f : files.entrySet()) {
+                // compressed entries are copied as they are
+                final Entry e = f.getValue();
+                final ByteBuffer content = readStored(e);
+                final byte[] data = new byte[content.remaining()];
+                content.get(data);
+                if (e.isCompressed())
+                    target.upgradeVersion();
+                final long offset = target.append(e.isCompressed() ? FILE_COMPRESSED : FILE, e.time, f.getKey(), data, -1);
+                target.files.put(f.getKey(), new Entry(offset, data.length, e.rawLength, e.time));
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        closeChannel();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void closeChannel() throws IOException {
+        segments.clear();
+        mappedEnd = 0;
+        if (channel != null) {
+            try {
+                if (lock != null && lock.isValid())
+                    lock.release();
+            } finally {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+    //endregion
+
+    private static final class Entry {
+        private final long offset;
+        private final long length;
+        // length of the decoded content, -1 if stored uncompressed
+        private final long rawLength;
+        private long time;
+
+        private Entry(long offset, long length, long rawLength, long time) {
+            this.offset = offset;
+            this.length = length;
+            this.rawLength = rawLength;
+            this.time = time;
+        }
+
+        private boolean isCompressed() {
+            return rawLength >= 0;
+        }
+
+        private long size() {
+            return isCompressed() ? rawLength : length;
+        }
+    }
+
+    private static final class Record {
+        private byte type;
+        private long time;
+        private String path;
+        private byte[] data;
+        private long dataOffset;
+        private long next;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.container;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Storage behind a {@link ContainerFileSystem}. Paths are normalized absolute paths (see {@link ContainerPath#storePath()}).
+ */
+abstract class EntryStore implements Closeable {
+    static final String ROOT = "/";
+
+    abstract Path getFile();
+
+    abstract boolean isReadOnly();
+
+    /**
+     * @param codec codec for files written from now on, ignored by stores without compression support
+     */
+    void setCodec(@NotNull BlockCodec codec) {
+    }
+
+    abstract boolean isFile(String path);
+
+    abstract boolean isDirectory(String path);
+
+    abstract boolean exists(String path);
+
+    abstract long size(String path);
+
+    abstract long lastModified(String path);
+
+    abstract void setLastModified(String path, long time);
+
+    /**
+     * @return names of the direct children of the given directory
+     */
+    abstract List<String> list(String dir) throws IOException;
+
+    /**
+     * @return read only view on the content of the given file
+     */
+    abstract ByteBuffer read(String path) throws IOException;
+
+    abstract void writeFile(String path, byte[] content, int length) throws IOException;
+
+    abstract void createDirectory(String path) throws IOException;
+
+    abstract void delete(String path) throws IOException;
+
+    /**
+     * Moves a file or directory tree, an existing target is replaced.
+     */
+    abstract void move(String source, String target) throws IOException;
+
+    /**
+     * Forces all modifications written so far to disk.
+     */
+    abstract void sync() throws IOException;
+
+    static String prefix(String dir) {
+        return dir.equals(ROOT) ? ROOT : dir + "/";
+    }
+}
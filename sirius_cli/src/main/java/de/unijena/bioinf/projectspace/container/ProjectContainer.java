@@ -0,0 +1,194 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.container;
+
+import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.projectspace.ProjectSpaceIO;
+import de.unijena.bioinf.projectspace.SiriusProjectSpace;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Single file project container: an append structured file holding all files of a project space together with an
+ * offset index. It is read via memory mapping and exposed as {@link ContainerFileSystem}, so the project space
+ * and all registered component serializers work on it without any changes.
+ * <p>
+ * Containers are recognized by their content, new containers are created for locations ending with {@link #EXTENSION}.
+ * <p>
+ * Existing zip compressed projects can be opened the same way (random access, opt-in via
+ * {@link #RANDOM_ACCESS_ZIP_KEY}), so they do not have to be extracted. Since the zip file is rewritten on close,
+ * this is disabled by default.
+ */
+public final class ProjectContainer {
+    public static final String EXTENSION = ".siriusc";
+    public static final String RANDOM_ACCESS_ZIP_KEY = "de.unijena.bioinf.sirius.project.zip.randomAccess";
+
+    private ProjectContainer() {
+    }
+
+    public static boolean isContainer(@NotNull Path location) {
+        return location.getFileSystem() == FileSystems.getDefault() && ContainerStore.hasMagic(location);
+    }
+
+    /**
+     * @return true if the location is an existing container or a new container would be created at this location
+     */
+    public static boolean isContainerLocation(@NotNull Path location) {
+        if (Files.exists(location))
+            return isContainer(location);
+        final Path name = location.getFileName();
+        return name != null && name.toString().toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * @return true if the location is a zip compressed project that is opened as {@link ContainerFileSystem}
+     */
+    public static boolean isRandomAccessZip(@NotNull Path location) {
+        return PropertyManager.getBoolean(RANDOM_ACCESS_ZIP_KEY, false) && ZipStore.isZip(location) && ProjectSpaceIO.isZipProjectSpace(location);
+    }
+
+    public static boolean isExistingProject(@NotNull Path location) {
+        return isContainer(location) || ProjectSpaceIO.isExistingProjectspaceDirectory(location) || ProjectSpaceIO.isZipProjectSpace(location);
+    }
+
+    /**
+     * Opens the container file system. The returned root has to be closed via {@link #closeFileSystem(Path)}.
+     */
+    public static Path openRoot(@NotNull Path containerFile, boolean create) throws IOException {
+        return ContainerFileSystemProvider.INSTANCE.acquire(containerFile, create, false).getRoot();
+    }
+
+    public static SiriusProjectSpace openExistingProjectSpace(@NotNull ProjectSpaceIO io, @NotNull Path location) throws IOException {
+        if (!isContainer(location) && !isRandomAccessZip(location))
+            return io.openExistingProjectSpace(location);
+        final Path root = openRoot(location, false);
+        try {
+            return io.openExistingProjectSpace(root);
+        } catch (IOException | RuntimeException e) {
+            closeFileSystem(root);
+            throw e;
+        }
+    }
+
+    public static SiriusProjectSpace createNewProjectSpace(@NotNull ProjectSpaceIO io, @NotNull Path location) throws IOException {
+        if (!isContainerLocation(location))
+            return io.createNewProjectSpace(location);
+        final Path root = openRoot(location, true);
+        try {
+            return io.createNewProjectSpace(root);
+        } catch (IOException | RuntimeException e) {
+            closeFileSystem(root);
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the container file system of the given project path. Does nothing for other file systems.
+     */
+    public static void closeFileSystem(@NotNull Path projectPath) throws IOException {
+        if (projectPath.getFileSystem() instanceof ContainerFileSystem)
+            projectPath.getFileSystem().close();
+    }
+
+    /**
+     * Makes all files written to the given project so far crash safe. Concurrent calls are combined into a single
+     * disk flush. Does nothing for projects that are not stored in a container.
+     */
+    public static void sync(@NotNull Path projectPath) throws IOException {
+        if (projectPath.getFileSystem() instanceof ContainerFileSystem)
+            ((ContainerFileSystem) projectPath.getFileSystem()).sync();
+    }
+
+    /**
+     * @return the container file for paths within a container, the given path otherwise
+     */
+    public static Path locationOf(@NotNull Path projectPath) {
+        if (projectPath.getFileSystem() instanceof ContainerFileSystem)
+            return ((ContainerFileSystem) projectPath.getFileSystem()).getContainerFile();
+        return projectPath;
+    }
+
+    /**
+     * Converts a project between the directory, zip and container format. The format of the target is selected by
+     * its name: {@link #EXTENSION} creates a container, ".sirius" and ".zip" a compressed project, everything else
+     * a project directory.
+     *
+     * @param source existing project in any format
+     * @param target non existing location
+     */
+    public static void convert(@NotNull Path source, @NotNull Path target) throws IOException {
+        if (Files.exists(target))
+            throw new FileAlreadyExistsException(target.toString());
+        final Path sourceRoot = isContainer(source) ? ContainerFileSystemProvider.INSTANCE.acquire(source, false, true).getRoot()
+                : FileUtils.isZipArchive(source) ? FileUtils.asZipFS(source, false) : source;
+        try {
+            if (!ProjectSpaceIO.isExistingProjectspaceDirectory(sourceRoot))
+                throw new IOException("'" + source + "' is no valid SIRIUS project space.");
+
+            final String name = target.getFileName().toString().toLowerCase();
+            final Path targetRoot;
+            if (name.endsWith(EXTENSION)) {
+                targetRoot = openRoot(target, true);
+            } else if (name.endsWith(".sirius") || name.endsWith(".zip")) {
+                targetRoot = FileSystems.newFileSystem(URI.create("jar:" + target.toAbsolutePath().toUri()), Map.of("create", "true")).getPath("/");
+            } else {
+                targetRoot = Files.createDirectories(target);
+            }
+
+            try {
+                final long files = copyTree(sourceRoot, targetRoot);
+                LoggerFactory.getLogger(ProjectContainer.class).info("Converted project '" + source + "' to '" + target + "' (" + files + " files).");
+            } finally {
+                FileUtils.closeIfNotDefaultFS(targetRoot);
+            }
+        } finally {
+            FileUtils.closeIfNotDefaultFS(sourceRoot);
+        }
+    }
+
+    private static long copyTree(Path sourceRoot, Path targetRoot) throws IOException {
+        long files = 0;
+        try (Stream<Path> walk = Files.walk(sourceRoot)) {
+            for (Iterator<Path> it = walk.iterator(); it.hasNext(); ) {
+                final Path s = it.next();
+                Path t = targetRoot;
+                for (Path n : sourceRoot.relativize(s))
+                    if (!n.toString().isEmpty())
+                        t = t.resolve(n.toString());
+
+                if (Files.isDirectory(s)) {
+                    Files.createDirectories(t);
+                } else {
+                    Files.copy(s, t, StandardCopyOption.REPLACE_EXISTING);
+                    files++;
+                }
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,779 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.container;
+
+import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Random access storage of a zip compressed project (".sirius"), so that it can be used without extracting it.
+ * <p>
+ * The central directory is read from a memory mapping of the zip file. Stored entries are served as slices of the
+ * mapped file, deflated entries are inflated on access.
+ * <p>
+ * Modifications are appended to an overflow container next to the zip file ({@link #OVERFLOW_SUFFIX}) that shadows
+ * the zip entries. Deleted zip entries are recorded as empty tombstone files in the overflow. On close the live zip
+ * entries (copied without recompression) and the overflow are merged into a temporary zip file. It is flushed to disk
+ * and atomically moved over the old one, the overflow is deleted afterwards. A crash at any point leaves either the
+ * old zip file with its overflow, which is picked up again on the next open, or the complete new zip file.
+ */
+final class ZipStore extends EntryStore {
+    static final String OVERFLOW_SUFFIX = ".overflow";
+    private static final String TOMBSTONES = "/.zip-deleted";
+
+    private static final int LOCAL_HEADER = 0x04034b50, CENTRAL_HEADER = 0x02014b50, END = 0x06054b50,
+            ZIP64_END = 0x06064b50, ZIP64_LOCATOR = 0x07064b50;
+    private static final int STORED = 0, DEFLATED = 8;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int END_SIZE = 22, LOCAL_HEADER_SIZE = 30, CENTRAL_HEADER_SIZE = 46;
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final Path file;
+    private final boolean readOnly;
+    private FileChannel channel;
+    private FileLock lock;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private long size;
+    private BlockCodec codec = BlockCodec.NONE;
+
+    private final TreeMap<String, Entry> files = new TreeMap<>();
+    private final TreeMap<String, Long> dirs = new TreeMap<>();
+    private final Set<String> deleted = new HashSet<>();
+    @Nullable
+    private ContainerStore overflow;
+
+    private ZipStore(@NotNull Path file, boolean readOnly) {
+        this.file = file;
+        this.readOnly = readOnly;
+    }
+
+    static boolean isZip(@NotNull Path file) {
+        return file.getFileSystem() == FileSystems.getDefault() && Files.isRegularFile(file) && FileUtils.isZipArchive(file);
+    }
+
+    static ZipStore open(@NotNull Path file, boolean readOnly) throws IOException {
+        final ZipStore store = new ZipStore(file, readOnly);
+        store.channel = readOnly ? FileChannel.open(file, StandardOpenOption.READ)
+                : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (!readOnly) {
+                store.lock = store.channel.tryLock();
+                if (store.lock == null)
+                    throw new IOException("Project '" + file + "' is already opened for writing by another process.");
+            }
+            store.map();
+            store.readCentralDirectory();
+            store.openOverflow();
+            return store;
+        } catch (IOException | RuntimeException e) {
+            store.closeChannel();
+            throw e;
+        }
+    }
+
+    Path overflowFile() {
+        return file.resolveSibling(file.getFileName().toString() + OVERFLOW_SUFFIX);
+    }
+
+    @Override
+    Path getFile() {
+        return file;
+    }
+
+    @Override
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    synchronized void setCodec(@NotNull BlockCodec codec) {
+        this.codec = codec;
+        if (overflow != null && !readOnly)
+            overflow.setCodec(codec);
+    }
+
+    //region loading
+    private void map() throws IOException {
+        size = channel.size();
+        for (long pos = 0; pos < size; pos += SEGMENT_SIZE)
+            segments.add(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(SEGMENT_SIZE, size - pos)));
+    }
+
+    private void readCentralDirectory() throws IOException {
+        // the end record is followed by a comment of at most 64 KiB
+        long end = -1;
+        for (long pos = size - END_SIZE; pos >= Math.max(0, size - END_SIZE - 0xFFFF); pos--) {
+            if (at(pos, 4).getInt() == END) {
+                end = pos;
+                break;
+            }
+        }
+        if (end < 0)
+            throw new IOException("'" + file + "' is not a valid zip file.");
+
+        final ByteBuffer e = at(end, END_SIZE);
+        long count = e.getShort(10) & 0xFFFF;
+        long cdSize = e.getInt(12) & ZIP64_MAGIC;
+        long cdOffset = e.getInt(16) & ZIP64_MAGIC;
+        if ((count == 0xFFFF || cdSize == ZIP64_MAGIC || cdOffset == ZIP64_MAGIC) && end >= 20 && at(end - 20, 4).getInt() == ZIP64_LOCATOR) {
+            final ByteBuffer z = at(at(end - 20, 20).getLong(8), 56);
+            if (z.getInt(0) != ZIP64_END)
+                throw new IOException("Corrupted zip64 end record in '" + file + "'.");
+            count = z.getLong(32);
+            cdSize = z.getLong(40);
+            cdOffset = z.getLong(48);
+        }
+        if (cdOffset + cdSize > end || cdSize > Integer.MAX_VALUE)
+            throw new IOException("Corrupted central directory in '" + file + "'.");
+
+        dirs.put(ROOT, 0L);
+        final ByteBuffer cd = channel.map(FileChannel.MapMode.READ_ONLY, cdOffset, cdSize).order(ByteOrder.LITTLE_ENDIAN);
+        int p = 0;
+        for (long i = 0; i < count; i++) {
+            if (p + CENTRAL_HEADER_SIZE > cd.limit() || cd.getInt(p) != CENTRAL_HEADER)
+                throw new IOException("Corrupted central directory in '" + file + "'.");
+            final int method = cd.getShort(p + 10) & 0xFFFF;
+            final int dosTime = cd.getInt(p + 12);
+            final int crc = cd.getInt(p + 16);
+            long compressed = cd.getInt(p + 20) & ZIP64_MAGIC;
+            long length = cd.getInt(p + 24) & ZIP64_MAGIC;
+            final int nameLength = cd.getShort(p + 28) & 0xFFFF, extraLength = cd.getShort(p + 30) & 0xFFFF,
+                    commentLength = cd.getShort(p + 32) & 0xFFFF;
+            long localOffset = cd.getInt(p + 42) & ZIP64_MAGIC;
+
+            final byte[] name = new byte[nameLength];
+            cd.duplicate().position(p + CENTRAL_HEADER_SIZE).get(name);
+            final int extraEnd = p + CENTRAL_HEADER_SIZE + nameLength + extraLength;
+            for (int x = p + CENTRAL_HEADER_SIZE + nameLength; x + 4 <= extraEnd; x += 4 + (cd.getShort(x + 2) & 0xFFFF)) {
+                if ((cd.getShort(x) & 0xFFFF) != 1)
+                    continue;
+                // zip64 extended information, only the fields that overflowed are present
+                int q = x + 4;
+                if (length == ZIP64_MAGIC) {
+                    length = cd.getLong(q);
+                    q += 8;
+                }
+                if (compressed == ZIP64_MAGIC) {
+                    compressed = cd.getLong(q);
+                    q += 8;
+                }
+                if (localOffset == ZIP64_MAGIC)
+                    localOffset = cd.getLong(q);
+            }
+            p = extraEnd + commentLength;
+            add(new String(name, StandardCharsets.UTF_8), new Entry(method, crc, compressed, length, localOffset, fromDosTime(dosTime)));
+        }
+    }
+
+    private void add(String name, Entry e) {
+        final String path = normalize(name);
+        if (path == null) {
+            LoggerFactory.getLogger(getClass()).warn("Skipping invalid entry '" + name + "' in '" + file + "'.");
+            return;
+        }
+        if (name.endsWith("/"))
+            dirs.put(path, e.time);
+        else
+            files.put(path, e);
+        for (String parent = parent(path); parent != null && !dirs.containsKey(parent); parent = parent(parent))
+            dirs.put(parent, e.time);
+    }
+
+    @Nullable
+    private static String normalize(String name) {
+        final StringBuilder path = new StringBuilder();
+        for (String s : name.replace('\\', '/').split("/")) {
+            if (s.isEmpty() || s.equals("."))
+                continue;
+            if (s.equals(".."))
+                return null;
+            path.append('/').append(s);
+        }
+        return path.length() == 0 ? null : path.toString();
+    }
+
+    @Nullable
+    private static String parent(String path) {
+        if (path.equals(ROOT))
+            return null;
+        final int i = path.lastIndexOf('/');
+        return i <= 0 ? ROOT : path.substring(0, i);
+    }
+
+    private void openOverflow() throws IOException {
+        final Path f = overflowFile();
+        if (Files.notExists(f))
+            return;
+        overflow = ContainerStore.open(f, readOnly);
+        for (String t : overflow.filesBelow(TOMBSTONES))
+            deleted.add(t.substring(TOMBSTONES.length()));
+        LoggerFactory.getLogger(getClass()).warn("Project '" + file + "' was not closed properly. Using modifications from '" + f + "'.");
+    }
+    //endregion
+
+    //region lookup
+    @Nullable
+    private Entry zipFile(String path) {
+        return deleted.contains(path) ? null : files.get(path);
+    }
+
+    private boolean isZipDirectory(String path) {
+        return dirs.containsKey(path) && !deleted.contains(path);
+    }
+
+    @Override
+    synchronized boolean isFile(String path) {
+        return (overflow != null && overflow.isFile(path)) || zipFile(path) != null;
+    }
+
+    @Override
+    synchronized boolean isDirectory(String path) {
+        return (overflow != null && overflow.isDirectory(path)) || isZipDirectory(path);
+    }
+
+    @Override
+    synchronized boolean exists(String path) {
+        return isFile(path) || isDirectory(path);
+    }
+
+    @Override
+    synchronized long size(String path) {
+        if (overflow != null && overflow.isFile(path))
+            return overflow.size(path);
+        final Entry e = zipFile(path);
+        return e != null ? e.length : 0;
+    }
+
+    @Override
+    synchronized long lastModified(String path) {
+        if (overflow != null && overflow.exists(path))
+            return overflow.lastModified(path);
+        final Entry e = zipFile(path);
+        if (e != null)
+            return e.time;
+        return isZipDirectory(path) ? dirs.get(path) : 0;
+    }
+
+    @Override
+    synchronized void setLastModified(String path, long time) {
+        if (overflow != null && overflow.exists(path)) {
+            overflow.setLastModified(path, time);
+        } else {
+            final Entry e = zipFile(path);
+            if (e != null)
+                e.time = time;
+            else if (isZipDirectory(path))
+                dirs.put(path, time);
+        }
+    }
+
+    @Override
+    synchronized List<String> list(String dir) throws IOException {
+        if (!isDirectory(dir))
+            throw new NotDirectoryException(dir);
+        final TreeSet<String> children = new TreeSet<>();
+        if (overflow != null && overflow.isDirectory(dir))
+            children.addAll(overflow.list(dir));
+        final String prefix = prefix(dir);
+        collectChildren(dirs.tailMap(prefix, false).keySet(), prefix, children);
+        collectChildren(files.tailMap(prefix, false).keySet(), prefix, children);
+        return new ArrayList<>(children);
+    }
+
+    private void collectChildren(Set<String> sortedTail, String prefix, Set<String> children) {
+        for (String p : sortedTail) {
+            if (!p.startsWith(prefix))
+                break;
+            final String rest = p.substring(prefix.length());
+            if (rest.indexOf('/') < 0 && !deleted.contains(p))
+                children.add(rest);
+        }
+    }
+
+    /**
+     * Collects the live zip directories and files of the given tree, parents before their children.
+     */
+    private void collectTree(String path, List<String> treeDirs, List<String> treeFiles) {
+        final String prefix = prefix(path);
+        if (isZipDirectory(path))
+            treeDirs.add(path);
+        for (String d : dirs.tailMap(prefix, false).keySet()) {
+            if (!d.startsWith(prefix))
+                break;
+            if (!deleted.contains(d))
+                treeDirs.add(d);
+        }
+        if (zipFile(path) != null)
+            treeFiles.add(path);
+        for (String f : files.tailMap(prefix, false).keySet()) {
+            if (!f.startsWith(prefix))
+                break;
+            if (!deleted.contains(f))
+                treeFiles.add(f);
+        }
+    }
+
+    @Override
+    ByteBuffer read(String path) throws IOException {
+        final ContainerStore shadow;
+        final Entry e;
+        final ByteBuffer stored;
+        synchronized (this) {
+            ensureOpen();
+            shadow = overflow != null && overflow.isFile(path) ? overflow : null;
+            e = shadow == null ? zipFile(path) : null;
+            if (shadow == null && e == null)
+                throw new NoSuchFileException(path);
+            stored = e != null ? readStored(e) : null;
+        }
+        // inflate outside the lock
+        return shadow != null ? shadow.read(path) : decode(path, e, stored);
+    }
+
+    /**
+     * @return read only view on the data of the given entry as it is stored in the zip file
+     */
+    private ByteBuffer readStored(Entry e) throws IOException {
+        if (e.dataOffset < 0) {
+            final ByteBuffer h = at(e.localOffset, LOCAL_HEADER_SIZE);
+            if (h.getInt(0) != LOCAL_HEADER)
+                throw new IOException("Corrupted local header at " + e.localOffset + " in '" + file + "'.");
+            e.dataOffset = e.localOffset + LOCAL_HEADER_SIZE + (h.getShort(26) & 0xFFFF) + (h.getShort(28) & 0xFFFF);
+        }
+        return at(e.dataOffset, Math.toIntExact(e.compressed)).asReadOnlyBuffer();
+    }
+
+    private ByteBuffer decode(String path, Entry e, ByteBuffer stored) throws IOException {
+        if (e.method == STORED)
+            return stored;
+        if (e.method != DEFLATED)
+            throw new IOException("Unsupported compression method " + e.method + " of '" + path + "' in '" + file + "'.");
+
+        final byte[] content = new byte[Math.toIntExact(e.length)];
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(stored);
+            int n = 0;
+            while (n < content.length) {
+                final int r = inflater.inflate(content, n, content.length - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += r;
+            }
+            if (n != content.length)
+                throw new IOException("Corrupted entry '" + path + "' in '" + file + "'.");
+            return ByteBuffer.wrap(content).asReadOnlyBuffer();
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupted entry '" + path + "' in '" + file + "'.", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return little endian view on the given region, a copy if it crosses a mapped segment boundary
+     */
+    private ByteBuffer at(long pos, int length) throws IOException {
+        if (pos < 0 || pos + length > size)
+            throw new EOFException("Unexpected end of zip file '" + file + "'.");
+        final int seg = (int) (pos / SEGMENT_SIZE);
+        if (length == 0 || (pos + length - 1) / SEGMENT_SIZE == seg) {
+            final ByteBuffer b = segments.get(seg).duplicate();
+            b.position((int) (pos - seg * SEGMENT_SIZE)).limit((int) (pos - seg * SEGMENT_SIZE) + length);
+            return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        final ByteBuffer b = ByteBuffer.allocate(length);
+        while (b.hasRemaining()) {
+            if (channel.read(b, pos + b.position()) < 0)
+                throw new EOFException("Unexpected end of zip file '" + file + "'.");
+        }
+        return b.flip().order(ByteOrder.LITTLE_ENDIAN);
+    }
+    //endregion
+
+    //region modifications
+    @Override
+    synchronized void writeFile(String path, byte[] content, int length) throws IOException {
+        checkWritable();
+        createOverflowParents(path);
+        overflow().writeFile(path, content, length);
+    }
+
+    @Override
+    synchronized void createDirectory(String path) throws IOException {
+        checkWritable();
+        createOverflowParents(path);
+        overflow().createDirectory(path);
+    }
+
+    @Override
+    synchronized void delete(String path) throws IOException {
+        checkWritable();
+        if (isDirectory(path) && !list(path).isEmpty())
+            throw new DirectoryNotEmptyException(path);
+        if (overflow != null && overflow.exists(path))
+            overflow.delete(path);
+        if (zipFile(path) != null || isZipDirectory(path))
+            tombstone(path);
+    }
+
+    @Override
+    synchronized void move(String source, String target) throws IOException {
+        checkWritable();
+        final List<String> treeDirs = new ArrayList<>(), treeFiles = new ArrayList<>();
+        collectTree(source, treeDirs, treeFiles);
+        deleteTree(target);
+
+        // overflow entries are moved by the overflow, zip entries are copied into it
+        final ContainerStore o = overflow();
+        createOverflowParents(target);
+        if (o.exists(source))
+            o.move(source, target);
+        for (String d : treeDirs) {
+            final String t = target + d.substring(source.length());
+            if (!o.exists(t))
+                o.createDirectory(t);
+        }
+        for (String f : treeFiles) {
+            final String t = target + f.substring(source.length());
+            if (o.exists(t))
+                continue; // was shadowed by the overflow
+            final Entry e = files.get(f);
+            final ByteBuffer content = decode(f, e, readStored(e));
+            final byte[] data = new byte[content.remaining()];
+            content.get(data);
+            o.writeFile(t, data, data.length);
+        }
+        for (String d : treeDirs)
+            tombstone(d);
+        for (String f : treeFiles)
+            tombstone(f);
+    }
+
+    @Override
+    void sync() throws IOException {
+        final ContainerStore o;
+        synchronized (this) {
+            o = readOnly ? null : overflow;
+        }
+        if (o != null)
+            o.sync();
+    }
+
+    private void deleteTree(String path) throws IOException {
+        if (overflow != null && overflow.exists(path))
+            deleteOverflowTree(path);
+        final List<String> treeDirs = new ArrayList<>(), treeFiles = new ArrayList<>();
+        collectTree(path, treeDirs, treeFiles);
+        for (String p : treeDirs)
+            tombstone(p);
+        for (String p : treeFiles)
+            tombstone(p);
+    }
+
+    private void deleteOverflowTree(String path) throws IOException {
+        if (overflow.isDirectory(path))
+            for (String child : overflow.list(path))
+                deleteOverflowTree(prefix(path) + child);
+        overflow.delete(path);
+    }
+
+    private void tombstone(String path) throws IOException {
+        overflow().writeFile(TOMBSTONES + path, new byte[0], 0);
+        deleted.add(path);
+    }
+
+    /**
+     * The overflow only lists the children of directories it contains itself.
+     */
+    private void createOverflowParents(String path) throws IOException {
+        final String parent = parent(path);
+        if (parent == null || overflow().isDirectory(parent))
+            return;
+        createOverflowParents(parent);
+        overflow.createDirectory(parent);
+    }
+
+    private ContainerStore overflow() throws IOException {
+        if (overflow == null) {
+            overflow = ContainerStore.create(overflowFile());
+            overflow.setCodec(codec);
+        }
+        return overflow;
+    }
+
+    private void checkWritable() throws IOException {
+        if (readOnly)
+            throw new ReadOnlyFileSystemException();
+        ensureOpen();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (channel == null)
+            throw new ClosedFileSystemException();
+    }
+    //endregion
+
+    //region closing
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null)
+            return;
+        try {
+            if (!readOnly && overflow != null) {
+                final Path merged = writeMerged();
+                closeChannel();
+                Files.move(merged, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                syncDirectory(file.toAbsolutePath().getParent());
+                Files.delete(overflowFile());
+            }
+        } finally {
+            closeChannel();
+        }
+    }
+
+    // persists the rename before the overflow is deleted. Not supported on all platforms, e.g. Windows.
+    private static void syncDirectory(Path dir) {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException ignored) {
+            // best effort
+        }
+    }
+
+    /**
+     * Writes the live zip entries and the overflow into a new zip file next to this one.
+     */
+    private Path writeMerged() throws IOException {
+        final Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (ZipWriter out = new ZipWriter(tmp)) {
+                writeTree(ROOT, out);
+            }
+            // the new file has to be complete on disk before it replaces the old one
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ch.force(true);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        return tmp;
+    }
+
+    private void writeTree(String dir, ZipWriter out) throws IOException {
+        for (String child : list(dir)) {
+            final String path = prefix(dir) + child;
+            if (isDirectory(path)) {
+                out.directory(path, lastModified(path));
+                writeTree(path, out);
+            } else if (overflow != null && overflow.isFile(path)) {
+                out.deflate(path, overflow.read(path), overflow.lastModified(path));
+            } else {
+                final Entry e = files.get(path);
+                out.copy(path, e, readStored(e));
+            }
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        segments.clear();
+        try {
+            if (overflow != null)
+                overflow.close();
+        } finally {
+            overflow = null;
+            if (channel != null) {
+                try {
+                    if (lock != null && lock.isValid())
+                        lock.release();
+                } finally {
+                    channel.close();
+                    channel = null;
+                }
+            }
+        }
+    }
+    //endregion
+
+    private static long fromDosTime(int dosTime) {
+        final int date = dosTime >>> 16, time = dosTime & 0xFFFF;
+        try {
+            return LocalDateTime.of(((date >> 9) & 0x7F) + 1980, (date >> 5) & 0x0F, date & 0x1F,
+                    (time >> 11) & 0x1F, (time >> 5) & 0x3F, (time & 0x1F) * 2).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeException e) {
+            return 0;
+        }
+    }
+
+    private static int toDosTime(long millis) {
+        final LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (t.getYear() < 1980)
+            return (1 << 21) | (1 << 16);
+        return (t.getYear() - 1980) << 25 | t.getMonthValue() << 21 | t.getDayOfMonth() << 16
+                | t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() >> 1;
+    }
+
+    private static final class Entry {
+        private final int method;
+        private final int crc;
+        private final long compressed;
+        private final long length;
+        private final long localOffset;
+        // resolved from the local header on first access
+        private long dataOffset = -1;
+        private long time;
+
+        private Entry(int method, int crc, long compressed, long length, long localOffset, long time) {
+            this.method = method;
+            this.crc = crc;
+            this.compressed = compressed;
+            this.length = length;
+            this.localOffset = localOffset;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Minimal zip writer that can copy already compressed entries. Uses zip64 records only where required.
+     */
+    private static final class ZipWriter implements Closeable {
+        private static final int UTF8_FLAG = 1 << 11;
+        private final OutputStream out;
+        private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+        private final byte[] copyBuffer = new byte[1 << 16];
+        private long pos = 0;
+        private long count = 0;
+
+        private ZipWriter(Path target) throws IOException {
+            out = new BufferedOutputStream(Files.newOutputStream(target), 1 << 16);
+        }
+
+        private void directory(String path, long time) throws IOException {
+            entry(path.substring(1) + "/", STORED, 0, 0, 0, time, ByteBuffer.allocate(0));
+        }
+
+        private void copy(String path, Entry e, ByteBuffer stored) throws IOException {
+            entry(path.substring(1), e.method, e.crc, e.compressed, e.length, e.time, stored);
+        }
+
+        private void deflate(String path, ByteBuffer content, long time) throws IOException {
+            final byte[] raw = new byte[content.remaining()];
+            content.get(raw);
+            final CRC32 crc = new CRC32();
+            crc.update(raw);
+
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            final ByteArrayOutputStream deflated = new ByteArrayOutputStream(raw.length / 2 + 64);
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                while (!deflater.finished())
+                    deflated.write(copyBuffer, 0, deflater.deflate(copyBuffer));
+            } finally {
+                deflater.end();
+            }
+            if (deflated.size() < raw.length)
+                entry(path.substring(1), DEFLATED, (int) crc.getValue(), deflated.size(), raw.length, time, ByteBuffer.wrap(deflated.toByteArray()));
+            else
+                entry(path.substring(1), STORED, (int) crc.getValue(), raw.length, raw.length, time, ByteBuffer.wrap(raw));
+        }
+
+        private void entry(String name, int method, int crc, long compressed, long length, long time, ByteBuffer data) throws IOException {
+            final byte[] n = name.getBytes(StandardCharsets.UTF_8);
+            final boolean zip64 = compressed >= ZIP64_MAGIC || length >= ZIP64_MAGIC;
+            final boolean zip64Central = zip64 || pos >= ZIP64_MAGIC;
+            final int dosTime = toDosTime(time);
+
+            final ByteBuffer h = le(LOCAL_HEADER_SIZE + n.length + (zip64 ? 20 : 0));
+            h.putInt(LOCAL_HEADER).putShort((short) (zip64 ? 45 : 20)).putShort((short) UTF8_FLAG).putShort((short) method)
+                    .putInt(dosTime).putInt(crc).putInt(zip64 ? -1 : (int) compressed).putInt(zip64 ? -1 : (int) length)
+                    .putShort((short) n.length).putShort((short) (zip64 ? 20 : 0)).put(n);
+            if (zip64)
+                h.putShort((short) 1).putShort((short) 16).putLong(length).putLong(compressed);
+
+            final ByteBuffer c = le(CENTRAL_HEADER_SIZE + n.length + (zip64Central ? 28 : 0));
+            c.putInt(CENTRAL_HEADER).putShort((short) (zip64Central ? 45 : 20)).putShort((short) (zip64Central ? 45 : 20))
+                    .putShort((short) UTF8_FLAG).putShort((short) method).putInt(dosTime).putInt(crc)
+                    .putInt(zip64Central ? -1 : (int) compressed).putInt(zip64Central ? -1 : (int) length)
+                    .putShort((short) n.length).putShort((short) (zip64Central ? 28 : 0)).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0).putInt(0).putInt(zip64Central ? -1 : (int) pos).put(n);
+            if (zip64Central)
+                c.putShort((short) 1).putShort((short) 24).putLong(length).putLong(compressed).putLong(pos);
+            central.write(c.array());
+            count++;
+
+            write(h.flip());
+            write(data.duplicate());
+        }
+
+        private void write(ByteBuffer b) throws IOException {
+            pos += b.remaining();
+            while (b.hasRemaining()) {
+                final int n = Math.min(b.remaining(), copyBuffer.length);
+                b.get(copyBuffer, 0, n);
+                out.write(copyBuffer, 0, n);
+            }
+        }
+
+        private static ByteBuffer le(int capacity) {
+            return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                final long cdOffset = pos, cdSize = central.size();
+                write(ByteBuffer.wrap(central.toByteArray()));
+                if (count >= 0xFFFF || cdOffset >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC) {
+                    final long zip64End = pos;
+                    write(le(56).putInt(ZIP64_END).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0)
+                            .putLong(count).putLong(count).putLong(cdSize).putLong(cdOffset).flip());
+                    write(le(20).putInt(ZIP64_LOCATOR).putInt(0).putLong(zip64End).putInt(1).flip());
+                }
+                write(le(END_SIZE).putInt(END).putShort((short) 0).putShort((short) 0)
+                        .putShort((short) Math.min(count, 0xFFFF)).putShort((short) Math.min(count, 0xFFFF))
+                        .putInt((int) Math.min(cdSize, ZIP64_MAGIC)).putInt((int) Math.min(cdOffset, ZIP64_MAGIC)).putShort((short) 0).flip());
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
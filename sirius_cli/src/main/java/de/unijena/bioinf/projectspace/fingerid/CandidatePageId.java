@@ -0,0 +1,36 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.fingerid;
+
+import de.unijena.bioinf.projectspace.FormulaResultId;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Id of a formula result that carries the {@link CandidatePageRequest} to the {@link FBCandidatesPageSerializer},
+ * which receives the id of the requested formula result as parameter.
+ */
+final class CandidatePageId extends FormulaResultId {
+    final CandidatePageRequest request;
+
+    CandidatePageId(@NotNull FormulaResultId fid, @NotNull CandidatePageRequest request) {
+        super(fid.getParentId(), fid.getPrecursorFormula(), fid.getIonType());
+        this.request = request;
+    }
+}
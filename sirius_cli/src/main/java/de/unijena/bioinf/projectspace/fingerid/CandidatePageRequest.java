@@ -0,0 +1,153 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.fingerid;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
+import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+import de.unijena.bioinf.chemdb.CompoundCandidate;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Describes which structure candidates of a formula result should be decoded: a window (offset/limit) over
+ * the candidates (ordered by score) that pass an optional filter, optionally together with their fingerprints.
+ * <p>
+ * Candidates are stored ordered by score, so an unfiltered page only needs the first {@code offset + limit}
+ * rows of the candidate file and fingerprints are decoded only up to the last selected row.
+ */
+public final class CandidatePageRequest {
+    public static final int ALL = -1;
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * Used if a {@link FBCandidatesPage} is loaded without a request, e.g. as part of a component list.
+     */
+    public static final CandidatePageRequest DEFAULT = page(0, DEFAULT_PAGE_SIZE);
+
+    private final int offset;
+    private final int limit;
+    @Nullable
+    private final Predicate<Scored<CompoundCandidate>> filter;
+    private final boolean fingerprints;
+
+    private CandidatePageRequest(int offset, int limit, @Nullable Predicate<Scored<CompoundCandidate>> filter, boolean fingerprints) {
+        if (offset < 0)
+            throw new IllegalArgumentException("Offset must not be negative: " + offset);
+        if (limit < 0 && limit != ALL)
+            throw new IllegalArgumentException("Limit must not be negative: " + limit);
+        this.offset = offset;
+        this.limit = limit;
+        this.filter = filter;
+        this.fingerprints = fingerprints;
+    }
+
+    public static CandidatePageRequest page(int offset, int limit) {
+        return new CandidatePageRequest(offset, limit, null, false);
+    }
+
+    public static CandidatePageRequest top(int k) {
+        return page(0, k);
+    }
+
+    public static CandidatePageRequest all() {
+        return page(0, ALL);
+    }
+
+    public CandidatePageRequest filter(@NotNull Predicate<Scored<CompoundCandidate>> filter) {
+        return new CandidatePageRequest(offset, limit, this.filter == null ? filter : this.filter.and(filter), fingerprints);
+    }
+
+    public CandidatePageRequest withFingerprints() {
+        return new CandidatePageRequest(offset, limit, filter, true);
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public boolean isWithFingerprints() {
+        return fingerprints;
+    }
+
+    /**
+     * @return number of leading candidate rows that have to be decoded to answer this request, {@link #ALL} if
+     * every row has to be decoded. One additional row is decoded to detect whether there are more candidates.
+     */
+    public int rowsToDecode() {
+        if (filter != null || limit == ALL)
+            return ALL;
+        return offset + limit + 1;
+    }
+
+    /**
+     * @return indices of the candidates (in the given list) that belong to this page. If the page is followed by
+     * further matching candidates, the last element is -1.
+     */
+    int[] select(@NotNull List<Scored<CompoundCandidate>> candidates) {
+        final int expected = limit == ALL ? candidates.size() : Math.min(limit, candidates.size());
+        final int[] selected = new int[expected + 1];
+        int size = 0, matched = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            if (filter != null && !filter.test(candidates.get(i)))
+                continue;
+            if (matched++ < offset)
+                continue;
+            if (limit != ALL && size == limit) {
+                selected[size++] = -1;
+                break;
+            }
+            selected[size++] = i;
+        }
+        final int[] result = new int[size];
+        System.arraycopy(selected, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * Creates the page from already decoded candidates (and fingerprints in the same order).
+     */
+    public FBCandidatesPage apply(@NotNull List<Scored<CompoundCandidate>> candidates, @Nullable List<Fingerprint> fingerprints) {
+        final int[] selected = select(candidates);
+        final boolean hasMore = selected.length > 0 && selected[selected.length - 1] < 0;
+        final int size = hasMore ? selected.length - 1 : selected.length;
+
+        final List<Scored<CompoundCandidate>> page = new ArrayList<>(size);
+        final List<Fingerprint> pageFps = this.fingerprints && fingerprints != null ? new ArrayList<>(size) : null;
+        for (int i = 0; i < size; i++) {
+            page.add(candidates.get(selected[i]));
+            if (pageFps != null)
+                pageFps.add(fingerprints.get(selected[i]));
+        }
+        return new FBCandidatesPage(page, pageFps, offset, hasMore);
+    }
+
+    @Override
+    public String toString() {
+        return "CandidatePageRequest{offset=" + offset + ", limit=" + limit + ", filtered=" + (filter != null) + ", fingerprints=" + fingerprints + '}';
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.fingerid;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
+import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
+import de.unijena.bioinf.chemdb.CompoundCandidate;
+import de.unijena.bioinf.fingerid.blast.FBCandidateFingerprints;
+import de.unijena.bioinf.fingerid.blast.FBCandidates;
+import de.unijena.bioinf.ms.rest.model.fingerid.FingerIdData;
+import de.unijena.bioinf.projectspace.ComponentSerializer;
+import de.unijena.bioinf.projectspace.FormulaResultId;
+import de.unijena.bioinf.projectspace.ProjectReader;
+import de.unijena.bioinf.projectspace.ProjectWriter;
+import de.unijena.bioinf.projectspace.sirius.FormulaResult;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Serializer of the candidate fingerprints that stores them in the project wide {@link FingerprintStore} if
+ * {@link FingerprintStore#DEDUP_KEY} is set. Formula results that have been written without the store are read
+ * by the {@link FBCandidateFingerprintSerializer}, so both layouts can be mixed within a project.
+ */
+public class FBCandidateFingerprintStoreSerializer implements ComponentSerializer<FormulaResultId, FormulaResult, FBCandidateFingerprints> {
+    public static final String REFS_EXT = ".refs";
+
+    final FBCandidateFingerprintSerializer source = new FBCandidateFingerprintSerializer();
+
+    static String refsFile(FormulaResultId id) {
+        return FingerIdLocations.FINGERBLAST_FPs.relFilePath(id) + REFS_EXT;
+    }
+
+    @Override
+    public @Nullable FBCandidateFingerprints read(ProjectReader reader, FormulaResultId id, FormulaResult container) throws IOException {
+        final List<Fingerprint> fps = readFingerprints(reader, id, container);
+        return fps == null ? null : new FBCandidateFingerprints(fps);
+    }
+
+    /**
+     * Reads the fingerprints of the first {@link FBCandidateNumber} candidates.
+     */
+    public @Nullable List<Fingerprint> readFingerprints(ProjectReader reader, FormulaResultId id, FormulaResult container) throws IOException {
+        final String refs = refsFile(id);
+        if (!reader.exists(refs))
+            return source.readFingerprints(reader, id, container);
+
+        final FingerprintVersion version = reader.getProjectSpaceProperty(FingerIdDataProperty.class)
+                .map(p -> p.getByIonType(id.getIonType())).map(FingerIdData::getFingerprintVersion)
+                .orElseThrow(() -> new IOException("No fingerprint version found to decode the candidate fingerprints of '" + id + "'."));
+        final String versionKey = FingerprintStore.versionKey(version);
+        final int limit = container.getAnnotation(FBCandidateNumber.class).map(n -> n.value).filter(n -> n > 0).orElse(Integer.MAX_VALUE);
+
+        final List<String> keys = reader.textFile(refs, r -> {
+            final List<String> l = new ArrayList<>();
+            String line;
+            while (l.size() < limit && (line = r.readLine()) != null)
+                if (!line.isBlank())
+                    l.add(line.trim());
+            return l;
+        });
+
+        final List<Fingerprint> fps = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (!key.startsWith(versionKey + "/"))
+                throw new IOException("Candidate fingerprints of '" + id + "' have been stored with a different fingerprint version.");
+            fps.add(FingerprintStore.intern(key, () ->
+                    reader.textFile(FingerprintStore.location(key), r -> FingerprintStore.decode(version, r.readLine()))));
+        }
+        return fps;
+    }
+
+    @Override
+    public void write(ProjectWriter writer, FormulaResultId id, FormulaResult container, Optional<FBCandidateFingerprints> optFps) throws IOException {
+        final List<Scored<CompoundCandidate>> candidates = container.getAnnotation(FBCandidates.class).map(FBCandidates::getResults).orElse(null);
+        if (!FingerprintStore.isEnabled() || optFps.isEmpty() || candidates == null || candidates.size() != optFps.get().getFingerprints().size()) {
+            deleteRefs(writer, id);
+            source.write(writer, id, container, optFps);
+            return;
+        }
+
+        final List<Fingerprint> fps = optFps.get().getFingerprints();
+        final List<String> keys = new ArrayList<>(fps.size());
+        for (int i = 0; i < fps.size(); i++) {
+            final Fingerprint fp = fps.get(i);
+            final String key = FingerprintStore.key(candidates.get(i).getCandidate().getInchi().key2D(), fp.getFingerprintVersion());
+            final String location = FingerprintStore.location(key);
+            final Lock lock = FingerprintStore.writeLock(key);
+            lock.lock();
+            try {
+                if (!writer.exists(location))
+                    writer.textFile(location, w -> w.write(FingerprintStore.encode(fp)));
+            } finally {
+                lock.unlock();
+            }
+            FingerprintStore.intern(key, fp);
+            keys.add(key);
+        }
+
+        writer.textFile(refsFile(id), w -> {
+            for (String key : keys) {
+                w.write(key);
+                w.newLine();
+            }
+        });
+        // fingerprints are only kept in the store
+        source.delete(writer, id);
+    }
+
+    @Override
+    public void delete(ProjectWriter writer, FormulaResultId id) throws IOException {
+        // stored fingerprints may be referenced by other compounds and are kept
+        deleteRefs(writer, id);
+        source.delete(writer, id);
+    }
+
+    private static void deleteRefs(ProjectWriter writer, FormulaResultId id) throws IOException {
+        final String refs = refsFile(id);
+        if (writer.exists(refs))
+            writer.delete(refs);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.fingerid;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
+import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+import de.unijena.bioinf.chemdb.CompoundCandidate;
+import de.unijena.bioinf.fingerid.blast.FBCandidates;
+import de.unijena.bioinf.projectspace.FormulaResultId;
+import de.unijena.bioinf.projectspace.SiriusProjectSpace;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A page of the structure candidates of a formula result, see {@link CandidatePageRequest}.
+ * Pages are read only and never cached.
+ */
+public class FBCandidatesPage extends FBCandidates {
+    private final int offset;
+    private final boolean hasMore;
+    @Nullable
+    private final List<Fingerprint> fingerprints;
+
+    public FBCandidatesPage(List<Scored<CompoundCandidate>> results, @Nullable List<Fingerprint> fingerprints, int offset, boolean hasMore) {
+        super(results);
+        this.fingerprints = fingerprints;
+        this.offset = offset;
+        this.hasMore = hasMore;
+    }
+
+    /**
+     * @return number of (filtered) candidates skipped before this page
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return true if there are further (filtered) candidates after this page
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    /**
+     * @return fingerprints of the candidates in the same order as {@link #getResults()}, if requested
+     */
+    public Optional<List<Fingerprint>> getFingerprints() {
+        return Optional.ofNullable(fingerprints);
+    }
+
+    /**
+     * Reads a page directly from the project space, bypassing any formula result cache.
+     */
+    public static Optional<FBCandidatesPage> read(@NotNull SiriusProjectSpace space, @NotNull FormulaResultId fid, @NotNull CandidatePageRequest request) throws IOException {
+        return space.getFormulaResult(new CandidatePageId(fid, request), FBCandidatesPage.class).getAnnotation(FBCandidatesPage.class);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.fingerid;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
+import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+import de.unijena.bioinf.chemdb.CompoundCandidate;
+import de.unijena.bioinf.projectspace.ComponentSerializer;
+import de.unijena.bioinf.projectspace.FormulaResultId;
+import de.unijena.bioinf.projectspace.ProjectReader;
+import de.unijena.bioinf.projectspace.ProjectWriter;
+import de.unijena.bioinf.projectspace.sirius.FormulaResult;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Read only serializer that decodes a page of the structure candidates (and their fingerprints) described by
+ * the {@link CandidatePageRequest} of the given {@link CandidatePageId} ({@link CandidatePageRequest#DEFAULT} for other ids). Only the leading rows of the candidate and fingerprint
+ * files that are needed for the page are decoded ({@link FBCandidateNumber}).
+ */
+public class FBCandidatesPageSerializer implements ComponentSerializer<FormulaResultId, FormulaResult, FBCandidatesPage> {
+    final FBCandidatesSerializer candidateSource = new FBCandidatesSerializer();
+    final FBCandidateFingerprintStoreSerializer fingerprintSource = new FBCandidateFingerprintStoreSerializer();
+
+    @Override
+    public FBCandidatesPage read(ProjectReader reader, FormulaResultId id, FormulaResult container) throws IOException {
+        final CandidatePageRequest request = id instanceof CandidatePageId ? ((CandidatePageId) id).request : CandidatePageRequest.DEFAULT;
+        try {
+            limitRows(container, request.rowsToDecode());
+            final List<Scored<CompoundCandidate>> candidates = candidateSource.readCandidates(reader, id, container);
+            if (candidates == null)
+                return null;
+
+            final int[] selected = request.select(candidates);
+            if (!request.isWithFingerprints() || selected.length == 0)
+                return request.apply(candidates, null);
+
+            // fingerprints are decoded up to the last row of the page only
+            int lastRow = -1;
+            for (int i : selected)
+                lastRow = Math.max(lastRow, i);
+            limitRows(container, lastRow + 1);
+            final List<Fingerprint> fps = fingerprintSource.readFingerprints(reader, id, container);
+            return request.apply(candidates, fps);
+        } finally {
+            container.removeAnnotation(FBCandidateNumber.class);
+        }
+    }
+
+    private static void limitRows(FormulaResult container, int rows) {
+        if (rows == CandidatePageRequest.ALL)
+            container.removeAnnotation(FBCandidateNumber.class);
+        else
+            container.setAnnotation(FBCandidateNumber.class, new FBCandidateNumber(rows));
+    }
+
+    @Override
+    public void write(ProjectWriter writer, FormulaResultId id, FormulaResult container, Optional<FBCandidatesPage> optPage) throws IOException {
+        // read only, the candidates are written by the FBCandidatesSerializer
+    }
+
+    @Override
+    public void delete(ProjectWriter writer, FormulaResultId id) throws IOException {
+        // read only, the candidates are deleted by the FBCandidatesSerializer
+    }
+}
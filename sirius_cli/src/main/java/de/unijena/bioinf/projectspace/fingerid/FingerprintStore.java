@@ -0,0 +1,167 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.fingerid;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+import de.unijena.bioinf.ChemistryBase.fp.ArrayFingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Content addressed storage of structure candidate fingerprints that is shared by all compounds of a project.
+ * <p>
+ * Every fingerprint is stored once per InChIKey (first block) and fingerprint version in {@link #STORE_DIR}, the
+ * candidate fingerprint files of the formula results only reference these keys. Decoded fingerprints are interned,
+ * so candidate lists, summaries and the GUI share one instance per structure.
+ */
+public final class FingerprintStore {
+    public static final String DEDUP_KEY = "de.unijena.bioinf.sirius.project.fingerprints.dedup";
+    public static final String STORE_DIR = ".fingerprints";
+
+    private static final Cache<String, Fingerprint> INTERNED = CacheBuilder.newBuilder().weakValues().build();
+    private static final Striped<Lock> WRITE_LOCKS = Striped.lock(64);
+    private static final Map<FingerprintVersion, String> VERSION_KEYS = new WeakHashMap<>();
+
+    private FingerprintStore() {
+    }
+
+    public static boolean isEnabled() {
+        return PropertyManager.getBoolean(DEDUP_KEY, null, false);
+    }
+
+    /**
+     * @return key of the fingerprint of the given structure, unique per InChIKey and fingerprint version
+     */
+    static String key(@NotNull String inchiKey2D, @NotNull FingerprintVersion version) {
+        return versionKey(version) + "/" + inchiKey2D;
+    }
+
+    /**
+     * @return location of the stored fingerprint relative to a compound directory
+     */
+    static String location(@NotNull String key) {
+        final int sep = key.indexOf('/');
+        return "../" + STORE_DIR + "/" + key.substring(0, sep) + "/" + key.substring(sep + 1, Math.min(key.length(), sep + 3)) + "/" + key.substring(sep + 1) + ".fp";
+    }
+
+    static String versionKey(@NotNull FingerprintVersion version) {
+        synchronized (VERSION_KEYS) {
+            return VERSION_KEYS.computeIfAbsent(version, v -> {
+                int hash = v.size();
+                for (int i = 0; i < v.size(); i++)
+                    hash = 31 * hash + v.getAbsoluteIndexOf(i);
+                return "v" + Integer.toHexString(hash);
+            });
+        }
+    }
+
+    static String encode(@NotNull Fingerprint fp) {
+        final short[] indices = fp.toIndizesArray();
+        final StringBuilder b = new StringBuilder(indices.length * 5);
+        for (int i = 0; i < indices.length; i++) {
+            if (i > 0)
+                b.append(',');
+            b.append(indices[i]);
+        }
+        return b.toString();
+    }
+
+    static Fingerprint decode(@NotNull FingerprintVersion version, @NotNull String line) {
+        if (line.isBlank())
+            return new ArrayFingerprint(version, new short[0]);
+        final String[] cols = line.trim().split(",");
+        final short[] indices = new short[cols.length];
+        for (int i = 0; i < cols.length; i++)
+            indices[i] = Short.parseShort(cols[i]);
+        return new ArrayFingerprint(version, indices);
+    }
+
+    /**
+     * @return the interned fingerprint of the given key, decoded by the given loader if not in memory
+     */
+    static Fingerprint intern(@NotNull String key, @NotNull Callable<Fingerprint> loader) throws IOException {
+        try {
+            return INTERNED.get(key, loader);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Could not read stored fingerprint '" + key + "'.", e.getCause());
+        }
+    }
+
+    /**
+     * Adds a fingerprint that has just been written to the interning cache.
+     */
+    static Fingerprint intern(@NotNull String key, @NotNull Fingerprint fp) {
+        final Fingerprint known = INTERNED.asMap().putIfAbsent(key, fp);
+        return known != null ? known : fp;
+    }
+
+    /**
+     * Stored fingerprints are immutable, but the same key may be written by concurrent compounds.
+     */
+    static Lock writeLock(@NotNull String key) {
+        return WRITE_LOCKS.get(key);
+    }
+
+    /**
+     * Copies the stored fingerprints of an imported project. Fingerprints that are already stored in the target
+     * are skipped, they are identical by definition.
+     */
+    public static void importStore(@NotNull Path sourceRoot, @NotNull Path targetRoot) throws IOException {
+        final Path source = sourceRoot.resolve(STORE_DIR);
+        if (!Files.isDirectory(source))
+            return;
+        final Path target = targetRoot.resolve(STORE_DIR);
+        final int[] copied = {0};
+        Files.walkFileTree(source, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final Path t = target.resolve(source.relativize(file).toString());
+                if (Files.notExists(t)) {
+                    Files.copy(file, t);
+                    copied[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        LoggerFactory.getLogger(FingerprintStore.class).info("Imported " + copied[0] + " stored candidate fingerprints.");
+    }
+}
@@ -20,6 +20,7 @@
 package de.unijena.bioinf.projectspace.summaries;
 
 import com.google.common.base.Joiner;
+import com.google.common.collect.Iterables;
 import de.unijena.bioinf.ChemistryBase.algorithm.scoring.FormulaScore;
 import de.unijena.bioinf.ChemistryBase.algorithm.scoring.SScored;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
@@ -27,19 +28,20 @@ import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
 import de.unijena.bioinf.ChemistryBase.fp.*;
 import de.unijena.bioinf.canopus.CanopusResult;
 import de.unijena.bioinf.ms.annotations.DataAnnotation;
+import de.unijena.bioinf.projectspace.CompoundContainerId;
 import de.unijena.bioinf.projectspace.FormulaResultId;
+import de.unijena.bioinf.projectspace.IncrementalSummarizer;
 import de.unijena.bioinf.projectspace.ProjectWriter;
-import de.unijena.bioinf.projectspace.Summarizer;
 import de.unijena.bioinf.projectspace.sirius.CompoundContainer;
 import de.unijena.bioinf.projectspace.sirius.FormulaResult;
-import de.unijena.bioinf.util.Iterators;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
 
-public class CanopusSummaryWriter implements Summarizer {
+public class CanopusSummaryWriter implements IncrementalSummarizer {
 
     protected static class CanopusSummaryRow {
         private final ArrayFingerprint[] classifications;
@@ -87,10 +89,40 @@ public class CanopusSummaryWriter implements Summarizer {
         }
     }
 
-    private List<CanopusSummaryRow> rows;
+    // rows of the summary tables by compound index, formatted when the compound is added (concurrently)
+    private final ConcurrentSkipListMap<Integer, List<String[]>> formulaRows = new ConcurrentSkipListMap<>(), adductRows = new ConcurrentSkipListMap<>();
+    private final ThreadLocal<List<String>> compoundRows = ThreadLocal.withInitial(ArrayList::new);
 
     public CanopusSummaryWriter() {
-        this.rows = new ArrayList<>();
+    }
+
+    @Override
+    public String getSummaryName() {
+        return "canopus";
+    }
+
+    @Override
+    public List<String> takeCompoundRows() {
+        final List<String> rows = new ArrayList<>(compoundRows.get());
+        compoundRows.get().clear();
+        return rows;
+    }
+
+    // rows: "F" for the canopus summary and "A" for the adduct summary
+    @Override
+    public void addCompoundRows(@NotNull CompoundContainerId id, List<String> rows) {
+        final List<String[]> formulas = new ArrayList<>(), adducts = new ArrayList<>();
+        for (String row : rows) {
+            final String[] cols = row.length() > 1 ? row.substring(2).split("\t", -1) : new String[0];
+            if (row.startsWith("F") && (cols.length == 0 || cols.length == HEADER.length))
+                formulas.add(cols);
+            else if (row.startsWith("A") && (cols.length == 0 || cols.length == HEADER2.length))
+                adducts.add(cols);
+            else
+                throw new IllegalArgumentException("Malformed CANOPUS summary row: " + row);
+        }
+        formulaRows.put(id.getCompoundIndex(), formulas);
+        adductRows.put(id.getCompoundIndex(), adducts);
     }
 
     @Override
@@ -123,16 +155,26 @@ public class CanopusSummaryWriter implements Summarizer {
                 ++i;
             } while (i < results.size() && results.get(i).getScoreObject().compareTo(hit.getScoreObject()) >= 0);
             if (fingerprints.size()>0) {
-                this.rows.add(new CanopusSummaryRow(fingerprints.toArray(ProbabilityFingerprint[]::new), formulas.toArray(MolecularFormula[]::new), preForms.toArray(MolecularFormula[]::new), ionTypes.toArray(PrecursorIonType[]::new), id.getParentId().getDirectoryName()));
+                final CanopusSummaryRow row = new CanopusSummaryRow(fingerprints.toArray(ProbabilityFingerprint[]::new), formulas.toArray(MolecularFormula[]::new), preForms.toArray(MolecularFormula[]::new), ionTypes.toArray(PrecursorIonType[]::new), id.getParentId().getDirectoryName());
+                final List<String[]> adducts = new ArrayList<>(row.classifications.length);
+                for (int j = 0; j < row.classifications.length; j++)
+                    adducts.add(addRow("A", adductRow(row, j)));
+                formulaRows.put(exp.getId().getCompoundIndex(), List.<String[]>of(addRow("F", formulaRow(row))));
+                adductRows.put(exp.getId().getCompoundIndex(), adducts);
             }
         }
 
     }
 
+    private String[] addRow(String type, String[] cols) {
+        compoundRows.get().add(cols.length == 0 ? type : type + "\t" + String.join("\t", cols));
+        return cols;
+    }
+
     @Override
     public void writeProjectSpaceSummary(ProjectWriter writer) throws IOException {
-        writer.table(SummaryLocations.CANOPUS_SUMMARY, HEADER, Iterators.capture(new IterateOverFormulas()));
-        writer.table(SummaryLocations.CANOPUS_SUMMARY_ADDUCT, HEADER2, Iterators.capture(new IterateOverAdducts()));
+        writer.table(SummaryLocations.CANOPUS_SUMMARY, HEADER, Iterables.concat(formulaRows.values()));
+        writer.table(SummaryLocations.CANOPUS_SUMMARY_ADDUCT, HEADER2, Iterables.concat(adductRows.values()));
     }
 
     private final static String[] HEADER = new String[]{ "name","molecularFormula", "adduct", "most specific class", "level 5", "subclass", "class",
@@ -140,82 +182,52 @@ public class CanopusSummaryWriter implements Summarizer {
             HEADER2 = new String[]{ "name","molecularFormula", "adduct", "precursorFormula", "most specific class", "level 5", "subclass", "class",
                     "superclass", "all classifications"};
 
-    public class IterateOverFormulas implements Iterator<String[]> {
-            int k = 0;
-            String[] cols = new String[HEADER.length];
-
-            @Override
-            public boolean hasNext() {
-                return k < rows.size();
-            }
-
-            @Override
-            public String[] next() {
-                try {
-                    final CanopusSummaryRow row = rows.get(k);
-                    final ClassyfireProperty primaryClass = row.mostSpecificClasses[row.best];
-                    final ClassyfireProperty[] lineage = primaryClass.getLineage();
-
-                    cols[0] = row.id;
-                    cols[1] = row.molecularFormulas[row.best].toString();
-                    cols[2] = row.ionTypes[row.best].toString();
-                    cols[3] = primaryClass.getName();
-
-                    cols[7] = lineage.length > 2 ? lineage[2].getName() : "";
-                    cols[6] = lineage.length > 3 ? lineage[3].getName() : "";
-                    cols[5] = lineage.length > 4 ? lineage[4].getName() : "";
-                    cols[4] = lineage.length > 5 ? lineage[5].getName() : "";
-
-                    cols[8] = Joiner.on("; ").join(row.classifications[row.best].presentFingerprints().asMolecularPropertyIterator());
-                    ++k;
-                    return cols;
-
-                } catch (ClassCastException e) {
-                    LoggerFactory.getLogger(CanopusSummaryWriter.class).error("Cannot cast CANOPUS fingerprint to ClassyFireFingerprintVersion.");
-                    ++k;
-                    return new String[0];
-                }
-            }
-        }
-    public class IterateOverAdducts implements Iterator<String[]> {
-        int k = 0, j=0;
-        String[] cols = new String[HEADER2.length];
-
-        @Override
-        public boolean hasNext() {
-            return k < rows.size();
+    private static String[] formulaRow(CanopusSummaryRow row) {
+        try {
+            final String[] cols = new String[HEADER.length];
+            final ClassyfireProperty primaryClass = row.mostSpecificClasses[row.best];
+            final ClassyfireProperty[] lineage = primaryClass.getLineage();
+
+            cols[0] = row.id;
+            cols[1] = row.molecularFormulas[row.best].toString();
+            cols[2] = row.ionTypes[row.best].toString();
+            cols[3] = primaryClass.getName();
+
+            cols[7] = lineage.length > 2 ? lineage[2].getName() : "";
+            cols[6] = lineage.length > 3 ? lineage[3].getName() : "";
+            cols[5] = lineage.length > 4 ? lineage[4].getName() : "";
+            cols[4] = lineage.length > 5 ? lineage[5].getName() : "";
+
+            cols[8] = Joiner.on("; ").join(row.classifications[row.best].presentFingerprints().asMolecularPropertyIterator());
+            return cols;
+        } catch (ClassCastException e) {
+            LoggerFactory.getLogger(CanopusSummaryWriter.class).error("Cannot cast CANOPUS fingerprint to ClassyFireFingerprintVersion.");
+            return new String[0];
         }
+    }
 
-        @Override
-        public String[] next() {
-            try {
-                final CanopusSummaryRow row = rows.get(k);
-                final ClassyfireProperty primaryClass = row.mostSpecificClasses[j];
-                final ClassyfireProperty[] lineage = primaryClass.getLineage();
-
-                cols[0] = row.id;
-                cols[1] = row.molecularFormulas[j].toString();
-                cols[2] = row.ionTypes[j].toString();
-                cols[3] = row.precursorFormulas[j].toString();
-                cols[4] = primaryClass.getName();
-
-                cols[8] = lineage.length > 2 ? lineage[2].getName() : "";
-                cols[7] = lineage.length > 3 ? lineage[3].getName() : "";
-                cols[6] = lineage.length > 4 ? lineage[4].getName() : "";
-                cols[5] = lineage.length > 5 ? lineage[5].getName() : "";
-
-                cols[9] = Joiner.on("; ").join(row.classifications[j].presentFingerprints().asMolecularPropertyIterator());
-                ++j;
-                if (j >= rows.get(k).classifications.length) {
-                    j = 0;
-                    ++k;
-                }
-                return cols;
-            } catch (ClassCastException e) {
-                LoggerFactory.getLogger(CanopusSummaryWriter.class).error("Cannot cast CANOPUS fingerprint to ClassyFireFingerprintVersion.");
-                ++k;
-                return new String[0];
-            }
+    private static String[] adductRow(CanopusSummaryRow row, int j) {
+        try {
+            final String[] cols = new String[HEADER2.length];
+            final ClassyfireProperty primaryClass = row.mostSpecificClasses[j];
+            final ClassyfireProperty[] lineage = primaryClass.getLineage();
+
+            cols[0] = row.id;
+            cols[1] = row.molecularFormulas[j].toString();
+            cols[2] = row.ionTypes[j].toString();
+            cols[3] = row.precursorFormulas[j].toString();
+            cols[4] = primaryClass.getName();
+
+            cols[8] = lineage.length > 2 ? lineage[2].getName() : "";
+            cols[7] = lineage.length > 3 ? lineage[3].getName() : "";
+            cols[6] = lineage.length > 4 ? lineage[4].getName() : "";
+            cols[5] = lineage.length > 5 ? lineage[5].getName() : "";
+
+            cols[9] = Joiner.on("; ").join(row.classifications[j].presentFingerprints().asMolecularPropertyIterator());
+            return cols;
+        } catch (ClassCastException e) {
+            LoggerFactory.getLogger(CanopusSummaryWriter.class).error("Cannot cast CANOPUS fingerprint to ClassyFireFingerprintVersion.");
+            return new String[0];
         }
     }
 }
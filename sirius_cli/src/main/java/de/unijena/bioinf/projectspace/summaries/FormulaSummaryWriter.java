@@ -45,17 +45,32 @@ import java.io.Writer;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.DoubleFunction;
 import java.util.stream.Collectors;
 
-public class FormulaSummaryWriter implements Summarizer {
+public class FormulaSummaryWriter implements IncrementalSummarizer {
 
     final static List<Class<? extends FormulaScore>> RANKING_SCORES = List.of(ZodiacScore.class, SiriusScore.class, TreeScore.class, IsotopeScore.class, TopCSIScore.class);
     final static List<Class<? extends FormulaScore>> RANKING_SCORES_SELECTING_TOP1 = List.of(ZodiacScore.class, SiriusScore.class, TreeScore.class, IsotopeScore.class);
-    final LinkedHashMap<Class<? extends FormulaScore>, String> globalTypes = new LinkedHashMap<>();
-
-    final Set<ResultEntry> globalResults = new HashSet<>();
-    final Set<ResultEntry> globalResultsAllAdducts = new HashSet<>();
+    // compounds are added concurrently, so the score types are kept in a fixed order instead of insertion order
+    final static Comparator<Class<? extends FormulaScore>> SCORE_TYPE_ORDER = scoreTypeOrder();
+    final TreeMap<Class<? extends FormulaScore>, String> globalTypes = new TreeMap<>(SCORE_TYPE_ORDER);
+    // score types that can be restored from persisted rows, rows with other types are re-read from the project
+    private final static Map<String, DoubleFunction<? extends FormulaScore>> SCORE_TYPES = Map.of(
+            ZodiacScore.class.getName(), ZodiacScore::new,
+            SiriusScore.class.getName(), SiriusScore::new,
+            TreeScore.class.getName(), TreeScore::new,
+            IsotopeScore.class.getName(), IsotopeScore::new,
+            TopCSIScore.class.getName(), TopCSIScore::new,
+            ConfidenceScore.class.getName(), ConfidenceScore::new
+    );
+
+    // compounds are added concurrently
+    final Set<ResultEntry> globalResults = ConcurrentHashMap.newKeySet();
+    final Set<ResultEntry> globalResultsAllAdducts = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<List<String>> compoundRows = ThreadLocal.withInitial(ArrayList::new);
 
     @Override
     public List<Class<? extends DataAnnotation>> requiredFormulaResultAnnotations() {
@@ -66,6 +81,55 @@ public class FormulaSummaryWriter implements Summarizer {
     }
 
 
+    @Override
+    public String getSummaryName() {
+        return "formula";
+    }
+
+    @Override
+    public List<String> takeCompoundRows() {
+        final List<String> rows = new ArrayList<>(compoundRows.get());
+        compoundRows.get().clear();
+        return rows;
+    }
+
+    // rows: "S" for score types, "T" for the top result and "A" for the top results of all adducts
+    @Override
+    public void addCompoundRows(@NotNull CompoundContainerId id, List<String> rows) {
+        final LinkedHashMap<Class<? extends FormulaScore>, String> types = new LinkedHashMap<>();
+        final List<ResultEntry> top = new ArrayList<>(), adducts = new ArrayList<>();
+        for (String row : rows) {
+            final String[] fields = row.split("\t", -1);
+            switch (fields[0]) {
+                case "S":
+                    if (fields.length != 3)
+                        throw new IllegalArgumentException("Malformed formula summary row: " + row);
+                    types.put(score(fields[1], 0).getClass(), fields[2]);
+                    break;
+                case "T":
+                    top.add(ResultEntry.decode(fields, id.getCompoundIndex()));
+                    break;
+                case "A":
+                    adducts.add(ResultEntry.decode(fields, id.getCompoundIndex()));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown formula summary row: " + row);
+            }
+        }
+        synchronized (globalTypes) {
+            types.forEach(globalTypes::putIfAbsent);
+        }
+        globalResults.addAll(top);
+        globalResultsAllAdducts.addAll(adducts);
+    }
+
+    private static FormulaScore score(String type, double value) {
+        final DoubleFunction<? extends FormulaScore> constructor = SCORE_TYPES.get(type);
+        if (constructor == null)
+            throw new IllegalArgumentException("Unknown formula score: " + type);
+        return constructor.apply(value);
+    }
+
     @Override
     public void addWriteCompoundSummary(ProjectWriter writer, @NotNull CompoundContainer exp, List<? extends SScored<FormulaResult, ? extends FormulaScore>> formulaResults) throws IOException {
         if (!writer.exists(exp.getId().getDirectoryName()))
@@ -86,17 +150,23 @@ public class FormulaSummaryWriter implements Summarizer {
                         .ifPresent(s -> {
                             if (first.getAndSet(false)) {
                                 FormulaResult bestResult = topResultWithAdducts.size()>1 ? resolveIonizationOnly(r.getCandidate()) : r.getCandidate();
-                                this.globalResults.add(ResultEntry.of(bestResult,exp));
+                                final ResultEntry entry = ResultEntry.of(bestResult, exp);
+                                this.globalResults.add(entry);
+                                compoundRows.get().add("T\t" + entry.encode());
 //                                this.prefix.put(bestResult, exp.getId().getIonMass().orElse(Double.NaN) + "\t" + exp.getId().getRt().orElse(RetentionTime.NA()).getRetentionTimeInSeconds() + "\t" + exp.getId().getDirectoryName());
                             }
                             s.annotations().forEach((key, value) -> {
                                 if (value != null && !value.isNa()) {
                                     types.putIfAbsent(value.getClass(), value.name());
-                                    this.globalTypes.putIfAbsent(value.getClass(), value.name());
+                                    synchronized (globalTypes) {
+                                        this.globalTypes.putIfAbsent(value.getClass(), value.name());
+                                    }
                                 }
                             });
                         }));
 
+                types.forEach((k, v) -> compoundRows.get().add("S\t" + k.getName() + "\t" + v));
+
                 //writing stuff
                 types.remove(TopCSIScore.class);
                 types.remove(ConfidenceScore.class);
@@ -106,7 +176,11 @@ public class FormulaSummaryWriter implements Summarizer {
             return true;
         });
 
-        topResultWithAdducts.forEach(r -> this.globalResultsAllAdducts.add(ResultEntry.of(r.getCandidate(), exp)));
+        topResultWithAdducts.forEach(r -> {
+            final ResultEntry entry = ResultEntry.of(r.getCandidate(), exp);
+            this.globalResultsAllAdducts.add(entry);
+            compoundRows.get().add("A\t" + entry.encode());
+        });
     }
 
     private FormulaResult resolveIonizationOnly(FormulaResult r) {
@@ -140,11 +214,12 @@ public class FormulaSummaryWriter implements Summarizer {
         globalTypes.remove(ConfidenceScore.class);
         globalTypes.remove(TopCSIScore.class);
 
-        final List<SScored<ResultEntry, ? extends FormulaScore>> r = FormulaScoring.rankBy(globalResults.stream(), RANKING_SCORES, true, ResultEntry::getScoring);
+        // ties are ordered by compound to keep the output deterministic
+        final List<SScored<ResultEntry, ? extends FormulaScore>> r = FormulaScoring.rankBy(globalResults.stream().sorted(ResultEntry.ORDER), RANKING_SCORES, true, ResultEntry::getScoring);
         writer.textFile(SummaryLocations.FORMULA_SUMMARY, w -> {
             writeCSV(w, globalTypes, r, true);
         });
-        final List<SScored<ResultEntry, ? extends FormulaScore>> rAdducts = FormulaScoring.rankBy(globalResultsAllAdducts.stream(), RANKING_SCORES, true, ResultEntry::getScoring);
+        final List<SScored<ResultEntry, ? extends FormulaScore>> rAdducts = FormulaScoring.rankBy(globalResultsAllAdducts.stream().sorted(ResultEntry.ORDER), RANKING_SCORES, true, ResultEntry::getScoring);
         writer.textFile(SummaryLocations.FORMULA_SUMMARY_ADDUCTS, w -> {
             writeCSV(w, globalTypes, rAdducts, true);
         });
@@ -158,8 +233,20 @@ public class FormulaSummaryWriter implements Summarizer {
         return headerBuilder.toString();
     }
 
-    private void writeCSV(Writer w, LinkedHashMap<Class<? extends FormulaScore>, String> types, List<? extends SScored<? extends ResultEntry, ? extends Score<?>>> results, boolean prefix) throws IOException {
-        final List<Class<? extends FormulaScore>> scoreOrder = ProjectSpaceManager.scorePriorities().stream().filter(types::containsKey).collect(Collectors.toList());
+    /**
+     * Score priority order ({@link ProjectSpaceManager#scorePriorities()}), other score types by name.
+     */
+    private static Comparator<Class<? extends FormulaScore>> scoreTypeOrder() {
+        final List<Class<? extends FormulaScore>> priorities = ProjectSpaceManager.scorePriorities();
+        return Comparator.<Class<? extends FormulaScore>>comparingInt(c -> {
+            final int i = priorities.indexOf(c);
+            return i < 0 ? priorities.size() : i;
+        }).thenComparing(Class::getName);
+    }
+
+    private void writeCSV(Writer w, Map<Class<? extends FormulaScore>, String> types, List<? extends SScored<? extends ResultEntry, ? extends Score<?>>> results, boolean prefix) throws IOException {
+        final List<Class<? extends FormulaScore>> priorities = ProjectSpaceManager.scorePriorities();
+        final List<Class<? extends FormulaScore>> scoreOrder = types.keySet().stream().filter(priorities::contains).sorted(SCORE_TYPE_ORDER).collect(Collectors.toList());
         results = results.stream()
                 .sorted((i1, i2) -> FormulaScoring.comparingMultiScore(scoreOrder).compare(
                         i1.getCandidate().scoring,
@@ -220,6 +307,9 @@ public class FormulaSummaryWriter implements Summarizer {
     }
 
     private static class ResultEntry {
+        static final Comparator<ResultEntry> ORDER = Comparator.comparingInt((ResultEntry e) -> e.compoundIndex)
+                .thenComparing(e -> e.molecularFormula.toString()).thenComparing(e -> e.ion);
+
         public final FormulaScoring scoring;
         public final MolecularFormula molecularFormula;
         public final MolecularFormula preFormula;
@@ -227,6 +317,7 @@ public class FormulaSummaryWriter implements Summarizer {
         private final String ionMass;
         private final String retentionTimeSeconds;
         private final String dirName;
+        private final int compoundIndex;
 
         public String treeNumVertices = "N/A";
         public String treeExplInt = "N/A";
@@ -252,6 +343,53 @@ public class FormulaSummaryWriter implements Summarizer {
             ionMass = BigDecimal.valueOf(exp.getId().getIonMass().orElse(Double.NaN)).setScale(5, RoundingMode.HALF_UP).toString();
             retentionTimeSeconds = String.valueOf(exp.getId().getRt().orElse(RetentionTime.NA()).getRetentionTimeInSeconds());
             dirName = exp.getId().getDirectoryName();
+            compoundIndex = exp.getId().getCompoundIndex();
+        }
+
+        private ResultEntry(FormulaScoring scoring, String[] fields, int compoundIndex) {
+            this.scoring = scoring;
+            this.compoundIndex = compoundIndex;
+            molecularFormula = MolecularFormula.parseOrThrow(fields[1]);
+            preFormula = MolecularFormula.parseOrThrow(fields[2]);
+            ion = fields[3];
+            ionMass = fields[4];
+            retentionTimeSeconds = fields[5];
+            dirName = fields[6];
+            treeNumVertices = fields[7];
+            treeExplInt = fields[8];
+            medianMassDev = fields[9];
+            medianAbsMassDev = fields[10];
+            massErrorPrecursor = fields[11];
+        }
+
+        String encode() {
+            return String.join("\t", molecularFormula.toString(), preFormula.toString(), ion, ionMass, retentionTimeSeconds, dirName,
+                    treeNumVertices, treeExplInt, medianMassDev, medianAbsMassDev, massErrorPrecursor,
+                    scoring.annotations().values().stream().filter(Objects::nonNull)
+                            .map(v -> v.getClass().getName() + "=" + v.score()).collect(Collectors.joining(";")));
+        }
+
+        @SuppressWarnings("unchecked")
+        static ResultEntry decode(String[] fields, int compoundIndex) {
+            if (fields.length != 13)
+                throw new IllegalArgumentException("Malformed formula summary row: " + String.join("\t", fields));
+            try {
+                final FormulaScoring scoring = new FormulaScoring();
+                if (!fields[12].isEmpty()) {
+                    for (String s : fields[12].split(";")) {
+                        final int sep = s.lastIndexOf('=');
+                        if (sep < 0)
+                            throw new IllegalArgumentException("Malformed formula score: " + s);
+                        final FormulaScore score = score(s.substring(0, sep), Double.parseDouble(s.substring(sep + 1)));
+                        scoring.setAnnotation((Class<FormulaScore>) score.getClass(), score);
+                    }
+                }
+                return new ResultEntry(scoring, fields, compoundIndex);
+            } catch (IllegalArgumentException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Could not decode formula summary row: " + String.join("\t", fields), e);
+            }
         }
 
         public FormulaScoring getScoring() {
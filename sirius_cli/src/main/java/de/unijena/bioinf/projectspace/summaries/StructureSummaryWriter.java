@@ -30,9 +30,10 @@ import de.unijena.bioinf.fingerid.ConfidenceScore;
 import de.unijena.bioinf.fingerid.blast.FBCandidates;
 import de.unijena.bioinf.fingerid.blast.TopCSIScore;
 import de.unijena.bioinf.ms.annotations.DataAnnotation;
+import de.unijena.bioinf.projectspace.CompoundContainerId;
 import de.unijena.bioinf.projectspace.FormulaScoring;
+import de.unijena.bioinf.projectspace.IncrementalSummarizer;
 import de.unijena.bioinf.projectspace.ProjectWriter;
-import de.unijena.bioinf.projectspace.Summarizer;
 import de.unijena.bioinf.projectspace.sirius.CompoundContainer;
 import de.unijena.bioinf.projectspace.sirius.FormulaResult;
 import de.unijena.bioinf.sirius.scores.SiriusScore;
@@ -44,13 +45,43 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Collectors;
 
-public class StructureSummaryWriter implements Summarizer {
-    private List<Hit> compoundTopHits = new ArrayList<>();
-    private List<Hit> compoundTopHitsAdducts = new ArrayList<>();
+public class StructureSummaryWriter implements IncrementalSummarizer {
+    private final List<Hit> compoundTopHits = Collections.synchronizedList(new ArrayList<>());
+    private final List<Hit> compoundTopHitsAdducts = Collections.synchronizedList(new ArrayList<>());
+    private final ThreadLocal<List<String>> compoundRows = ThreadLocal.withInitial(ArrayList::new);
+
+    @Override
+    public String getSummaryName() {
+        return "structure";
+    }
+
+    @Override
+    public List<String> takeCompoundRows() {
+        final List<String> rows = new ArrayList<>(compoundRows.get());
+        compoundRows.get().clear();
+        return rows;
+    }
+
+    // rows: "C" for the compound top hit, "A" for top hits of the adducts
+    @Override
+    public void addCompoundRows(@NotNull CompoundContainerId id, List<String> rows) {
+        final List<Hit> top = new ArrayList<>(), adducts = new ArrayList<>();
+        for (String row : rows) {
+            if (row.startsWith("C\t"))
+                top.add(Hit.decode(row.substring(2), id.getCompoundIndex()));
+            else if (row.startsWith("A\t"))
+                adducts.add(Hit.decode(row.substring(2), id.getCompoundIndex()));
+            else
+                throw new IllegalArgumentException("Unknown structure summary row: " + row);
+        }
+        compoundTopHits.addAll(top);
+        compoundTopHitsAdducts.addAll(adducts);
+    }
 
     @Override
     public List<Class<? extends DataAnnotation>> requiredFormulaResultAnnotations() {
@@ -94,44 +125,41 @@ public class StructureSummaryWriter implements Summarizer {
                         if (result.getCandidate().hasAnnotation(FBCandidates.class)) {
                             final List<Scored<CompoundCandidate>> frs = result.getCandidate().getAnnotationOrThrow(FBCandidates.class).getResults();
 
-                            //create buffer
-                            final StringWriter w = new StringWriter(128);
-                            for (Scored<CompoundCandidate> res : frs)
-                                new StructureCSVExporter().exportFingerIdResult(w, res, result.getCandidate().getId(), false, null);
-
-                            final List<List<String>> lines = w.toString().isBlank() ? null :
-                                    Arrays.stream(w.toString().split("\n")).map(l -> Arrays.asList(l.split("\t"))).collect(Collectors.toList());
-
-                            if (lines != null && !lines.isEmpty()) {
+                            // rows are written one by one, only the top hit is kept for the project wide summary
+                            List<String> topLine = null;
+                            if (!frs.isEmpty()) {
                                 fileWriter.write("\n");
-                                // write summary file
+                                final StructureCSVExporter exporter = new StructureCSVExporter();
+                                final StringWriter w = new StringWriter(256);
                                 int rank = 0;
-                                for (List<String> line : lines) {
-                                    rank++;
-                                    if (!line.isEmpty()) {
-                                        fileWriter.write(String.valueOf(rank));
-                                        fileWriter.write("\t");
-                                        fileWriter.write(String.valueOf(formulaRank));
-                                        fileWriter.write("\t");
-                                        fileWriter.write(String.join("\t", line));
-                                        if (rank < lines.size())
-                                            fileWriter.write("\n");
-                                    }
+                                for (Scored<CompoundCandidate> res : frs) {
+                                    w.getBuffer().setLength(0);
+                                    exporter.exportFingerIdResult(w, res, result.getCandidate().getId(), false, null);
+                                    final String line = w.toString().stripTrailing();
+                                    if (rank > 0)
+                                        fileWriter.write("\n");
+                                    else
+                                        topLine = Arrays.asList(line.split("\t"));
+                                    fileWriter.write(String.valueOf(++rank));
+                                    fileWriter.write("\t");
+                                    fileWriter.write(String.valueOf(formulaRank));
+                                    fileWriter.write("\t");
+                                    fileWriter.write(line);
                                 }
+                            }
 
-                                // collect data for project wide summary
-                                if (!lines.get(0).isEmpty()) {
-                                    final ConfidenceScore confidence = result.getCandidate().getAnnotation(FormulaScoring.class).
-                                            map(s -> s.getAnnotationOr(ConfidenceScore.class, FormulaScore::NA)).orElse(FormulaScore.NA(ConfidenceScore.class));
-                                    final TopCSIScore csiScore = result.getCandidate().getAnnotation(FormulaScoring.class).
-                                            map(s -> s.getAnnotationOr(TopCSIScore.class, FormulaScore::NA)).orElse(FormulaScore.NA(TopCSIScore.class));
-                                    final SiriusScore siriusScore = result.getCandidate().getAnnotation(FormulaScoring.class).
-                                            map(s -> s.getAnnotationOr(SiriusScore.class, FormulaScore::NA)).orElse(FormulaScore.NA(SiriusScore.class));
-                                    final ZodiacScore zodiacScore = result.getCandidate().getAnnotation(FormulaScoring.class).
-                                            map(s -> s.getAnnotationOr(ZodiacScore.class, FormulaScore::NA)).orElse(FormulaScore.NA(ZodiacScore.class));
-
-                                    topHits.add(new Hit(confidence + "\t" + lines.get(0).get(0) + "\t" + zodiacScore + "\t" + siriusScore + "\t" + String.join("\t", lines.get(0).subList(1, lines.get(0).size())) + "\t" + exp.getId().getIonMass().orElse(Double.NaN) + "\t" + exp.getId().getRt().orElse(RetentionTime.NA()).getRetentionTimeInSeconds() + "\t" + exp.getId().getDirectoryName() + "\n", confidence, csiScore, formulaRank));
-                                }
+                            // collect data for project wide summary
+                            if (topLine != null) {
+                                final ConfidenceScore confidence = result.getCandidate().getAnnotation(FormulaScoring.class).
+                                        map(s -> s.getAnnotationOr(ConfidenceScore.class, FormulaScore::NA)).orElse(FormulaScore.NA(ConfidenceScore.class));
+                                final TopCSIScore csiScore = result.getCandidate().getAnnotation(FormulaScoring.class).
+                                        map(s -> s.getAnnotationOr(TopCSIScore.class, FormulaScore::NA)).orElse(FormulaScore.NA(TopCSIScore.class));
+                                final SiriusScore siriusScore = result.getCandidate().getAnnotation(FormulaScoring.class).
+                                        map(s -> s.getAnnotationOr(SiriusScore.class, FormulaScore::NA)).orElse(FormulaScore.NA(SiriusScore.class));
+                                final ZodiacScore zodiacScore = result.getCandidate().getAnnotation(FormulaScoring.class).
+                                        map(s -> s.getAnnotationOr(ZodiacScore.class, FormulaScore::NA)).orElse(FormulaScore.NA(ZodiacScore.class));
+
+                                topHits.add(new Hit(confidence + "\t" + topLine.get(0) + "\t" + zodiacScore + "\t" + siriusScore + "\t" + String.join("\t", topLine.subList(1, topLine.size())) + "\t" + exp.getId().getIonMass().orElse(Double.NaN) + "\t" + exp.getId().getRt().orElse(RetentionTime.NA()).getRetentionTimeInSeconds() + "\t" + exp.getId().getDirectoryName() + "\n", confidence, csiScore, formulaRank, exp.getId().getCompoundIndex()));
                             }
                         }
                     }
@@ -150,6 +178,8 @@ public class StructureSummaryWriter implements Summarizer {
                 List<Hit> toadd = topHits.stream().filter(hit -> hit.formulaRank == topRank).collect(Collectors.toList());
                 toadd.forEach(h -> h.numberOfAdducts = toadd.size());
                 compoundTopHitsAdducts.addAll(toadd);
+                compoundRows.get().add("C\t" + topHits.get(0).encode());
+                toadd.forEach(h -> compoundRows.get().add("A\t" + h.encode()));
             }
 
 
@@ -160,15 +190,23 @@ public class StructureSummaryWriter implements Summarizer {
 
     @Override
     public void writeProjectSpaceSummary(ProjectWriter writer) throws IOException {
-        if (!compoundTopHits.isEmpty()) {
-            compoundTopHits.sort(Hit.compareByConfidence().reversed());
-            writer.textFile(SummaryLocations.COMPOUND_SUMMARY, w -> write(w, compoundTopHits));
-        }
+        // compounds are added concurrently, ties are ordered by compound to keep the output deterministic
+        final List<Hit> topHits = sortedCopy(compoundTopHits);
+        if (!topHits.isEmpty())
+            writer.textFile(SummaryLocations.COMPOUND_SUMMARY, w -> write(w, topHits));
+
+        final List<Hit> topHitsAdducts = sortedCopy(compoundTopHitsAdducts);
+        if (!topHitsAdducts.isEmpty())
+            writer.textFile(SummaryLocations.COMPOUND_SUMMARY_ADDUCTS, w -> write(w, topHitsAdducts));
+    }
 
-        if (!compoundTopHitsAdducts.isEmpty()) {
-            compoundTopHitsAdducts.sort(Hit.compareByConfidence().reversed());
-            writer.textFile(SummaryLocations.COMPOUND_SUMMARY_ADDUCTS, w -> write(w, compoundTopHitsAdducts));
+    private static List<Hit> sortedCopy(List<Hit> hits) {
+        final List<Hit> copy;
+        synchronized (hits) {
+            copy = new ArrayList<>(hits);
         }
+        copy.sort(Hit.compareByConfidence().reversed().thenComparingInt(h -> h.compoundIndex));
+        return copy;
     }
 
     static void write(BufferedWriter w, List<Hit> data) throws IOException {
@@ -192,14 +230,35 @@ public class StructureSummaryWriter implements Summarizer {
         final ConfidenceScore confidenceScore;
         final TopCSIScore csiScore;
         final int formulaRank;
+        final int compoundIndex;
         int numberOfAdducts = 1;
         int numberOfFps = 1;
 
-        Hit(String line, ConfidenceScore confidenceScore, TopCSIScore csiScore, int formulaRank) {
+        Hit(String line, ConfidenceScore confidenceScore, TopCSIScore csiScore, int formulaRank, int compoundIndex) {
             this.line = line;
             this.confidenceScore = confidenceScore;
             this.csiScore = csiScore;
             this.formulaRank = formulaRank;
+            this.compoundIndex = compoundIndex;
+        }
+
+        String encode() {
+            return confidenceScore.score() + "\t" + csiScore.score() + "\t" + formulaRank + "\t" + numberOfAdducts + "\t" + numberOfFps + "\t" + line.substring(0, line.length() - 1);
+        }
+
+        static Hit decode(String row, int compoundIndex) {
+            final String[] fields = row.split("\t", 6);
+            if (fields.length < 6)
+                throw new IllegalArgumentException("Incomplete structure summary row: " + row);
+            try {
+                final Hit hit = new Hit(fields[5] + "\n", new ConfidenceScore(Double.parseDouble(fields[0])),
+                        new TopCSIScore(Double.parseDouble(fields[1])), Integer.parseInt(fields[2]), compoundIndex);
+                hit.numberOfAdducts = Integer.parseInt(fields[3]);
+                hit.numberOfFps = Integer.parseInt(fields[4]);
+                return hit;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed structure summary row: " + row, e);
+            }
         }
 
         static Comparator<Hit> compareByConfidence() {
@@ -0,0 +1,86 @@
+package de.unijena.bioinf.ms.frontend.core;
+
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bioinf.jjobs.JobSubmitter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+public class RequestBatcherTest {
+
+    @Test
+    public void testRequestsAreCoalesced() throws Exception {
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        // in-process stand-in for the server: answers every request with its square
+        try (RequestBatcher<Integer, Integer> batcher = new RequestBatcher<>("test", batch -> {
+            batchSizes.add(batch.size());
+            return batch.stream().map(i -> i * i).collect(Collectors.toList());
+        }, 10_000, 4)) {
+            final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+                futures.add(batcher.submit(i));
+
+            for (int i = 0; i < futures.size(); i++)
+                Assert.assertEquals(Integer.valueOf(i * i), futures.get(i).get());
+        }
+        Assert.assertEquals(List.of(4, 4), batchSizes);
+    }
+
+    @Test
+    public void testWindowFlushesIncompleteBatch() throws Exception {
+        try (RequestBatcher<String, String> batcher = new RequestBatcher<>("test", batch ->
+                batch.stream().map(String::toUpperCase).collect(Collectors.toList()), 20, 100)) {
+            Assert.assertEquals("A", batcher.submit("a").get());
+        }
+    }
+
+    @Test
+    public void testFailurePropagatesToAllRequests() throws Exception {
+        try (RequestBatcher<Integer, Integer> batcher = new RequestBatcher<>("test", batch -> {
+            throw new IllegalStateException("server down");
+        }, 10_000, 2)) {
+            final CompletableFuture<Integer> f1 = batcher.submit(1);
+            final CompletableFuture<Integer> f2 = batcher.submit(2);
+            for (CompletableFuture<Integer> f : List.of(f1, f2)) {
+                try {
+                    f.get();
+                    Assert.fail("Exception expected");
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+            }
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testWaitingCallersSendDueBatches() throws Exception {
+        // sender jobs are accepted but never run, e.g. because all web service threads are blocked by the callers
+        final AtomicInteger submittedSenders = new AtomicInteger();
+        final JobSubmitter starved = new JobSubmitter() {
+            @Override
+            public <Job extends JJob<Result>, Result> Job submitJob(Job job) {
+                submittedSenders.incrementAndGet();
+                return job;
+            }
+        };
+        try (RequestBatcher<Integer, Integer> batcher = new RequestBatcher<>("test", batch ->
+                batch.stream().map(i -> -i).collect(Collectors.toList()), 20, 2, 1, starved)) {
+            final CompletableFuture<Integer> f1 = batcher.submit(1);
+            final CompletableFuture<Integer> f2 = batcher.submit(2);
+            final CompletableFuture<Integer> f3 = batcher.submit(3);
+            // full batch
+            Assert.assertEquals(Integer.valueOf(-1), batcher.await(f1, () -> {}));
+            Assert.assertEquals(Integer.valueOf(-2), f2.get());
+            // incomplete batch after its window
+            Assert.assertEquals(Integer.valueOf(-3), batcher.await(f3, () -> {}));
+        }
+        Assert.assertEquals(1, submittedSenders.get());
+    }
+}
@@ -0,0 +1,116 @@
+package de.unijena.bioinf.ms.frontend.core;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.canopus.CanopusResult;
+import de.unijena.bioinf.fingerid.CSIPredictor;
+import de.unijena.bioinf.fingerid.predictor_types.PredictorType;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WebRequestBatcherTest {
+
+    // in-process stand-in for the web service: fails requests with negative charge
+    private static class StandInTransport implements WebRequestBatcher.Transport {
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        final AtomicInteger predictorCalls = new AtomicInteger(0);
+        volatile boolean predictorFails = false;
+        final boolean bulk;
+
+        StandInTransport() {
+            this(true);
+        }
+
+        StandInTransport(boolean bulk) {
+            this.bulk = bulk;
+        }
+
+        @Override
+        public boolean isBulkTransport() {
+            return bulk;
+        }
+
+        @Override
+        public List<CompletableFuture<CanopusResult>> computeCanopus(@NotNull List<WebRequestBatcher.CanopusRequest> batch) {
+            batchSizes.add(batch.size());
+            final List<CompletableFuture<CanopusResult>> results = new ArrayList<>();
+            for (WebRequestBatcher.CanopusRequest r : batch)
+                results.add(r.charge < 0
+                        ? CompletableFuture.failedFuture(new IllegalStateException("invalid request"))
+                        : CompletableFuture.completedFuture(null));
+            return results;
+        }
+
+        @Override
+        public CSIPredictor getStructurePredictor(@NotNull PredictorType type) {
+            predictorCalls.incrementAndGet();
+            if (predictorFails)
+                throw new IllegalStateException("server down");
+            return null;
+        }
+    }
+
+    @Test
+    public void testFailingRequestDoesNotFailBatch() throws Exception {
+        final StandInTransport transport = new StandInTransport();
+        final MolecularFormula formula = MolecularFormula.parseOrNull("C6H12O6");
+        try (WebRequestBatcher batcher = new WebRequestBatcher(transport, 10_000, 3, 1)) {
+            final CompletableFuture<CanopusResult> f1 = batcher.submitCanopus(formula, 1, null);
+            final CompletableFuture<CanopusResult> f2 = batcher.submitCanopus(formula, -1, null);
+            final CompletableFuture<CanopusResult> f3 = batcher.submitCanopus(formula, 1, null);
+
+            Assert.assertNull(f1.get());
+            Assert.assertNull(f3.get());
+            try {
+                f2.get();
+                Assert.fail("Exception expected");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        Assert.assertEquals(List.of(3), transport.batchSizes);
+    }
+
+    @Test
+    public void testPredictorIsLoadedOnceAndRetriedOnFailure() throws Exception {
+        final StandInTransport transport = new StandInTransport();
+        try (WebRequestBatcher batcher = new WebRequestBatcher(transport, 0, 1, 1)) {
+            transport.predictorFails = true;
+            try {
+                batcher.getStructurePredictor(PredictorType.CSI_FINGERID_POSITIVE, () -> {});
+                Assert.fail("Exception expected");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+
+            transport.predictorFails = false;
+            batcher.getStructurePredictor(PredictorType.CSI_FINGERID_POSITIVE, () -> {});
+            batcher.getStructurePredictor(PredictorType.CSI_FINGERID_POSITIVE, () -> {});
+        }
+        Assert.assertEquals(2, transport.predictorCalls.get());
+    }
+
+    @Test
+    public void testRequestsAreNotCollectedWithoutBulkTransport() throws Exception {
+        final StandInTransport transport = new StandInTransport(false);
+        final MolecularFormula formula = MolecularFormula.parseOrNull("C6H12O6");
+        try (WebRequestBatcher batcher = new WebRequestBatcher(transport, 10_000, 100, 1)) {
+            final List<CompletableFuture<CanopusResult>> first = batcher.submitCanopus(List.of(
+                    new WebRequestBatcher.CanopusRequest(formula, 1, null), new WebRequestBatcher.CanopusRequest(formula, -1, null)));
+            // sent without waiting for the window
+            Assert.assertTrue(first.stream().allMatch(CompletableFuture::isDone));
+            Assert.assertNull(batcher.awaitCanopus(first.get(0), () -> {}));
+            Assert.assertTrue(first.get(1).isCompletedExceptionally());
+
+            Assert.assertNull(batcher.submitCanopus(formula, 1, null).get());
+        }
+        Assert.assertEquals(List.of(2, 1), transport.batchSizes);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+
+package de.unijena.bioinf.ms.frontend.workflow;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Claiming, stealing and releasing of compound leases by several workers on the same project.
+ */
+public class ShardedExecutionTest {
+    private static final long LEASE_TIMEOUT = 500;
+
+    private Path project;
+    private Path leaseDir;
+    private final List<ShardedExecution> workers = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        project = Files.createTempDirectory("sirius-shard-test");
+        leaseDir = project.resolve(ShardedExecution.SHARD_DIR).resolve(ShardedExecution.LEASE_DIR);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        workers.forEach(ShardedExecution::close);
+        try (Stream<Path> walk = Files.walk(project)) {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(p);
+        }
+    }
+
+    private ShardedExecution worker(int index) throws IOException {
+        final ShardedExecution worker = new ShardedExecution(index, 3, LEASE_TIMEOUT, 100, project);
+        workers.add(worker);
+        return worker;
+    }
+
+    private Path lock(String name) {
+        return leaseDir.resolve(name + ".lock");
+    }
+
+    @Test
+    public void testClaimAndRelease() throws IOException {
+        final ShardedExecution a = worker(0), b = worker(1);
+        Assert.assertEquals(ShardedExecution.Claim.CLAIMED, a.tryClaim("1_compound"));
+        Assert.assertEquals(ShardedExecution.Claim.LEASED, b.tryClaim("1_compound"));
+        Assert.assertEquals(ShardedExecution.Claim.LEASED, a.tryClaim("1_compound"));
+
+        a.release("1_compound");
+        Assert.assertFalse(Files.exists(lock("1_compound")));
+        Assert.assertEquals(ShardedExecution.Claim.DONE, b.tryClaim("1_compound"));
+        Assert.assertEquals(ShardedExecution.Claim.DONE, a.tryClaim("1_compound"));
+        Assert.assertFalse(Files.exists(lock("1_compound")));
+    }
+
+    @Test
+    public void testFinishMarksHeldLeasesAsFailed() throws IOException {
+        final ShardedExecution a = worker(0), b = worker(1);
+        Assert.assertEquals(ShardedExecution.Claim.CLAIMED, a.tryClaim("1_compound"));
+        Assert.assertEquals(ShardedExecution.Claim.CLAIMED, a.tryClaim("2_compound"));
+        a.release("1_compound");
+        // the instance jobs of 2_compound did not reach the release job
+        a.finish();
+
+        Assert.assertEquals(ShardedExecution.Claim.DONE, b.tryClaim("1_compound"));
+        Assert.assertEquals(ShardedExecution.Claim.FAILED, b.tryClaim("2_compound"));
+        Assert.assertFalse(Files.exists(leaseDir.resolve("2_compound.done")));
+        Assert.assertFalse(Files.exists(lock("2_compound")));
+    }
+
+    @Test
+    public void testCloseGivesLeasesBack() throws IOException {
+        final ShardedExecution a = worker(0), b = worker(1);
+        Assert.assertEquals(ShardedExecution.Claim.CLAIMED, a.tryClaim("1_compound"));
+        a.close();
+        Assert.assertEquals(ShardedExecution.Claim.CLAIMED, b.tryClaim("1_compound"));
+    }
+
+    @Test
+    public void testStealStaleLease() throws IOException, InterruptedException {
+        final ShardedExecution b = worker(1);
+        // lease of a crashed worker, its file time is in the future, e.g. due to clock skew
+        Files.writeString(lock("1_compound"), "2-crashed\t7", StandardCharsets.UTF_8);
+        Files.setLastModifiedTime(lock("1_compound"), FileTime.from(Instant.now().plusSeconds(3600)));
+
+        Assert.assertEquals(ShardedExecution.Claim.LEASED, b.tryClaim("1_compound"));
+        Thread.sleep(LEASE_TIMEOUT + 200);
+        Assert.assertEquals(ShardedExecution.Claim.CLAIMED, b.tryClaim("1_compound"));
+        Assert.assertTrue(Files.readString(lock("1_compound"), StandardCharsets.UTF_8).startsWith("1-"));
+    }
+
+    @Test
+    public void testOldFileTimeIsNotStale() throws IOException {
+        final ShardedExecution b = worker(1);
+        Files.writeString(lock("1_compound"), "2-alive\t7", StandardCharsets.UTF_8);
+        Files.setLastModifiedTime(lock("1_compound"), FileTime.from(Instant.now().minusSeconds(3600)));
+        Assert.assertEquals(ShardedExecution.Claim.LEASED, b.tryClaim("1_compound"));
+    }
+
+    @Test
+    public void testHeartbeatKeepsLease() throws IOException, InterruptedException {
+        final ShardedExecution a = worker(0), b = worker(1);
+        Assert.assertEquals(ShardedExecution.Claim.CLAIMED, a.tryClaim("1_compound"));
+        final String claimed = Files.readString(lock("1_compound"), StandardCharsets.UTF_8);
+
+        final long end = System.currentTimeMillis() + 3 * LEASE_TIMEOUT;
+        while (System.currentTimeMillis() < end) {
+            Assert.assertEquals(ShardedExecution.Claim.LEASED, b.tryClaim("1_compound"));
+            Thread.sleep(50);
+        }
+        Assert.assertNotEquals(claimed, Files.readString(lock("1_compound"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testConcurrentStealHasOneWinner() throws Exception {
+        final ShardedExecution a = worker(0), b = worker(1);
+        Files.writeString(lock("1_compound"), "2-crashed\t7", StandardCharsets.UTF_8);
+        Assert.assertEquals(ShardedExecution.Claim.LEASED, a.tryClaim("1_compound"));
+        Assert.assertEquals(ShardedExecution.Claim.LEASED, b.tryClaim("1_compound"));
+        Thread.sleep(LEASE_TIMEOUT + 200);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final CyclicBarrier start = new CyclicBarrier(2);
+            final Future<ShardedExecution.Claim> fa = pool.submit(() -> {
+                start.await();
+                return a.tryClaim("1_compound");
+            });
+            final Future<ShardedExecution.Claim> fb = pool.submit(() -> {
+                start.await();
+                return b.tryClaim("1_compound");
+            });
+            final int winners = (fa.get() == ShardedExecution.Claim.CLAIMED ? 1 : 0) + (fb.get() == ShardedExecution.Claim.CLAIMED ? 1 : 0);
+            Assert.assertEquals(1, winners);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testWorkersWaitForDataCompatibility() throws Exception {
+        final ShardedExecution coordinator = worker(0), b = worker(1), c = worker(2);
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Boolean> waiting = pool.submit(b::awaitDataCompatibility);
+            Thread.sleep(300);
+            Assert.assertFalse(waiting.isDone());
+
+            coordinator.publishDataCompatibility(false);
+            Assert.assertFalse(waiting.get());
+            Assert.assertFalse(c.awaitDataCompatibility());
+
+            coordinator.publishDataCompatibility(true);
+            Assert.assertTrue(c.awaitDataCompatibility());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseStopsWaitingForCoordinator() throws Exception {
+        final ShardedExecution b = worker(1);
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Boolean> waiting = pool.submit(b::awaitDataCompatibility);
+            Thread.sleep(200);
+            b.close();
+            try {
+                waiting.get();
+                Assert.fail("Waiting worker has not been stopped.");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof InterruptedException);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.frontend.workflow;
+
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
+import de.unijena.bioinf.ms.frontend.subtools.InstanceJob;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.projectspace.Instance;
+import de.unijena.bioinf.projectspace.InstanceFactory;
+import de.unijena.bioinf.projectspace.ProjectSpaceIO;
+import de.unijena.bioinf.projectspace.ProjectSpaceManager;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission of instances by the {@link SimpleInstanceBuffer} if a heap target (--heap-target) is set.
+ */
+public class SimpleInstanceBufferTest {
+    private Path location;
+    private ProjectSpaceManager ps;
+    private List<Instance> instances;
+
+    @Before
+    public void setUp() throws IOException {
+        location = Files.createTempDirectory("sirius-simple-buffer-test");
+        Files.delete(location); // project space must not exist yet
+        ps = new ProjectSpaceManager(new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).createNewProjectSpace(location), new InstanceFactory.Default(), null);
+        instances = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final MutableMs2Experiment exp = new MutableMs2Experiment();
+            exp.setName("compound_" + i);
+            exp.setPrecursorIonType(PrecursorIonType.getPrecursorIonType("[M+H]+"));
+            exp.setIonMass(200d + i);
+            instances.add(ps.newCompoundWithUniqueId(exp));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ps.close();
+        if (Files.exists(location))
+            FileUtils.deleteRecursively(location);
+    }
+
+    @Test
+    public void testHeapTargetProperty() {
+        final String heapTarget = PropertyManager.getProperty(HeapAdmissionControl.HEAP_TARGET_KEY, null, "0");
+        try {
+            PropertyManager.setProperty(HeapAdmissionControl.HEAP_TARGET_KEY, "0.6");
+            final HeapAdmissionControl control = HeapAdmissionControl.fromProperties(2);
+            Assert.assertNotNull(control);
+            Assert.assertTrue(control.getLimit() >= 1 && control.getLimit() <= 2);
+            // the first instance is always admitted
+            Assert.assertTrue(control.tryAdmit(0, Long.MAX_VALUE / 2));
+
+            PropertyManager.setProperty(HeapAdmissionControl.HEAP_TARGET_KEY, "0");
+            Assert.assertNull(HeapAdmissionControl.fromProperties(2));
+        } finally {
+            PropertyManager.setProperty(HeapAdmissionControl.HEAP_TARGET_KEY, heapTarget);
+        }
+    }
+
+    @Test(timeout = 60_000)
+    public void testFinishedInstanceAdmitsNext() throws Exception {
+        // heap is always above the target, so one instance runs at a time
+        final ScriptedAdmission admission = new ScriptedAdmission();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        final List<InstanceJob.Factory<?>> tasks = List.of(StagedInstanceBufferTest.TestJob.factory(false, inst -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(50);
+            running.decrementAndGet();
+            done.incrementAndGet();
+        }));
+        final SimpleInstanceBuffer buffer = new SimpleInstanceBuffer(4, instances.iterator(), tasks, null, SiriusJobs.getGlobalJobManager());
+        buffer.setAdmissionControl(admission);
+        buffer.start(false);
+
+        Assert.assertEquals(instances.size(), done.get());
+        Assert.assertEquals(1, maxRunning.get());
+        Assert.assertTrue(admission.rejected.get() > 0);
+    }
+
+    @Test(timeout = 60_000)
+    public void testCollectionAdmitsWaitingInstances() throws Exception {
+        final ScriptedAdmission admission = new ScriptedAdmission();
+        final AtomicInteger started = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<InstanceJob.Factory<?>> tasks = List.of(StagedInstanceBufferTest.TestJob.factory(false, inst -> {
+            started.incrementAndGet();
+            release.await();
+        }));
+        final SimpleInstanceBuffer buffer = new SimpleInstanceBuffer(4, instances.iterator(), tasks, null, SiriusJobs.getGlobalJobManager());
+        buffer.setAdmissionControl(admission);
+
+        final Thread starter = new Thread(() -> {
+            try {
+                buffer.start(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        starter.start();
+        try {
+            // the second instance waits for heap
+            while (admission.rejected.get() == 0)
+                Thread.sleep(10);
+            Assert.assertTrue(started.get() <= 1);
+
+            // what a garbage collection notification does after the heap has been freed
+            admission.heapFull = false;
+            admission.collected();
+            // all instances are admitted while the first one is still running
+            while (started.get() < instances.size())
+                Thread.sleep(10);
+        } finally {
+            release.countDown();
+        }
+        starter.join(30_000);
+        Assert.assertFalse("Buffer did not finish.", starter.isAlive());
+    }
+
+    private static class ScriptedAdmission extends HeapAdmissionControl {
+        private final AtomicInteger rejected = new AtomicInteger();
+        private volatile boolean heapFull = true;
+
+        ScriptedAdmission() {
+            super(0.5, 0);
+        }
+
+        @Override
+        public boolean tryAdmit(int running, long footprint) {
+            if (running > 0 && heapFull) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+
+package de.unijena.bioinf.ms.frontend.workflow;
+
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
+import de.unijena.bioinf.jjobs.JobSubmitter;
+import de.unijena.bioinf.ms.frontend.subtools.InstanceJob;
+import de.unijena.bioinf.projectspace.Instance;
+import de.unijena.bioinf.projectspace.InstanceFactory;
+import de.unijena.bioinf.projectspace.ProjectSpaceIO;
+import de.unijena.bioinf.projectspace.ProjectSpaceManager;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs synthetic tool chains on a real project through the {@link StagedInstanceBuffer} and the global job manager.
+ */
+public class StagedInstanceBufferTest {
+    private Path location;
+    private RecordingProjectSpace ps;
+    private List<Instance> instances;
+
+    @Before
+    public void setUp() throws IOException {
+        location = Files.createTempDirectory("sirius-staged-buffer-test");
+        Files.delete(location); // project space must not exist yet
+        ps = new RecordingProjectSpace(location);
+        instances = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            final MutableMs2Experiment exp = new MutableMs2Experiment();
+            exp.setName("compound_" + i);
+            exp.setPrecursorIonType(PrecursorIonType.getPrecursorIonType("[M+H]+"));
+            exp.setIonMass(200d + i);
+            instances.add(ps.newCompoundWithUniqueId(exp));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ps.close();
+        if (Files.exists(location))
+            FileUtils.deleteRecursively(location);
+    }
+
+    @Test(timeout = 60_000)
+    public void testStagesRunInOrderWithinSlots() throws Exception {
+        final Recorder rec = new Recorder();
+        final List<InstanceJob.Factory<?>> tasks = List.of(
+                rec.factory(0, false), rec.factory(1, true), rec.factory(2, false));
+        final StagedInstanceBuffer buffer = new StagedInstanceBuffer(2, 2, instances.iterator(), tasks, null, SiriusJobs.getGlobalJobManager());
+        buffer.start(false);
+
+        for (Instance inst : instances) {
+            final String id = inst.getID().getDirectoryName();
+            final List<String> events = new ArrayList<>();
+            synchronized (rec.events) {
+                for (String e : rec.events)
+                    if (e.startsWith(id + ":"))
+                        events.add(e.substring(id.length() + 1));
+            }
+            Assert.assertEquals(List.of("start 0", "end 0", "start 1", "end 1", "start 2", "end 2"), events);
+        }
+        Assert.assertTrue(rec.maxRunningCpu.get() <= 2);
+        Assert.assertTrue(rec.maxRunningWeb.get() <= 2);
+    }
+
+    @Test(timeout = 60_000)
+    public void testResultsAreCommittedOutsideOfTheLock() throws Exception {
+        final Recorder rec = new Recorder();
+        final StagedInstanceBuffer buffer = new StagedInstanceBuffer(2, 2, instances.iterator(),
+                List.of(rec.factory(0, false), rec.factory(1, true)), null, SiriusJobs.getGlobalJobManager());
+        ps.buffer = buffer;
+        buffer.start(false);
+
+        // every instance is committed once after its last stage
+        Assert.assertEquals(instances.size(), ps.commits.get());
+        Assert.assertEquals(0, ps.commitsWithLock.get());
+    }
+
+    @Test(timeout = 60_000)
+    public void testCancelFinishesQueuedRuns() throws Exception {
+        // two web service slots and one cpu slot: the third instance waits for a web service slot
+        final CountDownLatch running = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger secondStage = new AtomicInteger();
+        final List<InstanceJob.Factory<?>> tasks = List.of(
+                TestJob.factory(true, inst -> {
+                    running.countDown();
+                    release.await();
+                }),
+                TestJob.factory(false, inst -> secondStage.incrementAndGet()));
+
+        final AtomicInteger loaded = new AtomicInteger();
+        final Iterator<Instance> it = instances.iterator();
+        final StagedInstanceBuffer buffer = new StagedInstanceBuffer(1, 2, new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Instance next() {
+                loaded.incrementAndGet();
+                return it.next();
+            }
+        }, tasks, null, SiriusJobs.getGlobalJobManager());
+        ps.buffer = buffer;
+
+        final Thread starter = new Thread(() -> {
+            try {
+                buffer.start(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        starter.start();
+        Assert.assertTrue(running.await(30, TimeUnit.SECONDS));
+        // the third instance is admitted and queued under the lock, so it is queued once cancel() gets the lock
+        while (loaded.get() < 3)
+            Thread.sleep(10);
+
+        buffer.cancel();
+        // the running stages finish after cancellation, no further stage is started
+        release.countDown();
+        starter.join(30_000);
+        Assert.assertFalse("Buffer did not finish after cancellation.", starter.isAlive());
+
+        Assert.assertEquals(3, loaded.get());
+        Assert.assertEquals(0, secondStage.get());
+        // the two canceled stages and the queued run are persisted
+        Assert.assertEquals(3, ps.commits.get());
+        Assert.assertEquals(0, ps.commitsWithLock.get());
+    }
+
+    private static class RecordingProjectSpace extends ProjectSpaceManager {
+        private final AtomicInteger commits = new AtomicInteger();
+        private final AtomicInteger commitsWithLock = new AtomicInteger();
+        private volatile StagedInstanceBuffer buffer;
+
+        RecordingProjectSpace(Path location) throws IOException {
+            super(new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).createNewProjectSpace(location), new InstanceFactory.Default(), null);
+        }
+
+        @Override
+        public void commit() {
+            commits.incrementAndGet();
+            if (buffer != null && ((ReentrantLock) buffer.lock).isHeldByCurrentThread())
+                commitsWithLock.incrementAndGet();
+            super.commit();
+        }
+    }
+
+    private static class Recorder {
+        private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger runningCpu = new AtomicInteger();
+        private final AtomicInteger runningWeb = new AtomicInteger();
+        private final AtomicInteger maxRunningCpu = new AtomicInteger();
+        private final AtomicInteger maxRunningWeb = new AtomicInteger();
+
+        InstanceJob.Factory<?> factory(int stage, boolean webservice) {
+            return TestJob.factory(webservice, inst -> {
+                final AtomicInteger running = webservice ? runningWeb : runningCpu;
+                (webservice ? maxRunningWeb : maxRunningCpu).accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    final String id = inst.getID().getDirectoryName();
+                    events.add(id + ":start " + stage);
+                    Thread.sleep(5);
+                    events.add(id + ":end " + stage);
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    static class TestJob extends InstanceJob {
+        interface Body {
+            void run(Instance inst) throws Exception;
+        }
+
+        private final Body body;
+
+        private TestJob(JobSubmitter submitter, boolean webservice, Body body) {
+            super(submitter, false);
+            this.body = body;
+            if (webservice)
+                asWEBSERVICE();
+        }
+
+        static InstanceJob.Factory<TestJob> factory(boolean webservice, Body body) {
+            return new InstanceJob.Factory<>(sub -> new TestJob(sub, webservice, body), inst -> {
+            });
+        }
+
+        @Override
+        public boolean isAlreadyComputed(@NotNull Instance inst) {
+            return false;
+        }
+
+        @Override
+        protected void computeAndAnnotateResult(@NotNull Instance inst) throws Exception {
+            body.run(inst);
+        }
+
+        @Override
+        public String getToolName() {
+            return "test";
+        }
+    }
+}
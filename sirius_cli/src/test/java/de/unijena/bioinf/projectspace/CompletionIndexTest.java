@@ -0,0 +1,169 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+
+package de.unijena.bioinf.projectspace;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class CompletionIndexTest {
+    private static final CompoundContainerId ID = new CompoundContainerId("1_compound", "compound", 1);
+
+    private Path project;
+    private Path indexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        project = Files.createTempDirectory("sirius-completion-test");
+        indexFile = project.resolve(CompletionIndex.INDEX_FILE_NAME);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> walk = Files.walk(project)) {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(p);
+        }
+    }
+
+    private static BooleanSupplier diskCheck(boolean result, AtomicInteger calls) {
+        return () -> {
+            calls.incrementAndGet();
+            return result;
+        };
+    }
+
+    private static BooleanSupplier noDiskCheck() {
+        return () -> {
+            throw new AssertionError("State should be known by the index.");
+        };
+    }
+
+    @Test
+    public void testDiskCheckIsIndexed() {
+        final AtomicInteger calls = new AtomicInteger();
+        final CompletionIndex index = new CompletionIndex(project, true);
+        Assert.assertTrue(index.isComputed(ID, CompletionIndex.Tool.SIRIUS, diskCheck(true, calls)));
+        Assert.assertFalse(index.isComputed(ID, CompletionIndex.Tool.CANOPUS, diskCheck(false, calls)));
+        Assert.assertEquals(2, calls.get());
+
+        Assert.assertTrue(index.isComputed(ID, CompletionIndex.Tool.SIRIUS, noDiskCheck()));
+        Assert.assertFalse(index.isComputed(ID, CompletionIndex.Tool.CANOPUS, noDiskCheck()));
+        index.close();
+
+        final CompletionIndex reopened = new CompletionIndex(project, true);
+        Assert.assertTrue(reopened.isComputed(ID, CompletionIndex.Tool.SIRIUS, noDiskCheck()));
+        Assert.assertFalse(reopened.isComputed(ID, CompletionIndex.Tool.CANOPUS, noDiskCheck()));
+        reopened.close();
+    }
+
+    @Test
+    public void testChangeDuringDiskCheckIsKept() {
+        final CompletionIndex index = new CompletionIndex(project, true);
+        // the results are deleted while the (now outdated) disk check runs
+        Assert.assertTrue(index.isComputed(ID, CompletionIndex.Tool.SIRIUS, () -> {
+            index.deletedAll(ID);
+            return true;
+        }));
+        Assert.assertFalse(index.isComputed(ID, CompletionIndex.Tool.SIRIUS, noDiskCheck()));
+
+        // the results are written while the (now outdated) disk check runs
+        final CompoundContainerId other = new CompoundContainerId("2_other", "other", 2);
+        Assert.assertFalse(index.isComputed(other, CompletionIndex.Tool.ZODIAC, () -> {
+            index.set(other, CompletionIndex.Tool.ZODIAC, true);
+            return false;
+        }));
+        Assert.assertTrue(index.isComputed(other, CompletionIndex.Tool.ZODIAC, noDiskCheck()));
+        index.close();
+    }
+
+    @Test
+    public void testInvalidateDuringDiskCheckKeepsStateUnknown() {
+        final AtomicInteger calls = new AtomicInteger();
+        final CompletionIndex index = new CompletionIndex(project, true);
+        Assert.assertTrue(index.isComputed(ID, CompletionIndex.Tool.SIRIUS, () -> {
+            index.invalidate(ID);
+            return true;
+        }));
+        Assert.assertFalse(index.isComputed(ID, CompletionIndex.Tool.SIRIUS, diskCheck(false, calls)));
+        Assert.assertEquals(1, calls.get());
+        index.close();
+    }
+
+    @Test
+    public void testDisabledIndexDoesNotWrite() {
+        final AtomicInteger calls = new AtomicInteger();
+        final CompletionIndex index = new CompletionIndex(project, false);
+        Assert.assertTrue(index.isComputed(ID, CompletionIndex.Tool.SIRIUS, diskCheck(true, calls)));
+        Assert.assertTrue(index.isComputed(ID, CompletionIndex.Tool.SIRIUS, diskCheck(true, calls)));
+        index.set(ID, CompletionIndex.Tool.CANOPUS, true);
+        index.close();
+
+        Assert.assertEquals(2, calls.get());
+        Assert.assertFalse(Files.exists(indexFile));
+    }
+
+    @Test
+    public void testDisabledIndexDeletesOutdatedIndexOnChange() throws IOException {
+        Files.write(indexFile, (ID.getDirectoryName() + "\t1\t1\n").getBytes(StandardCharsets.UTF_8));
+        final CompletionIndex index = new CompletionIndex(project, false);
+        final AtomicInteger calls = new AtomicInteger();
+        Assert.assertFalse(index.isComputed(ID, CompletionIndex.Tool.SIRIUS, diskCheck(false, calls)));
+        Assert.assertEquals(1, calls.get());
+        Assert.assertTrue(Files.exists(indexFile));
+
+        index.deletedAll(ID);
+        index.close();
+        Assert.assertFalse(Files.exists(indexFile));
+    }
+
+    @Test
+    public void testCompactOnClose() throws IOException {
+        final CompletionIndex index = new CompletionIndex(project, true);
+        index.set(ID, CompletionIndex.Tool.SIRIUS, true);
+        index.set(ID, CompletionIndex.Tool.SIRIUS, false);
+        index.set(ID, CompletionIndex.Tool.SIRIUS, true);
+        final CompoundContainerId other = new CompoundContainerId("2_other", "other", 2);
+        index.set(other, CompletionIndex.Tool.SIRIUS, true);
+        index.invalidate(other);
+        Assert.assertEquals(5, Files.readAllLines(indexFile).size());
+        index.close();
+
+        Assert.assertEquals(1, Files.readAllLines(indexFile).size());
+        final CompletionIndex reopened = new CompletionIndex(project, true);
+        Assert.assertTrue(reopened.isComputed(ID, CompletionIndex.Tool.SIRIUS, noDiskCheck()));
+        final AtomicInteger calls = new AtomicInteger();
+        Assert.assertFalse(reopened.isComputed(other, CompletionIndex.Tool.SIRIUS, diskCheck(false, calls)));
+        Assert.assertEquals(1, calls.get());
+        reopened.close();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
+import de.unijena.bioinf.projectspace.sirius.CompoundContainer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public class CompoundIdIndexTest {
+    private static final PrecursorIonType ION_TYPE = PrecursorIonType.getPrecursorIonType("[M+H]+");
+    private static final String[] FORMULAS = {"C6H12O6", "C7H14O5"};
+
+    private Path location;
+
+    @Before
+    public void setUp() throws IOException {
+        location = Files.createTempDirectory("sirius-compound-index-test");
+        Files.delete(location);
+        final ProjectSpaceManager ps = new ProjectSpaceManager(new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).createNewProjectSpace(location), new InstanceFactory.Default(), null);
+        try {
+            final MutableMs2Experiment exp = new MutableMs2Experiment();
+            exp.setName("compound");
+            exp.setPrecursorIonType(ION_TYPE);
+            exp.setIonMass(181.07);
+            final Instance inst = ps.newCompoundWithUniqueId(exp);
+            for (String formula : FORMULAS) {
+                final FTree tree = new FTree(MolecularFormula.parseOrThrow(formula), ION_TYPE.getIonization());
+                tree.setAnnotation(PrecursorIonType.class, ION_TYPE);
+                inst.newFormulaResultWithUniqueId(tree);
+            }
+        } finally {
+            ps.close();
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (Files.exists(location))
+            FileUtils.deleteRecursively(location);
+    }
+
+    private ProjectSpaceManager open() throws IOException {
+        return new ProjectSpaceManager(new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).openExistingProjectSpace(location), new InstanceFactory.Default(), null);
+    }
+
+    private static CompoundContainerId firstId(ProjectSpaceManager ps) {
+        return ps.projectSpace().iterator().next();
+    }
+
+    private static Set<String> formulas(CompoundContainer c) {
+        return c.getResults().values().stream().map(id -> id.getPrecursorFormula().toString()).collect(Collectors.toSet());
+    }
+
+    private Path indexFile() {
+        return location.resolve(CompoundIdIndex.INDEX_FILE_NAME);
+    }
+
+    private Path journalFile() {
+        return location.resolve(CompoundIdIndex.JOURNAL_FILE_NAME);
+    }
+
+    @Test
+    public void testIndexIsBuiltFromReadCompounds() throws IOException {
+        ProjectSpaceManager ps = open();
+        try {
+            final CompoundContainerId id = firstId(ps);
+            // created compounds are not indexed
+            Assert.assertFalse(ps.getCompoundIdIndex().container(id).isPresent());
+            final Instance inst = ps.newInstanceFromIndex(id);
+            Assert.assertEquals(Set.of(FORMULAS), formulas(inst.loadCompoundContainer()));
+            Assert.assertTrue(ps.getCompoundIdIndex().container(id).isPresent());
+            Assert.assertTrue(Files.exists(journalFile()));
+        } finally {
+            ps.close();
+        }
+        Assert.assertTrue(Files.exists(indexFile()));
+        Assert.assertFalse(Files.exists(journalFile()));
+
+        ps = open();
+        try {
+            final CompoundContainerId id = firstId(ps);
+            final Optional<CompoundContainer> indexed = ps.getCompoundIdIndex().container(id);
+            Assert.assertTrue(indexed.isPresent());
+            Assert.assertEquals(Set.of(FORMULAS), formulas(indexed.get()));
+            Assert.assertEquals(Set.of(FORMULAS), formulas(ps.newInstanceFromIndex(id).loadCompoundContainer()));
+        } finally {
+            ps.close();
+        }
+    }
+
+    @Test
+    public void testJournalIsReplayed() throws IOException {
+        ProjectSpaceManager ps = open();
+        try {
+            ps.newInstanceFromIndex(firstId(ps));
+            // no snapshot, as if the process had been killed
+            ps.getCompoundIdIndex().relocate();
+            Assert.assertTrue(Files.exists(journalFile()));
+            Assert.assertTrue(new CompoundIdIndex(ps.projectSpace()).container(firstId(ps)).isPresent());
+        } finally {
+            ps.close();
+        }
+    }
+
+    @Test
+    public void testDisabledInShardMode() throws IOException {
+        ProjectSpaceManager ps = open();
+        try {
+            ps.newInstanceFromIndex(firstId(ps));
+        } finally {
+            ps.close();
+        }
+        Assert.assertTrue(Files.exists(indexFile()));
+
+        ps = open();
+        try {
+            // what the tool chain does when other shard processes write into the same project
+            ps.getCompoundIdIndex().disable();
+            Assert.assertFalse(Files.exists(indexFile()));
+
+            final CompoundContainerId id = firstId(ps);
+            Assert.assertFalse(ps.getCompoundIdIndex().container(id).isPresent());
+            final Instance inst = ps.newInstanceFromIndex(id);
+            Assert.assertEquals(Set.of(FORMULAS), formulas(inst.loadCompoundContainer()));
+            Assert.assertFalse(ps.getCompoundIdIndex().container(id).isPresent());
+
+            final FTree tree = new FTree(MolecularFormula.parseOrThrow("C8H10O4"), ION_TYPE.getIonization());
+            tree.setAnnotation(PrecursorIonType.class, ION_TYPE);
+            inst.newFormulaResultWithUniqueId(tree);
+            Assert.assertFalse(Files.exists(journalFile()));
+        } finally {
+            ps.close();
+        }
+        Assert.assertFalse(Files.exists(indexFile()));
+        Assert.assertFalse(Files.exists(journalFile()));
+    }
+}
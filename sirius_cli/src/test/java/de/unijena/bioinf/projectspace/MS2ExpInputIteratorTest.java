@@ -0,0 +1,227 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.beans.PropertyChangeListener;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Parallel parsing of the input files. The files are not read, every file name encodes how many experiments its
+ * parser returns: "name_count", with a negative count for parsers that never end.
+ */
+public class MS2ExpInputIteratorTest {
+    private static final int THREADS = 4;
+
+    private static List<Path> files(int... counts) {
+        return IntStream.range(0, counts.length).mapToObj(i -> Paths.get("file" + i + "_" + counts[i])).collect(Collectors.toList());
+    }
+
+    private static int count(Path file) {
+        final String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(name.indexOf('_') + 1));
+    }
+
+    private static Ms2Experiment experiment(Path file, int index) {
+        final MutableMs2Experiment exp = new MutableMs2Experiment();
+        exp.setName(file.getFileName() + "#" + index);
+        exp.setPrecursorIonType(PrecursorIonType.getPrecursorIonType("[M+H]+"));
+        exp.setIonMass(100 + index);
+        return exp;
+    }
+
+    // parser of the given file that fails with the given throwable before the experiment at failAt
+    private static Iterator<Ms2Experiment> parser(Path file, int failAt, RuntimeException failure, Error error) {
+        final int count = count(file);
+        return new Iterator<>() {
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                if (next == failAt) {
+                    if (failure != null)
+                        throw failure;
+                    if (error != null)
+                        throw error;
+                }
+                return count < 0 || next < count;
+            }
+
+            @Override
+            public Ms2Experiment next() {
+                return experiment(file, next++);
+            }
+        };
+    }
+
+    private static BiFunction<Path, PropertyChangeListener, Iterator<Ms2Experiment>> parsers() {
+        return (file, listener) -> parser(file, -1, null, null);
+    }
+
+    private static List<String> expected(List<Path> files, int... failAt) {
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            final int end = failAt.length > i && failAt[i] >= 0 ? failAt[i] : count(files.get(i));
+            for (int j = 0; j < end; j++)
+                names.add(experiment(files.get(i), j).getName());
+        }
+        return names;
+    }
+
+    private static List<String> readAll(List<Path> files, int threads, boolean ordered, BiFunction<Path, PropertyChangeListener, Iterator<Ms2Experiment>> parsers) {
+        final List<String> names = new ArrayList<>();
+        try (MS2ExpInputIterator it = new MS2ExpInputIterator(files, exp -> true, false, true, null, threads, ordered, parsers)) {
+            while (it.hasNext())
+                names.add(it.next().getName());
+        }
+        return names;
+    }
+
+    // the experiments of every file keep their order, independent of how the files are interleaved
+    private static void assertInterleaved(List<String> expected, List<String> actual) {
+        Assert.assertEquals(new HashSet<>(expected), new HashSet<>(actual));
+        Assert.assertEquals(expected.size(), actual.size());
+        final Map<String, List<String>> expectedPerFile = expected.stream().collect(Collectors.groupingBy(n -> n.substring(0, n.indexOf('#'))));
+        final Map<String, List<String>> actualPerFile = actual.stream().collect(Collectors.groupingBy(n -> n.substring(0, n.indexOf('#'))));
+        Assert.assertEquals(expectedPerFile, actualPerFile);
+    }
+
+    @Test(timeout = 30000)
+    public void testOrderedEqualsSequential() {
+        final List<Path> files = files(150, 0, 3, 200, 1, 64, 65, 10);
+        final List<String> sequential = readAll(files, 1, true, parsers());
+        Assert.assertEquals(expected(files), sequential);
+        Assert.assertEquals(sequential, readAll(files, THREADS, true, parsers()));
+    }
+
+    @Test(timeout = 30000)
+    public void testOrderedWithSlowFirstFile() {
+        final List<Path> files = files(5, 300, 300);
+        final BiFunction<Path, PropertyChangeListener, Iterator<Ms2Experiment>> slowFirst = (file, listener) -> {
+            final Iterator<Ms2Experiment> it = parser(file, -1, null, null);
+            if (!file.equals(files.get(0)))
+                return it;
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Ms2Experiment next() {
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return it.next();
+                }
+            };
+        };
+        Assert.assertEquals(expected(files), readAll(files, THREADS, true, slowFirst));
+    }
+
+    @Test(timeout = 30000)
+    public void testUnorderedContainsAll() {
+        final List<Path> files = files(150, 0, 3, 200, 1, 64, 65, 10);
+        assertInterleaved(expected(files), readAll(files, THREADS, false, parsers()));
+    }
+
+    @Test(timeout = 30000)
+    public void testCloseBeforeEnd() throws InterruptedException {
+        final List<Path> files = files(-1, -1, -1, -1, -1, -1);
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger parsed = new AtomicInteger();
+        final BiFunction<Path, PropertyChangeListener, Iterator<Ms2Experiment>> endless = (file, listener) -> {
+            opened.incrementAndGet();
+            final Iterator<Ms2Experiment> it = parser(file, -1, null, null);
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Ms2Experiment next() {
+                    parsed.incrementAndGet();
+                    return it.next();
+                }
+            };
+        };
+
+        for (boolean ordered : new boolean[]{true, false}) {
+            opened.set(0);
+            final MS2ExpInputIterator it = new MS2ExpInputIterator(files, exp -> true, false, true, null, 2, ordered, endless);
+            for (int i = 0; i < 100; i++)
+                Assert.assertTrue(it.hasNext() && it.next() != null);
+            it.close();
+
+            // no file ends, so only the first files have been opened and close waited for their parsers
+            Assert.assertEquals(2, opened.get());
+            final int parsedAfterClose = parsed.get();
+            Thread.sleep(500);
+            Assert.assertEquals(parsedAfterClose, parsed.get());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testParserThrowingMidFile() {
+        final List<Path> files = files(100, 100, 100, 100);
+        final BiFunction<Path, PropertyChangeListener, Iterator<Ms2Experiment>> failing = (file, listener) ->
+                parser(file, file.equals(files.get(1)) ? 42 : -1, new IllegalStateException("Broken file"), null);
+
+        final List<String> expected = expected(files, -1, 42);
+        Assert.assertEquals(expected, readAll(files, THREADS, true, failing));
+        assertInterleaved(expected, readAll(files, THREADS, false, failing));
+    }
+
+    @Test(timeout = 30000)
+    public void testQueueEndedOnError() {
+        final List<Path> files = files(100, 100, 100, 100, 100, 100);
+        // errors are not handled by the parser job, but the consumer still has to see the end of the files
+        final BiFunction<Path, PropertyChangeListener, Iterator<Ms2Experiment>> failing = (file, listener) ->
+                parser(file, files.indexOf(file) % 2 == 0 ? 7 : -1, null, new AssertionError("Parser crashed"));
+
+        final List<String> expected = expected(files, 7, -1, 7, -1, 7, -1);
+        Assert.assertEquals(expected, readAll(files, THREADS, true, failing));
+        assertInterleaved(expected, readAll(files, THREADS, false, failing));
+    }
+
+    @Test(timeout = 30000)
+    public void testUnknownFormatIsSkipped() {
+        final List<Path> files = files(10, 20, 30);
+        final BiFunction<Path, PropertyChangeListener, Iterator<Ms2Experiment>> unknownSecond = (file, listener) ->
+                file.equals(files.get(1)) ? null : parser(file, -1, null, null);
+
+        Assert.assertEquals(expected(files, -1, 0), readAll(files, THREADS, true, unknownSecond));
+    }
+}
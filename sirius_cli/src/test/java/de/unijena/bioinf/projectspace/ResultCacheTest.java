@@ -0,0 +1,166 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.projectspace.sirius.FormulaResult;
+import de.unijena.bioinf.sirius.scores.SiriusScore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class ResultCacheTest {
+    private static final PrecursorIonType ION_TYPE = PrecursorIonType.getPrecursorIonType("[M+H]+");
+    private static final CompoundContainerId ID = new CompoundContainerId("1_compound", "compound", 1);
+    // one formula result with a scoring: base weight + default component weight
+    private static final long RESULT_WEIGHT = 512 + ResultCache.estimateWeight(new FormulaScoring());
+
+    private static FormulaResult result(String formula, double score) {
+        final FormulaResult result = new FormulaResult(new FormulaResultId(ID, MolecularFormula.parseOrThrow(formula), ION_TYPE));
+        final FormulaScoring scoring = new FormulaScoring();
+        scoring.setAnnotation(SiriusScore.class, new SiriusScore(score));
+        result.setAnnotation(FormulaScoring.class, scoring);
+        return result;
+    }
+
+    private static double score(FormulaResult result) {
+        return result.getAnnotationOrThrow(FormulaScoring.class).getAnnotationOrThrow(SiriusScore.class).score();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        final ResultCache cache = new ResultCache(3 * RESULT_WEIGHT, 1);
+        final FormulaResult r1 = result("C6H12O6", 1), r2 = result("C7H8N2", 2), r3 = result("C8H10O", 3), r4 = result("C9H12", 4);
+        cache.put(r1);
+        cache.put(r2);
+        cache.put(r3);
+        Assert.assertNotNull(cache.get(r1.getId(), FormulaScoring.class));
+
+        cache.put(r4);
+        Assert.assertTrue(cache.contains(r1.getId()));
+        Assert.assertFalse(cache.contains(r2.getId()));
+        Assert.assertTrue(cache.containsAll(List.of(r3.getId(), r4.getId())));
+
+        final ResultCache.Stats stats = cache.getStats();
+        Assert.assertEquals(3, stats.results);
+        Assert.assertEquals(3 * RESULT_WEIGHT, stats.weight);
+        Assert.assertEquals(2, stats.evictions);
+    }
+
+    @Test
+    public void testPinnedResultsAreNotEvicted() {
+        final ResultCache cache = new ResultCache(2 * RESULT_WEIGHT, 1);
+        final FormulaResult r1 = result("C6H12O6", 1), r2 = result("C7H8N2", 2), r3 = result("C8H10O", 3);
+        cache.pin(r1.getId(), List.of(FormulaScoring.class));
+        cache.put(r1);
+        cache.put(r2);
+        cache.put(r3);
+        Assert.assertTrue(cache.contains(r1.getId()));
+        Assert.assertFalse(cache.contains(r2.getId()));
+
+        cache.unpin(r1.getId(), List.of(FormulaScoring.class));
+        cache.put(r2);
+        Assert.assertFalse(cache.contains(r1.getId()));
+        Assert.assertTrue(cache.containsAll(List.of(r2.getId(), r3.getId())));
+    }
+
+    @Test
+    public void testSegmentsShareTheLimit() {
+        // every segment can hold 16 results, so none of them is evicted
+        final ResultCache cache = new ResultCache(16 * 16 * RESULT_WEIGHT);
+        final String[] formulas = {"C6H12O6", "C7H8N2", "C8H10O", "C9H12", "C10H16", "C5H5N", "C4H4O", "C3H7NO2"};
+        for (int i = 0; i < formulas.length; i++)
+            cache.put(result(formulas[i], i));
+        for (int i = 0; i < formulas.length; i++)
+            Assert.assertEquals(i, score(cache.get(new FormulaResultId(ID, MolecularFormula.parseOrThrow(formulas[i]), ION_TYPE), FormulaScoring.class)), 0d);
+
+        final ResultCache.Stats stats = cache.getStats();
+        Assert.assertEquals(formulas.length, stats.results);
+        Assert.assertEquals(formulas.length * RESULT_WEIGHT, stats.weight);
+        Assert.assertEquals(formulas.length, stats.hits);
+        Assert.assertEquals(0, stats.evictions);
+    }
+
+    @Test
+    public void testCopiesAreIsolated() {
+        final ResultCache cache = new ResultCache(10 * RESULT_WEIGHT, 1);
+        final FormulaResult r1 = result("C6H12O6", 1);
+        final FormulaResult put = cache.put(r1);
+        Assert.assertNotSame(r1.getAnnotationOrThrow(FormulaScoring.class), put.getAnnotationOrThrow(FormulaScoring.class));
+
+        // changing the stored object, the returned copy or the copy's scoring must not change the cache
+        r1.getAnnotationOrThrow(FormulaScoring.class).setAnnotation(SiriusScore.class, new SiriusScore(2));
+        put.getAnnotationOrThrow(FormulaScoring.class).setAnnotation(SiriusScore.class, new SiriusScore(3));
+        final FormulaResult got = cache.get(r1.getId(), FormulaScoring.class);
+        Assert.assertEquals(1d, score(got), 0d);
+
+        got.removeAnnotation(FormulaScoring.class);
+        Assert.assertEquals(1d, score(cache.peek(r1.getId())), 0d);
+    }
+
+    @Test
+    public void testClearFormulaResultsCacheFlushes() throws IOException {
+        final Path location = Files.createTempDirectory("sirius-result-cache-test");
+        Files.delete(location);
+        final String writeBehind = PropertyManager.getProperty(ProjectSpaceManager.WRITE_BEHIND_KEY, null, "false");
+        PropertyManager.setProperty(ProjectSpaceManager.WRITE_BEHIND_KEY, "true");
+        try {
+            final ProjectSpaceManager ps = new ProjectSpaceManager(new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).createNewProjectSpace(location), new InstanceFactory.Default(), null);
+            try {
+                Assert.assertTrue(ps.isWriteBehind());
+                final MutableMs2Experiment exp = new MutableMs2Experiment();
+                exp.setName("compound");
+                exp.setPrecursorIonType(ION_TYPE);
+                exp.setIonMass(181.07);
+                final Instance inst = ps.newCompoundWithUniqueId(exp);
+
+                final FTree tree = new FTree(MolecularFormula.parseOrThrow("C6H12O6"), ION_TYPE.getIonization());
+                tree.setAnnotation(PrecursorIonType.class, ION_TYPE);
+                final FormulaResult fr = inst.newFormulaResultWithUniqueId(tree).orElseThrow();
+                final FormulaScoring scoring = new FormulaScoring();
+                scoring.setAnnotation(SiriusScore.class, new SiriusScore(42));
+                fr.setAnnotation(FormulaScoring.class, scoring);
+                inst.updateFormulaResult(fr, FormulaScoring.class);
+                Assert.assertTrue(inst.hasUnflushedFormulaResults());
+
+                inst.clearFormulaResultsCache();
+                Assert.assertFalse(inst.hasUnflushedFormulaResults());
+                Assert.assertFalse(ps.getResultCache().contains(fr.getId()));
+                Assert.assertEquals(42d, score(ps.projectSpace().getFormulaResult(fr.getId(), FormulaScoring.class)), 0d);
+            } finally {
+                ps.close();
+            }
+        } finally {
+            PropertyManager.setProperty(ProjectSpaceManager.WRITE_BEHIND_KEY, writeBehind);
+            if (Files.exists(location))
+                FileUtils.deleteRecursively(location);
+        }
+    }
+}
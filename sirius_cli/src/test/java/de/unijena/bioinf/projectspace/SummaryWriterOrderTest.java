@@ -0,0 +1,145 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.projectspace.summaries.FormulaSummaryWriter;
+import de.unijena.bioinf.projectspace.summaries.StructureSummaryWriter;
+import de.unijena.bioinf.projectspace.summaries.SummaryLocations;
+import de.unijena.bioinf.sirius.scores.SiriusScore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The project wide summaries are built from compounds that are added concurrently and in any order, so ties have
+ * to be ordered by compound index.
+ */
+public class SummaryWriterOrderTest {
+    // compound index -> score, compounds 1, 3 and 4 are tied
+    private static final double[] SCORES = {-5, 10, -1, 10, 10, 20};
+
+    private Path tmpDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("sirius-summary-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> walk = Files.walk(tmpDir)) {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(p);
+        }
+    }
+
+    private static CompoundContainerId id(int index) {
+        return new CompoundContainerId(index + "_compound", "compound" + index, index);
+    }
+
+    private static List<String> formulaRows(int index) {
+        return List.of(
+                "S\t" + SiriusScore.class.getName() + "\t" + new SiriusScore(0).name(),
+                "T\tC6H12O6\tC6H12O6\t[M+H]+\t181.07066\t60.0\t" + id(index).getDirectoryName() + "\t5\t0.9\t1.0\t0.5\t0.1\t"
+                        + SiriusScore.class.getName() + "=" + SCORES[index]);
+    }
+
+    private static List<String> structureRows(int index) {
+        return List.of("C\t" + SCORES[index] + "\t-100.0\t1\t1\t1\tline\t" + id(index).getDirectoryName());
+    }
+
+    // adds the rows of all compounds concurrently in the given order
+    private static void addAll(IncrementalSummarizer summarizer, List<Integer> order, boolean formula) throws Exception {
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i : order)
+                futures.add(pool.submit(() -> summarizer.addCompoundRows(id(i), formula ? formulaRows(i) : structureRows(i))));
+            for (Future<?> f : futures)
+                f.get();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private List<String> write(IncrementalSummarizer summarizer, String name, String file) throws IOException {
+        final Path root = Files.createDirectories(tmpDir.resolve(name));
+        summarizer.writeProjectSpaceSummary(new FileBasedProjectSpaceWriter(root, k -> Optional.empty()));
+        return Files.readAllLines(root.resolve(file));
+    }
+
+    // last column of every data row
+    private static List<String> ids(List<String> lines) {
+        return lines.stream().skip(1).map(l -> l.substring(l.lastIndexOf('\t') + 1)).collect(Collectors.toList());
+    }
+
+    private static List<Integer> shuffled(long seed) {
+        final List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < SCORES.length; i++)
+            order.add(i);
+        Collections.shuffle(order, new Random(seed));
+        return order;
+    }
+
+    @Test
+    public void testFormulaSummaryOrder() throws Exception {
+        final FormulaSummaryWriter forward = new FormulaSummaryWriter();
+        addAll(forward, List.of(0, 1, 2, 3, 4, 5), true);
+        final List<String> expected = write(forward, "forward", SummaryLocations.FORMULA_SUMMARY);
+        Assert.assertEquals(List.of("5_compound", "1_compound", "3_compound", "4_compound", "2_compound", "0_compound"), ids(expected));
+
+        for (long seed = 0; seed < 5; seed++) {
+            final FormulaSummaryWriter shuffled = new FormulaSummaryWriter();
+            addAll(shuffled, shuffled(seed), true);
+            Assert.assertEquals(expected, write(shuffled, "shuffled" + seed, SummaryLocations.FORMULA_SUMMARY));
+        }
+    }
+
+    @Test
+    public void testStructureSummaryOrder() throws Exception {
+        final StructureSummaryWriter forward = new StructureSummaryWriter();
+        addAll(forward, List.of(0, 1, 2, 3, 4, 5), false);
+        final List<String> expected = write(forward, "forward", SummaryLocations.COMPOUND_SUMMARY);
+        Assert.assertEquals(List.of("5_compound", "1_compound", "3_compound", "4_compound", "2_compound", "0_compound"), ids(expected));
+
+        for (long seed = 0; seed < 5; seed++) {
+            final StructureSummaryWriter shuffled = new StructureSummaryWriter();
+            addAll(shuffled, shuffled(seed), false);
+            Assert.assertEquals(expected, write(shuffled, "shuffled" + seed, SummaryLocations.COMPOUND_SUMMARY));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownScoreTypeIsRejected() {
+        new FormulaSummaryWriter().addCompoundRows(id(0), List.of("S\tjava.lang.String\tscore"));
+    }
+}
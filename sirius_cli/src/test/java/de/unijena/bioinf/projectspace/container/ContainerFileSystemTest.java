@@ -0,0 +1,365 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.container;
+
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.projectspace.fingerid.FingerIdLocations;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class ContainerFileSystemTest {
+    private Path tmpDir;
+    private Path container;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpDir = Files.createTempDirectory("sirius-container-test");
+        container = tmpDir.resolve("project" + ProjectContainer.EXTENSION);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> walk = Files.walk(tmpDir)) {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(p);
+        }
+    }
+
+    private static void write(Path p, String content) throws IOException {
+        try (Writer w = Files.newBufferedWriter(p)) {
+            w.write(content);
+        }
+    }
+
+    @Test
+    public void testWriteAndReopen() throws IOException {
+        Path root = ProjectContainer.openRoot(container, true);
+        Files.createDirectories(root.resolve("1_compound/trees"));
+        write(root.resolve("1_compound/spectrum.ms"), "spectrum");
+        write(root.resolve("1_compound/trees/C6H12O6.json"), "tree");
+        write(root.resolve("1_compound/spectrum.ms"), "updated");
+        Files.move(root.resolve("1_compound"), root.resolve("2_compound"));
+        ProjectContainer.closeFileSystem(root);
+
+        Assert.assertTrue(ProjectContainer.isContainer(container));
+        root = ProjectContainer.openRoot(container, false);
+        try {
+            Assert.assertFalse(Files.exists(root.resolve("1_compound")));
+            Assert.assertEquals("updated", Files.readString(root.resolve("2_compound/spectrum.ms")));
+            Assert.assertEquals("tree", Files.readString(root.resolve("2_compound/trees/C6H12O6.json")));
+            try (Stream<Path> list = Files.list(root.resolve("2_compound"))) {
+                Assert.assertEquals(List.of("spectrum.ms", "trees"), list.map(p -> p.getFileName().toString()).sorted().collect(Collectors.toList()));
+            }
+        } finally {
+            ProjectContainer.closeFileSystem(root);
+        }
+    }
+
+    @Test
+    public void testRecoverUncleanClose() throws IOException {
+        Path root = ProjectContainer.openRoot(container, true);
+        write(root.resolve("a.txt"), "a");
+        ProjectContainer.closeFileSystem(root);
+
+        root = ProjectContainer.openRoot(container, false);
+        write(root.resolve("b.txt"), "b");
+        write(root.resolve("c.txt"), "c");
+        // snapshot of the container while it is open (no index), with the last record cut off
+        final Path crashed = tmpDir.resolve("crashed" + ProjectContainer.EXTENSION);
+        Files.copy(container, crashed);
+        ProjectContainer.closeFileSystem(root);
+        try (FileChannel ch = FileChannel.open(crashed, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 2);
+        }
+
+        root = ProjectContainer.openRoot(crashed, false);
+        try {
+            Assert.assertEquals("a", Files.readString(root.resolve("a.txt")));
+            Assert.assertEquals("b", Files.readString(root.resolve("b.txt")));
+            Assert.assertFalse(Files.exists(root.resolve("c.txt")));
+        } finally {
+            ProjectContainer.closeFileSystem(root);
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        final Path root = ProjectContainer.openRoot(container, true);
+        final ContainerStore store = (ContainerStore) ((ContainerFileSystem) root.getFileSystem()).store();
+        try {
+            final int threads = 8;
+            final CyclicBarrier barrier = new CyclicBarrier(threads);
+            final ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    final int n = i;
+                    futures.add(pool.submit(() -> {
+                        write(root.resolve(n + ".txt"), String.valueOf(n));
+                        barrier.await();
+                        ProjectContainer.sync(root);
+                        return null;
+                    }));
+                }
+                for (Future<?> f : futures)
+                    f.get();
+            } finally {
+                pool.shutdownNow();
+            }
+            final long flushes = store.getSyncFlushes();
+            Assert.assertTrue(flushes >= 1 && flushes <= threads);
+
+            // everything is covered by the last flush
+            ProjectContainer.sync(root);
+            Assert.assertEquals(flushes, store.getSyncFlushes());
+
+            // records appended before a flush are all covered by it
+            write(root.resolve("a.txt"), "a");
+            write(root.resolve("b.txt"), "b");
+            write(root.resolve("c.txt"), "c");
+            ProjectContainer.sync(root);
+            ProjectContainer.sync(root);
+            Assert.assertEquals(flushes + 1, store.getSyncFlushes());
+        } finally {
+            ProjectContainer.closeFileSystem(root);
+        }
+    }
+
+    @Test
+    public void testReplaySyncedWrites() throws IOException {
+        Path root = ProjectContainer.openRoot(container, true);
+        Files.createDirectories(root.resolve("1_compound"));
+        write(root.resolve("1_compound/spectrum.ms"), "spectrum");
+        write(root.resolve("1_compound/spectrum.ms"), "updated");
+        write(root.resolve("a.txt"), "a");
+        ProjectContainer.sync(root);
+        // state of the container file after a crash right after the sync, no index has been written
+        final Path crashed = tmpDir.resolve("crashed" + ProjectContainer.EXTENSION);
+        Files.copy(container, crashed);
+        ProjectContainer.closeFileSystem(root);
+
+        root = ProjectContainer.openRoot(crashed, false);
+        try {
+            Assert.assertEquals("updated", Files.readString(root.resolve("1_compound/spectrum.ms")));
+            Assert.assertEquals("a", Files.readString(root.resolve("a.txt")));
+            // the replayed container is usable for further writes
+            write(root.resolve("b.txt"), "b");
+        } finally {
+            ProjectContainer.closeFileSystem(root);
+        }
+        root = ProjectContainer.openRoot(crashed, false);
+        try {
+            Assert.assertEquals("b", Files.readString(root.resolve("b.txt")));
+            Assert.assertEquals("updated", Files.readString(root.resolve("1_compound/spectrum.ms")));
+        } finally {
+            ProjectContainer.closeFileSystem(root);
+        }
+    }
+
+    @Test
+    public void testUnfinishedInstanceIsLostAfterCrash() throws IOException {
+        Path root = ProjectContainer.openRoot(container, true);
+        final ContainerStore store = (ContainerStore) ((ContainerFileSystem) root.getFileSystem()).store();
+        final Path crashed = tmpDir.resolve("crashed" + ProjectContainer.EXTENSION);
+        final long synced;
+        try {
+            // finished instance, committed
+            Files.createDirectories(root.resolve("1_compound"));
+            write(root.resolve("1_compound/spectrum.ms"), "spectrum");
+            ProjectContainer.sync(root);
+            synced = store.getSyncedEnd();
+
+            // unfinished instance, never committed
+            Files.createDirectories(root.resolve("2_compound"));
+            write(root.resolve("2_compound/spectrum.ms"), "unfinished");
+            write(root.resolve("1_compound/spectrum.ms"), "unfinished");
+            Assert.assertTrue(Files.exists(root.resolve("2_compound/spectrum.ms")));
+            Files.copy(container, crashed);
+        } finally {
+            ProjectContainer.closeFileSystem(root);
+        }
+
+        // a crash keeps everything up to the last sync, the records appended afterwards are lost or torn
+        try (FileChannel ch = FileChannel.open(crashed, StandardOpenOption.WRITE)) {
+            Assert.assertTrue(ch.size() > synced + 5);
+            ch.truncate(synced + 5);
+        }
+
+        root = ProjectContainer.openRoot(crashed, false);
+        try {
+            Assert.assertEquals("spectrum", Files.readString(root.resolve("1_compound/spectrum.ms")));
+            Assert.assertFalse(Files.exists(root.resolve("2_compound")));
+            // the replayed container is usable for further writes
+            write(root.resolve("b.txt"), "b");
+        } finally {
+            ProjectContainer.closeFileSystem(root);
+        }
+        root = ProjectContainer.openRoot(crashed, false);
+        try {
+            Assert.assertEquals("b", Files.readString(root.resolve("b.txt")));
+            Assert.assertFalse(Files.exists(root.resolve("2_compound/spectrum.ms")));
+        } finally {
+            ProjectContainer.closeFileSystem(root);
+        }
+    }
+
+    @Test
+    public void testConvertRoundTrip() throws IOException {
+        final Path dir = tmpDir.resolve("project");
+        Files.createDirectories(dir.resolve("1_compound"));
+        Files.writeString(dir.resolve(".format"), "format", StandardCharsets.UTF_8);
+        Files.writeString(dir.resolve("1_compound/spectrum.ms"), "spectrum", StandardCharsets.UTF_8);
+
+        ProjectContainer.convert(dir, container);
+        final Path back = tmpDir.resolve("project-back");
+        ProjectContainer.convert(container, back);
+
+        Assert.assertEquals("format", Files.readString(back.resolve(".format")));
+        Assert.assertEquals("spectrum", Files.readString(back.resolve("1_compound/spectrum.ms")));
+    }
+
+    @Test
+    public void testCompressedEntries() throws IOException {
+        final StringBuilder candidates = new StringBuilder();
+        for (int i = 0; i < 2000; i++)
+            candidates.append("InChIKey").append(i % 97).append("\tC6H12O6\t").append(i).append('\n');
+        final String dir = "1_compound/" + FingerIdLocations.FINGERBLAST.relDir();
+
+        PropertyManager.setProperty(BlockCodec.CODEC_KEY, BlockCodec.FAST.name());
+        Path root = ProjectContainer.openRoot(container, true);
+        try {
+            Files.createDirectories(root.resolve(dir));
+            write(root.resolve(dir + "/C6H12O6.tsv"), candidates.toString());
+            write(root.resolve("1_compound/spectrum.ms"), candidates.toString());
+            Assert.assertEquals(candidates.length(), Files.size(root.resolve(dir + "/C6H12O6.tsv")));
+        } finally {
+            PropertyManager.setProperty(BlockCodec.CODEC_KEY, BlockCodec.NONE.name());
+            ProjectContainer.closeFileSystem(root);
+        }
+        Assert.assertTrue(Files.size(container) < 2L * candidates.length());
+
+        root = ProjectContainer.openRoot(container, false);
+        try {
+            Assert.assertEquals(candidates.toString(), Files.readString(root.resolve(dir + "/C6H12O6.tsv")));
+            Assert.assertEquals(candidates.toString(), Files.readString(root.resolve("1_compound/spectrum.ms")));
+        } finally {
+            ProjectContainer.closeFileSystem(root);
+        }
+    }
+
+    @Test
+    public void testRandomAccessZip() throws IOException {
+        final Path zip = tmpDir.resolve("project.sirius");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("1_compound/spectrum.ms"));
+            out.write("spectrum".getBytes(StandardCharsets.UTF_8));
+            out.putNextEntry(new ZipEntry("1_compound/trees/C6H12O6.json"));
+            out.write("tree".getBytes(StandardCharsets.UTF_8));
+        }
+
+        Path root = ProjectContainer.openRoot(zip, false);
+        try {
+            Assert.assertEquals("tree", Files.readString(root.resolve("1_compound/trees/C6H12O6.json")));
+            write(root.resolve("1_compound/spectrum.ms"), "updated");
+            Files.move(root.resolve("1_compound"), root.resolve("2_compound"));
+            Files.delete(root.resolve("2_compound/trees/C6H12O6.json"));
+            Assert.assertTrue(Files.exists(zip.resolveSibling(zip.getFileName() + ZipStore.OVERFLOW_SUFFIX)));
+        } finally {
+            ProjectContainer.closeFileSystem(root);
+        }
+        Assert.assertFalse(Files.exists(zip.resolveSibling(zip.getFileName() + ZipStore.OVERFLOW_SUFFIX)));
+
+        try (ZipFile merged = new ZipFile(zip.toFile())) {
+            Assert.assertNull(merged.getEntry("1_compound/spectrum.ms"));
+            Assert.assertNull(merged.getEntry("2_compound/trees/C6H12O6.json"));
+            Assert.assertNotNull(merged.getEntry("2_compound/trees/"));
+            try (InputStream in = merged.getInputStream(merged.getEntry("2_compound/spectrum.ms"))) {
+                Assert.assertEquals("updated", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private Path writeZip(String name) throws IOException {
+        final Path zip = tmpDir.resolve(name);
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("1_compound/spectrum.ms"));
+            out.write("spectrum".getBytes(StandardCharsets.UTF_8));
+        }
+        return zip;
+    }
+
+    @Test
+    public void testRandomAccessZipIsOptIn() throws IOException {
+        final Path zip = writeZip("project.sirius");
+        final byte[] before = Files.readAllBytes(zip);
+        Assert.assertFalse(ProjectContainer.isRandomAccessZip(zip));
+        Assert.assertArrayEquals(before, Files.readAllBytes(zip));
+    }
+
+    @Test
+    public void testRandomAccessZipCrashBeforeMerge() throws IOException {
+        final Path zip = writeZip("project.sirius");
+        final Path crashed = tmpDir.resolve("crashed.sirius");
+        Path root = ProjectContainer.openRoot(zip, false);
+        try {
+            write(root.resolve("1_compound/spectrum.ms"), "updated");
+            write(root.resolve("1_compound/new.txt"), "new");
+            // state after a crash before the merged zip replaced the old one: old zip plus overflow
+            Files.copy(zip, crashed);
+            Files.copy(zip.resolveSibling(zip.getFileName() + ZipStore.OVERFLOW_SUFFIX), crashed.resolveSibling(crashed.getFileName() + ZipStore.OVERFLOW_SUFFIX));
+        } finally {
+            ProjectContainer.closeFileSystem(root);
+        }
+
+        try (ZipFile old = new ZipFile(crashed.toFile());
+             InputStream in = old.getInputStream(old.getEntry("1_compound/spectrum.ms"))) {
+            Assert.assertEquals("spectrum", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        root = ProjectContainer.openRoot(crashed, false);
+        try {
+            Assert.assertEquals("updated", Files.readString(root.resolve("1_compound/spectrum.ms")));
+            Assert.assertEquals("new", Files.readString(root.resolve("1_compound/new.txt")));
+        } finally {
+            ProjectContainer.closeFileSystem(root);
+        }
+        Assert.assertFalse(Files.exists(crashed.resolveSibling(crashed.getFileName() + ZipStore.OVERFLOW_SUFFIX)));
+        try (Stream<Path> files = Files.list(tmpDir)) {
+            Assert.assertTrue(files.noneMatch(p -> p.getFileName().toString().endsWith(".tmp")));
+        }
+    }
+}
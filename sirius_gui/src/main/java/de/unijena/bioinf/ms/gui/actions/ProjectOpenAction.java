@@ -25,7 +25,7 @@ import de.unijena.bioinf.ms.gui.dialogs.WarningDialog;
 import de.unijena.bioinf.ms.gui.io.filefilter.ProjectArchivedFilter;
 import de.unijena.bioinf.ms.gui.io.filefilter.ProjectDirectoryFilter;
 import de.unijena.bioinf.ms.properties.PropertyManager;
-import de.unijena.bioinf.projectspace.ProjectSpaceIO;
+import de.unijena.bioinf.projectspace.container.ProjectContainer;
 
 import javax.swing.*;
 import java.awt.event.ActionEvent;
@@ -59,7 +59,7 @@ public class ProjectOpenAction extends AbstractAction {
                 break;
 
             final File selFile = jfc.getSelectedFile();
-            if (ProjectSpaceIO.isZipProjectSpace(selFile.toPath()) || ProjectSpaceIO.isExistingProjectspaceDirectory(selFile.toPath())) {
+            if (ProjectContainer.isExistingProject(selFile.toPath())) {
                 SiriusProperties.
                         setAndStoreInBackground(SiriusProperties.DEFAULT_LOAD_DIALOG_PATH, selFile.getParentFile().getAbsolutePath());
 
@@ -20,8 +20,6 @@
 package de.unijena.bioinf.ms.gui.fingerid;
 
 import de.unijena.bioinf.fingerid.FingerprintResult;
-import de.unijena.bioinf.fingerid.blast.FBCandidateFingerprints;
-import de.unijena.bioinf.fingerid.blast.FBCandidates;
 import de.unijena.bioinf.jjobs.JJob;
 import de.unijena.bioinf.jjobs.TinyBackgroundJJob;
 import de.unijena.bioinf.ms.gui.compute.jjobs.Jobs;
@@ -32,9 +30,8 @@ import de.unijena.bioinf.ms.gui.table.SiriusGlazedLists;
 import de.unijena.bioinf.ms.gui.table.list_stats.DoubleListStats;
 import de.unijena.bioinf.projectspace.FormulaResultBean;
 import de.unijena.bioinf.projectspace.InstanceBean;
-import de.unijena.bioinf.projectspace.fingerid.FBCandidateFingerprintsGUI;
-import de.unijena.bioinf.projectspace.fingerid.FBCandidatesGUI;
-import de.unijena.bioinf.projectspace.sirius.FormulaResult;
+import de.unijena.bioinf.projectspace.fingerid.CandidatePageRequest;
+import de.unijena.bioinf.projectspace.fingerid.FBCandidatesPage;
 
 import javax.swing.*;
 import java.util.*;
@@ -132,32 +129,32 @@ public class StructureList extends ActionList<FingerprintCandidateBean, Set<Form
                     for (FormulaResultBean e : formulasToShow) {
                         checkForInterruption();
                         if (e != null) {
-                            Class<? extends FBCandidates> cClass = loadAll.get() ? FBCandidates.class : FBCandidatesGUI.class;
-                            Class<? extends FBCandidateFingerprints> fpClass = loadAll.get() ? FBCandidateFingerprints.class : FBCandidateFingerprintsGUI.class;
+                            final CandidatePageRequest request = (loadAll.get() ? CandidatePageRequest.all()
+                                    : CandidatePageRequest.top(CandidatePageRequest.DEFAULT_PAGE_SIZE)).withFingerprints();
 
-                            final Optional<FormulaResult> resOpt = e.getResult(FingerprintResult.class, cClass, fpClass);
+                            final Optional<FingerprintResult> fpResOpt = e.getResult(FingerprintResult.class).flatMap(res -> res.getAnnotation(FingerprintResult.class));
                             checkForInterruption();
+                            if (fpResOpt.isEmpty())
+                                continue;
 
-                            resOpt.ifPresent(res ->
-                                    res.getAnnotation(FingerprintResult.class).ifPresent(fpRes ->
-                                            res.getAnnotation(fpClass).ifPresent(fbfps ->
-                                                    res.getAnnotation(cClass).ifPresent(fbc -> {
-                                                        data.add(e);
-                                                        for (int j = 0; j < fbc.getResults().size(); j++) {
-                                                            FingerprintCandidateBean c = new FingerprintCandidateBean(j + 1,
-                                                                    fpRes.fingerprint,
-                                                                    fbc.getResults().get(j),
-                                                                    fbfps.getFingerprints().get(j),
-                                                                    e.getPrecursorIonType());
-                                                            emChache.add(c);
-                                                            csiScoreStats.addValue(c.getScore());
-                                                            Optional.ofNullable(c.getXLogPOrNull()).ifPresent(logPStats::addValue);
-                                                            Double tm = c.getTanimotoScore();
-                                                            tanimotoStats.addValue(tm == null ? Double.NaN : tm);
-                                                        }
-                                                    })
-                                            )
-                                    ));
+                            final Optional<FBCandidatesPage> pageOpt = e.getStructureCandidates(request);
+                            checkForInterruption();
+
+                            pageOpt.ifPresent(page -> page.getFingerprints().ifPresent(fbfps -> {
+                                data.add(e);
+                                for (int j = 0; j < page.getResults().size(); j++) {
+                                    FingerprintCandidateBean c = new FingerprintCandidateBean(j + 1,
+                                            fpResOpt.get().fingerprint,
+                                            page.getResults().get(j),
+                                            fbfps.get(j),
+                                            e.getPrecursorIonType());
+                                    emChache.add(c);
+                                    csiScoreStats.addValue(c.getScore());
+                                    Optional.ofNullable(c.getXLogPOrNull()).ifPresent(logPStats::addValue);
+                                    Double tm = c.getTanimotoScore();
+                                    tanimotoStats.addValue(tm == null ? Double.NaN : tm);
+                                }
+                            }));
                         }
                     }
                     checkForInterruption();
@@ -20,6 +20,7 @@
 package de.unijena.bioinf.ms.gui.io.filefilter;
 
 import de.unijena.bioinf.projectspace.ProjectSpaceIO;
+import de.unijena.bioinf.projectspace.container.ProjectContainer;
 
 import javax.swing.filechooser.FileFilter;
 import java.io.File;
@@ -29,11 +30,11 @@ public class ProjectArchivedFilter extends FileFilter {
     public boolean accept(File f) {
         if (f.isDirectory())
             return true;
-        return ProjectSpaceIO.isZipProjectSpace(f.toPath());
+        return ProjectSpaceIO.isZipProjectSpace(f.toPath()) || ProjectContainer.isContainer(f.toPath());
     }
 
     @Override
     public String getDescription() {
-        return ".sirius, .workspace";
+        return ".sirius, .siriusc, .workspace";
     }
 }
\ No newline at end of file
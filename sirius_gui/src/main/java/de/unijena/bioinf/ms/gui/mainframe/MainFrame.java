@@ -42,6 +42,7 @@ import de.unijena.bioinf.ms.gui.molecular_formular.FormulaList;
 import de.unijena.bioinf.ms.gui.net.ConnectionMonitor;
 import de.unijena.bioinf.ms.properties.PropertyManager;
 import de.unijena.bioinf.projectspace.*;
+import de.unijena.bioinf.projectspace.container.ProjectContainer;
 import de.unijena.bioinf.utils.NetUtils;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.LoggerFactory;
@@ -162,11 +163,11 @@ public class MainFrame extends JFrame implements DropTargetListener {
 
     public void openNewProjectSpace(Path selFile) {
 
-        changeProject(() -> new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).openExistingProjectSpace(selFile));
+        changeProject(() -> ProjectContainer.openExistingProjectSpace(new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()), selFile));
     }
 
     public void createNewProjectSpace(Path selFile) {
-        changeProject(() -> new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).createNewProjectSpace(selFile));
+        changeProject(() -> ProjectContainer.createNewProjectSpace(new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()), selFile));
     }
 
     protected void changeProject(IOFunctions.IOSupplier<SiriusProjectSpace> makeSpace) {
@@ -177,10 +178,10 @@ public class MainFrame extends JFrame implements DropTargetListener {
             compatible.set(InstanceImporter.checkDataCompatibility(ps, NetUtils.checkThreadInterrupt(Thread.currentThread())) == null);
             Jobs.cancelALL();
             final GuiProjectSpaceManager gps = new GuiProjectSpaceManager(ps, psList, PropertyManager.getInteger(GuiAppOptions.COMPOUND_BUFFER_KEY, 10));
-            inEDTAndWait(() -> MF.setTitlePath(gps.projectSpace().getLocation().toString()));
+            inEDTAndWait(() -> MF.setTitlePath(ProjectContainer.locationOf(gps.projectSpace().getLocation()).toString()));
             gps.projectSpace().addProjectSpaceListener(event -> {
                 if (event.equals(ProjectSpaceEvent.LOCATION_CHANGED))
-                    inEDTAndWait(() -> MF.setTitlePath(gps.projectSpace().getLocation().toString()));
+                    inEDTAndWait(() -> MF.setTitlePath(ProjectContainer.locationOf(gps.projectSpace().getLocation()).toString()));
             });
             return gps;
         }).getResult();
@@ -198,7 +199,7 @@ public class MainFrame extends JFrame implements DropTargetListener {
     public void decoradeMainFrameInstance(@NotNull GuiProjectSpaceManager projectSpaceManager) {
         //add project-space
         ps = projectSpaceManager;
-        inEDTAndWait(() -> MF.setTitlePath(ps.projectSpace().getLocation().toString()));
+        inEDTAndWait(() -> MF.setTitlePath(ProjectContainer.locationOf(ps.projectSpace().getLocation()).toString()));
 
         // create models for views
         compoundList = new CompoundList(ps);
@@ -29,11 +29,14 @@ import de.unijena.bioinf.ms.gui.mainframe.MainFrame;
 import de.unijena.bioinf.ms.gui.utils.*;
 import de.unijena.bioinf.projectspace.GuiProjectSpaceManager;
 import de.unijena.bioinf.projectspace.InstanceBean;
+import de.unijena.bioinf.projectspace.TopHitIndex;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
 import java.awt.*;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -70,6 +73,11 @@ public class CompoundList {
             baseList.add(element.getGUIName());
             baseList.add(element.getIonization().toString());
             baseList.add(String.valueOf(element.getIonMass()));
+            // top hits are only matched if already indexed, filtering never reads compounds
+            ps.getTopHitIndex().peek(element.getID()).ifPresent(row -> {
+                for (TopHitIndex.StringColumn c : List.of(TopHitIndex.StringColumn.FORMULA, TopHitIndex.StringColumn.STRUCTURE_NAME, TopHitIndex.StringColumn.INCHIKEY))
+                    Optional.ofNullable(row.get(c)).ifPresent(baseList::add);
+            });
         }, true));
         //additional filter based on specific parameters
         compoundFilterModel = new CompoundFilterModel();
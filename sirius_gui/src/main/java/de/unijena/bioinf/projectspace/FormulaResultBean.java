@@ -29,8 +29,10 @@ import de.unijena.bioinf.fingerid.FingerprintResult;
 import de.unijena.bioinf.fingerid.blast.FBCandidates;
 import de.unijena.bioinf.ms.annotations.DataAnnotation;
 import de.unijena.bioinf.ms.frontend.core.SiriusPCS;
+import de.unijena.bioinf.projectspace.fingerid.CandidatePageRequest;
 import de.unijena.bioinf.projectspace.fingerid.FBCandidateFingerprintsGUI;
 import de.unijena.bioinf.projectspace.fingerid.FBCandidatesGUI;
+import de.unijena.bioinf.projectspace.fingerid.FBCandidatesPage;
 import de.unijena.bioinf.projectspace.sirius.FormulaResult;
 import de.unijena.bioinf.sirius.FTreeMetricsHelper;
 
@@ -136,6 +138,10 @@ public class FormulaResultBean implements SiriusPCS, Comparable<FormulaResultBea
         return parent.loadFormulaResult(getID(), components);
     }
 
+    public Optional<FBCandidatesPage> getStructureCandidates(CandidatePageRequest request) {
+        return parent.loadStructureCandidates(getID(), request);
+    }
+
     public <T extends FormulaScore> double getScoreValueIfNa(Class<T> scoreType, double fallback) {
         return getScore(scoreType).orElse(FormulaScore.NA(scoreType)).scoreIfNa(fallback);
     }
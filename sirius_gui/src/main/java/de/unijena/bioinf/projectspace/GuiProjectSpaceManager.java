@@ -31,6 +31,7 @@ import de.unijena.bioinf.ms.gui.dialogs.ExceptionDialog;
 import de.unijena.bioinf.ms.gui.dialogs.QuestionDialog;
 import de.unijena.bioinf.ms.gui.utils.GuiUtils;
 import de.unijena.bioinf.projectspace.canopus.CanopusDataProperty;
+import de.unijena.bioinf.projectspace.container.ProjectContainer;
 import de.unijena.bioinf.projectspace.fingerid.FingerIdDataProperty;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -41,11 +42,13 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static de.unijena.bioinf.ms.gui.mainframe.MainFrame.MF;
@@ -72,11 +75,10 @@ public class GuiProjectSpaceManager extends ProjectSpaceManager {
         this.ringBuffer = new InstanceBuffer(maxBufferSize);
         this.INSTANCE_LIST = compoundList;
         final ArrayList<InstanceBean> buf = new ArrayList<>(size());
-        forEach(it -> {
-            it.clearFormulaResultsCache();
-            it.clearCompoundCache();
-            buf.add((InstanceBean) it);
-        });
+        // instances are created from the compound id index, experiments are loaded lazily on display
+        final Predicate<CompoundContainerId> filter = getCompoundIdFilter();
+        final Iterator<CompoundContainerId> it = filter != null ? space.filteredIterator(filter) : space.iterator();
+        it.forEachRemaining(id -> buf.add((InstanceBean) newInstanceFromIndex(id)));
         inEDTAndWait(() -> {
             INSTANCE_LIST.clear();
             INSTANCE_LIST.addAll(buf);
@@ -86,6 +88,15 @@ public class GuiProjectSpaceManager extends ProjectSpaceManager {
             final InstanceBean inst = (InstanceBean) newInstanceFromCompound(event.getAffectedID());
             Jobs.runEDTLater(() -> INSTANCE_LIST.add(inst));
         })).register();
+
+        // bring the top hit index up to date for filtering
+        Jobs.runInBackground(() -> {
+            try {
+                getTopHitIndex().refresh();
+            } catch (IOException e) {
+                LOG.warn("Could not refresh top hit index. " + e.getMessage());
+            }
+        });
     }
 
 
@@ -195,7 +206,7 @@ public class GuiProjectSpaceManager extends ProjectSpaceManager {
         final IOException ex = Jobs.runInBackgroundAndLoad(MF, header + " '" + newlocation.toString() + "'...", () -> {
             try {
                 ProjectSpaceIO.copyProject(projectSpace(), newlocation, switchLocation);
-                inEDTAndWait(() -> MF.setTitlePath(projectSpace().getLocation().toString()));
+                inEDTAndWait(() -> MF.setTitlePath(ProjectContainer.locationOf(projectSpace().getLocation()).toString()));
                 return null;
             } catch (IOException e) {
                 return e;
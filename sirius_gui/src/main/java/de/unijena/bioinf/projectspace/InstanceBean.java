@@ -118,7 +118,7 @@ public class InstanceBean extends Instance implements SiriusPCS {
             List<FormulaResultId> rid = List.copyOf(ccache.getResults().values());
 
             ccache.getResults().clear();
-            clearFormulaResultsCache();
+            rid.forEach(getProjectSpaceManager().getResultCache()::remove);
 
             pcs.firePropertyChange("instance.clearFormulaResults", old.isEmpty() ? nu : old, nu);
 
@@ -51,10 +51,8 @@ public class InstanceBuffer {
         try {
             if (buffer.remove(toRemove)) {
 //                System.out.println("+++++++ Removing from cache: " + toRemove.toString());
-                if (!toRemove.isComputing()) {
-                    toRemove.clearFormulaResultsCache();
+                if (!toRemove.isComputing()) // formula results are bounded by the project wide result cache
                     toRemove.clearCompoundCache();
-                }
                 //todo enable if we can cache preview for compound list
                 return true;
             }
@@ -53,7 +53,7 @@ import java.util.List;
 import java.util.Optional;
 
 public class FBCandidateFingerprintSerializerGUI implements ComponentSerializer<FormulaResultId, FormulaResult, FBCandidateFingerprintsGUI> {
-    final FBCandidateFingerprintSerializer source = new FBCandidateFingerprintSerializer();
+    final FBCandidateFingerprintStoreSerializer source = new FBCandidateFingerprintStoreSerializer();
 
     @Override
     public @Nullable FBCandidateFingerprintsGUI read(ProjectReader projectReader, FormulaResultId formulaResultId, FormulaResult formulaResult) throws IOException {
@@ -20,6 +20,7 @@
 package de.unijena.bioinf.ms.middleware;
 
 import de.unijena.bioinf.projectspace.SiriusProjectSpace;
+import de.unijena.bioinf.projectspace.TopHitIndex;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.server.ResponseStatusException;
@@ -36,4 +37,8 @@ public class BaseApiController {
     protected SiriusProjectSpace projectSpace(String pid) {
         return context.getProjectSpace(pid).orElseThrow(()->new ResponseStatusException(HttpStatus.NOT_FOUND,"There is no project space with name '"+pid+"'"));
     }
+
+    protected TopHitIndex topHitIndex(String pid) {
+        return context.getTopHitIndex(pid).orElseThrow(()->new ResponseStatusException(HttpStatus.NOT_FOUND,"There is no project space with name '"+pid+"'"));
+    }
 }
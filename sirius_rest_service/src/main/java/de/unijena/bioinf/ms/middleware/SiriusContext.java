@@ -23,6 +23,8 @@ import de.unijena.bioinf.projectspace.ProjectSpaceManager;
 import de.unijena.bioinf.ms.middleware.projectspace.ProjectSpaceId;
 import de.unijena.bioinf.projectspace.ProjectSpaceIO;
 import de.unijena.bioinf.projectspace.SiriusProjectSpace;
+import de.unijena.bioinf.projectspace.TopHitIndex;
+import de.unijena.bioinf.projectspace.container.ProjectContainer;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.stereotype.Component;
@@ -41,11 +43,13 @@ import java.util.stream.Collectors;
 public class SiriusContext implements DisposableBean {
 
     protected final HashMap<String, SiriusProjectSpace> projectSpace;
+    protected final HashMap<String, TopHitIndex> topHitIndices;
     protected final ReadWriteLock projectSpaceLock;
 
     public SiriusContext() {
         this.projectSpaceLock = new ReentrantReadWriteLock();
         this.projectSpace = new HashMap<>();
+        this.topHitIndices = new HashMap<>();
     }
 
     public List<ProjectSpaceId> listAllProjectSpaces() {
@@ -66,6 +70,21 @@ public class SiriusContext implements DisposableBean {
         }
     }
 
+    public Optional<TopHitIndex> getTopHitIndex(String name) {
+        projectSpaceLock.readLock().lock();
+        try {
+            return Optional.ofNullable(topHitIndices.get(name));
+        } finally {
+            projectSpaceLock.readLock().unlock();
+        }
+    }
+
+    // the index has to listen to all writes, so it is opened together with the project
+    private void register(String name, SiriusProjectSpace space) {
+        projectSpace.put(name, space);
+        topHitIndices.put(name, TopHitIndex.open(space));
+    }
+
     /**
      * either use the suggested name, or add some suffix to the name such that it becomes unique during the call
      * of the provided function
@@ -95,10 +114,10 @@ public class SiriusContext implements DisposableBean {
             if (projectSpace.containsKey(id.name)) {
                 throw new IllegalArgumentException("project space with name '" + id.name + "' already exists.");
             }
-            if (!ProjectSpaceIO.isExistingProjectspaceDirectory(id.path) && !ProjectSpaceIO.isZipProjectSpace(id.path)) {
+            if (!ProjectContainer.isExistingProject(id.path)) {
                 throw new IllegalArgumentException("'" + id.name + "' is no valid SIRIUS project space.");
             }
-            projectSpace.put(id.name, new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).openExistingProjectSpace(id.path));
+            register(id.name, ProjectContainer.openExistingProjectSpace(new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()), id.path));
             return id;
         } finally {
             lock.unlock();
@@ -107,8 +126,8 @@ public class SiriusContext implements DisposableBean {
 
     public ProjectSpaceId addProjectSpace(@NotNull String nameSuggestion, @NotNull SiriusProjectSpace projectSpaceToAdd) {
         return ensureUniqueName(nameSuggestion, (name) -> {
-            projectSpace.put(name, projectSpaceToAdd);
-            return new ProjectSpaceId(name, projectSpaceToAdd.getRootPath());
+            register(name, projectSpaceToAdd);
+            return new ProjectSpaceId(name, ProjectContainer.locationOf(projectSpaceToAdd.getRootPath()));
         });
     }
 
@@ -119,7 +138,7 @@ public class SiriusContext implements DisposableBean {
             if (projectSpace.containsKey(id.name)) {
                 throw new IllegalArgumentException("project space with name '" + id.name + "' already exists.");
             }
-            projectSpace.put(id.name, new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).createNewProjectSpace(id.path));
+            register(id.name, ProjectContainer.createNewProjectSpace(new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()), id.path));
             return id;
         } finally {
             lock.unlock();
@@ -131,7 +150,7 @@ public class SiriusContext implements DisposableBean {
         return ensureUniqueName("temporary", (name) -> {
             try {
                 SiriusProjectSpace space = new ProjectSpaceIO(ProjectSpaceManager.newDefaultConfig()).createTemporaryProjectSpace();
-                projectSpace.put(name, space);
+                register(name, space);
                 return new ProjectSpaceId(name, space.getRootPath());
             } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -146,7 +165,12 @@ public class SiriusContext implements DisposableBean {
             if (space == null) {
                 throw new IllegalArgumentException("Project space with name '" + name + "' does not exist");
             }
-            space.close();
+            try {
+                topHitIndices.remove(name).close();
+                space.close();
+            } finally {
+                ProjectContainer.closeFileSystem(space.getRootPath());
+            }
             projectSpace.remove(name);
         } finally {
             projectSpaceLock.writeLock().unlock();
@@ -157,8 +181,11 @@ public class SiriusContext implements DisposableBean {
     public void destroy() throws Exception {
         projectSpaceLock.writeLock().lock();
         try {
+            topHitIndices.values().forEach(TopHitIndex::close);
+            topHitIndices.clear();
             for (SiriusProjectSpace space : projectSpace.values()) {
                 space.close();
+                ProjectContainer.closeFileSystem(space.getRootPath());
             }
             projectSpace.clear();
         } finally {
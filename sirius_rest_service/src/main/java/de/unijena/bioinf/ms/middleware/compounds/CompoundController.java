@@ -19,33 +19,18 @@
 
 package de.unijena.bioinf.ms.middleware.compounds;
 
-import de.unijena.bioinf.ChemistryBase.algorithm.scoring.FormulaScore;
-import de.unijena.bioinf.ChemistryBase.algorithm.scoring.SScored;
-import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
 import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
 import de.unijena.bioinf.ChemistryBase.ms.Peak;
 import de.unijena.bioinf.ChemistryBase.ms.Spectrum;
-import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
-import de.unijena.bioinf.GibbsSampling.ZodiacScore;
-import de.unijena.bioinf.canopus.CanopusResult;
-import de.unijena.bioinf.chemdb.CompoundCandidate;
-import de.unijena.bioinf.chemdb.PubmedLinks;
-import de.unijena.bioinf.fingerid.ConfidenceScore;
-import de.unijena.bioinf.fingerid.blast.FBCandidates;
 import de.unijena.bioinf.ms.middleware.BaseApiController;
 import de.unijena.bioinf.ms.middleware.SiriusContext;
 import de.unijena.bioinf.ms.middleware.spectrum.AnnotatedSpectrum;
 import de.unijena.bioinf.projectspace.CompoundContainerId;
-import de.unijena.bioinf.projectspace.FormulaScoring;
 import de.unijena.bioinf.projectspace.SiriusProjectSpace;
+import de.unijena.bioinf.projectspace.TopHitIndex;
 import de.unijena.bioinf.projectspace.sirius.CompoundContainer;
-import de.unijena.bioinf.projectspace.sirius.FormulaResult;
-import de.unijena.bioinf.sirius.FTreeMetricsHelper;
-import de.unijena.bioinf.sirius.scores.IsotopeScore;
-import de.unijena.bioinf.sirius.scores.SiriusScore;
-import de.unijena.bioinf.sirius.scores.TreeScore;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -58,6 +43,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -78,7 +64,23 @@ public class CompoundController extends BaseApiController {
         LoggerFactory.getLogger(CompoundController.class).info("Started collecting compounds...");
 
         final ArrayList<CompoundId> compoundIds = new ArrayList<>();
-        space.iterator().forEachRemaining(ccid -> compoundIds.add(asCompoundId(ccid, pid, includeSummary, includeMsData)));
+        if (includeSummary) {
+            // one scan over the top hit index instead of reading every compound
+            final Map<String, CompoundSummary> summaries = new HashMap<>();
+            try {
+                for (TopHitIndex.Row row : topHitIndex(pid).refresh())
+                    summaries.put(row.get(TopHitIndex.StringColumn.DIRECTORY), asCompoundSummary(row));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            space.iterator().forEachRemaining(ccid -> {
+                final CompoundId compoundId = asCompoundId(ccid, pid, false, includeMsData);
+                compoundId.setSummary(summaries.getOrDefault(ccid.getDirectoryName(), new CompoundSummary()));
+                compoundIds.add(compoundId);
+            });
+        } else {
+            space.iterator().forEachRemaining(ccid -> compoundIds.add(asCompoundId(ccid, pid, false, includeMsData)));
+        }
 
         LoggerFactory.getLogger(CompoundController.class).info("Finished parsing compounds...");
         return compoundIds;
@@ -95,83 +97,64 @@ public class CompoundController extends BaseApiController {
 
 
     private CompoundSummary asCompoundSummary(CompoundContainerId cid, String pid) {
-        final CompoundSummary cSum = new CompoundSummary();
         try {
-            final SiriusProjectSpace space = projectSpace(pid);
-            final CompoundContainer c = space.getCompound(cid);
-            if (!c.getResults().isEmpty()) {
-                SScored<FormulaResult, ? extends FormulaScore> scoredTopHit =
-                        space.getFormulaResultsOrderedBy(cid, cid.getRankingScoreTypes(), FormulaScoring.class).get(0);
-
-                final FormulaResult topHit = scoredTopHit.getCandidate();
-                final FormulaScoring scorings = topHit.getAnnotationOrThrow(FormulaScoring.class);
-
-                //add formula summary
-                final FormulaResultSummary frs = new FormulaResultSummary();
-                cSum.setFormulaResultSummary(frs);
-
-                frs.setMolecularFormula(topHit.getId().getMolecularFormula().toString());
-                frs.setAdduct(topHit.getId().getIonType().toString());
-
-                scorings.getAnnotation(SiriusScore.class).
-                        ifPresent(sscore -> frs.setSiriusScore(sscore.score()));
-                scorings.getAnnotation(IsotopeScore.class).
-                        ifPresent(iscore -> frs.setIsotopeScore(iscore.score()));
-                scorings.getAnnotation(TreeScore.class).
-                        ifPresent(tscore -> frs.setTreeScore(tscore.score()));
-                scorings.getAnnotation(ZodiacScore.class).
-                        ifPresent(zscore -> frs.setZodiacScore(zscore.score()));
-
-                space.getFormulaResult(topHit.getId(), FTree.class).getAnnotation(FTree.class).
-                        ifPresent(fTree -> {
-                            final FTreeMetricsHelper metrHelp = new FTreeMetricsHelper(fTree);
-                            frs.setNumOfexplainedPeaks(metrHelp.getNumOfExplainedPeaks());
-                            frs.setNumOfexplainablePeaks(metrHelp.getNumberOfExplainablePeaks());
-                            frs.setTotalExplainedIntensity(metrHelp.getExplainedIntensityRatio());
-                            frs.setMedianMassDeviation(metrHelp.getMedianMassDeviation());
-                        });
-
-                // fingerid result
-                space.getFormulaResult(topHit.getId(), FBCandidates.class).getAnnotation(FBCandidates.class).
-                        ifPresent(fbres -> {
-                            final StructureResultSummary sSum = new StructureResultSummary();
-                            cSum.setStructureResultSummary(sSum);
-
-                            if (!fbres.getResults().isEmpty()) {
-                                final Scored<CompoundCandidate> can = fbres.getResults().get(0);
-
-                                // scores
-                                sSum.setCsiScore(can.getScore());
-                                sSum.setSimilarity(Double.NaN); //todo calculate Tanimoto or drop because we have to read another file for that
-                                scorings.getAnnotation(ConfidenceScore.class).
-                                        ifPresent(cScore -> sSum.setConfidenceScore(cScore.score()));
-
-                                //Structure information
-                                //todo ugly workaround until "null" strings are fixed
-                                final String n = can.getCandidate().getName();
-                                if (n != null && !n.isEmpty() && !n.equals("null"))
-                                    sSum.setStructureName(n);
-
-                                sSum.setSmiles(can.getCandidate().getSmiles());
-                                sSum.setInchiKey(can.getCandidate().getInchiKey2D());
-                                sSum.setXlogP(can.getCandidate().getXlogp());
-
-                                //meta data
-                                PubmedLinks pubMedIds = can.getCandidate().getPubmedIDs();
-                                if (pubMedIds != null)
-                                    sSum.setNumOfPubMedIds(pubMedIds.getNumberOfPubmedIDs());
-                            }
-                        });
-
-                // canopus results //todo extract useful canopus summary
-                space.getFormulaResult(topHit.getId(), CanopusResult.class).getAnnotation(CanopusResult.class).
-                        ifPresent(cRes -> {
-                            cSum.setCategoryResultSummary(new CategoryResultSummary());
-                        });
-            }
+            return topHitIndex(pid).get(cid).map(this::asCompoundSummary).orElseGet(CompoundSummary::new);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+    }
+
+    private CompoundSummary asCompoundSummary(TopHitIndex.Row row) {
+        final CompoundSummary cSum = new CompoundSummary();
+        if (row.get(TopHitIndex.StringColumn.FORMULA) == null)
+            return cSum;
+
+        //add formula summary
+        final FormulaResultSummary frs = new FormulaResultSummary();
+        cSum.setFormulaResultSummary(frs);
+
+        frs.setMolecularFormula(row.get(TopHitIndex.StringColumn.FORMULA));
+        frs.setAdduct(row.get(TopHitIndex.StringColumn.ADDUCT));
+
+        row.opt(TopHitIndex.DoubleColumn.SIRIUS_SCORE).ifPresent(frs::setSiriusScore);
+        row.opt(TopHitIndex.DoubleColumn.ISOTOPE_SCORE).ifPresent(frs::setIsotopeScore);
+        row.opt(TopHitIndex.DoubleColumn.TREE_SCORE).ifPresent(frs::setTreeScore);
+        row.opt(TopHitIndex.DoubleColumn.ZODIAC_SCORE).ifPresent(frs::setZodiacScore);
+
+        if (row.has(TopHitIndex.IntColumn.EXPLAINED_PEAKS)) {
+            frs.setNumOfexplainedPeaks(row.get(TopHitIndex.IntColumn.EXPLAINED_PEAKS));
+            frs.setNumOfexplainablePeaks(row.get(TopHitIndex.IntColumn.EXPLAINABLE_PEAKS));
+            frs.setTotalExplainedIntensity(row.get(TopHitIndex.DoubleColumn.EXPLAINED_INTENSITY));
+            row.getMedianMassDeviation().ifPresent(frs::setMedianMassDeviation);
+        }
+
+        // fingerid result
+        if (row.has(TopHitIndex.IntColumn.STRUCTURE_CANDIDATES)) {
+            final StructureResultSummary sSum = new StructureResultSummary();
+            cSum.setStructureResultSummary(sSum);
+
+            if (row.get(TopHitIndex.StringColumn.SMILES) != null) {
+                // scores
+                sSum.setCsiScore(row.get(TopHitIndex.DoubleColumn.CSI_SCORE));
+                sSum.setSimilarity(Double.NaN); //todo calculate Tanimoto or drop because we have to read another file for that
+                row.opt(TopHitIndex.DoubleColumn.CONFIDENCE).ifPresent(sSum::setConfidenceScore);
+
+                //Structure information
+                sSum.setStructureName(row.get(TopHitIndex.StringColumn.STRUCTURE_NAME));
+                sSum.setSmiles(row.get(TopHitIndex.StringColumn.SMILES));
+                sSum.setInchiKey(row.get(TopHitIndex.StringColumn.INCHIKEY));
+                sSum.setXlogP(row.get(TopHitIndex.DoubleColumn.XLOGP));
+
+                //meta data
+                if (row.has(TopHitIndex.IntColumn.PUBMED_IDS))
+                    sSum.setNumOfPubMedIds(row.get(TopHitIndex.IntColumn.PUBMED_IDS));
+            }
+        }
+
+        // canopus results //todo extract useful canopus summary
+        if (row.has(TopHitIndex.IntColumn.CANOPUS))
+            cSum.setCategoryResultSummary(new CategoryResultSummary());
+
         return cSum;
     }
 
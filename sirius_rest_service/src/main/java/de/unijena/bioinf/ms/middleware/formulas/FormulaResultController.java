@@ -24,12 +24,13 @@ import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
 import de.unijena.bioinf.babelms.json.FTJsonWriter;
 import de.unijena.bioinf.chemdb.CompoundCandidate;
 import de.unijena.bioinf.fingerid.FingerprintResult;
-import de.unijena.bioinf.fingerid.blast.FBCandidates;
 import de.unijena.bioinf.ms.annotations.DataAnnotation;
 import de.unijena.bioinf.ms.middleware.BaseApiController;
 import de.unijena.bioinf.ms.middleware.SiriusContext;
 import de.unijena.bioinf.projectspace.FormulaScoring;
 import de.unijena.bioinf.projectspace.SiriusProjectSpace;
+import de.unijena.bioinf.projectspace.fingerid.CandidatePageRequest;
+import de.unijena.bioinf.projectspace.fingerid.FBCandidatesPage;
 import de.unijena.bioinf.projectspace.sirius.CompoundContainer;
 import de.unijena.bioinf.projectspace.sirius.FormulaResult;
 import org.slf4j.LoggerFactory;
@@ -93,13 +94,13 @@ public class FormulaResultController extends BaseApiController {
     }
 
     @GetMapping(value = "/formulas/{fid}/candidates", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
-    public String getStructureCandidates(@PathVariable String pid, @PathVariable String cid, @PathVariable String fid){
+    public String getStructureCandidates(@PathVariable String pid, @PathVariable String cid, @PathVariable String fid,
+                                         @RequestParam(defaultValue = "0") int offset, @RequestParam(defaultValue = "-1") int limit){
         SiriusProjectSpace projectSpace = projectSpace(pid);
-        return this.getAnnotatedFormulaResult(projectSpace, cid, fid, FBCandidates.class).map(fr -> {
-            List<String> jsons = fr.getAnnotation(FBCandidates.class).map(candidates ->
-                    candidates.getResults().stream().map(sc ->
-                            sc.getCandidate().toJSON()).collect(Collectors.toList()))
-                    .orElse(Collections.emptyList());
+        final CandidatePageRequest request = CandidatePageRequest.page(Math.max(0, offset), limit < 0 ? CandidatePageRequest.ALL : limit);
+        return this.getStructureCandidatePage(projectSpace, cid, fid, request).map(page -> {
+            List<String> jsons = page.getResults().stream().map(sc ->
+                    sc.getCandidate().toJSON()).collect(Collectors.toList());
             return this.JSONListToOneJSON(jsons);
         }).orElse(null);
     }
@@ -107,23 +108,22 @@ public class FormulaResultController extends BaseApiController {
     @GetMapping(value = "/formulas/topHitCandidate", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
     public String getTopHitCandidate(@PathVariable String pid, @PathVariable String cid){
         SiriusProjectSpace projectSpace = projectSpace(pid);
-        Stream<Optional<FormulaResult>> annotatedFResults = this.getCompound(projectSpace,cid).map(cc ->
+        Stream<Optional<FBCandidatesPage>> topPages = this.getCompound(projectSpace,cid).map(cc ->
                 cc.getResults().values().stream().map(frId -> {
                     try {
-                        return Optional.of(projectSpace.getFormulaResult(frId, FBCandidates.class));
+                        return FBCandidatesPage.read(projectSpace, frId, CandidatePageRequest.top(1));
                     } catch (IOException e) {
-                        return Optional.<FormulaResult>empty();
+                        return Optional.<FBCandidatesPage>empty();
                     }
                 })).orElse(Stream.empty());
         /*
          * two cases: there is no CompoundContainer in the projectspace with the specified identifier 'cid'
          * or: the CompoundContainer does not contain FormulaResults --> cc.getResults().values() is an empty collection
          *
-         * If the stream is not empty, the elements are Optional<FormulaResult> objects.
+         * If the stream is not empty, the elements are Optional<FBCandidatesPage> objects containing the top candidate only.
          */
-        List<Scored<CompoundCandidate>> topHits = annotatedFResults.map(optfr ->
-                optfr.map(fr -> fr.getAnnotation(FBCandidates.class).map(fbCandidates ->
-                        fbCandidates.getResults().get(0)).orElse(null))).
+        List<Scored<CompoundCandidate>> topHits = topPages.map(optPage ->
+                optPage.filter(page -> !page.getResults().isEmpty()).map(page -> page.getResults().get(0))).
                 filter(Optional::isPresent).map(Optional::get).collect(Collectors.toList());
 
         // topHits can be an empty list
@@ -179,6 +179,17 @@ public class FormulaResultController extends BaseApiController {
         return fResult;
     }
 
+    private Optional<FBCandidatesPage> getStructureCandidatePage(SiriusProjectSpace projectSpace, String cid, String fid, CandidatePageRequest request){
+        return this.getCompound(projectSpace, cid).flatMap(cc -> cc.findResult(fid)).flatMap(frId -> {
+            try {
+                return FBCandidatesPage.read(projectSpace, frId, request);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return Optional.empty();
+            }
+        });
+    }
+
     private Optional<CompoundContainer> getCompound(SiriusProjectSpace space, String cid, Class<? extends DataAnnotation>... components) {
         return space.findCompound(cid).map(ccId -> {
             try {